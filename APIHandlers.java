@@ -1,17 +1,22 @@
 // API Request Handlers
 package com.httpserver;
 
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.google.gson.Gson;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 // Server Status Handler
 class ServerStatusHandler implements HttpHandler {
     private final ServerStatsManager statsManager;
-    private final Gson gson = new Gson();
     
     public ServerStatusHandler(ServerStatsManager statsManager) {
         this.statsManager = statsManager;
@@ -19,13 +24,6 @@ class ServerStatusHandler implements HttpHandler {
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         Map<String, Object> response = new HashMap<>();
         response.put("status", statsManager.isServerRunning() ? "running" : "stopped");
         response.put("timestamp", System.currentTimeMillis());
@@ -37,36 +35,215 @@ class ServerStatusHandler implements HttpHandler {
 // Server Stats Handler
 class ServerStatsHandler implements HttpHandler {
     private final ServerStatsManager statsManager;
-    private final Gson gson = new Gson();
+    private final ResponseCache responseCache;
+    private final RateLimiter rateLimiter;
+    private final TlsListener tlsListener;
+    private final FileUploadHandler uploadHandler;
+    private final LogEventStream logEventStream;
+    private final WorkerPool workerPool;
+    private final Bulkheads bulkheads;
     
-    public ServerStatsHandler(ServerStatsManager statsManager) {
+    public ServerStatsHandler(ServerStatsManager statsManager, ResponseCache responseCache, RateLimiter rateLimiter,
+                              TlsListener tlsListener, FileUploadHandler uploadHandler, LogEventStream logEventStream,
+                              WorkerPool workerPool, Bulkheads bulkheads) {
         this.statsManager = statsManager;
+        this.responseCache = responseCache;
+        this.rateLimiter = rateLimiter;
+        this.tlsListener = tlsListener;
+        this.uploadHandler = uploadHandler;
+        this.logEventStream = logEventStream;
+        this.workerPool = workerPool;
+        this.bulkheads = bulkheads;
     }
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         Map<String, Object> stats = new HashMap<>();
         stats.put("uptime", statsManager.getFormattedUptime());
         stats.put("totalRequests", statsManager.getTotalRequests());
         stats.put("activeConnections", statsManager.getActiveConnections());
         stats.put("memoryUsage", statsManager.getFormattedMemoryUsage());
         stats.put("cpuUsage", statsManager.getCpuUsage());
+        stats.put("timeouts", statsManager.getTimeouts());
+        stats.put("slowRequests", statsManager.getSlowRequests());
+        stats.put("latency", statsManager.getLatency().toSummaryMap());
+        stats.put("workers", workerPool.getStats());
+        if (bulkheads != null) {
+            stats.put("bulkheads", bulkheads.getStats());
+        }
+        
+        Map<String, Object> cache = new HashMap<>();
+        cache.put("entries", responseCache.size());
+        cache.put("hits", responseCache.getHits());
+        cache.put("misses", responseCache.getMisses());
+        cache.put("coalesced", responseCache.getCoalesced());
+        stats.put("responseCache", cache);
+        if (rateLimiter != null) {
+            stats.put("rateLimit", rateLimiter.getStats());
+        }
+        if (tlsListener != null) {
+            stats.put("tls", tlsListener.getStats());
+        }
+        if (uploadHandler != null) {
+            stats.put("uploads", uploadHandler.getStats());
+        }
+        stats.put("eventStream", logEventStream.getStats());
+        Map<String, Object> bufferPools = new HashMap<>();
+        bufferPools.put("direct", BufferPool.direct().getStats());
+        bufferPools.put("heap", BufferPool.heap().getStats());
+        stats.put("bufferPools", bufferPools);
         
         ResponseHelper.sendJsonResponse(exchange, stats);
     }
 }
 
+// Top paths, clients and User-Agents plus distinct client counts from the traffic
+// sketches: ?seconds=300 merges the windows covering the last five minutes (default:
+// every retained window), ?limit=20 sets the entries per list (default 10)
+class TrafficTopHandler implements HttpHandler {
+    private final TrafficSketches sketches;
+    
+    public TrafficTopHandler(TrafficSketches sketches) {
+        this.sketches = sketches;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        long seconds;
+        int limit;
+        try {
+            String secondsParam = ResponseHelper.queryParam(exchange, "seconds");
+            String limitParam = ResponseHelper.queryParam(exchange, "limit");
+            seconds = secondsParam != null ? Long.parseLong(secondsParam) : 0;
+            limit = limitParam != null ? Integer.parseInt(limitParam) : 10;
+        } catch (NumberFormatException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "seconds and limit must be numbers");
+            return;
+        }
+        ResponseHelper.sendJsonResponse(exchange, sketches.top(seconds, Math.max(0, limit)));
+    }
+}
+
+// Slow Requests Handler: the slow request log, newest first
+class SlowRequestsHandler implements HttpHandler {
+    private final SlowRequestLog slowRequestLog;
+    
+    public SlowRequestsHandler(SlowRequestLog slowRequestLog) {
+        this.slowRequestLog = slowRequestLog;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        int limit;
+        try {
+            String limitParam = ResponseHelper.queryParam(exchange, "limit");
+            limit = limitParam != null ? Integer.parseInt(limitParam) : 50;
+        } catch (NumberFormatException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "limit must be a number");
+            return;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("thresholdMs", slowRequestLog.getThresholdMillis());
+        response.put("capacity", slowRequestLog.getCapacity());
+        response.put("recorded", slowRequestLog.getRecorded());
+        response.put("requests", slowRequestLog.getEntries(Math.max(0, limit)));
+        ResponseHelper.sendJsonResponse(exchange, response);
+    }
+}
+
+// Bulkhead Stats Handler: each bulkhead's threads, queue and rejections
+class BulkheadStatsHandler implements HttpHandler {
+    private final Bulkheads bulkheads;
+    
+    public BulkheadStatsHandler(Bulkheads bulkheads) {
+        this.bulkheads = bulkheads;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        ResponseHelper.sendJsonResponse(exchange, bulkheads.getStats());
+    }
+}
+
+// Cluster Node Handler: this instance's mergeable snapshot, fetched by its peers
+class ClusterNodeHandler implements HttpHandler {
+    private final ClusterStats cluster;
+    
+    public ClusterNodeHandler(ClusterStats cluster) {
+        this.cluster = cluster;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        int logs;
+        try {
+            String logsParam = ResponseHelper.queryParam(exchange, "logs");
+            logs = logsParam != null ? Integer.parseInt(logsParam) : 0;
+        } catch (NumberFormatException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "logs must be a number");
+            return;
+        }
+        ResponseHelper.sendJsonResponse(exchange, cluster.localSnapshot(Math.max(0, Math.min(logs, ClusterStats.MAX_LOGS))));
+    }
+}
+
+// Cluster Stats Handler: counters and latency merged across every node
+class ClusterStatsHandler implements AsyncHandler {
+    private final ClusterStats cluster;
+    
+    public ClusterStatsHandler(ClusterStats cluster) {
+        this.cluster = cluster;
+    }
+    
+    @Override
+    public CompletableFuture<AsyncResponse> handleAsync(HttpExchange exchange) {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            return CompletableFuture.completedFuture(AsyncResponse.error(405, "Method Not Allowed"));
+        }
+        return cluster.collect(0).thenApply(nodes -> AsyncResponse.json(ClusterStats.mergeStats(nodes)));
+    }
+}
+
+// Cluster Logs Handler: the most recent logs of every node, newest first
+class ClusterLogsHandler implements AsyncHandler {
+    private final ClusterStats cluster;
+    
+    public ClusterLogsHandler(ClusterStats cluster) {
+        this.cluster = cluster;
+    }
+    
+    @Override
+    public CompletableFuture<AsyncResponse> handleAsync(HttpExchange exchange) {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            return CompletableFuture.completedFuture(AsyncResponse.error(405, "Method Not Allowed"));
+        }
+        int limit;
+        try {
+            String limitParam = ResponseHelper.queryParam(exchange, "limit");
+            limit = limitParam != null ? Integer.parseInt(limitParam) : 50;
+        } catch (NumberFormatException e) {
+            return CompletableFuture.completedFuture(AsyncResponse.error(400, "limit must be a number"));
+        }
+        int bounded = Math.max(1, Math.min(limit, ClusterStats.MAX_LOGS));
+        return cluster.collect(bounded).thenApply(nodes -> AsyncResponse.json(ClusterStats.mergeLogs(nodes, bounded)));
+    }
+}
+
 // Logs Handler
 class LogsHandler implements HttpHandler {
     private final RequestLogger requestLogger;
-    private final Gson gson = new Gson();
     
     public LogsHandler(RequestLogger requestLogger) {
         this.requestLogger = requestLogger;
@@ -74,13 +251,6 @@ class LogsHandler implements HttpHandler {
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         String method = exchange.getRequestMethod();
         
         if ("GET".equals(method)) {
@@ -116,8 +286,9 @@ class LogsHandler implements HttpHandler {
 
 // Routes Handler
 class RoutesHandler implements HttpHandler {
+    private static final Type ROUTE_DATA = new TypeToken<Map<String, Object>>() {}.getType();
+    
     private final RouteManager routeManager;
-    private final Gson gson = new Gson();
     
     public RoutesHandler(RouteManager routeManager) {
         this.routeManager = routeManager;
@@ -125,13 +296,6 @@ class RoutesHandler implements HttpHandler {
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         String method = exchange.getRequestMethod();
         
         if ("GET".equals(method)) {
@@ -144,26 +308,49 @@ class RoutesHandler implements HttpHandler {
             String body = ResponseHelper.readRequestBody(exchange);
             
             try {
-                Map<String, String> routeData = gson.fromJson(body, Map.class);
-                String path = routeData.get("path");
-                String handler = routeData.get("handler");
-                String routeMethod = routeData.get("method");
+                Map<String, Object> routeData = JsonWriter.gson().fromJson(body, ROUTE_DATA);
+                if (routeData == null) {
+                    ResponseHelper.sendErrorResponse(exchange, 400, "Invalid JSON");
+                    return;
+                }
+                String path = stringField(routeData, "path");
+                String handler = stringField(routeData, "handler");
+                String routeMethod = stringField(routeData, "method");
                 
                 if (path != null && handler != null && routeMethod != null) {
-                    // Create a simple handler for the new route
-                    HttpHandler newHandler = new CustomRouteHandler(handler);
-                    routeManager.addRoute(path, routeMethod, newHandler);
+                    // Create a simple handler for the new route, cached when cacheTtlMs is given;
+                    // "proxy" forwards to the listed upstreams instead, "stub" serves a canned response
+                    HttpHandler newHandler = "proxy".equals(handler)
+                        ? ProxyHandler.fromConfig(routeData)
+                        : "stub".equals(handler)
+                        ? StubRouteHandler.fromConfig(routeData)
+                        : new CustomRouteHandler(handler);
+                    Object cacheTtl = routeData.get("cacheTtlMs");
+                    if (cacheTtl != null && !(cacheTtl instanceof Number)) {
+                        throw new IllegalArgumentException("cacheTtlMs must be a number");
+                    }
+                    long cacheTtlMs = cacheTtl != null ? ((Number) cacheTtl).longValue() : 0;
+                    routeManager.addRoute(path, routeMethod, newHandler, cacheTtlMs);
                     
                     Map<String, Object> response = new HashMap<>();
                     response.put("message", "Route added successfully");
                     response.put("path", path);
                     response.put("handler", handler);
                     response.put("method", routeMethod);
+                    response.put("cacheTtlMs", cacheTtlMs);
+                    if (newHandler instanceof ProxyHandler) {
+                        response.put("upstreams", ((ProxyHandler) newHandler).getUpstreams().getStats());
+                    }
+                    if (newHandler instanceof StubRouteHandler) {
+                        response.put("stub", ((StubRouteHandler) newHandler).getStats());
+                    }
                     
                     ResponseHelper.sendJsonResponse(exchange, response);
                 } else {
                     ResponseHelper.sendErrorResponse(exchange, 400, "Missing required fields");
                 }
+            } catch (IllegalArgumentException e) {
+                ResponseHelper.sendErrorResponse(exchange, 400, e.getMessage());
             } catch (Exception e) {
                 ResponseHelper.sendErrorResponse(exchange, 400, "Invalid JSON");
             }
@@ -171,34 +358,121 @@ class RoutesHandler implements HttpHandler {
             ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
         }
     }
+    
+    // Null when absent; anything but a string is rejected rather than cast
+    private static String stringField(Map<String, Object> routeData, String name) {
+        Object value = routeData.get(name);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException(name + " must be a string");
+        }
+        return (String) value;
+    }
 }
 
 // Server Config Handler
 class ServerConfigHandler implements HttpHandler {
+    private final ServerConfig config;
     private final int port;
-    private final Gson gson = new Gson();
+    private final int wsPort;
+    private final int h2cPort;
+    private final int httpsPort;
+    private final byte[] token;
     
-    public ServerConfigHandler(int port) {
+    // With config.token set, PUT needs "Authorization: Bearer <token>"
+    public ServerConfigHandler(ServerConfig config, int port, int wsPort, int h2cPort, int httpsPort) {
+        this.config = config;
         this.port = port;
+        this.wsPort = wsPort;
+        this.h2cPort = h2cPort;
+        this.httpsPort = httpsPort;
+        String token = config.getString("config.token");
+        this.token = !token.isEmpty() ? ("Bearer " + token).getBytes(StandardCharsets.UTF_8) : null;
     }
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
+        String method = exchange.getRequestMethod();
+        if ("PUT".equals(method)) {
+            update(exchange);
             return;
         }
+        if (!"GET".equals(method)) {
+            exchange.getResponseHeaders().set("Allow", "GET, PUT");
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("port", port);
+        response.put("wsPort", wsPort);
+        response.put("h2cPort", h2cPort);
+        response.put("httpsPort", httpsPort);
+        response.put("documentRoot", "./static");
+        response.put("defaultIndex", "index.html");
+        response.put("threadPoolSize", config.getInt("server.workerThreads"));
+        response.put("settings", config.toMap());
         
-        Map<String, Object> config = new HashMap<>();
-        config.put("port", port);
-        config.put("documentRoot", "./static");
-        config.put("defaultIndex", "index.html");
-        config.put("maxConnections", 100);
-        config.put("threadPoolSize", 10);
+        ResponseHelper.sendJsonResponse(exchange, response);
+    }
+    
+    // Takes {"key": value, ...}; applied whole or not at all
+    private void update(HttpExchange exchange) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (token != null && (header == null || !MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8)))) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            ResponseHelper.sendErrorResponse(exchange, 401, "Unauthorized");
+            return;
+        }
+        Map<?, ?> changes;
+        try {
+            changes = JsonWriter.gson().fromJson(ResponseHelper.readRequestBody(exchange), Map.class);
+        } catch (JsonParseException e) {
+            changes = null;
+        }
+        if (changes == null || changes.isEmpty()) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "Expected a JSON object of settings to change");
+            return;
+        }
         
-        ResponseHelper.sendJsonResponse(exchange, config);
+        List<Map<String, Object>> applied;
+        try {
+            applied = config.update(changes, exchange.getRemoteAddress().getAddress().getHostAddress());
+        } catch (IllegalArgumentException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, e.getMessage());
+            return;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("applied", applied);
+        response.put("settings", config.toMap());
+        ResponseHelper.sendJsonResponse(exchange, response);
+    }
+}
+
+// Config Audit Handler: configuration changes made at runtime, newest first
+class ConfigAuditHandler implements HttpHandler {
+    private final ServerConfig config;
+    
+    public ConfigAuditHandler(ServerConfig config) {
+        this.config = config;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        int limit;
+        try {
+            String limitParam = ResponseHelper.queryParam(exchange, "limit");
+            limit = limitParam != null ? Integer.parseInt(limitParam) : 50;
+        } catch (NumberFormatException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "limit must be a number");
+            return;
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("changes", config.getAudit(Math.max(0, limit)));
+        ResponseHelper.sendJsonResponse(exchange, response);
     }
 }
 
@@ -0,0 +1,181 @@
+// Asynchronous Handler API
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+// A handler that returns instead of blocking: the engine writes the response when the
+// future completes, so a handler waiting on I/O does not hold a worker thread.
+// Register it through AsyncHandlerAdapter (or RouteManager.addAsyncRoute); plain
+// HttpHandlers keep working as before.
+public interface AsyncHandler {
+    CompletableFuture<AsyncResponse> handleAsync(HttpExchange exchange) throws IOException;
+}
+
+// Runs an AsyncHandler inside the blocking engine. When the future is still pending the
+// worker returns at once and the exchange is detached: layers that act after the handler
+// (request logging, deadlines, the h2c stream close, the response cache) look up the
+// completion with completionOf() and defer their work to it.
+class AsyncHandlerAdapter implements HttpHandler {
+    // Exchange attributes are shared per context in the JDK server, so the marker is a
+    // thread local keyed by the request's Headers object, which every wrapper passes
+    // through unchanged. A stale marker never matches a later exchange.
+    private static final ThreadLocal<Detached> DETACHED = new ThreadLocal<>();
+    
+    private final AsyncHandler handler;
+    
+    public AsyncHandlerAdapter(AsyncHandler handler) {
+        this.handler = handler;
+    }
+    
+    // Null when the exchange was answered before handle() returned
+    static CompletableFuture<Void> completionOf(HttpExchange exchange) {
+        Detached detached = DETACHED.get();
+        return detached != null && detached.requestHeaders == exchange.getRequestHeaders()
+            ? detached.completion
+            : null;
+    }
+    
+    // For handlers that keep writing after they return, such as an event stream: the
+    // layers above treat the exchange like a pending async response until completion
+    static void detach(HttpExchange exchange, CompletableFuture<Void> completion) {
+        DETACHED.set(new Detached(exchange.getRequestHeaders(), completion));
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        CompletableFuture<AsyncResponse> future = handler.handleAsync(exchange);
+        if (future == null) {
+            throw new IOException(handler.getClass().getSimpleName() + " returned no future");
+        }
+        if (future.isDone()) {
+            // Already answered (cache hit, validation error): no detaching needed
+            Throwable error = errorOf(future);
+            respond(exchange, error == null ? future.join() : null, error);
+            return;
+        }
+        
+        // The watchdog cancels the work when the request's deadline passes
+        RequestDeadline deadline = RequestDeadlines.current();
+        if (deadline != null) {
+            deadline.onExpire(() -> future.cancel(true));
+        }
+        CompletableFuture<Void> completion = future.handle((response, error) -> {
+            respond(exchange, response, error);
+            return null;
+        });
+        DETACHED.set(new Detached(exchange.getRequestHeaders(), completion));
+    }
+    
+    private static Throwable errorOf(CompletableFuture<?> future) {
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException | InterruptedException e) {
+            return e;
+        }
+    }
+    
+    // Never throws: it runs on whichever thread completed the future
+    private static void respond(HttpExchange exchange, AsyncResponse response, Throwable error) {
+        try {
+            (response != null ? response : toErrorResponse(error)).writeTo(exchange);
+        } catch (IOException | RuntimeException e) {
+            // Headers already sent, client gone or deadline already answered
+            exchange.close();
+        }
+    }
+    
+    private static AsyncResponse toErrorResponse(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        if (error == null) {
+            return AsyncResponse.error(500, "Handler completed without a response");
+        }
+        if (error instanceof TimeoutException || error instanceof CancellationException) {
+            return AsyncResponse.error(504, "Gateway Timeout");
+        }
+        return AsyncResponse.error(500, "Internal Server Error");
+    }
+    
+    private static class Detached {
+        final Headers requestHeaders;
+        final CompletableFuture<Void> completion;
+        
+        Detached(Headers requestHeaders, CompletableFuture<Void> completion) {
+            this.requestHeaders = requestHeaders;
+            this.completion = completion;
+        }
+    }
+}
+
+// Status, headers and body of an async handler's response, encoded up front so the
+// completing thread only copies bytes
+class AsyncResponse {
+    private final int status;
+    private final String contentType;
+    private final List<String[]> headers = new ArrayList<>(2);
+    private final byte[] body;
+    
+    AsyncResponse(int status, String contentType, byte[] body) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+    }
+    
+    public static AsyncResponse json(Object data) {
+        return json(200, data);
+    }
+    
+    public static AsyncResponse json(int status, Object data) {
+        return new AsyncResponse(status, "application/json; charset=UTF-8", JsonWriter.toBytes(data));
+    }
+    
+    public static AsyncResponse text(String text) {
+        return new AsyncResponse(200, "text/plain; charset=UTF-8", text.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // Same body as ResponseHelper.sendErrorResponse
+    public static AsyncResponse error(int status, String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", message);
+        error.put("status", status);
+        error.put("timestamp", System.currentTimeMillis());
+        return json(status, error);
+    }
+    
+    public AsyncResponse header(String name, String value) {
+        headers.add(new String[] {name, value});
+        return this;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+    
+    void writeTo(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        ResponseHelper.copyHeaders(headers, exchange.getResponseHeaders());
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+        exchange.close();
+    }
+}
@@ -0,0 +1,287 @@
+// Pooled Buffer Allocator
+package com.httpserver;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-classed buffers shared by the response, static file and WebSocket paths, so
+// steady traffic stops allocating a fresh array per message. Capacities are powers of
+// two from 1 KB to 1 MB. Each class keeps a bounded free list, and each thread keeps a
+// few buffers of the classes up to 64 KB, so a borrow and return on the same thread
+// takes no lock. Larger requests get a one-off buffer that release() drops.
+//
+// There are two pools: direct() for NIO channel writes, which the kernel reads without
+// a copy into a temporary native buffer, and heap() for the engine's stream APIs, which
+// only take byte[]. With -Dbufferpool.leakDetection=true every borrow records its stack
+// and buffers that are collected without being released are reported.
+public class BufferPool {
+    private static final int MIN_SHIFT = 10;
+    private static final int MAX_SHIFT = 20;
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int MAX_THREAD_CACHED_CLASS = 16 - MIN_SHIFT;
+    private static final int THREAD_CACHE_SIZE = 4;
+    
+    private static final boolean LEAK_DETECTION = Boolean.getBoolean("bufferpool.leakDetection");
+    private static final BufferPool DIRECT = new BufferPool("direct", true,
+        Long.getLong("bufferpool.maxDirectBytes", 64L << 20), LEAK_DETECTION);
+    private static final BufferPool HEAP = new BufferPool("heap", false,
+        Long.getLong("bufferpool.maxHeapBytes", 32L << 20), LEAK_DETECTION);
+    
+    private final String name;
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[CLASSES];
+    private final ThreadLocal<ByteBuffer[][]> threadCache =
+        ThreadLocal.withInitial(() -> new ByteBuffer[MAX_THREAD_CACHED_CLASS + 1][THREAD_CACHE_SIZE]);
+    private final LeakDetector leakDetector;
+    private final LongAdder borrowed = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder threadCacheHits = new LongAdder();
+    private final LongAdder poolHits = new LongAdder();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    
+    public BufferPool(String name, boolean direct, long maxPooledBytes, boolean leakDetection) {
+        this.name = name;
+        this.direct = direct;
+        this.leakDetector = leakDetection ? new LeakDetector(name) : null;
+        for (int i = 0; i < CLASSES; i++) {
+            long perClass = maxPooledBytes / CLASSES >> (i + MIN_SHIFT);
+            classes[i] = new SizeClass((int) Math.max(2, Math.min(perClass, 65_536)));
+        }
+    }
+    
+    public static BufferPool direct() {
+        return DIRECT;
+    }
+    
+    public static BufferPool heap() {
+        return HEAP;
+    }
+    
+    // Cleared, with at least minCapacity bytes. Hand the same object back to release().
+    public ByteBuffer acquire(int minCapacity) {
+        borrowed.increment();
+        int index = classIndex(minCapacity);
+        ByteBuffer buffer = null;
+        if (index < 0) {
+            oversized.increment();
+            buffer = allocate(minCapacity);
+        } else {
+            if (index <= MAX_THREAD_CACHED_CLASS) {
+                buffer = pollThreadCache(index);
+                if (buffer != null) {
+                    threadCacheHits.increment();
+                }
+            }
+            if (buffer == null) {
+                buffer = classes[index].poll();
+                if (buffer != null) {
+                    poolHits.increment();
+                } else {
+                    buffer = allocate(1 << (index + MIN_SHIFT));
+                }
+            }
+            buffer.clear();
+        }
+        if (leakDetector != null) {
+            leakDetector.track(buffer);
+        }
+        return buffer;
+    }
+    
+    // Never touch the buffer, or a duplicate or slice of it, after releasing it
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (leakDetector != null && !leakDetector.untrack(buffer)) {
+            return;
+        }
+        released.increment();
+        int capacity = buffer.capacity();
+        int index = Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT;
+        if (buffer.isDirect() != direct || Integer.bitCount(capacity) != 1 || index < 0 || index >= CLASSES) {
+            return; // One-off buffer, left to the GC
+        }
+        if (index <= MAX_THREAD_CACHED_CLASS && offerThreadCache(index, buffer)) {
+            return;
+        }
+        if (!classes[index].offer(buffer)) {
+            dropped.increment();
+        }
+    }
+    
+    private ByteBuffer pollThreadCache(int index) {
+        ByteBuffer[] cache = threadCache.get()[index];
+        for (int i = cache.length - 1; i >= 0; i--) {
+            ByteBuffer buffer = cache[i];
+            if (buffer != null) {
+                cache[i] = null;
+                return buffer;
+            }
+        }
+        return null;
+    }
+    
+    private boolean offerThreadCache(int index, ByteBuffer buffer) {
+        ByteBuffer[] cache = threadCache.get()[index];
+        for (int i = 0; i < cache.length; i++) {
+            if (cache[i] == null) {
+                cache[i] = buffer;
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private ByteBuffer allocate(int capacity) {
+        allocations.increment();
+        allocatedBytes.add(capacity);
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+    
+    private static int classIndex(int minCapacity) {
+        if (minCapacity <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(minCapacity - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+    
+    public Map<String, Object> getStats() {
+        long idleBytes = 0;
+        for (int i = 0; i < CLASSES; i++) {
+            idleBytes += (long) classes[i].size() << (i + MIN_SHIFT);
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("direct", direct);
+        stats.put("borrowed", borrowed.sum());
+        stats.put("released", released.sum());
+        stats.put("outstanding", borrowed.sum() - released.sum());
+        stats.put("threadCacheHits", threadCacheHits.sum());
+        stats.put("poolHits", poolHits.sum());
+        stats.put("allocations", allocations.sum());
+        stats.put("allocatedBytes", allocatedBytes.sum());
+        stats.put("oversized", oversized.sum());
+        stats.put("dropped", dropped.sum());
+        stats.put("idleBytes", idleBytes);
+        stats.put("leakDetection", leakDetector != null);
+        if (leakDetector != null) {
+            stats.put("leaks", leakDetector.checkLeaks());
+        }
+        return stats;
+    }
+    
+    @Override
+    public String toString() {
+        return "BufferPool[" + name + "]";
+    }
+    
+    // Bounded free list for one capacity
+    private static class SizeClass {
+        private final ByteBuffer[] free;
+        private int size;
+        
+        SizeClass(int capacity) {
+            this.free = new ByteBuffer[capacity];
+        }
+        
+        synchronized ByteBuffer poll() {
+            if (size == 0) {
+                return null;
+            }
+            ByteBuffer buffer = free[--size];
+            free[size] = null;
+            return buffer;
+        }
+        
+        synchronized boolean offer(ByteBuffer buffer) {
+            if (size == free.length) {
+                return false;
+            }
+            free[size++] = buffer;
+            return true;
+        }
+        
+        synchronized int size() {
+            return size;
+        }
+    }
+    
+    // Weakly tracks every borrowed buffer. ByteBuffer.equals compares contents, so
+    // buffers are looked up by identity hash and compared with ==.
+    private static class LeakDetector {
+        private final String pool;
+        private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+        private final Map<Integer, List<Borrow>> outstanding = new HashMap<>();
+        private long leaks;
+        
+        LeakDetector(String pool) {
+            this.pool = pool;
+        }
+        
+        synchronized void track(ByteBuffer buffer) {
+            checkLeaks();
+            outstanding.computeIfAbsent(System.identityHashCode(buffer), key -> new ArrayList<>(1))
+                .add(new Borrow(buffer, collected));
+        }
+        
+        synchronized boolean untrack(ByteBuffer buffer) {
+            List<Borrow> borrows = outstanding.get(System.identityHashCode(buffer));
+            if (borrows != null) {
+                for (int i = 0; i < borrows.size(); i++) {
+                    Borrow borrow = borrows.get(i);
+                    if (borrow.get() == buffer) {
+                        borrow.clear();
+                        remove(borrow);
+                        return true;
+                    }
+                }
+            }
+            new IllegalStateException("Buffer released twice or not borrowed from the " + pool + " pool")
+                .printStackTrace();
+            return false;
+        }
+        
+        synchronized long checkLeaks() {
+            Borrow borrow;
+            while ((borrow = (Borrow) collected.poll()) != null) {
+                if (remove(borrow)) {
+                    leaks++;
+                    System.err.println("LEAK: a " + pool + " pool buffer was collected without being released");
+                    borrow.stack.printStackTrace();
+                }
+            }
+            return leaks;
+        }
+        
+        private boolean remove(Borrow borrow) {
+            List<Borrow> borrows = outstanding.get(borrow.identity);
+            if (borrows == null || !borrows.remove(borrow)) {
+                return false;
+            }
+            if (borrows.isEmpty()) {
+                outstanding.remove(borrow.identity);
+            }
+            return true;
+        }
+    }
+    
+    private static class Borrow extends WeakReference<ByteBuffer> {
+        final int identity;
+        final Throwable stack = new Throwable("Borrowed here");
+        
+        Borrow(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.identity = System.identityHashCode(buffer);
+        }
+    }
+}
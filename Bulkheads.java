@@ -0,0 +1,259 @@
+// Per-Route Bulkheads
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Route groups with executors of their own, so an expensive or slow route cannot hold
+// the shared worker pool that /health and the static files need. A request whose path
+// falls under a bulkhead is handed to that bulkhead's threads and the shared worker
+// returns at once, the exchange detached as for an async response. A bulkhead with every
+// thread busy and its queue full answers 503 straight away.
+//
+// Configured through ServerConfig, from any of its sources:
+//   bulkheads=logs,custom
+//   bulkhead.logs.paths=/api/logs,/api/cluster/logs   (path prefixes, by whole segment)
+//   bulkhead.logs.threads=4                           (default 4, changeable at runtime)
+//   bulkhead.logs.queue=16                            (default 0: no waiting at all)
+public class Bulkheads {
+    private final Map<String, Bulkhead> byPath = new HashMap<>();
+    private final Map<String, Bulkhead> byName = new LinkedHashMap<>();
+    
+    public void add(String name, List<String> paths, int threads, int queueCapacity) {
+        Bulkhead bulkhead = new Bulkhead(name, threads, queueCapacity);
+        byName.put(name, bulkhead);
+        for (String path : paths) {
+            if (byPath.putIfAbsent(path, bulkhead) != null) {
+                throw new IllegalArgumentException("Path " + path + " is in two bulkheads");
+            }
+        }
+    }
+    
+    // Null when no bulkhead is configured. ServerConfig.load() has already checked the
+    // names and paths.
+    public static Bulkheads fromConfig(ServerConfig config) {
+        List<String> names = config.bulkheadNames();
+        if (names.isEmpty()) {
+            return null;
+        }
+        Bulkheads bulkheads = new Bulkheads();
+        for (String name : names) {
+            String prefix = "bulkhead." + name + ".";
+            bulkheads.add(name, config.bulkheadPaths(name), config.getInt(prefix + "threads"),
+                config.getInt(prefix + "queue"));
+        }
+        return bulkheads;
+    }
+    
+    // Thread counts follow bulkhead.<name>.threads at runtime
+    public void bindConfig(ServerConfig config) {
+        for (Bulkhead bulkhead : byName.values()) {
+            config.bind("bulkhead." + bulkhead.name + ".threads", value -> bulkhead.setThreads((Integer) value));
+        }
+    }
+    
+    // The bulkhead of the longest configured prefix of the path, or null
+    Bulkhead forPath(String path) {
+        String prefix = path;
+        while (true) {
+            Bulkhead bulkhead = byPath.get(prefix);
+            if (bulkhead != null) {
+                return bulkhead;
+            }
+            int slash = prefix.lastIndexOf('/');
+            if (slash <= 0) {
+                return prefix.length() > 1 ? byPath.get("/") : null;
+            }
+            prefix = prefix.substring(0, slash);
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Bulkhead bulkhead : byName.values()) {
+            stats.put(bulkhead.name, bulkhead.getStats());
+        }
+        return stats;
+    }
+    
+    public void shutdown() {
+        for (Bulkhead bulkhead : byName.values()) {
+            bulkhead.executor.shutdownNow();
+        }
+    }
+}
+
+// One route group's threads, queue and saturation numbers
+class Bulkhead {
+    final String name;
+    final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expiredInQueue = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    
+    Bulkhead(String name, int threads, int queueCapacity) {
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        BlockingQueue<Runnable> queue = queueCapacity > 0
+            ? new ArrayBlockingQueue<>(queueCapacity)
+            : new SynchronousQueue<>();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, runnable -> {
+            Thread thread = new Thread(runnable, "bulkhead-" + name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Idle bulkheads cost no threads
+        executor.allowCoreThreadTimeOut(true);
+    }
+    
+    synchronized void setThreads(int threads) {
+        // The core size may never pass the maximum, so the order depends on the direction
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+    
+    // Throws RejectedExecutionException when every thread is busy and the queue is full
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+    
+    boolean remove(Runnable task) {
+        return executor.remove(task);
+    }
+    
+    void started(long queuedNanos) {
+        queueWaitNanos.add(System.nanoTime() - queuedNanos);
+        int active = running.incrementAndGet();
+        peakActive.accumulateAndGet(active, Math::max);
+    }
+    
+    void finished() {
+        running.decrementAndGet();
+        completed.increment();
+    }
+    
+    void rejected() {
+        rejected.increment();
+    }
+    
+    void expiredInQueue() {
+        expiredInQueue.increment();
+    }
+    
+    Map<String, Object> getStats() {
+        int threads = executor.getMaximumPoolSize();
+        int active = running.get();
+        long done = completed.sum();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("threads", threads);
+        stats.put("active", active);
+        stats.put("peakActive", peakActive.get());
+        stats.put("queued", executor.getQueue().size());
+        stats.put("queueCapacity", queueCapacity);
+        stats.put("saturation", Math.round(100.0 * active / threads) / 100.0);
+        stats.put("completed", done);
+        stats.put("rejected", rejected.sum());
+        stats.put("expiredInQueue", expiredInQueue.sum());
+        stats.put("avgQueueWaitMs", done > 0 ? Math.round(queueWaitNanos.sum() / 1000.0 / done) / 1000.0 : 0.0);
+        return stats;
+    }
+}
+
+// Runs requests under a bulkhead on its executor, everything else inline
+class BulkheadHandler implements HttpHandler {
+    private final HttpHandler delegate;
+    private final Bulkheads bulkheads;
+    
+    public BulkheadHandler(HttpHandler delegate, Bulkheads bulkheads) {
+        this.delegate = delegate;
+        this.bulkheads = bulkheads;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Bulkhead bulkhead = bulkheads.forPath(exchange.getRequestURI().getPath());
+        if (bulkhead == null) {
+            delegate.handle(exchange);
+            return;
+        }
+        
+        RequestDeadline deadline = RequestDeadlines.current();
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        long queuedNanos = System.nanoTime();
+        Runnable task = () -> run(bulkhead, exchange, deadline, queuedNanos, completion);
+        // A request that times out still queued is dropped; once running, the watchdog
+        // interrupts the bulkhead thread it moved to
+        if (deadline != null) {
+            deadline.onExpire(() -> {
+                if (bulkhead.remove(task)) {
+                    bulkhead.expiredInQueue();
+                    completion.complete(null);
+                }
+            });
+        }
+        try {
+            bulkhead.execute(task);
+        } catch (RejectedExecutionException e) {
+            bulkhead.rejected();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            ResponseHelper.sendErrorResponse(exchange, 503, "Bulkhead " + bulkhead.name + " is full");
+            return;
+        }
+        AsyncHandlerAdapter.detach(exchange, completion);
+    }
+    
+    private void run(Bulkhead bulkhead, HttpExchange exchange, RequestDeadline deadline, long queuedNanos,
+                     CompletableFuture<Void> completion) {
+        bulkhead.started(queuedNanos);
+        CompletableFuture<Void> pending = null;
+        RequestDeadlines.adopt(deadline);
+        try {
+            if (deadline == null || !deadline.isTimedOut()) {
+                delegate.handle(exchange);
+                // An async handler behind the bulkhead finishes the exchange later
+                pending = AsyncHandlerAdapter.completionOf(exchange);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (deadline == null || !deadline.isTimedOut()) {
+                try {
+                    ResponseHelper.sendErrorResponse(exchange, 500, "Internal Server Error");
+                } catch (IOException | RuntimeException ignored) {
+                    // Headers already sent or client gone
+                }
+            }
+            exchange.close();
+        } finally {
+            RequestDeadlines.release(deadline);
+            bulkhead.finished();
+            if (pending != null) {
+                pending.whenComplete((result, error) -> completion.complete(null));
+            } else {
+                completion.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+// Cluster Stats Aggregation
+package com.httpserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.ToNumberPolicy;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+// Cluster-wide numbers for a set of instances behind a balancer. Every node serves its own
+// mergeable snapshot on /api/cluster/node: counters, raw latency histogram buckets and
+// its most recent logs. The node answering /api/cluster/stats or /api/cluster/logs
+// fetches the snapshots of the static peer list (cluster.peers=host:port,...) in
+// parallel, adds its own without a round trip and merges them: counters summed,
+// histograms added bucket by bucket, logs ordered by time. A peer that is down or slower
+// than cluster.timeoutMs is reported as down and left out of the totals. The endpoints
+// sit behind the response cache for cluster.cacheMs, so dashboards polling any node cost
+// the peers one fetch per interval.
+public class ClusterStats {
+    // Per node, per request
+    static final int MAX_LOGS = 1000;
+    
+    private final String nodeId;
+    private final List<String> peers;
+    private final long timeoutMillis;
+    private final ServerStatsManager statsManager;
+    private final RequestLogger requestLogger;
+    private HttpClient client;
+    
+    public ClusterStats(String nodeId, List<String> peers, long timeoutMillis, ServerStatsManager statsManager,
+                        RequestLogger requestLogger) {
+        this.nodeId = nodeId;
+        this.peers = peers;
+        this.timeoutMillis = timeoutMillis;
+        this.statsManager = statsManager;
+        this.requestLogger = requestLogger;
+    }
+    
+    public static ClusterStats fromConfig(int port, ServerStatsManager statsManager, RequestLogger requestLogger,
+                                          ServerConfig config) {
+        List<String> peers = new ArrayList<>();
+        for (String peer : config.getString("cluster.peers").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(peer.trim());
+            }
+        }
+        String host = System.getenv("HOSTNAME");
+        String nodeId = config.getString("cluster.nodeId");
+        if (nodeId.isEmpty()) {
+            nodeId = (host != null ? host : "localhost") + ":" + port;
+        }
+        return new ClusterStats(nodeId, peers, config.getLong("cluster.timeoutMs"), statsManager, requestLogger);
+    }
+    
+    // Gson reads whole numbers as Long, so merged logs keep "status":200, not 200.0
+    private static final class PeerGson {
+        static final Gson GSON = new GsonBuilder().setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE).create();
+    }
+    
+    private synchronized HttpClient client() {
+        if (client == null) {
+            client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(timeoutMillis))
+                .build();
+        }
+        return client;
+    }
+    
+    // What /api/cluster/node serves: this node alone, in mergeable form
+    public Map<String, Object> localSnapshot(int logLimit) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("node", nodeId);
+        snapshot.put("uptimeMs", statsManager.getUptimeMillis());
+        snapshot.put("totalRequests", statsManager.getTotalRequests());
+        snapshot.put("activeConnections", statsManager.getActiveConnections());
+        snapshot.put("timeouts", statsManager.getTimeouts());
+        snapshot.put("slowRequests", statsManager.getSlowRequests());
+        snapshot.put("memoryUsage", statsManager.getFormattedMemoryUsage());
+        snapshot.put("latency", statsManager.getLatency().toWireMap());
+        snapshot.put("logs", recentLogs(logLimit));
+        return snapshot;
+    }
+    
+    // The newest logs, oldest first
+    private List<RequestLog> recentLogs(int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        return requestLogger.getLogsAfter(requestLogger.getLastSequence() - limit, limit);
+    }
+    
+    // This node and every peer, in configuration order; never fails
+    public CompletableFuture<List<NodeSnapshot>> collect(int logLimit) {
+        List<CompletableFuture<NodeSnapshot>> futures = new ArrayList<>();
+        for (String peer : peers) {
+            futures.add(fetch(peer, logLimit));
+        }
+        NodeSnapshot self = NodeSnapshot.fromWire("local", parse(JsonWriter.toBytes(localSnapshot(logLimit))), 0);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<NodeSnapshot> nodes = new ArrayList<>();
+            nodes.add(self);
+            for (CompletableFuture<NodeSnapshot> future : futures) {
+                nodes.add(future.join());
+            }
+            return nodes;
+        });
+    }
+    
+    private CompletableFuture<NodeSnapshot> fetch(String peer, int logLimit) {
+        long start = System.nanoTime();
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create("http://" + peer + "/api/cluster/node?logs=" + logLimit))
+                .timeout(Duration.ofMillis(timeoutMillis))
+                .GET()
+                .build();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(NodeSnapshot.down(peer, "Invalid peer address"));
+        }
+        return client().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+            .handle((response, error) -> {
+                long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+                if (error != null) {
+                    Throwable cause = error.getCause() != null ? error.getCause() : error;
+                    return NodeSnapshot.down(peer, cause.getClass().getSimpleName()
+                        + (cause.getMessage() != null ? ": " + cause.getMessage() : ""));
+                }
+                if (response.statusCode() != 200) {
+                    return NodeSnapshot.down(peer, "HTTP " + response.statusCode());
+                }
+                try {
+                    return NodeSnapshot.fromWire(peer, parse(response.body()), elapsedMillis);
+                } catch (RuntimeException e) {
+                    return NodeSnapshot.down(peer, "Unreadable snapshot: " + e.getMessage());
+                }
+            });
+    }
+    
+    private static Map<?, ?> parse(byte[] json) {
+        return PeerGson.GSON.fromJson(new String(json, StandardCharsets.UTF_8), Map.class);
+    }
+    
+    public static Map<String, Object> mergeStats(List<NodeSnapshot> nodes) {
+        long totalRequests = 0;
+        long activeConnections = 0;
+        long timeouts = 0;
+        long slowRequests = 0;
+        int up = 0;
+        LatencySnapshot latency = LatencySnapshot.empty();
+        List<Map<String, Object>> perNode = new ArrayList<>();
+        for (NodeSnapshot node : nodes) {
+            perNode.add(node.toSummaryMap());
+            if (!node.up) {
+                continue;
+            }
+            up++;
+            totalRequests += node.totalRequests;
+            activeConnections += node.activeConnections;
+            timeouts += node.timeouts;
+            slowRequests += node.slowRequests;
+            latency.merge(node.latency);
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("nodes", nodes.size());
+        stats.put("nodesUp", up);
+        stats.put("totalRequests", totalRequests);
+        stats.put("activeConnections", activeConnections);
+        stats.put("timeouts", timeouts);
+        stats.put("slowRequests", slowRequests);
+        stats.put("latency", latency.toSummaryMap());
+        stats.put("perNode", perNode);
+        return stats;
+    }
+    
+    // Newest first across every node that answered
+    public static Map<String, Object> mergeLogs(List<NodeSnapshot> nodes, int limit) {
+        List<Map<String, Object>> logs = new ArrayList<>();
+        List<Map<String, Object>> down = new ArrayList<>();
+        for (NodeSnapshot node : nodes) {
+            if (node.up) {
+                logs.addAll(node.logs);
+            } else {
+                down.add(node.toSummaryMap());
+            }
+        }
+        logs.sort(Comparator.<Map<String, Object>>comparingLong(log -> longOf(log.get("time"))).reversed()
+            .thenComparing(log -> String.valueOf(log.get("node")))
+            .thenComparing(Comparator.<Map<String, Object>>comparingLong(log -> longOf(log.get("sequence"))).reversed()));
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("logs", logs.subList(0, Math.min(limit, logs.size())));
+        response.put("total", logs.size());
+        response.put("nodes", nodes.size());
+        response.put("nodesUp", nodes.size() - down.size());
+        response.put("down", down);
+        return response;
+    }
+    
+    static long longOf(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+    
+    public List<String> getPeers() {
+        return Collections.unmodifiableList(peers);
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+}
+
+// One node's snapshot as fetched, or the reason it could not be
+class NodeSnapshot {
+    final String address;
+    final String node;
+    final boolean up;
+    final String error;
+    final long fetchMillis;
+    final long uptimeMs;
+    final long totalRequests;
+    final long activeConnections;
+    final long timeouts;
+    final long slowRequests;
+    final Object memoryUsage;
+    final LatencySnapshot latency;
+    final List<Map<String, Object>> logs;
+    
+    private NodeSnapshot(String address, Map<?, ?> wire, String error, long fetchMillis) {
+        this.address = address;
+        this.up = error == null;
+        this.error = error;
+        this.fetchMillis = fetchMillis;
+        this.node = wire != null ? String.valueOf(wire.get("node")) : address;
+        this.uptimeMs = wire != null ? ClusterStats.longOf(wire.get("uptimeMs")) : 0;
+        this.totalRequests = wire != null ? ClusterStats.longOf(wire.get("totalRequests")) : 0;
+        this.activeConnections = wire != null ? ClusterStats.longOf(wire.get("activeConnections")) : 0;
+        this.timeouts = wire != null ? ClusterStats.longOf(wire.get("timeouts")) : 0;
+        this.slowRequests = wire != null ? ClusterStats.longOf(wire.get("slowRequests")) : 0;
+        this.memoryUsage = wire != null ? wire.get("memoryUsage") : null;
+        this.latency = wire != null && wire.get("latency") instanceof Map
+            ? LatencySnapshot.fromWireMap((Map<?, ?>) wire.get("latency"))
+            : LatencySnapshot.empty();
+        this.logs = new ArrayList<>();
+        if (wire != null && wire.get("logs") instanceof List) {
+            for (Object log : (List<?>) wire.get("logs")) {
+                if (log instanceof Map) {
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("node", node);
+                    for (Map.Entry<?, ?> field : ((Map<?, ?>) log).entrySet()) {
+                        entry.put(String.valueOf(field.getKey()), field.getValue());
+                    }
+                    logs.add(entry);
+                }
+            }
+        }
+    }
+    
+    static NodeSnapshot fromWire(String address, Map<?, ?> wire, long fetchMillis) {
+        return new NodeSnapshot(address, wire, null, fetchMillis);
+    }
+    
+    static NodeSnapshot down(String address, String error) {
+        return new NodeSnapshot(address, null, error, 0);
+    }
+    
+    Map<String, Object> toSummaryMap() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("node", node);
+        summary.put("address", address);
+        summary.put("up", up);
+        if (!up) {
+            summary.put("error", error);
+            return summary;
+        }
+        summary.put("fetchMs", fetchMillis);
+        summary.put("uptimeMs", uptimeMs);
+        summary.put("totalRequests", totalRequests);
+        summary.put("activeConnections", activeConnections);
+        summary.put("memoryUsage", memoryUsage);
+        summary.put("latency", latency.toSummaryMap());
+        return summary;
+    }
+}
@@ -0,0 +1,37 @@
+// Context Registry shared by every listener
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpHandler;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ContextRegistry {
+    private final Map<String, HttpHandler> contexts = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    public void register(String path, HttpHandler handler) {
+        contexts.put(path, handler);
+    }
+
+    // Same rule as the JDK server: the longest context path that prefixes the request path
+    public HttpHandler resolve(String requestPath) {
+        HttpHandler best = null;
+        int bestLength = -1;
+        synchronized (contexts) {
+            for (Map.Entry<String, HttpHandler> entry : contexts.entrySet()) {
+                String path = entry.getKey();
+                if (requestPath.startsWith(path) && path.length() > bestLength) {
+                    best = entry.getValue();
+                    bestLength = path.length();
+                }
+            }
+        }
+        return best;
+    }
+
+    public void applyTo(com.sun.net.httpserver.HttpServer server) {
+        synchronized (contexts) {
+            contexts.forEach(server::createContext);
+        }
+    }
+}
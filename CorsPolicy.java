@@ -0,0 +1,97 @@
+// Engine-level CORS Policy
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Header sets are built once per allowed origin and shared by every response as
+// immutable maps, so applying them allocates nothing. Code that needs a different
+// value for one of these headers must set() it, which replaces the shared list.
+public class CorsPolicy {
+    private static final String ANY = "*";
+    
+    private final Map<String, Map<String, List<String>>> responseHeaders = new HashMap<>();
+    private final Map<String, Map<String, List<String>>> preflightHeaders = new HashMap<>();
+    private final boolean anyOrigin;
+    
+    public CorsPolicy(String allowedOrigins, String allowedMethods, String allowedHeaders,
+                      String exposedHeaders, int maxAgeSeconds) {
+        this.anyOrigin = ANY.equals(allowedOrigins.trim());
+        for (String origin : allowedOrigins.split(",")) {
+            origin = origin.trim();
+            Map<String, List<String>> response = new LinkedHashMap<>();
+            response.put("Access-Control-Allow-Origin", Collections.singletonList(origin));
+            if (!anyOrigin) {
+                // The value depends on the request's Origin, so shared caches must key on it
+                response.put("Vary", Collections.singletonList("Origin"));
+            }
+            Map<String, List<String>> preflight = new LinkedHashMap<>(response);
+            if (!exposedHeaders.isEmpty()) {
+                response.put("Access-Control-Expose-Headers", Collections.singletonList(exposedHeaders));
+            }
+            preflight.put("Access-Control-Allow-Methods", Collections.singletonList(allowedMethods));
+            preflight.put("Access-Control-Allow-Headers", Collections.singletonList(allowedHeaders));
+            preflight.put("Access-Control-Max-Age", Collections.singletonList(String.valueOf(maxAgeSeconds)));
+            
+            responseHeaders.put(origin, Collections.unmodifiableMap(response));
+            preflightHeaders.put(origin, Collections.unmodifiableMap(preflight));
+        }
+    }
+    
+    // cors.allowedOrigins is "*" or a comma-separated list of exact origins
+    public static CorsPolicy fromConfig(ServerConfig config) {
+        return new CorsPolicy(
+            config.getString("cors.allowedOrigins"),
+            config.getString("cors.allowedMethods"),
+            config.getString("cors.allowedHeaders"),
+            config.getString("cors.exposedHeaders"),
+            config.getInt("cors.maxAgeSeconds"));
+    }
+    
+    // Null when the origin is not allowed: the browser then blocks the response
+    Map<String, List<String>> responseHeadersFor(String origin) {
+        return responseHeaders.get(anyOrigin || origin == null ? ANY : origin);
+    }
+    
+    Map<String, List<String>> preflightHeadersFor(String origin) {
+        return preflightHeaders.get(anyOrigin || origin == null ? ANY : origin);
+    }
+}
+
+// Answers OPTIONS before dispatch and stamps the policy's headers on everything else, so
+// handlers, rate limiting and deadlines never see preflights
+class CorsHandler implements HttpHandler {
+    private final HttpHandler delegate;
+    private final CorsPolicy policy;
+    
+    public CorsHandler(HttpHandler delegate, CorsPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            Map<String, List<String>> headers = policy.preflightHeadersFor(origin);
+            if (headers != null) {
+                exchange.getResponseHeaders().putAll(headers);
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+            return;
+        }
+        
+        Map<String, List<String>> headers = policy.responseHeadersFor(origin);
+        if (headers != null) {
+            exchange.getResponseHeaders().putAll(headers);
+        }
+        delegate.handle(exchange);
+    }
+}
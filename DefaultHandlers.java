@@ -11,13 +11,6 @@ import java.util.Map;
 class HealthCheckHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         Map<String, Object> health = new HashMap<>();
         health.put("status", "healthy");
         health.put("timestamp", System.currentTimeMillis());
@@ -32,13 +25,6 @@ class HealthCheckHandler implements HttpHandler {
 class TestHandler implements HttpHandler {
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         Map<String, Object> response = new HashMap<>();
         response.put("message", "Test endpoint working!");
         response.put("method", exchange.getRequestMethod());
@@ -63,13 +49,6 @@ class ServerControlHandler implements HttpHandler {
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
-            return;
-        }
-        
         if (!"POST".equals(exchange.getRequestMethod())) {
             ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
             return;
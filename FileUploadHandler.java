@@ -0,0 +1,543 @@
+// Streaming File Uploads
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// PUT /static/<path> stores the body as that file. POST /static/<dir>/ with a
+// multipart/form-data body stores every file part in that directory under its filename.
+// Bodies stream into a temporary file under <documentRoot>/.uploads through a
+// FileChannel: PUT bodies with transferFrom, multipart parts through one pooled 64 KB
+// buffer, so heap use does not grow with the upload. A finished file is forced to disk
+// and renamed over the target in one step. Readers see the old file or the new one,
+// never a partial one, and a failed upload leaves nothing behind.
+//
+// upload.maxFileBytes caps each file and upload.quotaBytes (when set) the whole document
+// root. While bytes keep arriving the request deadline is pushed out, so
+// upload.idleTimeoutMs bounds stalls rather than the transfer. With upload.token set,
+// requests need "Authorization: Bearer <token>".
+public class FileUploadHandler implements HttpHandler {
+    static final String STAGING_DIRECTORY = ".uploads";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long TRANSFER_CHUNK = 1 << 20;
+    
+    private final Path root;
+    private final Path staging;
+    private final String urlPrefix;
+    private final long maxFileBytes;
+    private final long quotaBytes;
+    private final byte[] token;
+    private final long idleTimeoutMillis;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    
+    public FileUploadHandler(String documentRoot, String urlPrefix, long maxFileBytes, long quotaBytes,
+                             String token, long idleTimeoutMillis) {
+        this.root = Paths.get(documentRoot).toAbsolutePath().normalize();
+        this.staging = root.resolve(STAGING_DIRECTORY);
+        this.urlPrefix = urlPrefix;
+        this.maxFileBytes = maxFileBytes;
+        this.quotaBytes = quotaBytes;
+        this.token = token != null ? ("Bearer " + token).getBytes(StandardCharsets.UTF_8) : null;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    
+    // Null unless upload.enabled=true: the endpoint writes to disk, so it is opt-in
+    public static FileUploadHandler fromConfig(String documentRoot, String urlPrefix, ServerConfig config) {
+        if (!config.getBoolean("upload.enabled")) {
+            return null;
+        }
+        String token = config.getString("upload.token");
+        return new FileUploadHandler(documentRoot, urlPrefix,
+            config.getLong("upload.maxFileBytes"),
+            config.getLong("upload.quotaBytes"),
+            token.isEmpty() ? null : token,
+            config.getLong("upload.idleTimeoutMs"));
+    }
+    
+    // Called with the URL path of every stored file, after the rename
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (token != null && !authorized(exchange)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            ResponseHelper.sendErrorResponse(exchange, 401, "Unauthorized");
+            return;
+        }
+        String relative = exchange.getRequestURI().getPath();
+        if (relative.startsWith(urlPrefix)) {
+            relative = relative.substring(urlPrefix.length());
+        }
+        
+        try {
+            Object result;
+            int status;
+            if ("PUT".equals(exchange.getRequestMethod())) {
+                Map<String, Object> stored = put(exchange, relative);
+                result = stored;
+                status = Boolean.TRUE.equals(stored.get("created")) ? 201 : 200;
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("files", post(exchange, relative));
+                result = response;
+                status = 201;
+            } else {
+                ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            byte[] body = JsonWriter.toBytes(result);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        } catch (UploadException e) {
+            rejected.incrementAndGet();
+            ResponseHelper.sendErrorResponse(exchange, e.status, e.getMessage());
+        } catch (IOException e) {
+            rejected.incrementAndGet();
+            ResponseHelper.sendErrorResponse(exchange, 500, "Internal Server Error");
+        }
+    }
+    
+    private boolean authorized(HttpExchange exchange) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        return header != null && MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private Map<String, Object> put(HttpExchange exchange, String relative) throws IOException {
+        Path target = resolve(relative);
+        long declared = parseLength(exchange.getRequestHeaders().getFirst("Content-Length"));
+        Quota quota = new Quota();
+        ReadableByteChannel source = Channels.newChannel(exchange.getRequestBody());
+        return store(target, declared, quota, (channel, upload) -> {
+            // Ask for one byte past the allowance, so an oversized body is caught without
+            // writing more than that
+            long n;
+            while ((n = channel.transferFrom(source, upload.written, Math.min(TRANSFER_CHUNK, upload.remaining() + 1))) > 0) {
+                upload.add(n);
+            }
+        });
+    }
+    
+    private List<Map<String, Object>> post(HttpExchange exchange, String relative) throws IOException {
+        String boundary = boundaryOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+        if (boundary == null) {
+            throw new UploadException(415, "Expected multipart/form-data with a boundary");
+        }
+        String directory = relative.endsWith("/") ? relative : relative + "/";
+        resolve(directory + "x"); // Same checks as the files that will land there
+        
+        List<Map<String, Object>> files = new ArrayList<>();
+        Quota quota = new Quota();
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer buffer = pool.acquire(BUFFER_SIZE);
+        try {
+            MultipartReader reader = new MultipartReader(exchange.getRequestBody(), boundary, buffer);
+            Map<String, String> headers;
+            while ((headers = reader.nextPart()) != null) {
+                String filename = MultipartReader.filename(headers.get("content-disposition"));
+                if (filename == null) {
+                    continue; // A plain form field, skipped by the next nextPart()
+                }
+                Path target = resolve(directory + filename);
+                files.add(store(target, -1, quota, (channel, upload) -> reader.copyPart(data -> {
+                    int length = data.remaining();
+                    while (data.hasRemaining()) {
+                        channel.write(data);
+                    }
+                    upload.add(length);
+                })));
+            }
+        } finally {
+            pool.release(buffer);
+        }
+        if (files.isEmpty()) {
+            throw new UploadException(400, "No file parts in the multipart body");
+        }
+        return files;
+    }
+    
+    // The containment check StaticFileHandler applies, plus no hidden segments, which
+    // keeps uploads out of the staging directory
+    private Path resolve(String relative) throws UploadException {
+        while (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        Path target = root.resolve(relative).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new UploadException(403, "Forbidden");
+        }
+        for (Path segment : root.relativize(target)) {
+            if (segment.toString().startsWith(".")) {
+                throw new UploadException(403, "Forbidden");
+            }
+        }
+        return target;
+    }
+    
+    private Map<String, Object> store(Path target, long declared, Quota quota, BodyCopier copier) throws IOException {
+        if (Files.isDirectory(target)) {
+            throw new UploadException(409, "A directory exists at " + urlOf(target));
+        }
+        long existing = Files.isRegularFile(target) ? Files.size(target) : 0;
+        Upload upload = new Upload(quota, existing);
+        if (declared > upload.remaining()) {
+            throw upload.tooLarge(declared);
+        }
+        
+        try {
+            Files.createDirectories(target.getParent());
+        } catch (FileAlreadyExistsException e) {
+            throw new UploadException(409, "A file exists at " + urlOf(Paths.get(e.getFile())));
+        }
+        Path temp = staging.resolve("upload-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+        boolean created;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                copier.copy(channel, upload);
+                channel.force(false);
+            }
+            created = !Files.exists(target);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+            upload.finish();
+        }
+        
+        uploads.incrementAndGet();
+        uploadedBytes.addAndGet(upload.written);
+        String url = urlOf(target);
+        for (Consumer<String> listener : changeListeners) {
+            listener.accept(url);
+        }
+        Map<String, Object> stored = new LinkedHashMap<>();
+        stored.put("path", url);
+        stored.put("bytes", upload.written);
+        stored.put("created", created);
+        return stored;
+    }
+    
+    private String urlOf(Path target) {
+        return urlPrefix + "/" + root.relativize(target).toString().replace('\\', '/');
+    }
+    
+    private static long parseLength(String header) throws UploadException {
+        if (header == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            throw new UploadException(400, "Invalid Content-Length");
+        }
+    }
+    
+    private static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/form-data")) {
+            return null;
+        }
+        for (String parameter : contentType.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = parameter.substring(9);
+                if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+                return boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+            }
+        }
+        return null;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("uploads", uploads.get());
+        stats.put("uploadedBytes", uploadedBytes.get());
+        stats.put("rejected", rejected.get());
+        stats.put("inFlightBytes", inFlightBytes.get());
+        stats.put("maxFileBytes", maxFileBytes);
+        stats.put("quotaBytes", quotaBytes);
+        return stats;
+    }
+    
+    private interface BodyCopier {
+        void copy(FileChannel channel, Upload upload) throws IOException;
+    }
+    
+    // Disk use of one request. The document root is walked once per request, and only
+    // with a quota; bytes still streaming in any request count through inFlightBytes.
+    private class Quota {
+        private long used = -1;
+        
+        long used() throws IOException {
+            if (used < 0) {
+                used = 0;
+                if (quotaBytes > 0 && Files.isDirectory(root)) {
+                    try (Stream<Path> files = Files.walk(root)) {
+                        for (Path file : (Iterable<Path>) files::iterator) {
+                            if (!file.startsWith(staging) && Files.isRegularFile(file)) {
+                                used += Files.size(file);
+                            }
+                        }
+                    }
+                }
+            }
+            return used;
+        }
+        
+        void stored(long written, long replaced) {
+            used += written - replaced;
+        }
+    }
+    
+    // One file's progress. Every chunk is checked against the file cap, the quota and the
+    // free disk space, and pushes the request deadline out by the idle timeout.
+    private class Upload {
+        private final Quota quota;
+        private final long replaced;
+        private final long limit;
+        long written;
+        
+        Upload(Quota quota, long replaced) throws IOException {
+            this.quota = quota;
+            this.replaced = replaced;
+            Files.createDirectories(staging);
+            this.limit = Math.min(maxFileBytes, Files.getFileStore(staging).getUsableSpace());
+        }
+        
+        // Bytes this file may still take
+        long remaining() throws IOException {
+            long remaining = limit - written;
+            if (quotaBytes > 0) {
+                remaining = Math.min(remaining, quotaBytes - quota.used() + replaced - inFlightBytes.get());
+            }
+            return Math.max(0, remaining);
+        }
+        
+        void add(long bytes) throws IOException {
+            written += bytes;
+            inFlightBytes.addAndGet(bytes);
+            if (written > limit || quotaBytes > 0 && quota.used() - replaced + inFlightBytes.get() > quotaBytes) {
+                throw tooLarge(written);
+            }
+            RequestDeadline deadline = RequestDeadlines.current();
+            if (deadline != null) {
+                deadline.extend(idleTimeoutMillis);
+            }
+        }
+        
+        UploadException tooLarge(long size) {
+            return new UploadException(413, size > maxFileBytes
+                ? "File larger than " + maxFileBytes + " bytes"
+                : "Upload quota or disk space exceeded");
+        }
+        
+        void finish() {
+            inFlightBytes.addAndGet(-written);
+            quota.stored(written, replaced);
+        }
+    }
+}
+
+// A rejected upload and the status to answer it with
+class UploadException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    final int status;
+    
+    UploadException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+}
+
+// Streams a multipart/form-data body (RFC 7578) part by part through one buffer: part
+// headers are parsed in place, and part content is handed out in slices that stop short
+// of anything that could be the start of the next delimiter.
+class MultipartReader {
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+    
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private final ByteBuffer view;
+    private int start;
+    private int end;
+    private boolean partRead;
+    private boolean closed;
+    
+    MultipartReader(InputStream in, String boundary, ByteBuffer buffer) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        this.buffer = buffer.array();
+        this.view = buffer.duplicate();
+        // The first delimiter has no line break in front of it; supply one
+        this.buffer[0] = '\r';
+        this.buffer[1] = '\n';
+        this.end = 2;
+    }
+    
+    interface PartSink {
+        void write(ByteBuffer data) throws IOException;
+    }
+    
+    // Skips the rest of the current part (or the preamble) and returns the next part's
+    // headers with lower-case names, or null after the closing delimiter
+    Map<String, String> nextPart() throws IOException {
+        if (closed) {
+            return null;
+        }
+        if (!partRead) {
+            copyPart(null);
+        }
+        require(2);
+        if (buffer[start] == '-' && buffer[start + 1] == '-') {
+            closed = true;
+            return null;
+        }
+        
+        Map<String, String> headers = new HashMap<>();
+        while (true) {
+            int lineEnd;
+            while ((lineEnd = indexOf(new byte[] {'\r', '\n'}, start, end)) < 0) {
+                if (end - start >= MAX_HEADER_BYTES || !fill()) {
+                    throw new UploadException(400, "Malformed multipart part headers");
+                }
+            }
+            String line = new String(buffer, start, lineEnd - start, StandardCharsets.UTF_8);
+            start = lineEnd + 2;
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            } else if (line.trim().isEmpty() && !headers.isEmpty()) {
+                partRead = false;
+                return headers;
+            }
+            // Otherwise the line break ending the delimiter line, or transport padding
+        }
+    }
+    
+    // Writes the current part's content up to the next delimiter and consumes the delimiter
+    long copyPart(PartSink sink) throws IOException {
+        long total = 0;
+        while (true) {
+            int index = indexOf(delimiter, start, end);
+            int stop = index >= 0 ? index : Math.max(start, end - delimiter.length + 1);
+            if (sink != null && stop > start) {
+                view.limit(stop).position(start);
+                sink.write(view);
+            }
+            total += stop - start;
+            start = stop;
+            if (index >= 0) {
+                start += delimiter.length;
+                partRead = true;
+                return total;
+            }
+            if (!fill()) {
+                throw new UploadException(400, "Multipart body ended inside a part");
+            }
+        }
+    }
+    
+    // name="value" from a Content-Disposition header, reduced to its last path segment
+    // (old browsers send whole client paths); null for fields that are not files
+    static String filename(String disposition) throws UploadException {
+        if (disposition == null) {
+            return null;
+        }
+        int index = disposition.toLowerCase(Locale.ROOT).indexOf("filename=");
+        if (index < 0) {
+            return null;
+        }
+        String value = disposition.substring(index + 9).trim();
+        if (value.startsWith("\"")) {
+            int close = value.indexOf('"', 1);
+            value = close > 0 ? value.substring(1, close) : value.substring(1);
+        } else {
+            int semicolon = value.indexOf(';');
+            value = semicolon >= 0 ? value.substring(0, semicolon).trim() : value;
+        }
+        value = value.substring(Math.max(value.lastIndexOf('/'), value.lastIndexOf('\\')) + 1);
+        if (value.isEmpty() || value.startsWith(".")) {
+            throw new UploadException(400, "Invalid file name in multipart part");
+        }
+        return value;
+    }
+    
+    private void require(int bytes) throws IOException {
+        while (end - start < bytes) {
+            if (!fill()) {
+                throw new UploadException(400, "Multipart body ended early");
+            }
+        }
+    }
+    
+    // Moves the unread bytes to the front and reads more behind them
+    private boolean fill() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int read = in.read(buffer, end, buffer.length - end);
+        if (read < 0) {
+            return false;
+        }
+        end += read;
+        return true;
+    }
+    
+    private int indexOf(byte[] pattern, int from, int to) {
+        byte first = pattern[0];
+        for (int i = from; i <= to - pattern.length; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buffer[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
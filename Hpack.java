@@ -0,0 +1,509 @@
+// HPACK Header Compression for HTTP/2 (RFC 7541)
+package com.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    static final int ENTRY_OVERHEAD = 32;
+    
+    static final String[][] STATIC_TABLE = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""}
+    };
+    
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+    }
+    
+    static int staticNameIndex(String name) {
+        return STATIC_NAMES.getOrDefault(name, 0);
+    }
+    
+    static int staticFieldIndex(String name, String value) {
+        return STATIC_FIELDS.getOrDefault(name + '\0' + value, 0);
+    }
+    
+    static void writeInt(ByteArrayOutputStream out, int firstByteFlags, int prefixBits, int value) {
+        int maxPrefix = (1 << prefixBits) - 1;
+        if (value < maxPrefix) {
+            out.write(firstByteFlags | value);
+            return;
+        }
+        out.write(firstByteFlags | maxPrefix);
+        value -= maxPrefix;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    static void writeString(ByteArrayOutputStream out, String value) {
+        int huffmanLength = HpackHuffman.encodedLength(value);
+        if (huffmanLength < value.length()) {
+            writeInt(out, 0x80, 7, huffmanLength);
+            HpackHuffman.encode(out, value);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
+
+// FIFO dynamic table; index 1 is the newest entry
+class HpackDynamicTable {
+    private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+    private int size;
+    private int maxSize;
+    
+    HpackDynamicTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+    
+    int length() {
+        return entries.size();
+    }
+    
+    int getMaxSize() {
+        return maxSize;
+    }
+    
+    String[] get(int index) {
+        Iterator<String[]> it = entries.iterator();
+        for (int i = 1; i < index; i++) {
+            it.next();
+        }
+        return it.next();
+    }
+    
+    void add(String name, String value) {
+        int entrySize = name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+        if (entrySize > maxSize) {
+            // An entry larger than the table empties it (RFC 7541 4.4)
+            entries.clear();
+            size = 0;
+            return;
+        }
+        evict(maxSize - entrySize);
+        entries.addFirst(new String[] {name, value});
+        size += entrySize;
+    }
+    
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict(maxSize);
+    }
+    
+    // Returns the dynamic index of an exact match, or minus the index of a name-only match
+    int find(String name, String value) {
+        int index = 1;
+        int nameMatch = 0;
+        for (String[] entry : entries) {
+            if (entry[0].equals(name)) {
+                if (entry[1].equals(value)) {
+                    return index;
+                }
+                if (nameMatch == 0) {
+                    nameMatch = -index;
+                }
+            }
+            index++;
+        }
+        return nameMatch;
+    }
+    
+    private void evict(int targetSize) {
+        while (size > targetSize && !entries.isEmpty()) {
+            String[] evicted = entries.removeLast();
+            size -= evicted[0].length() + evicted[1].length() + Hpack.ENTRY_OVERHEAD;
+        }
+    }
+}
+
+class HpackDecoder {
+    private final HpackDynamicTable table;
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+    
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.table = new HpackDynamicTable(maxTableSize);
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+    }
+    
+    // Decodes one complete header block into name/value pairs
+    List<String[]> decode(byte[] block, int offset, int length) throws Http2Exception {
+        List<String[]> headers = new ArrayList<>();
+        int[] cursor = {offset};
+        int end = offset + length;
+        int listSize = 0;
+        
+        while (cursor[0] < end) {
+            int b = block[cursor[0]] & 0xFF;
+            String name;
+            String value;
+            
+            if ((b & 0x80) != 0) {
+                String[] field = lookup(readInt(block, cursor, end, 7));
+                name = field[0];
+                value = field[1];
+            } else if ((b & 0x40) != 0) {
+                name = readName(block, cursor, end, 6);
+                value = readString(block, cursor, end);
+                table.add(name, value);
+            } else if ((b & 0x20) != 0) {
+                int newSize = readInt(block, cursor, end, 5);
+                if (newSize > maxTableSize) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Table size update above limit");
+                }
+                table.setMaxSize(newSize);
+                continue;
+            } else {
+                // Literal without indexing (0000) or never indexed (0001)
+                name = readName(block, cursor, end, 4);
+                value = readString(block, cursor, end);
+            }
+            
+            listSize += name.length() + value.length() + Hpack.ENTRY_OVERHEAD;
+            if (listSize > maxHeaderListSize) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header list too large");
+            }
+            headers.add(new String[] {name, value});
+        }
+        return headers;
+    }
+    
+    private String[] lookup(int index) throws Http2Exception {
+        if (index <= 0) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header index 0");
+        }
+        if (index <= Hpack.STATIC_TABLE.length) {
+            return Hpack.STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - Hpack.STATIC_TABLE.length;
+        if (dynamicIndex > table.length()) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header index out of range: " + index);
+        }
+        return table.get(dynamicIndex);
+    }
+    
+    private String readName(byte[] block, int[] cursor, int end, int prefixBits) throws Http2Exception {
+        int index = readInt(block, cursor, end, prefixBits);
+        return index == 0 ? readString(block, cursor, end) : lookup(index)[0];
+    }
+    
+    private static String readString(byte[] block, int[] cursor, int end) throws Http2Exception {
+        if (cursor[0] >= end) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header block");
+        }
+        boolean huffman = (block[cursor[0]] & 0x80) != 0;
+        int length = readInt(block, cursor, end, 7);
+        if (length > end - cursor[0]) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Truncated header string");
+        }
+        String value = huffman
+            ? HpackHuffman.decode(block, cursor[0], length)
+            : new String(block, cursor[0], length, StandardCharsets.ISO_8859_1);
+        cursor[0] += length;
+        return value;
+    }
+    
+    private static int readInt(byte[] block, int[] cursor, int end, int prefixBits) throws Http2Exception {
+        int maxPrefix = (1 << prefixBits) - 1;
+        int value = block[cursor[0]++] & maxPrefix;
+        if (value < maxPrefix) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (cursor[0] >= end || shift > 21) {
+                throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid header integer");
+            }
+            int b = block[cursor[0]++] & 0xFF;
+            value += (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
+
+// Not thread-safe: callers encode and write a header block under the connection write lock
+class HpackEncoder {
+    // Values that change on nearly every response only churn the dynamic table
+    private static final Set<String> NOT_INDEXED = Set.of("content-length", "date", "etag", "last-modified");
+    private static final Set<String> NEVER_INDEXED = Set.of("set-cookie", "authorization", "cookie");
+    
+    private final HpackDynamicTable table = new HpackDynamicTable(Hpack.DEFAULT_TABLE_SIZE);
+    private int pendingSizeUpdate = -1;
+    
+    // Peer's SETTINGS_HEADER_TABLE_SIZE; the table never grows past the default
+    void setMaxTableSize(int peerMaxSize) {
+        int newSize = Math.min(peerMaxSize, Hpack.DEFAULT_TABLE_SIZE);
+        if (newSize != table.getMaxSize()) {
+            table.setMaxSize(newSize);
+            pendingSizeUpdate = newSize;
+        }
+    }
+    
+    void beginBlock(ByteArrayOutputStream out) {
+        if (pendingSizeUpdate >= 0) {
+            Hpack.writeInt(out, 0x20, 5, pendingSizeUpdate);
+            pendingSizeUpdate = -1;
+        }
+    }
+    
+    void encode(ByteArrayOutputStream out, String name, String value) {
+        int staticIndex = Hpack.staticFieldIndex(name, value);
+        if (staticIndex > 0) {
+            Hpack.writeInt(out, 0x80, 7, staticIndex);
+            return;
+        }
+        
+        boolean neverIndexed = NEVER_INDEXED.contains(name);
+        boolean indexed = !neverIndexed && !NOT_INDEXED.contains(name);
+        int dynamicMatch = neverIndexed ? 0 : table.find(name, value);
+        if (dynamicMatch > 0) {
+            Hpack.writeInt(out, 0x80, 7, Hpack.STATIC_TABLE.length + dynamicMatch);
+            return;
+        }
+        
+        int nameIndex = Hpack.staticNameIndex(name);
+        if (nameIndex == 0 && dynamicMatch < 0) {
+            nameIndex = Hpack.STATIC_TABLE.length - dynamicMatch;
+        }
+        
+        if (indexed) {
+            Hpack.writeInt(out, 0x40, 6, nameIndex);
+        } else {
+            Hpack.writeInt(out, neverIndexed ? 0x10 : 0x00, 4, nameIndex);
+        }
+        if (nameIndex == 0) {
+            Hpack.writeString(out, name);
+        }
+        Hpack.writeString(out, value);
+        
+        if (indexed) {
+            table.add(name, value);
+        }
+    }
+}
+
+// Static Huffman code from RFC 7541 Appendix B
+class HpackHuffman {
+    private static final int[] CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    
+    private static final byte[] LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+    
+    private static final int EOS_CODE = 0x3fffffff;
+    private static final int EOS_LENGTH = 30;
+    
+    // Binary decoding tree: children[2n] / children[2n+1], leaves store -(symbol + 1)
+    private static final int[] children = new int[2 * 513];
+    
+    static {
+        int nodeCount = 1;
+        for (int symbol = 0; symbol <= 256; symbol++) {
+            int code = symbol < 256 ? CODES[symbol] : EOS_CODE;
+            int length = symbol < 256 ? LENGTHS[symbol] : EOS_LENGTH;
+            int node = 0;
+            for (int bit = length - 1; bit > 0; bit--) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (children[slot] == 0) {
+                    children[slot] = nodeCount++;
+                }
+                node = children[slot];
+            }
+            children[2 * node + (code & 1)] = -(symbol + 1);
+        }
+    }
+    
+    static int encodedLength(String value) {
+        long bits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            bits += LENGTHS[value.charAt(i) & 0xFF];
+        }
+        return (int) ((bits + 7) >>> 3);
+    }
+    
+    static void encode(ByteArrayOutputStream out, String value) {
+        long buffer = 0;
+        int bufferedBits = 0;
+        for (int i = 0; i < value.length(); i++) {
+            int symbol = value.charAt(i) & 0xFF;
+            buffer = (buffer << LENGTHS[symbol]) | CODES[symbol];
+            bufferedBits += LENGTHS[symbol];
+            while (bufferedBits >= 8) {
+                bufferedBits -= 8;
+                out.write((int) (buffer >>> bufferedBits));
+            }
+        }
+        if (bufferedBits > 0) {
+            // Pad with the most significant bits of EOS (all ones)
+            out.write((int) ((buffer << (8 - bufferedBits)) | (0xFF >>> bufferedBits)));
+        }
+    }
+    
+    static String decode(byte[] data, int offset, int length) throws Http2Exception {
+        StringBuilder result = new StringBuilder(length + length / 2);
+        int node = 0;
+        int bitsSinceSymbol = 0;
+        boolean allOnes = true;
+        
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = children[2 * node + one];
+                bitsSinceSymbol++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    int symbol = -next - 1;
+                    if (symbol == 256) {
+                        throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "EOS in Huffman string");
+                    }
+                    result.append((char) symbol);
+                    node = 0;
+                    bitsSinceSymbol = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        
+        // Padding must be shorter than 8 bits and consist of the EOS prefix
+        if (bitsSinceSymbol > 7 || !allOnes) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Invalid Huffman padding");
+        }
+        return result.toString();
+    }
+}
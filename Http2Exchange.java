@@ -0,0 +1,258 @@
+// HttpExchange adapter for one HTTP/2 stream
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Lets existing HttpHandlers serve h2c streams unchanged
+class Http2Exchange extends HttpExchange {
+    private static final byte[] EMPTY_BODY = new byte[0];
+    
+    private final Http2Stream stream;
+    private final String method;
+    private final URI uri;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private InputStream requestBody;
+    private OutputStream responseBody;
+    private int responseCode = -1;
+    private boolean headersSent;
+    private boolean bodyExpected;
+    private boolean closed;
+    
+    Http2Exchange(Http2Stream stream, String method, URI uri, Headers requestHeaders,
+                  InetSocketAddress remoteAddress, InetSocketAddress localAddress) {
+        this.stream = stream;
+        this.method = method;
+        this.uri = uri;
+        this.requestHeaders = requestHeaders;
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.requestBody = new StreamBodyInput();
+        this.responseBody = new StreamBodyOutput();
+    }
+    
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+    
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+    
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+    
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+    
+    // Contexts are resolved through ContextRegistry, there is no JDK HttpContext behind a stream
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (!headersSent) {
+                stream.abort();
+            } else {
+                responseBody.close();
+            }
+        } catch (IOException e) {
+            stream.abort();
+        }
+    }
+    
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+    
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+    
+    // Same length contract as the JDK server: -1 no body, 0 unknown length, >0 exact length
+    @Override
+    public synchronized void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (headersSent) {
+            throw new IOException("headers already sent");
+        }
+        headersSent = true;
+        responseCode = rCode;
+        bodyExpected = responseLength >= 0 && rCode >= 200 && rCode != 204 && rCode != 304
+            && !"HEAD".equals(method);
+        stream.writeHeaders(rCode, responseHeaders, responseLength, !bodyExpected);
+    }
+    
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+    
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+    
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+    
+    @Override
+    public String getProtocol() {
+        return "HTTP/2.0";
+    }
+    
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+    
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+    
+    @Override
+    public synchronized void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+    
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+    
+    private class StreamBodyInput extends InputStream {
+        private final byte[] single = new byte[1];
+        
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return length == 0 ? 0 : stream.readBody(buffer, offset, length);
+        }
+    }
+    
+    // Coalesces handler writes into DATA frames; close() ends the stream. The coalescing
+    // buffer is borrowed on the first write and returned on close.
+    private class StreamBodyOutput extends OutputStream {
+        private static final int BUFFER_SIZE = 16 * 1024;
+        private ByteBuffer pooled;
+        private byte[] buffer;
+        private int count;
+        private boolean finished;
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+        
+        @Override
+        public synchronized void write(byte[] data, int offset, int length) throws IOException {
+            ensureWritable();
+            if (length >= BUFFER_SIZE) {
+                flushBuffer(false);
+                stream.writeData(data, offset, length, false);
+                return;
+            }
+            if (buffer == null) {
+                pooled = BufferPool.heap().acquire(BUFFER_SIZE);
+                buffer = pooled.array();
+            }
+            if (count + length > BUFFER_SIZE) {
+                flushBuffer(false);
+            }
+            System.arraycopy(data, offset, buffer, count, length);
+            count += length;
+        }
+        
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!finished && bodyExpected && count > 0) {
+                flushBuffer(false);
+            }
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (!headersSent) {
+                throw new IOException("response headers not sent yet");
+            }
+            try {
+                if (bodyExpected) {
+                    flushBuffer(true);
+                }
+            } finally {
+                if (pooled != null) {
+                    BufferPool.heap().release(pooled);
+                    pooled = null;
+                    buffer = null;
+                }
+            }
+        }
+        
+        private void ensureWritable() throws IOException {
+            if (finished) {
+                throw new IOException("stream closed");
+            }
+            if (!headersSent) {
+                throw new IOException("response headers not sent yet");
+            }
+            if (!bodyExpected) {
+                throw new IOException("response has no body");
+            }
+        }
+        
+        private void flushBuffer(boolean endStream) throws IOException {
+            if (count > 0 || endStream) {
+                stream.writeData(count > 0 ? buffer : EMPTY_BODY, 0, count, endStream);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,1030 @@
+// Cleartext HTTP/2 (h2c) Server
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Http2Server {
+    private final int port;
+    private final ContextRegistry contexts;
+    private final Executor handlerExecutor;
+    private final int maxConcurrentStreams;
+    private final Set<Http2Connection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    // One reader thread per connection; requests themselves run on handlerExecutor
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "h2c-connection-" + connectionIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ServerSocket serverSocket;
+    private volatile boolean running;
+    private boolean reusePort;
+    
+    public Http2Server(int port, ContextRegistry contexts, Executor handlerExecutor, int maxConcurrentStreams) {
+        this.port = port;
+        this.contexts = contexts;
+        this.handlerExecutor = handlerExecutor;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+    }
+    
+    // Lets a replacement process bind the same port during a restart handoff
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+    
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        if (reusePort && serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverSocket.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        
+        Thread acceptor = new Thread(this::acceptLoop, "h2c-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+    
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Http2Connection connection = new Http2Connection(this, socket);
+                connections.add(connection);
+                connectionExecutor.execute(connection);
+            } catch (SocketException e) {
+                return; // Server socket closed
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("h2c accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Stops accepting and sends GOAWAY(NO_ERROR) so clients open no new streams here;
+    // connections close as their last stream finishes, stragglers at the deadline
+    public void drain(long deadlineMillis) {
+        closeListener();
+        connections.forEach(Http2Connection::drain);
+        while (!connections.isEmpty() && System.currentTimeMillis() < deadlineMillis) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        stop();
+    }
+    
+    public void stop() {
+        closeListener();
+        connections.forEach(Http2Connection::shutdown);
+        connectionExecutor.shutdown();
+    }
+    
+    private void closeListener() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+    
+    public int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+    
+    public int getConnectionCount() {
+        return connections.size();
+    }
+    
+    int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+    
+    HttpHandler resolve(String path) {
+        return contexts.resolve(path);
+    }
+    
+    Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+    
+    void connectionClosed(Http2Connection connection) {
+        connections.remove(connection);
+    }
+}
+
+class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    
+    private final int errorCode;
+    
+    Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+    
+    int getErrorCode() {
+        return errorCode;
+    }
+}
+
+// One client connection: a blocking frame reader plus a write lock shared by all streams
+class Http2Connection implements Runnable {
+    private static final byte[] PREFACE_TAIL = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String PREFACE_LINE = "PRI * HTTP/2.0";
+    
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+    
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+    
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+    
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_FRAME_SIZE = 16384;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+    // Per-stream receive window we advertise; the connection window is topped up eagerly
+    static final int STREAM_RECEIVE_WINDOW = 256 * 1024;
+    
+    private final Http2Server server;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final Map<Integer, Http2Stream> streams = new ConcurrentHashMap<>();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    
+    // Guarded by writeLock; writers wait on it for flow-control credit
+    private final Object writeLock = new Object();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = MAX_FRAME_SIZE;
+    
+    // Written by the reader thread only; GOAWAY reads it from other threads
+    private volatile int lastStreamId;
+    private volatile boolean draining;
+    
+    // Reader thread only
+    private int continuationStreamId;
+    private boolean continuationEndStream;
+    private ByteArrayOutputStream continuationBlock;
+    private int unacknowledgedConnectionBytes;
+    private volatile boolean closed;
+    
+    Http2Connection(Http2Server server, Socket socket) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    }
+    
+    @Override
+    public void run() {
+        try {
+            String head = readHttp1Head();
+            if (PREFACE_LINE.equals(head)) {
+                readPrefaceTail();
+                writeSettings();
+            } else if (!upgrade(head)) {
+                return;
+            }
+            readLoop();
+        } catch (Http2Exception e) {
+            goAway(e.getErrorCode(), e.getMessage());
+        } catch (IOException e) {
+            // Peer went away
+        } finally {
+            close();
+        }
+    }
+    
+    // h2c via HTTP/1.1 Upgrade (RFC 7540 3.2); the upgraded request becomes stream 1
+    private boolean upgrade(String head) throws IOException {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+        
+        String connection = headers.getFirst("Connection");
+        String settings = headers.getFirst("HTTP2-Settings");
+        String contentLength = headers.getFirst("Content-Length");
+        boolean upgradable = requestLine.length == 3
+            && "h2c".equalsIgnoreCase(headers.getFirst("Upgrade"))
+            && settings != null
+            && connection != null && connection.toLowerCase().contains("upgrade")
+            && headers.getFirst("Transfer-Encoding") == null
+            && (contentLength == null || "0".equals(contentLength.trim()));
+        
+        if (!upgradable) {
+            // This listener only speaks HTTP/2; bodies are not carried across an upgrade
+            writeAscii("HTTP/1.1 426 Upgrade Required\r\nUpgrade: h2c\r\nConnection: Upgrade, close\r\n"
+                + "Content-Length: 0\r\n\r\n");
+            return false;
+        }
+        
+        writeAscii("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+        applySettings(Base64.getUrlDecoder().decode(settings.trim().replace("=", "")));
+        writeSettings();
+        
+        String preface = readHttp1Head();
+        if (!PREFACE_LINE.equals(preface)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Missing client preface");
+        }
+        readPrefaceTail();
+        
+        headers.remove("Connection");
+        headers.remove("Upgrade");
+        headers.remove("HTTP2-Settings");
+        lastStreamId = 1;
+        openStream(1, requestLine[0], requestLine[1], headers, true);
+        return true;
+    }
+    
+    private void readLoop() throws IOException {
+        byte[] header = new byte[9];
+        while (!closed) {
+            readFully(header, 9);
+            int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+            int type = header[3] & 0xFF;
+            int flags = header[4] & 0xFF;
+            int streamId = readInt(header, 5) & 0x7FFFFFFF;
+            
+            if (length > MAX_FRAME_SIZE) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame too large: " + length);
+            }
+            byte[] payload = new byte[length];
+            readFully(payload, length);
+            
+            if (continuationStreamId != 0 && (type != CONTINUATION || streamId != continuationStreamId)) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION");
+            }
+            
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload);
+                    break;
+                case CONTINUATION:
+                    onContinuation(streamId, flags, payload);
+                    break;
+                case PRIORITY:
+                    if (streamId == 0 || length != 5) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed PRIORITY");
+                    }
+                    break;
+                case RST_STREAM:
+                    onReset(streamId, payload);
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, payload);
+                    break;
+                case PING:
+                    if (streamId != 0 || length != 8) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed PING");
+                    }
+                    if ((flags & FLAG_ACK) == 0) {
+                        writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+                    }
+                    break;
+                case GOAWAY:
+                    return; // Peer is done; in-flight streams are failed on close
+                case WINDOW_UPDATE:
+                    onWindowUpdate(streamId, payload);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Clients cannot push");
+                default:
+                    break; // Unknown frame types are ignored
+            }
+        }
+    }
+    
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int padding = (flags & FLAG_PADDED) != 0 ? padLength(payload) : -1;
+        int offset = padding >= 0 ? 1 : 0;
+        int length = payload.length - offset - Math.max(padding, 0);
+        
+        // The whole frame counts against the connection window, so return it straight away
+        unacknowledgedConnectionBytes += payload.length;
+        if (unacknowledgedConnectionBytes >= DEFAULT_WINDOW_SIZE / 2) {
+            sendWindowUpdate(0, unacknowledgedConnectionBytes);
+            unacknowledgedConnectionBytes = 0;
+        }
+        
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream");
+            }
+            writeReset(streamId, Http2Exception.STREAM_CLOSED);
+            return;
+        }
+        if (!stream.receiveData(payload, offset, length, payload.length, (flags & FLAG_END_STREAM) != 0)) {
+            writeReset(streamId, Http2Exception.FLOW_CONTROL_ERROR);
+            stream.reset();
+            streamClosed(stream);
+        }
+    }
+    
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0 || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid stream id " + streamId);
+        }
+        int padding = (flags & FLAG_PADDED) != 0 ? padLength(payload) : 0;
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        int length = payload.length - offset - padding;
+        if (length < 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed HEADERS");
+        }
+        
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, payload, offset, length, endStream);
+        } else {
+            continuationStreamId = streamId;
+            continuationEndStream = endStream;
+            continuationBlock = new ByteArrayOutputStream(length * 2);
+            continuationBlock.write(payload, offset, length);
+        }
+    }
+    
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (continuationStreamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        if (continuationBlock.size() + payload.length > MAX_HEADER_LIST_SIZE) {
+            throw new Http2Exception(Http2Exception.COMPRESSION_ERROR, "Header block too large");
+        }
+        continuationBlock.write(payload, 0, payload.length);
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            byte[] block = continuationBlock.toByteArray();
+            continuationStreamId = 0;
+            continuationBlock = null;
+            onHeaderBlock(streamId, block, 0, block.length, continuationEndStream);
+        }
+    }
+    
+    private void onHeaderBlock(int streamId, byte[] block, int offset, int length, boolean endStream) throws IOException {
+        // Always decode, even for refused streams, to keep the HPACK tables in sync
+        List<String[]> fields = decoder.decode(block, offset, length);
+        
+        Http2Stream existing = streams.get(streamId);
+        if (existing != null) {
+            // Trailers: must end the stream, their content is not exposed to handlers
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Trailers without END_STREAM");
+            }
+            existing.receiveData(new byte[0], 0, 0, 0, true);
+            return;
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Stream id not increasing: " + streamId);
+        }
+        lastStreamId = streamId;
+        
+        String method = null;
+        String path = null;
+        String authority = null;
+        Headers headers = new Headers();
+        for (String[] field : fields) {
+            switch (field[0]) {
+                case ":method": method = field[1]; break;
+                case ":path": path = field[1]; break;
+                case ":authority": authority = field[1]; break;
+                case ":scheme": break;
+                default:
+                    if (field[0].startsWith(":") || !field[0].equals(field[0].toLowerCase())) {
+                        writeReset(streamId, Http2Exception.PROTOCOL_ERROR);
+                        return;
+                    }
+                    headers.add(field[0], field[1]);
+            }
+        }
+        if (method == null || path == null || path.isEmpty()) {
+            writeReset(streamId, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        if (authority != null && !headers.containsKey("Host")) {
+            headers.add("Host", authority);
+        }
+        
+        // REFUSED_STREAM tells the client the request was not processed and is safe to retry
+        if (draining || activeStreams.get() >= server.getMaxConcurrentStreams()) {
+            writeReset(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+        openStream(streamId, method, path, headers, endStream);
+    }
+    
+    private void openStream(int streamId, String method, String path, Headers headers, boolean endStream) throws IOException {
+        URI uri;
+        try {
+            uri = URI.create(path);
+        } catch (IllegalArgumentException e) {
+            writeReset(streamId, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        
+        Http2Stream stream;
+        synchronized (writeLock) {
+            stream = new Http2Stream(this, streamId, peerInitialWindowSize);
+        }
+        if (endStream) {
+            stream.receiveData(new byte[0], 0, 0, 0, true);
+        }
+        streams.put(streamId, stream);
+        activeStreams.incrementAndGet();
+        
+        Http2Exchange exchange = new Http2Exchange(stream, method, uri, headers,
+            (InetSocketAddress) socket.getRemoteSocketAddress(), (InetSocketAddress) socket.getLocalSocketAddress());
+        HttpHandler handler = server.resolve(uri.getPath() != null ? uri.getPath() : "/");
+        try {
+            server.getHandlerExecutor().execute(() -> {
+                try {
+                    if (handler == null) {
+                        ResponseHelper.sendErrorResponse(exchange, 404, "Not Found");
+                    } else {
+                        handler.handle(exchange);
+                    }
+                    // A detached async handler closes the exchange when its response is written
+                    if (AsyncHandlerAdapter.completionOf(exchange) == null) {
+                        exchange.close();
+                    }
+                } catch (Exception e) {
+                    // Same as the HTTP/1.1 engine: an escaping exception aborts the stream
+                    stream.abort();
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            streamClosed(stream);
+            writeReset(streamId, Http2Exception.REFUSED_STREAM);
+        }
+    }
+    
+    private void onReset(int streamId, byte[] payload) throws IOException {
+        if (streamId == 0 || payload.length != 4) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed RST_STREAM");
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.reset();
+            streamClosed(stream);
+        }
+    }
+    
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0 || payload.length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Malformed SETTINGS");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            return;
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+    
+    private void applySettings(byte[] payload) throws IOException {
+        for (int i = 0; i + 6 <= payload.length; i += 6) {
+            int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+            int value = readInt(payload, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize(value);
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Initial window too large");
+                    }
+                    synchronized (writeLock) {
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                        }
+                        writeLock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < MAX_FRAME_SIZE || value > 0xFFFFFF) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid max frame size");
+                    }
+                    synchronized (writeLock) {
+                        peerMaxFrameSize = value;
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                case SETTINGS_MAX_HEADER_LIST_SIZE:
+                default:
+                    break; // Server push is never used; unknown settings are ignored
+            }
+        }
+    }
+    
+    private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+        if (payload.length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Malformed WINDOW_UPDATE");
+        }
+        int increment = readInt(payload, 0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Zero window increment");
+        }
+        
+        Http2Stream stream = null;
+        boolean overflowed = false;
+        synchronized (writeLock) {
+            if (streamId == 0) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                overflowed = stream.sendWindow > Integer.MAX_VALUE;
+            }
+            writeLock.notifyAll();
+        }
+        if (overflowed) {
+            writeReset(streamId, Http2Exception.FLOW_CONTROL_ERROR);
+            stream.reset();
+            streamClosed(stream);
+        }
+    }
+    
+    void wakeWriters() {
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+    }
+    
+    void writeHeaders(Http2Stream stream, int status, Headers responseHeaders, long contentLength,
+                      boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            encoder.beginBlock(block);
+            encoder.encode(block, ":status", Integer.toString(status));
+            for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+                String name = entry.getKey().toLowerCase();
+                if (isConnectionSpecific(name)) {
+                    continue;
+                }
+                for (String value : entry.getValue()) {
+                    encoder.encode(block, name, value);
+                }
+            }
+            if (contentLength > 0 && !responseHeaders.containsKey("Content-Length")) {
+                encoder.encode(block, "content-length", Long.toString(contentLength));
+            }
+            
+            byte[] bytes = block.toByteArray();
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int chunk = Math.min(bytes.length - offset, peerMaxFrameSize);
+                boolean last = offset + chunk == bytes.length;
+                int flags = (last ? FLAG_END_HEADERS : 0) | (type == HEADERS && endStream ? FLAG_END_STREAM : 0);
+                writeFrameLocked(type, flags, stream.id, bytes, offset, chunk);
+                offset += chunk;
+                type = CONTINUATION;
+            } while (offset < bytes.length);
+            out.flush();
+        }
+    }
+    
+    // Blocks until both the connection and the stream window have credit
+    void writeData(Http2Stream stream, byte[] data, int offset, int length, boolean endStream) throws IOException {
+        synchronized (writeLock) {
+            do {
+                while (length > 0 && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                    if (closed || stream.isReset()) {
+                        throw new IOException("Stream " + stream.id + " closed");
+                    }
+                    // The peer only returns credit for data it has actually received
+                    out.flush();
+                    try {
+                        writeLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for flow-control window");
+                    }
+                }
+                if (closed || stream.isReset()) {
+                    throw new IOException("Stream " + stream.id + " closed");
+                }
+                
+                int chunk = (int) Math.max(0, Math.min(Math.min(length, peerMaxFrameSize),
+                    Math.min(connectionSendWindow, stream.sendWindow)));
+                boolean last = chunk == length;
+                writeFrameLocked(DATA, last && endStream ? FLAG_END_STREAM : 0, stream.id, data, offset, chunk);
+                connectionSendWindow -= chunk;
+                stream.sendWindow -= chunk;
+                offset += chunk;
+                length -= chunk;
+            } while (length > 0);
+            out.flush();
+        }
+    }
+    
+    void sendWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeIntTo(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+    }
+    
+    void writeReset(int streamId, int errorCode) throws IOException {
+        byte[] payload = new byte[4];
+        writeIntTo(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, 4);
+    }
+    
+    void streamClosed(Http2Stream stream) {
+        if (streams.remove(stream.id) != null && activeStreams.decrementAndGet() == 0 && draining) {
+            close();
+        }
+    }
+    
+    private void writeSettings() throws IOException {
+        byte[] payload = new byte[18];
+        writeSetting(payload, 0, SETTINGS_MAX_CONCURRENT_STREAMS, server.getMaxConcurrentStreams());
+        writeSetting(payload, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_RECEIVE_WINDOW);
+        writeSetting(payload, 12, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, payload, 0, payload.length);
+    }
+    
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        synchronized (writeLock) {
+            writeFrameLocked(type, flags, streamId, payload, offset, length);
+            out.flush();
+        }
+    }
+    
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        out.write(streamId >>> 24);
+        out.write(streamId >>> 16);
+        out.write(streamId >>> 8);
+        out.write(streamId);
+        out.write(payload, offset, length);
+    }
+    
+    private void goAway(int errorCode, String message) {
+        byte[] debug = message != null ? message.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] payload = new byte[8 + Math.min(debug.length, 256)];
+        writeIntTo(payload, 0, lastStreamId);
+        writeIntTo(payload, 4, errorCode);
+        System.arraycopy(debug, 0, payload, 8, payload.length - 8);
+        try {
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            // Connection already gone
+        }
+    }
+    
+    void shutdown() {
+        goAway(Http2Exception.NO_ERROR, "Server shutting down");
+        close();
+    }
+    
+    void drain() {
+        draining = true;
+        goAway(Http2Exception.NO_ERROR, "Server draining");
+        if (activeStreams.get() == 0) {
+            close();
+        }
+    }
+    
+    private void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+        for (Http2Stream stream : streams.values()) {
+            stream.reset();
+        }
+        streams.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+        server.connectionClosed(this);
+    }
+    
+    private void writeAscii(String text) throws IOException {
+        synchronized (writeLock) {
+            out.write(text.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        }
+    }
+    
+    // Reads up to the blank line; for a prior-knowledge client this yields the "PRI * HTTP/2.0" line
+    private String readHttp1Head() throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (head.length() > 8192) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Request head too large");
+            }
+            head.append((char) b);
+            matched = (b == '\r' && (matched == 0 || matched == 2)) || (b == '\n' && (matched == 1 || matched == 3))
+                ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return head.substring(0, head.length() - 4);
+    }
+    
+    private void readPrefaceTail() throws IOException {
+        byte[] tail = new byte[PREFACE_TAIL.length];
+        readFully(tail, tail.length);
+        if (!Arrays.equals(tail, PREFACE_TAIL)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+        }
+    }
+    
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+    
+    private static int padLength(byte[] payload) throws Http2Exception {
+        if (payload.length == 0 || (payload[0] & 0xFF) >= payload.length) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+        }
+        return payload[0] & 0xFF;
+    }
+    
+    private static boolean isConnectionSpecific(String name) {
+        return name.equals("connection") || name.equals("keep-alive") || name.equals("transfer-encoding")
+            || name.equals("upgrade") || name.equals("proxy-connection");
+    }
+    
+    private static void writeSetting(byte[] payload, int offset, int id, int value) {
+        payload[offset] = (byte) (id >>> 8);
+        payload[offset + 1] = (byte) id;
+        writeIntTo(payload, offset + 2, value);
+    }
+    
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+    
+    private static void writeIntTo(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
+
+// Request body buffer and flow-control state of one stream
+class Http2Stream {
+    final int id;
+    private final Http2Connection connection;
+    long sendWindow; // guarded by the connection write lock
+    
+    // Guarded by this
+    private final ArrayDeque<byte[]> inbound = new ArrayDeque<>();
+    private byte[] current;
+    private int currentOffset;
+    private long receiveWindow = Http2Connection.STREAM_RECEIVE_WINDOW;
+    private int consumedSinceUpdate;
+    private boolean remoteClosed;
+    private volatile boolean reset;
+    private boolean localClosed;
+    
+    Http2Stream(Http2Connection connection, int id, int initialSendWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = initialSendWindow;
+    }
+    
+    // Returns false if the peer overran the stream window
+    synchronized boolean receiveData(byte[] data, int offset, int length, int flowControlled, boolean endStream) {
+        receiveWindow -= flowControlled;
+        if (receiveWindow < 0) {
+            return false;
+        }
+        if (length > 0) {
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset, chunk, 0, length);
+            inbound.add(chunk);
+        }
+        // Padding is never handed to the reader, so credit it back on the next read
+        consumedSinceUpdate += flowControlled - length;
+        if (endStream) {
+            remoteClosed = true;
+        }
+        notifyAll();
+        return true;
+    }
+    
+    private synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        while (current == null) {
+            current = inbound.poll();
+            currentOffset = 0;
+            if (current != null) {
+                break;
+            }
+            if (reset) {
+                throw new IOException("Stream " + id + " reset");
+            }
+            if (remoteClosed) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading request body");
+            }
+        }
+        
+        int n = Math.min(length, current.length - currentOffset);
+        System.arraycopy(current, currentOffset, buffer, offset, n);
+        currentOffset += n;
+        if (currentOffset == current.length) {
+            current = null;
+        }
+        
+        consumedSinceUpdate += n;
+        return n;
+    }
+    
+    // Returns the window credit to hand back to the peer, or 0 if not worth a frame yet
+    synchronized int takeWindowUpdate() {
+        if (remoteClosed || reset || consumedSinceUpdate < Http2Connection.STREAM_RECEIVE_WINDOW / 2) {
+            return 0;
+        }
+        int increment = consumedSinceUpdate;
+        receiveWindow += increment;
+        consumedSinceUpdate = 0;
+        return increment;
+    }
+    
+    // Called without holding the stream lock, the write lock is taken inside
+    int readBody(byte[] buffer, int offset, int length) throws IOException {
+        int n = read(buffer, offset, length);
+        int increment = takeWindowUpdate();
+        if (increment > 0) {
+            connection.sendWindowUpdate(id, increment);
+        }
+        return n;
+    }
+    
+    void writeHeaders(int status, Headers headers, long contentLength, boolean endStream) throws IOException {
+        connection.writeHeaders(this, status, headers, contentLength, endStream);
+        if (endStream) {
+            finishLocal();
+        }
+    }
+    
+    void writeData(byte[] data, int offset, int length, boolean endStream) throws IOException {
+        connection.writeData(this, data, offset, length, endStream);
+        if (endStream) {
+            finishLocal();
+        }
+    }
+    
+    // Response fully sent; an unread request body is cancelled with RST_STREAM(NO_ERROR)
+    private void finishLocal() throws IOException {
+        boolean cancelBody;
+        synchronized (this) {
+            localClosed = true;
+            cancelBody = !remoteClosed && !reset;
+            inbound.clear();
+        }
+        connection.streamClosed(this);
+        if (cancelBody) {
+            connection.writeReset(id, Http2Exception.NO_ERROR);
+        }
+    }
+    
+    void abort() {
+        if (!reset && !isLocalClosed()) {
+            reset();
+            connection.streamClosed(this);
+            try {
+                connection.writeReset(id, Http2Exception.INTERNAL_ERROR);
+            } catch (IOException e) {
+                // Connection already gone
+            }
+        }
+    }
+    
+    synchronized boolean isLocalClosed() {
+        return localClosed;
+    }
+    
+    boolean isReset() {
+        return reset;
+    }
+    
+    void reset() {
+        synchronized (this) {
+            reset = true;
+            inbound.clear();
+            notifyAll();
+        }
+        connection.wakeWriters();
+    }
+}
@@ -1,84 +1,330 @@
 // Main HTTP Server Class
 package com.httpserver;
 
-import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 public class HttpServer {
-    private HttpServer server;
+    private ListenerGroup listeners;
     private final int port;
-    private final ThreadPoolExecutor threadPoolExecutor;
+    private final int wsPort;
+    private final int h2cPort;
+    private final ServerConfig config;
+    private final WorkerPool workerPool;
     private final RequestLogger requestLogger;
+    private final LogEventStream logEventStream;
     private final RouteManager routeManager;
     private final StaticFileHandler staticFileHandler;
+    private final FileUploadHandler uploadHandler;
+    private final StaticAssetIndex staticAssetIndex;
     private final WebSocketManager webSocketManager;
     private final ServerStatsManager statsManager;
+    private final ResponseCache responseCache;
+    private final RateLimiter rateLimiter;
+    private final RequestDeadlines requestDeadlines;
+    private final SlowRequestLog slowRequestLog;
+    private final CorsPolicy corsPolicy;
+    private final TrafficSketches trafficSketches;
+    private final Bulkheads bulkheads;
+    private final ClusterStats clusterStats;
+    private final ContextRegistry contextRegistry = new ContextRegistry();
+    private Http2Server http2Server;
+    private TlsListener tlsListener;
+    private final int listenerCount;
+    private final int backlog;
+    private final boolean reusePort;
+    private final long drainTimeoutMillis;
+    private final boolean lazyInit;
+    private final RestartHandoff restartHandoff;
+    private boolean stopped;
     
     public HttpServer(int port) {
+        this(port, ServerConfig.load(new String[0]));
+    }
+    
+    public HttpServer(int port, ServerConfig config) {
         this.port = port;
-        this.threadPoolExecutor = (ThreadPoolExecutor) Executors.newFixedThreadPool(10);
+        this.config = config;
+        this.wsPort = config.getInt("ws.port") >= 0 ? config.getInt("ws.port") : port + 1;
+        this.h2cPort = config.getInt("h2c.port") >= 0 ? config.getInt("h2c.port") : port + 2;
+        this.listenerCount = config.getInt("server.listeners");
+        this.backlog = config.getInt("server.backlog");
+        this.drainTimeoutMillis = config.getLong("server.drainTimeoutMs");
+        // Fast startup: HTTPS keys and WebSocket event loops load after the first request
+        this.lazyInit = config.getBoolean("server.lazyInit");
+        String pidFile = config.getString("server.pidFile");
+        this.restartHandoff = !pidFile.isEmpty() ? new RestartHandoff(Paths.get(pidFile)) : null;
+        // A handoff needs the old and the new process bound side by side
+        this.reusePort = config.getBoolean("server.reusePort") || listenerCount > 1 || restartHandoff != null;
+        this.workerPool = new WorkerPool(config.getInt("server.workerThreads"),
+            config.getInt("server.maxQueuedRequests"));
         this.requestLogger = new RequestLogger();
-        this.routeManager = new RouteManager();
+        this.logEventStream = LogEventStream.fromConfig(requestLogger, config);
+        this.responseCache = new ResponseCache(config.getInt("cache.maxEntries"));
+        this.routeManager = new RouteManager(responseCache);
+        this.routeManager.addChangeListener(() -> responseCache.invalidatePath("/api/routes"));
+        // Opt-in: behind a balancer every request shares the balancer's address
+        this.rateLimiter = config.getBoolean("ratelimit.enabled")
+            ? new RateLimiter(config.getInt("ratelimit.maxClients"), config.getDouble("ratelimit.burst"),
+                config.getDouble("ratelimit.refillPerSecond"))
+            : null;
+        if (rateLimiter != null) {
+            rateLimiter.setRouteLimits(config.getString("ratelimit.routes"));
+            rateLimiter.setTrustedProxies(config.getString("ratelimit.trustedProxies"));
+        }
         this.staticFileHandler = new StaticFileHandler("./static");
-        this.webSocketManager = new WebSocketManager();
+        this.staticAssetIndex = StaticAssetIndex.fromConfig("./static", config);
+        if (staticAssetIndex != null) {
+            staticFileHandler.setAssetIndex(staticAssetIndex);
+        }
+        this.uploadHandler = FileUploadHandler.fromConfig("./static", "/static", config);
+        if (uploadHandler != null) {
+            uploadHandler.addChangeListener(responseCache::invalidatePath);
+            if (staticAssetIndex != null) {
+                // Visible to the next request rather than after the watcher catches up
+                uploadHandler.addChangeListener(path -> staticAssetIndex.refresh(path.substring("/static".length())));
+            }
+            staticFileHandler.setUploadHandler(uploadHandler);
+        }
+        this.webSocketManager = new WebSocketManager(new PerMessageDeflate(
+            config.getBoolean("ws.deflate.enabled"),
+            config.getInt("ws.deflate.level"),
+            config.getInt("ws.deflate.clientMaxWindowBits"),
+            config.getBoolean("ws.deflate.serverNoContextTakeover")),
+            config.getInt("ws.eventLoops"));
         this.statsManager = new ServerStatsManager();
+        this.requestDeadlines = new RequestDeadlines(config.getLong("server.requestTimeoutMs"),
+            config.getLong("server.slowRequestMs"), statsManager);
+        this.slowRequestLog = new SlowRequestLog(config.getInt("trace.slowLogSize"),
+            config.getLong("server.slowRequestMs"));
+        this.requestDeadlines.setSlowRequestLog(slowRequestLog);
+        this.requestDeadlines.setRouteTimeouts(config.getString("server.routeTimeouts"));
+        this.corsPolicy = CorsPolicy.fromConfig(config);
+        this.trafficSketches = TrafficSketches.fromConfig(config);
+        this.bulkheads = Bulkheads.fromConfig(config);
+        this.clusterStats = ClusterStats.fromConfig(port, statsManager, requestLogger, config);
+        bindConfig();
+    }
+    
+    // Every live setting goes straight to the component that owns it
+    private void bindConfig() {
+        config.bind("server.workerThreads", value -> workerPool.setThreads((Integer) value));
+        config.bind("server.maxQueuedRequests", value -> workerPool.setMaxQueued((Integer) value));
+        config.bind("server.requestTimeoutMs", value -> requestDeadlines.setDefaultTimeout((Long) value));
+        // The watchdog takes its stack at the same threshold the log keeps requests at
+        config.bind("server.slowRequestMs", value -> {
+            requestDeadlines.setSlowThreshold((Long) value);
+            slowRequestLog.setThresholdMillis((Long) value);
+        });
+        config.bind("cache.maxEntries", value -> responseCache.setMaxEntries((Integer) value));
+        config.bind("log.maxEntries", value -> requestLogger.setMaxLogs((Integer) value));
+        config.bind("sse.flushIntervalMs", value -> logEventStream.setFlushIntervalMillis((Long) value));
+        config.bind("sse.maxClients", value -> logEventStream.setMaxClients((Integer) value));
+        config.bind("sse.maxPendingBytes", value -> logEventStream.setMaxPendingBytes((Integer) value));
+        config.bind("ws.batchWindowMs", value -> webSocketManager.setBatchWindow((Long) value));
+        config.bind("trace.serverTiming", value -> requestDeadlines.setServerTiming((Boolean) value));
+        config.bind("trace.captureStacks", value -> requestDeadlines.setCaptureStacks((Boolean) value));
+        if (bulkheads != null) {
+            bulkheads.bindConfig(config);
+        }
+        config.addChangeListener(key -> responseCache.invalidatePath("/api/server/config"));
     }
     
     public void start() throws IOException {
-        server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.setExecutor(threadPoolExecutor);
+        // HTTPS is on when a key store is configured
+        tlsListener = TlsListener.fromConfig(port + 3, backlog, reusePort, lazyInit, config);
         
         // Setup API endpoints
         setupAPIEndpoints();
         
-        // Setup WebSocket endpoint
-        server.createContext("/ws/logs", webSocketManager);
+        // Setup WebSocket endpoint (upgrades are served by the NIO listener on wsPort)
+        register("/ws/logs", webSocketManager);
+        webSocketManager.start(wsPort, reusePort, lazyInit);
         
         // Setup static file serving
-        server.createContext("/static", staticFileHandler);
+        if (staticAssetIndex != null) {
+            staticAssetIndex.start(lazyInit);
+        }
+        register("/static", staticFileHandler);
         
         // Setup custom routes
         setupCustomRoutes();
         
         // Main request handler with logging
-        server.createContext("/", new MainRequestHandler());
+        register("/", new MainRequestHandler());
         
-        server.start();
+        requestDeadlines.start(config.getLong("server.watchdogTickMs"));
+        listeners = new ListenerGroup(port, listenerCount, backlog, reusePort);
+        listeners.start(contextRegistry, workerPool);
+        
+        // Cleartext HTTP/2 listener feeding the same contexts and worker pool
+        if (h2cPort > 0) {
+            http2Server = new Http2Server(h2cPort, contextRegistry, workerPool,
+                config.getInt("h2c.maxConcurrentStreams"));
+            http2Server.setReusePort(reusePort);
+            http2Server.start();
+        }
+        if (tlsListener != null) {
+            tlsListener.start(contextRegistry, workerPool);
+        }
         statsManager.setServerStartTime(System.currentTimeMillis());
-        System.out.println("Server started on port " + port);
+        System.out.println("Server started on port " + port + " with " + listeners.getListenerCount()
+            + " listener(s) (WebSocket on port " + wsPort
+            + (http2Server != null ? ", h2c on port " + h2cPort : "")
+            + (tlsListener != null ? ", https on port " + tlsListener.getPort() : "") + ")");
+        
+        // Serving on every port now, so the previous process can let go
+        if (restartHandoff != null) {
+            long previousPid = restartHandoff.takeOver();
+            if (previousPid > 0) {
+                System.out.println("Asked previous server (pid " + previousPid + ") to drain and exit");
+            }
+        }
+    }
+    
+    // Graceful: stop accepting everywhere, then drain HTTP/1.1 exchanges, h2c streams and
+    // WebSocket subscribers in parallel against one deadline
+    public synchronized void stop() {
+        if (listeners == null || stopped) {
+            return;
+        }
+        stopped = true;
+        long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+        // Event streams never finish on their own; clients resume with Last-Event-ID
+        logEventStream.stop();
+        
+        Thread http2Drain = new Thread(() -> {
+            if (http2Server != null) {
+                http2Server.drain(deadline);
+            }
+        }, "h2c-drain");
+        Thread webSocketDrain = new Thread(() -> webSocketManager.drain(deadline), "ws-drain");
+        int drainSeconds = (int) Math.max(0, (drainTimeoutMillis + 999) / 1000);
+        Thread httpsDrain = new Thread(() -> {
+            if (tlsListener != null) {
+                tlsListener.stop(drainSeconds);
+            }
+        }, "https-drain");
+        http2Drain.start();
+        webSocketDrain.start();
+        httpsDrain.start();
+        listeners.stop(drainSeconds);
+        
+        try {
+            http2Drain.join();
+            webSocketDrain.join();
+            httpsDrain.join();
+            workerPool.shutdown();
+            workerPool.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workerPool.shutdownNow();
+        if (bulkheads != null) {
+            bulkheads.shutdown();
+        }
+        requestDeadlines.stop();
+        if (staticAssetIndex != null) {
+            staticAssetIndex.stop();
+        }
+        if (restartHandoff != null) {
+            restartHandoff.release();
+        }
+        System.out.println("Server stopped");
     }
     
-    public void stop() {
-        if (server != null) {
-            server.stop(0);
-            threadPoolExecutor.shutdown();
-            webSocketManager.closeAllConnections();
-            System.out.println("Server stopped");
+    // Requests the common paths over loopback so a CDS training run loads the classes
+    // that serving them needs
+    // False when any request went unanswered, so the build does not keep an archive
+    // trained on a server that never served
+    private boolean runTrainingRequests() {
+        String[] paths = {"/health", "/api/test", "/api/server/status", "/api/server/stats",
+            "/api/server/config", "/api/logs", "/api/routes", "/static/index.html", "/missing"};
+        boolean answered = true;
+        for (String path : paths) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                byte[] response = socket.getInputStream().readAllBytes();
+                if (!new String(response, StandardCharsets.US_ASCII).startsWith("HTTP/1.1 ")) {
+                    System.err.println("Training request " + path + " got no HTTP response");
+                    answered = false;
+                }
+            } catch (IOException e) {
+                System.err.println("Training request " + path + " failed: " + e.getMessage());
+                answered = false;
+            }
         }
+        return answered;
     }
     
     private void setupAPIEndpoints() {
         // Server management endpoints
-        server.createContext("/api/server/status", new ServerStatusHandler(statsManager));
-        server.createContext("/api/server/stats", new ServerStatsHandler(statsManager));
-        server.createContext("/api/server/start", new ServerControlHandler(this, "start"));
-        server.createContext("/api/server/stop", new ServerControlHandler(this, "stop"));
-        server.createContext("/api/server/config", new ServerConfigHandler(port));
+        register("/api/server/status", new ServerStatusHandler(statsManager));
+        register("/api/server/stats", new ServerStatsHandler(statsManager, responseCache, rateLimiter, tlsListener,
+            uploadHandler, logEventStream, workerPool, bulkheads));
+        register("/api/server/start", new ServerControlHandler(this, "start"));
+        register("/api/server/stop", new ServerControlHandler(this, "stop"));
+        register("/api/server/slow", new SlowRequestsHandler(slowRequestLog));
+        if (bulkheads != null) {
+            register("/api/server/bulkheads", new BulkheadStatsHandler(bulkheads));
+        }
+        // Cached until a setting changes; the TTL is only a backstop
+        register("/api/server/config", new CachingHandler(
+            new ServerConfigHandler(config, port, wsPort, h2cPort,
+                tlsListener != null ? tlsListener.getPort() : -1), responseCache, 60_000));
+        register("/api/server/config/audit", new ConfigAuditHandler(config));
+        
+        if (trafficSketches != null) {
+            register("/api/stats/top", new TrafficTopHandler(trafficSketches));
+        }
+        
+        // Cluster endpoints; concurrent dashboard requests share one fan-out
+        long clusterCacheMillis = config.getLong("cluster.cacheMs");
+        register("/api/cluster/node", new ClusterNodeHandler(clusterStats));
+        register("/api/cluster/stats", new CachingHandler(
+            new AsyncHandlerAdapter(new ClusterStatsHandler(clusterStats)), responseCache, clusterCacheMillis));
+        register("/api/cluster/logs", new CachingHandler(
+            new AsyncHandlerAdapter(new ClusterLogsHandler(clusterStats)), responseCache, clusterCacheMillis));
         
         // Logging endpoints
-        server.createContext("/api/logs", new LogsHandler(requestLogger));
+        // Dashboards poll the listing; a second's staleness spares re-serialising it per
+        // poller, and a DELETE drops the cached copies at once
+        register("/api/logs", new CachingHandler(new LogsHandler(requestLogger), responseCache, 1000));
+        register("/api/logs/stream", logEventStream);
+        logEventStream.start();
         
         // Route management endpoints
-        server.createContext("/api/routes", new RoutesHandler(routeManager));
+        // Cached until the route table changes; the TTL is only a backstop
+        register("/api/routes", new CachingHandler(
+            new RoutesHandler(routeManager), responseCache, 60_000));
+    }
+    
+    // Every context runs under a deadline, behind the per-client rate limiter, on all
+    // listeners. CORS goes outside them so preflights and 429s carry the policy's headers,
+    // and the traffic sketches outermost so they see every request.
+    private void register(String path, HttpHandler handler) {
+        HttpHandler chain = new DeadlineHandler(
+            bulkheads != null ? new BulkheadHandler(handler, bulkheads) : handler, requestDeadlines);
+        if (rateLimiter != null) {
+            chain = new RateLimitingHandler(chain, rateLimiter);
+        }
+        chain = new CorsHandler(chain, corsPolicy);
+        if (trafficSketches != null) {
+            chain = new TrafficRecordingHandler(chain, trafficSketches);
+        }
+        contextRegistry.register(path, chain);
     }
     
     private void setupCustomRoutes() {
         // Add default routes
+        // Never cached: a health probe has to reach the live server, not a stored answer
         routeManager.addRoute("/health", "GET", new HealthCheckHandler());
         routeManager.addRoute("/api/test", "GET", new TestHandler());
     }
@@ -94,6 +340,7 @@ public class HttpServer {
             try {
                 // Check if route exists in route manager
                 HttpHandler handler = routeManager.getHandler(path, method);
+                RequestTrace.markRouted();
                 if (handler != null) {
                     handler.handle(exchange);
                 } else {
@@ -103,40 +350,70 @@ public class HttpServer {
             } catch (Exception e) {
                 ResponseHelper.sendErrorResponse(exchange, 500, "Internal Server Error");
             } finally {
-                // Log the request
-                long responseTime = System.currentTimeMillis() - startTime;
-                int statusCode = exchange.getResponseCode();
-                
-                RequestLog log = new RequestLog(
-                    exchange.getRequestMethod(),
-                    exchange.getRequestURI().getPath(),
-                    statusCode,
-                    responseTime,
-                    exchange.getRemoteAddress().getAddress().getHostAddress(),
-                    exchange.getRequestHeaders().getFirst("User-Agent")
-                );
-                
-                requestLogger.logRequest(log);
-                statsManager.incrementRequestCount();
-                
-                // Broadcast to WebSocket clients
-                webSocketManager.broadcastLog(log);
+                // Log the request, once an async handler's response is written
+                CompletableFuture<Void> completion = AsyncHandlerAdapter.completionOf(exchange);
+                if (completion != null) {
+                    completion.whenComplete((result, error) -> logRequest(exchange, startTime));
+                } else {
+                    logRequest(exchange, startTime);
+                }
             }
         }
+        
+        private void logRequest(HttpExchange exchange, long startTime) {
+            long responseTime = System.currentTimeMillis() - startTime;
+            int statusCode = exchange.getResponseCode();
+            
+            RequestLog log = new RequestLog(
+                exchange.getRequestMethod(),
+                exchange.getRequestURI().getPath(),
+                statusCode,
+                responseTime,
+                exchange.getRemoteAddress().getAddress().getHostAddress(),
+                exchange.getRequestHeaders().getFirst("User-Agent")
+            );
+            
+            requestLogger.logRequest(log);
+            statsManager.incrementRequestCount();
+            statsManager.recordResponseTime(responseTime);
+            
+            // Broadcast to WebSocket clients
+            webSocketManager.broadcastLog(log);
+        }
     }
     
+    // Usage: HttpServer [port] [--config=file] [--key=value ...]
     public static void main(String[] args) {
-        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int port = args.length > 0 && !args[0].startsWith("--") ? Integer.parseInt(args[0]) : 8080;
         
-        HttpServer server = new HttpServer(port);
+        ServerConfig config;
+        try {
+            config = ServerConfig.load(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        HttpServer server = new HttpServer(port, config);
         
         // Graceful shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         
+        boolean training = Boolean.getBoolean("server.cdsTraining");
         try {
             server.start();
         } catch (IOException e) {
             System.err.println("Failed to start server: " + e.getMessage());
+            if (training) {
+                System.exit(1);
+            }
+            return;
+        }
+        
+        // Training run of the cds Maven profile: once the requests are served the JVM
+        // exits, stopping the server, and writes the archive (-XX:ArchiveClassesAtExit).
+        // A non-zero exit fails the build.
+        if (training) {
+            System.exit(server.runTrainingRequests() ? 0 : 1);
         }
     }
 }
@@ -0,0 +1,338 @@
+// Reflection-free JSON Writer
+package com.httpserver;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Writes UTF-8 JSON straight into a reusable per-thread byte buffer. The server's own
+// types (RequestLog, Route, maps, lists, boxed primitives) have hand-written writers;
+// anything else falls back to Gson. Output matches Gson's defaults: nulls are dropped
+// from objects and HTML-sensitive characters are escaped.
+public final class JsonWriter {
+    private static final ThreadLocal<JsonWriter> LOCAL = ThreadLocal.withInitial(JsonWriter::new);
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 512 * 1024;
+    private static final int MAX_CACHED_NAMES = 1024;
+    private static final Map<String, byte[]> NAME_CACHE = new ConcurrentHashMap<>();
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+    private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] EMPTY_OBJECT = {'{', '}'};
+    
+    // RequestLog fields, in declaration order like Gson
+    private static final byte[] ID = name("id");
+    private static final byte[] SEQUENCE = name("sequence");
+    private static final byte[] TIMESTAMP = name("timestamp");
+    private static final byte[] TIME = name("time");
+    private static final byte[] METHOD = name("method");
+    private static final byte[] PATH = name("path");
+    private static final byte[] STATUS = name("status");
+    private static final byte[] RESPONSE_TIME = name("responseTime");
+    private static final byte[] CLIENT_IP = name("clientIp");
+    private static final byte[] USER_AGENT = name("userAgent");
+    
+    // Route fields
+    private static final byte[] HANDLER = name("handler");
+    private static final byte[] CACHE_TTL_MS = name("cacheTtlMs");
+    private static final byte[] ENABLED = name("enabled");
+    
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count;
+    
+    // Per-thread writer, emptied for reuse. Valid until the next acquire() on this thread.
+    static JsonWriter acquire() {
+        JsonWriter writer = LOCAL.get();
+        if (writer.buffer.length > MAX_RETAINED_CAPACITY) {
+            writer.buffer = new byte[INITIAL_CAPACITY];
+        }
+        writer.count = 0;
+        return writer;
+    }
+    
+    static byte[] toBytes(Object value) {
+        return acquire().value(value).toByteArray();
+    }
+    
+    // The one Gson instance, built on first use: the server's own types never need it,
+    // so most processes skip loading its hundred-odd classes at startup
+    static Gson gson() {
+        return GsonHolder.GSON;
+    }
+    
+    private static final class GsonHolder {
+        static final Gson GSON = new Gson();
+    }
+    
+    public byte[] getBuffer() { return buffer; }
+    public int size() { return count; }
+    
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+    
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, count);
+    }
+    
+    public JsonWriter value(Object value) {
+        if (value == null) {
+            writeRaw(NULL);
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof Number) {
+            number((Number) value);
+        } else if (value instanceof Boolean) {
+            writeRaw((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof RequestLog) {
+            requestLog((RequestLog) value);
+        } else if (value instanceof Route) {
+            route((Route) value);
+        } else if (value instanceof Map) {
+            map((Map<?, ?>) value);
+        } else if (value instanceof Collection) {
+            collection((Collection<?>) value);
+        } else if (value instanceof Object[]) {
+            collection(Arrays.asList((Object[]) value));
+        } else if (value instanceof Character) {
+            string(value.toString());
+        } else if (value instanceof Map.Entry) {
+            // Gson resolves entry sets to Set<Map.Entry>, an interface without fields
+            writeRaw(EMPTY_OBJECT);
+        } else {
+            writeRaw(gson().toJson(value).getBytes(StandardCharsets.UTF_8));
+        }
+        return this;
+    }
+    
+    private void requestLog(RequestLog log) {
+        append('{');
+        field(ID, log.getId());
+        separator();
+        writeRaw(SEQUENCE);
+        longValue(log.getSequence());
+        field(TIMESTAMP, log.getTimestamp());
+        separator();
+        writeRaw(TIME);
+        longValue(log.getTime());
+        field(METHOD, log.getMethod());
+        field(PATH, log.getPath());
+        separator();
+        writeRaw(STATUS);
+        longValue(log.getStatus());
+        separator();
+        writeRaw(RESPONSE_TIME);
+        longValue(log.getResponseTime());
+        field(CLIENT_IP, log.getClientIp());
+        field(USER_AGENT, log.getUserAgent());
+        append('}');
+    }
+    
+    private void route(Route route) {
+        append('{');
+        field(PATH, route.getPath());
+        field(HANDLER, route.getHandler());
+        field(METHOD, route.getMethod());
+        separator();
+        writeRaw(CACHE_TTL_MS);
+        longValue(route.getCacheTtlMs());
+        separator();
+        writeRaw(ENABLED);
+        writeRaw(route.isEnabled() ? TRUE : FALSE);
+        append('}');
+    }
+    
+    private void map(Map<?, ?> map) {
+        append('{');
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            separator();
+            writeRaw(cachedName(String.valueOf(entry.getKey())));
+            value(entry.getValue());
+        }
+        append('}');
+    }
+    
+    private void collection(Collection<?> values) {
+        append('[');
+        for (Object element : values) {
+            separator();
+            value(element);
+        }
+        append(']');
+    }
+    
+    // Null values are skipped, as Gson does without serializeNulls
+    private void field(byte[] name, String value) {
+        if (value != null) {
+            separator();
+            writeRaw(name);
+            string(value);
+        }
+    }
+    
+    // A comma is needed unless we are right after the opening bracket
+    private void separator() {
+        byte last = buffer[count - 1];
+        if (last != '{' && last != '[') {
+            append(',');
+        }
+    }
+    
+    private void number(Number number) {
+        if (number instanceof Integer || number instanceof Long || number instanceof Short
+                || number instanceof Byte) {
+            longValue(number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            doubleValue(number);
+        } else {
+            writeAscii(number.toString());
+        }
+    }
+    
+    private void doubleValue(Number number) {
+        double value = number.doubleValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON forbids NaN and infinities: " + value);
+        }
+        // Whole numbers below 1e7 print as "<digits>.0", the rest go through toString()
+        if (value == (long) value && Math.abs(value) < 1e7 && !(value == 0 && 1 / value < 0)) {
+            longValue((long) value);
+            ensure(2);
+            buffer[count++] = '.';
+            buffer[count++] = '0';
+        } else {
+            writeAscii(number.toString());
+        }
+    }
+    
+    private void longValue(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int pos = count + digits;
+        do {
+            buffer[--pos] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        count += digits;
+    }
+    
+    private void string(String value) {
+        int length = value.length();
+        ensure(length * 3 + 2);
+        buffer[count++] = '"';
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c < 0x20 || c == '"' || c == '\\' || c == '<' || c == '>' || c == '&'
+                        || c == '=' || c == '\'') {
+                    escape(c);
+                } else {
+                    buffer[count++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c == 0x2028 || c == 0x2029) {
+                escape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buffer[count++] = '?'; // Unpaired surrogate, same as String.getBytes
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        buffer[count++] = '"';
+    }
+    
+    // Up to 6 bytes where 1-3 were reserved, so make room first
+    private void escape(char c) {
+        ensure(6);
+        buffer[count++] = '\\';
+        switch (c) {
+            case '"': buffer[count++] = '"'; return;
+            case '\\': buffer[count++] = '\\'; return;
+            case '\n': buffer[count++] = 'n'; return;
+            case '\r': buffer[count++] = 'r'; return;
+            case '\t': buffer[count++] = 't'; return;
+            case '\b': buffer[count++] = 'b'; return;
+            case '\f': buffer[count++] = 'f'; return;
+            default:
+                buffer[count++] = 'u';
+                buffer[count++] = HEX[(c >> 12) & 0xF];
+                buffer[count++] = HEX[(c >> 8) & 0xF];
+                buffer[count++] = HEX[(c >> 4) & 0xF];
+                buffer[count++] = HEX[c & 0xF];
+        }
+    }
+    
+    private void writeAscii(String text) {
+        ensure(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+    }
+    
+    private void writeRaw(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+    
+    private void append(char c) {
+        ensure(1);
+        buffer[count++] = (byte) c;
+    }
+    
+    private void ensure(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+    
+    // Escaped "key": bytes for map keys; the cache stops growing once full
+    private static byte[] cachedName(String key) {
+        byte[] name = NAME_CACHE.get(key);
+        if (name == null) {
+            name = name(key);
+            if (NAME_CACHE.size() < MAX_CACHED_NAMES) {
+                NAME_CACHE.put(key, name);
+            }
+        }
+        return name;
+    }
+    
+    private static byte[] name(String key) {
+        JsonWriter writer = new JsonWriter();
+        writer.string(key);
+        writer.append(':');
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+// HTTP/1.1 Listener Group
+package com.httpserver;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// N JDK HttpServer instances bound to one port with SO_REUSEPORT, so the kernel spreads
+// accepts across N dispatcher threads. All listeners share the worker pool and contexts.
+public class ListenerGroup {
+    private final int port;
+    private final int listenerCount;
+    private final int backlog;
+    private final boolean reusePort;
+    private final List<com.sun.net.httpserver.HttpServer> listeners = new ArrayList<>();
+    
+    public ListenerGroup(int port, int listenerCount, int backlog, boolean reusePort) {
+        this.port = port;
+        this.listenerCount = Math.max(1, listenerCount);
+        this.backlog = backlog;
+        this.reusePort = reusePort || this.listenerCount > 1;
+    }
+    
+    public void start(ContextRegistry contexts, Executor executor) throws IOException {
+        int count = listenerCount;
+        for (int i = 0; i < count; i++) {
+            com.sun.net.httpserver.HttpServer listener = com.sun.net.httpserver.HttpServer.create();
+            if (reusePort && !enableReusePort(listener)) {
+                count = 1; // Without SO_REUSEPORT a second bind would fail
+            }
+            listener.bind(new InetSocketAddress(port), backlog);
+            listener.setExecutor(executor);
+            contexts.applyTo(listener);
+            listeners.add(listener);
+        }
+        listeners.forEach(com.sun.net.httpserver.HttpServer::start);
+    }
+    
+    // Stops accepting at once, then waits up to drainSeconds for in-flight exchanges.
+    // Listeners drain in parallel so the deadline is shared, not multiplied. Connections
+    // still in a listener's accept queue are reset when it closes (see RestartHandoff).
+    public void stop(int drainSeconds) {
+        List<Thread> stoppers = new ArrayList<>();
+        for (com.sun.net.httpserver.HttpServer listener : listeners) {
+            Thread stopper = new Thread(() -> listener.stop(drainSeconds), "http-drain");
+            stopper.start();
+            stoppers.add(stopper);
+        }
+        for (Thread stopper : stoppers) {
+            try {
+                stopper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        listeners.clear();
+    }
+    
+    public int getListenerCount() {
+        return listeners.size();
+    }
+    
+    // The JDK server opens its channel internally and has no socket option hook, so the
+    // option is set on it before bind(). Needs --add-opens jdk.httpserver/sun.net.httpserver
+    // (the shaded jar's manifest carries it).
+    static boolean enableReusePort(com.sun.net.httpserver.HttpServer listener) {
+        try {
+            Field serverField = listener.getClass().getDeclaredField("server");
+            serverField.setAccessible(true);
+            Object impl = serverField.get(listener);
+            Field channelField = impl.getClass().getDeclaredField("schan");
+            channelField.setAccessible(true);
+            ServerSocketChannel channel = (ServerSocketChannel) channelField.get(impl);
+            if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.err.println("SO_REUSEPORT is not supported on this platform, using a single listener");
+                return false;
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException | IOException e) {
+            System.err.println("Cannot enable SO_REUSEPORT (" + e.getMessage() + "); run with "
+                + "--add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED. Using a single listener");
+            return false;
+        }
+    }
+}
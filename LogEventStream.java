@@ -0,0 +1,505 @@
+// Server-Sent Events Log Stream
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// GET /api/logs/stream: request logs as text/event-stream, for consumers that do not
+// speak WebSocket (curl, EventSource, proxies). Every event's id is the log's sequence
+// number. A client that reconnects with Last-Event-ID (or ?lastEventId=, which also asks
+// a fresh client for the backlog) is first sent exactly the logs after that id still in
+// the log store, and an "event: gap" when some have already been evicted.
+//
+// Query filters, all optional: method=GET,POST  status=200,5xx  path=/api/ (prefix)
+// minResponseTime=250 (ms)  client=10.0.0.7
+//
+// Streams are detached from the worker pool once set up: a single flusher thread wakes
+// every sse.flushIntervalMs, encodes each new log once, and queues one batch per client
+// (unfiltered clients share the same bytes), so a client costs one write per interval
+// however busy the server is. A few writer threads do the blocking writes. A client
+// whose unsent events pass sse.maxPendingBytes is dropped; it resumes by reconnecting
+// with its Last-Event-ID. Quiet streams get a comment every sse.heartbeatMs so proxies
+// keep them open and dead clients are noticed.
+public class LogEventStream implements HttpHandler {
+    private static final byte[] RETRY = "retry: 3000\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    
+    private final RequestLogger requestLogger;
+    private volatile long flushIntervalMillis;
+    private final long heartbeatNanos;
+    private volatile int maxClients;
+    private volatile int maxPendingBytes;
+    private final int writerThreads;
+    private final Set<EventSubscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder eventsSent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private ScheduledExecutorService flusher;
+    private volatile ExecutorService writers;
+    // Highest sequence number handed to the subscribers; flusher thread only
+    private long cursor;
+    
+    public LogEventStream(RequestLogger requestLogger, long flushIntervalMillis, long heartbeatMillis,
+                          int maxClients, int maxPendingBytes, int writerThreads) {
+        this.requestLogger = requestLogger;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        this.maxClients = maxClients;
+        this.maxPendingBytes = maxPendingBytes;
+        this.writerThreads = writerThreads;
+    }
+    
+    public static LogEventStream fromConfig(RequestLogger requestLogger, ServerConfig config) {
+        return new LogEventStream(requestLogger,
+            config.getLong("sse.flushIntervalMs"),
+            config.getLong("sse.heartbeatMs"),
+            config.getInt("sse.maxClients"),
+            config.getInt("sse.maxPendingBytes"),
+            config.getInt("sse.writerThreads"));
+    }
+    
+    public synchronized void start() {
+        if (flusher != null) {
+            return;
+        }
+        cursor = requestLogger.getLastSequence();
+        AtomicInteger writerCount = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(writerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "sse-writer-" + writerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sse-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleFlush(flusher);
+    }
+    
+    // Rescheduled after each flush, so a new interval applies from the next one
+    private void scheduleFlush(ScheduledExecutorService executor) {
+        try {
+            executor.schedule(() -> {
+                try {
+                    flush();
+                } finally {
+                    scheduleFlush(executor);
+                }
+            }, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+        }
+    }
+    
+    public void setFlushIntervalMillis(long flushIntervalMillis) {
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+    
+    // Subscribers already over a lowered limit are dropped on their next batch
+    public void setMaxPendingBytes(int maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+    
+    public void setMaxClients(int maxClients) {
+        this.maxClients = maxClients;
+    }
+    
+    // Ends every stream, so a graceful shutdown does not wait on them
+    public synchronized void stop() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdownNow();
+        for (EventSubscriber subscriber : subscribers) {
+            close(subscriber);
+        }
+        writers.shutdown();
+        flusher = null;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            return;
+        }
+        if (writers == null || subscribers.size() >= maxClients) {
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            ResponseHelper.sendErrorResponse(exchange, 503, "Too many event stream clients");
+            return;
+        }
+        LogFilter filter;
+        long lastEventId;
+        try {
+            filter = LogFilter.parse(exchange);
+            String resume = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+            if (resume == null) {
+                resume = ResponseHelper.queryParam(exchange, "lastEventId");
+            }
+            lastEventId = resume != null && !resume.trim().isEmpty() ? Long.parseLong(resume.trim()) : -1;
+        } catch (IllegalArgumentException e) {
+            ResponseHelper.sendErrorResponse(exchange, 400, "Invalid event stream parameter: " + e.getMessage());
+            return;
+        }
+        
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=UTF-8");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+        exchange.sendResponseHeaders(200, 0);
+        // An open-ended response is neither slow nor late
+        RequestDeadline deadline = RequestDeadlines.current();
+        if (deadline != null) {
+            deadline.finish();
+        }
+        
+        // Replay on this worker, then hand over to the flusher, which catches up on
+        // anything logged in between
+        EventSubscriber subscriber = new EventSubscriber(exchange, filter);
+        long lastSequence = requestLogger.getLastSequence();
+        if (lastEventId > lastSequence) {
+            lastEventId = 0; // An id from before a restart: everything this process still has
+        }
+        ChunkBuilder replay = new ChunkBuilder();
+        replay.append(RETRY);
+        if (lastEventId >= 0) {
+            long firstRetained = requestLogger.getFirstRetainedSequence();
+            if (lastEventId + 1 < firstRetained) {
+                replay.append(("event: gap\ndata: {\"from\":" + (lastEventId + 1) + ",\"to\":" + (firstRetained - 1)
+                    + "}\n\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            for (RequestLog log : requestLogger.getLogsAfter(lastEventId, Integer.MAX_VALUE)) {
+                if (filter.matches(log)) {
+                    replay.append(encode(log));
+                    eventsSent.increment();
+                }
+                lastSequence = Math.max(lastSequence, log.getSequence());
+            }
+        }
+        subscriber.lastSequence = Math.max(lastSequence, lastEventId);
+        try {
+            OutputStream out = exchange.getResponseBody();
+            out.write(replay.buffer, 0, replay.length);
+            out.flush();
+        } catch (IOException e) {
+            exchange.close();
+            return;
+        }
+        subscriber.lastActivityNanos = System.nanoTime();
+        subscribers.add(subscriber);
+        AsyncHandlerAdapter.detach(exchange, subscriber.completion);
+    }
+    
+    private void flush() {
+        try {
+            long from = cursor;
+            List<RequestLog> batch = requestLogger.getLogsAfter(from, Integer.MAX_VALUE);
+            byte[][] events = new byte[batch.size()][];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = encode(batch.get(i));
+            }
+            if (!batch.isEmpty()) {
+                cursor = batch.get(batch.size() - 1).getSequence();
+            }
+            byte[] everything = null;
+            
+            long now = System.nanoTime();
+            for (EventSubscriber subscriber : subscribers) {
+                byte[] chunk;
+                int count = 0;
+                if (subscriber.lastSequence < from) {
+                    // Registered while the previous batch went out: catch up from the store
+                    ChunkBuilder catchUp = new ChunkBuilder();
+                    for (RequestLog log : requestLogger.getLogsAfter(subscriber.lastSequence, Integer.MAX_VALUE)) {
+                        if (log.getSequence() <= cursor && subscriber.filter.matches(log)) {
+                            catchUp.append(encode(log));
+                            count++;
+                        }
+                    }
+                    chunk = catchUp.toBytes();
+                } else if (subscriber.filter.isEmpty() && subscriber.lastSequence == from) {
+                    if (everything == null) {
+                        ChunkBuilder all = new ChunkBuilder();
+                        for (byte[] event : events) {
+                            all.append(event);
+                        }
+                        everything = all.toBytes();
+                    }
+                    chunk = everything;
+                    count = events.length;
+                } else {
+                    // Filtered, or registered mid-interval and already replayed part of the batch
+                    ChunkBuilder matching = new ChunkBuilder();
+                    for (int i = 0; i < events.length; i++) {
+                        RequestLog log = batch.get(i);
+                        if (log.getSequence() > subscriber.lastSequence && subscriber.filter.matches(log)) {
+                            matching.append(events[i]);
+                            count++;
+                        }
+                    }
+                    chunk = matching.toBytes();
+                }
+                subscriber.lastSequence = Math.max(subscriber.lastSequence, cursor);
+                
+                if (chunk.length == 0) {
+                    if (now - subscriber.lastActivityNanos < heartbeatNanos) {
+                        continue;
+                    }
+                    chunk = HEARTBEAT;
+                }
+                subscriber.lastActivityNanos = now;
+                eventsSent.add(count);
+                if (!subscriber.enqueue(chunk, maxPendingBytes)) {
+                    dropped.increment();
+                    close(subscriber);
+                } else if (subscriber.claimWriter()) {
+                    writers.execute(() -> write(subscriber));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; a broken client must not stop the others
+            System.err.println("Event stream flush failed: " + e);
+        }
+    }
+    
+    // Runs on a writer thread until the subscriber's queue is empty
+    private void write(EventSubscriber subscriber) {
+        OutputStream out = subscriber.exchange.getResponseBody();
+        List<byte[]> chunks;
+        while ((chunks = subscriber.takePending()) != null) {
+            try {
+                for (byte[] chunk : chunks) {
+                    out.write(chunk);
+                }
+                out.flush();
+            } catch (IOException e) {
+                subscriber.releaseWriter();
+                close(subscriber);
+                return;
+            }
+        }
+    }
+    
+    private void close(EventSubscriber subscriber) {
+        subscribers.remove(subscriber);
+        if (subscriber.markClosed()) {
+            // Not mid-write; a writer that is closes it once its write returns
+            subscriber.closeExchange();
+        }
+    }
+    
+    private static byte[] encode(RequestLog log) {
+        byte[] id = ("id: " + log.getSequence() + "\ndata: ").getBytes(StandardCharsets.US_ASCII);
+        byte[] json = JsonWriter.toBytes(log);
+        byte[] event = Arrays.copyOf(id, id.length + json.length + 2);
+        System.arraycopy(json, 0, event, id.length, json.length);
+        event[event.length - 2] = '\n';
+        event[event.length - 1] = '\n';
+        return event;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("clients", subscribers.size());
+        stats.put("eventsSent", eventsSent.sum());
+        stats.put("dropped", dropped.sum());
+        return stats;
+    }
+    
+    // Grows like a ByteArrayOutputStream without the synchronization
+    private static class ChunkBuilder {
+        byte[] buffer = new byte[512];
+        int length;
+        
+        void append(byte[] bytes) {
+            if (length + bytes.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+        
+        byte[] toBytes() {
+            return Arrays.copyOf(buffer, length);
+        }
+    }
+}
+
+// One open stream. The flusher fills the pending queue and at most one writer drains it.
+class EventSubscriber {
+    final HttpExchange exchange;
+    final LogFilter filter;
+    final CompletableFuture<Void> completion = new CompletableFuture<>();
+    // Flusher thread only, after the handler hands the subscriber over
+    long lastSequence;
+    long lastActivityNanos;
+    private List<byte[]> pending = new ArrayList<>();
+    private int pendingBytes;
+    private boolean writing;
+    private boolean closed;
+    
+    EventSubscriber(HttpExchange exchange, LogFilter filter) {
+        this.exchange = exchange;
+        this.filter = filter;
+    }
+    
+    synchronized boolean enqueue(byte[] chunk, int maxPendingBytes) {
+        if (closed || pendingBytes + chunk.length > maxPendingBytes) {
+            return false;
+        }
+        pending.add(chunk);
+        pendingBytes += chunk.length;
+        return true;
+    }
+    
+    // True when the caller should start a writer
+    synchronized boolean claimWriter() {
+        if (writing || closed || pending.isEmpty()) {
+            return false;
+        }
+        writing = true;
+        return true;
+    }
+    
+    // The queued chunks, or null once the queue is empty or the stream closed, which
+    // also releases the writer and closes the exchange if that was left to it
+    List<byte[]> takePending() {
+        boolean closeNow;
+        synchronized (this) {
+            if (!closed && !pending.isEmpty()) {
+                List<byte[]> chunks = pending;
+                pending = new ArrayList<>();
+                pendingBytes = 0;
+                return chunks;
+            }
+            writing = false;
+            closeNow = closed;
+        }
+        if (closeNow) {
+            closeExchange();
+        }
+        return null;
+    }
+    
+    synchronized void releaseWriter() {
+        writing = false;
+    }
+    
+    // Returns whether the caller should close the exchange now
+    synchronized boolean markClosed() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        pending = new ArrayList<>();
+        return !writing;
+    }
+    
+    void closeExchange() {
+        try {
+            exchange.close();
+        } finally {
+            completion.complete(null);
+        }
+    }
+}
+
+// The query filters of an event stream; an empty filter passes everything
+class LogFilter {
+    private final Set<String> methods;
+    private final Set<Integer> statuses;
+    private final Set<Integer> statusClasses;
+    private final String pathPrefix;
+    private final long minResponseTime;
+    private final String client;
+    
+    private LogFilter(Set<String> methods, Set<Integer> statuses, Set<Integer> statusClasses, String pathPrefix,
+                      long minResponseTime, String client) {
+        this.methods = methods;
+        this.statuses = statuses;
+        this.statusClasses = statusClasses;
+        this.pathPrefix = pathPrefix;
+        this.minResponseTime = minResponseTime;
+        this.client = client;
+    }
+    
+    // Throws IllegalArgumentException naming the bad parameter
+    static LogFilter parse(HttpExchange exchange) {
+        Set<String> methods = new HashSet<>();
+        String method = ResponseHelper.queryParam(exchange, "method");
+        if (method != null) {
+            for (String value : method.split(",")) {
+                if (!value.trim().isEmpty()) {
+                    methods.add(value.trim().toUpperCase(Locale.ROOT));
+                }
+            }
+        }
+        Set<Integer> statuses = new HashSet<>();
+        Set<Integer> statusClasses = new HashSet<>();
+        String status = ResponseHelper.queryParam(exchange, "status");
+        if (status != null) {
+            for (String value : status.split(",")) {
+                value = value.trim().toLowerCase(Locale.ROOT);
+                if (value.matches("[1-5]xx")) {
+                    statusClasses.add(value.charAt(0) - '0');
+                } else if (value.matches("[1-5]\\d\\d")) {
+                    statuses.add(Integer.parseInt(value));
+                } else if (!value.isEmpty()) {
+                    throw new IllegalArgumentException("status=" + value);
+                }
+            }
+        }
+        String minResponseTime = ResponseHelper.queryParam(exchange, "minResponseTime");
+        long minimum;
+        try {
+            minimum = minResponseTime != null ? Long.parseLong(minResponseTime.trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("minResponseTime=" + minResponseTime);
+        }
+        String path = ResponseHelper.queryParam(exchange, "path");
+        String client = ResponseHelper.queryParam(exchange, "client");
+        return new LogFilter(methods, statuses, statusClasses, path == null || path.isEmpty() ? null : path,
+            minimum, client == null || client.isEmpty() ? null : client);
+    }
+    
+    boolean isEmpty() {
+        return methods.isEmpty() && statuses.isEmpty() && statusClasses.isEmpty() && pathPrefix == null
+            && minResponseTime <= 0 && client == null;
+    }
+    
+    boolean matches(RequestLog log) {
+        if (!methods.isEmpty() && !methods.contains(log.getMethod())) {
+            return false;
+        }
+        if ((!statuses.isEmpty() || !statusClasses.isEmpty()) && !statuses.contains(log.getStatus())
+                && !statusClasses.contains(log.getStatus() / 100)) {
+            return false;
+        }
+        if (pathPrefix != null && (log.getPath() == null || !log.getPath().startsWith(pathPrefix))) {
+            return false;
+        }
+        if (log.getResponseTime() < minResponseTime) {
+            return false;
+        }
+        return client == null || client.equals(log.getClientIp());
+    }
+}
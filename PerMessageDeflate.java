@@ -0,0 +1,217 @@
+// WebSocket permessage-deflate Extension (RFC 7692)
+package com.httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+public class PerMessageDeflate {
+    public static final String EXTENSION_NAME = "permessage-deflate";
+    
+    // Payloads smaller than this are sent as plain frames, deflate overhead outweighs the gain
+    private static final int MIN_COMPRESS_SIZE = 64;
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    
+    private final boolean enabled;
+    private final int compressionLevel;
+    private final int clientMaxWindowBits;
+    private final boolean serverNoContextTakeover;
+    private final DeflaterPool deflaterPool;
+    
+    public PerMessageDeflate(boolean enabled, int compressionLevel, int clientMaxWindowBits,
+                             boolean serverNoContextTakeover) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        if (clientMaxWindowBits < 8 || clientMaxWindowBits > 15) {
+            throw new IllegalArgumentException("Invalid client_max_window_bits: " + clientMaxWindowBits);
+        }
+        this.enabled = enabled;
+        this.compressionLevel = compressionLevel;
+        this.clientMaxWindowBits = clientMaxWindowBits;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.deflaterPool = new DeflaterPool(compressionLevel, MAX_POOLED_DEFLATERS);
+    }
+    
+    public static PerMessageDeflate disabled() {
+        return new PerMessageDeflate(false, Deflater.DEFAULT_COMPRESSION, 15, false);
+    }
+    
+    public boolean isEnabled() { return enabled; }
+    public int getCompressionLevel() { return compressionLevel; }
+    public int getClientMaxWindowBits() { return clientMaxWindowBits; }
+    public boolean isServerNoContextTakeover() { return serverNoContextTakeover; }
+    
+    // Picks the first acceptable permessage-deflate offer from the
+    // Sec-WebSocket-Extensions header, or returns null to run uncompressed
+    public Negotiated negotiate(String extensionsHeader) {
+        if (!enabled || extensionsHeader == null) {
+            return null;
+        }
+        
+        for (String offer : extensionsHeader.split(",")) {
+            Negotiated result = negotiateOffer(offer.trim());
+            if (result != null) {
+                return result;
+            }
+        }
+        return null;
+    }
+    
+    private Negotiated negotiateOffer(String offer) {
+        String[] parts = offer.split(";");
+        if (!EXTENSION_NAME.equalsIgnoreCase(parts[0].trim())) {
+            return null;
+        }
+        
+        boolean noContextTakeover = serverNoContextTakeover;
+        boolean clientWindowOffered = false;
+        boolean seenServerWindow = false;
+        boolean seenServerTakeover = false;
+        boolean seenClientTakeover = false;
+        
+        for (int i = 1; i < parts.length; i++) {
+            String param = parts[i].trim();
+            String name = param;
+            String value = null;
+            int eq = param.indexOf('=');
+            if (eq >= 0) {
+                name = param.substring(0, eq).trim();
+                value = param.substring(eq + 1).trim().replace("\"", "");
+            }
+            
+            switch (name.toLowerCase()) {
+                case "server_no_context_takeover":
+                    if (seenServerTakeover || value != null) return null;
+                    seenServerTakeover = true;
+                    noContextTakeover = true;
+                    break;
+                case "client_no_context_takeover":
+                    if (seenClientTakeover || value != null) return null;
+                    seenClientTakeover = true;
+                    break;
+                case "server_max_window_bits":
+                    // java.util.zip.Deflater always uses a 32K window, so only 15 can be honoured
+                    if (seenServerWindow || !"15".equals(value)) return null;
+                    seenServerWindow = true;
+                    break;
+                case "client_max_window_bits":
+                    if (clientWindowOffered) return null;
+                    if (value != null && parseWindowBits(value) < 0) return null;
+                    clientWindowOffered = true;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        
+        StringBuilder response = new StringBuilder(EXTENSION_NAME);
+        if (noContextTakeover) {
+            response.append("; server_no_context_takeover");
+        }
+        if (clientWindowOffered && clientMaxWindowBits < 15) {
+            response.append("; client_max_window_bits=").append(clientMaxWindowBits);
+        }
+        return new Negotiated(response.toString(), noContextTakeover);
+    }
+    
+    private static int parseWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= 15 ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    public boolean shouldCompress(int payloadLength) {
+        return payloadLength >= MIN_COMPRESS_SIZE;
+    }
+    
+    // Deflater that lives for the whole connection (context takeover)
+    public Deflater acquireDeflater() {
+        return deflaterPool.acquire();
+    }
+    
+    public void releaseDeflater(Deflater deflater) {
+        deflaterPool.release(deflater);
+    }
+    
+    // Compresses with a pooled deflater that is reset afterwards, so the
+    // resulting frame can be shared by every no_context_takeover connection
+    public ByteBuffer encodeStatelessFrame(BufferPool pool, byte[] payload) {
+        Deflater deflater = deflaterPool.acquire();
+        try {
+            return encodeFrame(pool, deflater, payload);
+        } finally {
+            deflaterPool.release(deflater);
+        }
+    }
+    
+    // Deflates straight into a buffer borrowed from the pool, behind room for the frame
+    // header; the caller releases it. Caller must serialize access to a context takeover
+    // deflater.
+    public ByteBuffer encodeFrame(BufferPool pool, Deflater deflater, byte[] payload) {
+        ByteBuffer buffer = pool.acquire(WebSocketManager.MAX_FRAME_HEADER + payload.length / 2 + 64);
+        buffer.position(WebSocketManager.MAX_FRAME_HEADER);
+        deflater.setInput(payload);
+        
+        while (true) {
+            deflater.deflate(buffer, Deflater.SYNC_FLUSH);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            ByteBuffer grown = pool.acquire(buffer.capacity() * 2);
+            buffer.flip();
+            grown.put(buffer);
+            pool.release(buffer);
+            buffer = grown;
+        }
+        
+        // RFC 7692 7.2.1: drop the 0x00 0x00 0xff 0xff tail left by the sync flush
+        int length = buffer.position() - WebSocketManager.MAX_FRAME_HEADER - 4;
+        return WebSocketManager.frameAround(buffer, length, true);
+    }
+    
+    public static class Negotiated {
+        private final String responseHeader;
+        private final boolean noContextTakeover;
+        
+        Negotiated(String responseHeader, boolean noContextTakeover) {
+            this.responseHeader = responseHeader;
+            this.noContextTakeover = noContextTakeover;
+        }
+        
+        public String getResponseHeader() { return responseHeader; }
+        public boolean isNoContextTakeover() { return noContextTakeover; }
+    }
+}
+
+// Bounded pool of raw-deflate Deflaters; each one holds native zlib state
+// that is expensive to create, so they are reset and reused instead of ended
+class DeflaterPool {
+    private final int compressionLevel;
+    private final BlockingQueue<Deflater> idle;
+    
+    public DeflaterPool(int compressionLevel, int maxIdle) {
+        this.compressionLevel = compressionLevel;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+    
+    public Deflater acquire() {
+        Deflater deflater = idle.poll();
+        return deflater != null ? deflater : new Deflater(compressionLevel, true);
+    }
+    
+    public void release(Deflater deflater) {
+        deflater.reset();
+        if (!idle.offer(deflater)) {
+            deflater.end();
+        }
+    }
+    
+    public int getIdleCount() {
+        return idle.size();
+    }
+}
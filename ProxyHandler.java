@@ -0,0 +1,807 @@
+// Reverse Proxy Handler
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Forwards a route to a set of HTTP/1.1 upstreams. Request and response bodies are
+// copied through a fixed buffer, never held whole. Each upstream keeps a pool of idle
+// keep-alive connections; a pooled connection that turns out to be stale is retried
+// once on a fresh one when the request has no body that would need replaying.
+public class ProxyHandler implements HttpHandler, Closeable {
+    private static final Set<String> HOP_BY_HOP = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-authenticate", "proxy-authorization", "proxy-connection",
+        "te", "trailer", "transfer-encoding", "upgrade"));
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    
+    private final UpstreamGroup upstreams;
+    private final int readTimeoutMillis;
+    
+    public ProxyHandler(UpstreamGroup upstreams, int readTimeoutMillis) {
+        this.upstreams = upstreams;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+    
+    // Built from a POST /api/routes body:
+    //   {"handler": "proxy", "upstreams": ["127.0.0.1:9001", "127.0.0.1:9002"],
+    //    "balancer": "p2c" | "least", "healthPath": "/health", "healthIntervalMs": 2000,
+    //    "readTimeoutMs": 10000}
+    public static ProxyHandler fromConfig(Map<?, ?> config) {
+        Object addresses = config.get("upstreams");
+        if (!(addresses instanceof List) || ((List<?>) addresses).isEmpty()) {
+            throw new IllegalArgumentException("Proxy routes need a non-empty upstreams list");
+        }
+        List<Upstream> upstreamList = new ArrayList<>();
+        for (Object address : (List<?>) addresses) {
+            String hostPort = String.valueOf(address);
+            int colon = hostPort.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Upstream must be host:port, got " + hostPort);
+            }
+            upstreamList.add(new Upstream(hostPort.substring(0, colon),
+                Integer.parseInt(hostPort.substring(colon + 1)), 32));
+        }
+        
+        UpstreamGroup group = new UpstreamGroup(upstreamList,
+            "least".equals(config.get("balancer")) ? UpstreamGroup.LEAST_OUTSTANDING : UpstreamGroup.POWER_OF_TWO,
+            intOption(config, "connectTimeoutMs", 1000));
+        Object healthPath = config.get("healthPath");
+        if (healthPath != null) {
+            group.startHealthChecks(String.valueOf(healthPath), intOption(config, "healthIntervalMs", 2000));
+        }
+        return new ProxyHandler(group, intOption(config, "readTimeoutMs", 10_000));
+    }
+    
+    private static int intOption(Map<?, ?> config, String name, int defaultValue) {
+        Object value = config.get(name);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+    
+    public UpstreamGroup getUpstreams() {
+        return upstreams;
+    }
+    
+    @Override
+    public void close() {
+        upstreams.close();
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        Upstream upstream = upstreams.choose();
+        if (upstream == null) {
+            ResponseHelper.sendErrorResponse(exchange, 503, "No healthy upstream");
+            return;
+        }
+        
+        upstream.begin();
+        boolean failed = true;
+        boolean headersSent = false;
+        try {
+            for (int attempt = 0; ; attempt++) {
+                UpstreamConnection connection = upstream.acquire(upstreams.getConnectTimeoutMillis());
+                try {
+                    connection.setReadTimeout(readTimeout());
+                    writeRequest(connection, exchange, upstream);
+                    UpstreamResponse response = connection.readResponseHead();
+                    failed = response.status >= 500;
+                    headersSent = true;
+                    relayResponse(exchange, connection, response, upstream);
+                    return;
+                } catch (IOException e) {
+                    connection.close();
+                    // A kept-alive connection the upstream already closed; safe to resend once
+                    if (!headersSent && connection.isReused() && attempt == 0 && !hasRequestBody(exchange)) {
+                        continue;
+                    }
+                    throw e;
+                }
+            }
+        } catch (ClientAbortException e) {
+            // The client hung up mid-body, which says nothing about the upstream
+            exchange.close();
+        } catch (IOException e) {
+            failed = true;
+            if (!headersSent) {
+                ResponseHelper.sendErrorResponse(exchange, 502, "Bad Gateway");
+            } else {
+                // Mid-body: the client sees a truncated response and a closed connection
+                exchange.close();
+            }
+        } finally {
+            upstream.end(failed, upstreams);
+        }
+    }
+    
+    // Never wait on an upstream past the request's own deadline
+    private int readTimeout() {
+        long remaining = RequestDeadlines.remainingMillis();
+        return (int) Math.max(1, Math.min(readTimeoutMillis, remaining));
+    }
+    
+    private static boolean hasRequestBody(HttpExchange exchange) {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        return exchange.getRequestHeaders().containsKey("Transfer-Encoding")
+            || (length != null && !"0".equals(length.trim()));
+    }
+    
+    private static void writeRequest(UpstreamConnection connection, HttpExchange exchange, Upstream upstream)
+        throws IOException {
+        StringBuilder head = new StringBuilder(256);
+        head.append(exchange.getRequestMethod()).append(' ').append(exchange.getRequestURI().getRawPath());
+        if (exchange.getRequestURI().getRawQuery() != null) {
+            head.append('?').append(exchange.getRequestURI().getRawQuery());
+        }
+        head.append(" HTTP/1.1\r\nHost: ").append(upstream.getAddress()).append("\r\n");
+        
+        Set<String> skip = connectionTokens(exchange.getRequestHeaders().get("Connection"));
+        String originalHost = null;
+        String forwardedFor = null;
+        long contentLength = -1;
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            String name = header.getKey().toLowerCase(Locale.ROOT);
+            if ("host".equals(name)) {
+                originalHost = header.getValue().get(0);
+            } else if ("x-forwarded-for".equals(name)) {
+                forwardedFor = String.join(", ", header.getValue());
+            } else if ("content-length".equals(name)) {
+                contentLength = Long.parseLong(header.getValue().get(0).trim());
+            } else if (!HOP_BY_HOP.contains(name) && !skip.contains(name) && !"expect".equals(name)) {
+                // Expect is dropped: the engine has answered 100-continue and the body follows at once
+                for (String value : header.getValue()) {
+                    head.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+        }
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        head.append("X-Forwarded-For: ").append(forwardedFor != null ? forwardedFor + ", " + client : client).append("\r\n");
+        head.append("X-Forwarded-Proto: ").append(TlsListener.isSecure(exchange) ? "https" : "http").append("\r\n");
+        if (originalHost != null) {
+            head.append("X-Forwarded-Host: ").append(originalHost).append("\r\n");
+        }
+        
+        // The engine has already de-chunked the client's body, so an unknown length is re-chunked
+        boolean chunked = contentLength < 0 && exchange.getRequestHeaders().containsKey("Transfer-Encoding");
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        } else if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        }
+        head.append("\r\n");
+        
+        OutputStream out = connection.getOutputStream();
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (contentLength > 0 || chunked) {
+            copyBody(exchange.getRequestBody(), out, chunked);
+        }
+        out.flush();
+    }
+    
+    private static void relayResponse(HttpExchange exchange, UpstreamConnection connection,
+                                      UpstreamResponse response, Upstream upstream) throws IOException {
+        Set<String> skip = connectionTokens(response.headers.get("connection"));
+        List<String[]> relayed = new ArrayList<>(response.headerList.size());
+        for (String[] header : response.headerList) {
+            String name = header[0].toLowerCase(Locale.ROOT);
+            // The engine writes its own framing and Date
+            if (!HOP_BY_HOP.contains(name) && !skip.contains(name)
+                && !"content-length".equals(name) && !"date".equals(name)) {
+                relayed.add(header);
+            }
+        }
+        // The upstream's own CORS headers win over the context's policy
+        ResponseHelper.copyHeaders(relayed, exchange.getResponseHeaders());
+        
+        boolean noBody = "HEAD".equals(exchange.getRequestMethod())
+            || response.status == 204 || response.status == 304;
+        List<String> encoding = response.headers.get("transfer-encoding");
+        List<String> length = response.headers.get("content-length");
+        InputStream body;
+        boolean reusable = response.keepAlive;
+        if (noBody) {
+            exchange.sendResponseHeaders(response.status, -1);
+            body = null;
+        } else if (encoding != null && encoding.get(encoding.size() - 1).toLowerCase(Locale.ROOT).contains("chunked")) {
+            exchange.sendResponseHeaders(response.status, 0);
+            body = new ChunkedBodyStream(connection.getInputStream());
+        } else if (length != null) {
+            long contentLength = Long.parseLong(length.get(0).trim());
+            exchange.sendResponseHeaders(response.status, contentLength == 0 ? -1 : contentLength);
+            body = new FixedLengthBodyStream(connection.getInputStream(), contentLength);
+        } else {
+            // Delimited by the upstream closing the connection
+            exchange.sendResponseHeaders(response.status, 0);
+            body = connection.getInputStream();
+            reusable = false;
+        }
+        
+        if (body != null) {
+            try (OutputStream out = new ClientOutputStream(exchange.getResponseBody())) {
+                copyBody(body, out, false);
+            }
+        } else {
+            exchange.close();
+        }
+        
+        if (reusable) {
+            upstream.release(connection);
+        } else {
+            connection.close();
+        }
+    }
+    
+    private static void copyBody(InputStream in, OutputStream out, boolean chunked) throws IOException {
+        ByteBuffer pooled = BufferPool.heap().acquire(16 * 1024);
+        try {
+            byte[] buffer = pooled.array();
+            int read;
+            while ((read = in.read(buffer, 0, 16 * 1024)) != -1) {
+                if (read == 0) {
+                    continue;
+                }
+                if (chunked) {
+                    out.write(Integer.toHexString(read).getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(CRLF);
+                    out.write(buffer, 0, read);
+                    out.write(CRLF);
+                } else {
+                    out.write(buffer, 0, read);
+                }
+            }
+            if (chunked) {
+                out.write(LAST_CHUNK);
+            }
+        } finally {
+            BufferPool.heap().release(pooled);
+        }
+    }
+    
+    // Header names listed in Connection are hop-by-hop too
+    private static Set<String> connectionTokens(List<String> values) {
+        if (values == null) {
+            return new HashSet<>();
+        }
+        Set<String> tokens = new HashSet<>();
+        for (String value : values) {
+            for (String token : value.split(",")) {
+                tokens.add(token.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+        return tokens;
+    }
+}
+
+// A balanced set of upstreams with active health checks and passive outlier ejection
+class UpstreamGroup implements Closeable {
+    static final int POWER_OF_TWO = 0;
+    static final int LEAST_OUTSTANDING = 1;
+    
+    // Shared by every proxy route; probes are short and bounded by the connect timeout
+    private static final ScheduledExecutorService healthChecker = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "upstream-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private static final int EJECT_AFTER_FAILURES = 5;
+    private static final long BASE_EJECTION_MILLIS = 10_000;
+    private static final int UNHEALTHY_THRESHOLD = 2;
+    
+    private final List<Upstream> upstreams;
+    private final int balancer;
+    private final int connectTimeoutMillis;
+    private ScheduledFuture<?> healthCheck;
+    
+    UpstreamGroup(List<Upstream> upstreams, int balancer, int connectTimeoutMillis) {
+        this.upstreams = upstreams;
+        this.balancer = balancer;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+    
+    int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+    
+    // Null when every upstream is down or ejected
+    Upstream choose() {
+        long now = System.nanoTime();
+        List<Upstream> available = new ArrayList<>(upstreams.size());
+        for (Upstream upstream : upstreams) {
+            if (upstream.isAvailable(now)) {
+                available.add(upstream);
+            }
+        }
+        if (available.isEmpty()) {
+            return null;
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+        
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (balancer == POWER_OF_TWO) {
+            int first = random.nextInt(available.size());
+            int second = random.nextInt(available.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Upstream a = available.get(first);
+            Upstream b = available.get(second);
+            return a.getOutstanding() <= b.getOutstanding() ? a : b;
+        }
+        // Least outstanding, starting at a random offset so ties spread out
+        int offset = random.nextInt(available.size());
+        Upstream best = null;
+        for (int i = 0; i < available.size(); i++) {
+            Upstream candidate = available.get((offset + i) % available.size());
+            if (best == null || candidate.getOutstanding() < best.getOutstanding()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+    
+    // Never ejects the last available upstream, so an outage degrades to errors
+    // from one host instead of 503 for everything
+    void onFailure(Upstream upstream) {
+        if (upstream.getConsecutiveFailures() < EJECT_AFTER_FAILURES) {
+            return;
+        }
+        long now = System.nanoTime();
+        int available = 0;
+        for (Upstream other : upstreams) {
+            if (other.isAvailable(now)) {
+                available++;
+            }
+        }
+        if (available > 1) {
+            upstream.eject(now, BASE_EJECTION_MILLIS);
+        }
+    }
+    
+    synchronized void startHealthChecks(String path, int intervalMillis) {
+        if (healthCheck == null) {
+            healthCheck = healthChecker.scheduleWithFixedDelay(() -> upstreams.forEach(upstream ->
+                upstream.recordProbe(upstream.probe(path, connectTimeoutMillis), UNHEALTHY_THRESHOLD)),
+                0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    @Override
+    public synchronized void close() {
+        if (healthCheck != null) {
+            healthCheck.cancel(false);
+            healthCheck = null;
+        }
+        upstreams.forEach(Upstream::closeIdle);
+    }
+    
+    List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Upstream upstream : upstreams) {
+            stats.add(upstream.getStats(now));
+        }
+        return stats;
+    }
+}
+
+// One upstream address: its idle connection pool, load and health
+class Upstream {
+    private final String host;
+    private final int port;
+    private final int maxIdle;
+    private final ConcurrentLinkedDeque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private volatile boolean healthy = true;
+    private volatile long ejectedUntil;
+    private int failedProbes;
+    private int ejections;
+    
+    // Idle connections older than this may already be closed by the upstream
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(15);
+    
+    Upstream(String host, int port, int maxIdle) {
+        this.host = host;
+        this.port = port;
+        this.maxIdle = maxIdle;
+    }
+    
+    String getAddress() {
+        return host + ":" + port;
+    }
+    
+    int getOutstanding() {
+        return outstanding.get();
+    }
+    
+    int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+    
+    boolean isAvailable(long now) {
+        return healthy && now - ejectedUntil >= 0;
+    }
+    
+    void begin() {
+        outstanding.incrementAndGet();
+        requests.incrementAndGet();
+    }
+    
+    void end(boolean failed, UpstreamGroup group) {
+        outstanding.decrementAndGet();
+        if (failed) {
+            failures.incrementAndGet();
+            consecutiveFailures.incrementAndGet();
+            group.onFailure(this);
+        } else {
+            consecutiveFailures.set(0);
+        }
+    }
+    
+    synchronized void eject(long now, long baseMillis) {
+        ejections++;
+        ejectedUntil = now + TimeUnit.MILLISECONDS.toNanos(baseMillis * Math.min(ejections, 10));
+        consecutiveFailures.set(0);
+        closeIdle();
+    }
+    
+    // Most recently used first, so the warmest connections stay in use
+    UpstreamConnection acquire(int connectTimeoutMillis) throws IOException {
+        UpstreamConnection connection;
+        long now = System.nanoTime();
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (now - connection.getLastUsed() < MAX_IDLE_NANOS) {
+                return connection;
+            }
+            connection.close();
+        }
+        connectionsOpened.incrementAndGet();
+        return UpstreamConnection.open(host, port, connectTimeoutMillis);
+    }
+    
+    void release(UpstreamConnection connection) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            connection.close();
+            return;
+        }
+        connection.markIdle();
+        idle.offerFirst(connection);
+    }
+    
+    void closeIdle() {
+        UpstreamConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            connection.close();
+        }
+    }
+    
+    // A fresh connection per probe, so a pooled connection's state cannot mask an outage
+    boolean probe(String path, int timeoutMillis) {
+        try (UpstreamConnection connection = UpstreamConnection.open(host, port, timeoutMillis)) {
+            connection.setReadTimeout(timeoutMillis);
+            OutputStream out = connection.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: " + getAddress() + "\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            int status = connection.readResponseHead().status;
+            return status >= 200 && status < 400;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+    
+    // Down after unhealthyThreshold failed probes in a row, up again after one success
+    synchronized void recordProbe(boolean passed, int unhealthyThreshold) {
+        if (passed) {
+            failedProbes = 0;
+            healthy = true;
+        } else if (++failedProbes >= unhealthyThreshold && healthy) {
+            healthy = false;
+            closeIdle();
+        }
+    }
+    
+    Map<String, Object> getStats(long now) {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("address", getAddress());
+        stats.put("healthy", healthy);
+        stats.put("ejected", now - ejectedUntil < 0);
+        stats.put("outstanding", outstanding.get());
+        stats.put("requests", requests.get());
+        stats.put("failures", failures.get());
+        stats.put("idleConnections", idleCount.get());
+        stats.put("connectionsOpened", connectionsOpened.get());
+        return stats;
+    }
+}
+
+// A keep-alive socket to one upstream
+class UpstreamConnection implements Closeable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private long lastUsed;
+    private boolean reused;
+    
+    private UpstreamConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+    }
+    
+    static UpstreamConnection open(String host, int port, int connectTimeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            return new UpstreamConnection(socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+    
+    InputStream getInputStream() { return in; }
+    OutputStream getOutputStream() { return out; }
+    long getLastUsed() { return lastUsed; }
+    boolean isReused() { return reused; }
+    
+    void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+    
+    void markIdle() {
+        lastUsed = System.nanoTime();
+        reused = true;
+    }
+    
+    // Status line and headers; interim 1xx responses are skipped
+    UpstreamResponse readResponseHead() throws IOException {
+        while (true) {
+            String statusLine = readLine();
+            if (statusLine.isEmpty()) {
+                continue;
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line from upstream: " + statusLine);
+            }
+            UpstreamResponse response = new UpstreamResponse(Integer.parseInt(parts[1]));
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    response.addHeader(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+            if (response.status >= 100 && response.status < 200) {
+                continue;
+            }
+            List<String> connection = response.headers.get("connection");
+            response.keepAlive = "HTTP/1.1".equals(parts[0])
+                && (connection == null || !String.join(",", connection).toLowerCase(Locale.ROOT).contains("close"));
+            return response;
+        }
+    }
+    
+    String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Upstream closed the connection");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1.name());
+    }
+    
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
+
+class UpstreamResponse {
+    final int status;
+    // Original order and case for relaying, lower-cased names for lookups
+    final List<String[]> headerList = new ArrayList<>();
+    final Map<String, List<String>> headers = new HashMap<>();
+    boolean keepAlive;
+    
+    UpstreamResponse(int status) {
+        this.status = status;
+    }
+    
+    void addHeader(String name, String value) {
+        headerList.add(new String[] {name, value});
+        headers.computeIfAbsent(name.toLowerCase(Locale.ROOT), key -> new ArrayList<>(1)).add(value);
+    }
+}
+
+// Reads exactly one Content-Length body and leaves the connection at the next response
+class FixedLengthBodyStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+    
+    FixedLengthBodyStream(InputStream in, long length) {
+        this.in = in;
+        this.remaining = length;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read == -1) {
+            throw new EOFException("Upstream body ended " + remaining + " bytes early");
+        }
+        remaining -= read;
+        return read;
+    }
+}
+
+// Decodes a chunked body, consuming the trailers, and leaves the connection at the next response
+class ChunkedBodyStream extends InputStream {
+    private final InputStream in;
+    private long chunkRemaining;
+    private boolean finished;
+    
+    ChunkedBodyStream(InputStream in) {
+        this.in = in;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (finished) {
+            return -1;
+        }
+        if (chunkRemaining == 0) {
+            String size = readLine();
+            int extension = size.indexOf(';');
+            chunkRemaining = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+            if (chunkRemaining == 0) {
+                while (!readLine().isEmpty()) {
+                    // Trailers are dropped
+                }
+                finished = true;
+                return -1;
+            }
+        }
+        int read = in.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+        if (read == -1) {
+            throw new EOFException("Upstream chunked body ended early");
+        }
+        chunkRemaining -= read;
+        if (chunkRemaining == 0) {
+            readLine();
+        }
+        return read;
+    }
+    
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException("Upstream chunked body ended early");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
+
+// The client's end of a relayed response. Its failures are the client going away, kept
+// apart so they do not count against the upstream.
+class ClientOutputStream extends OutputStream {
+    private final OutputStream out;
+    
+    ClientOutputStream(OutputStream out) {
+        this.out = out;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            throw new ClientAbortException(e);
+        }
+    }
+    
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        try {
+            out.write(buffer, offset, length);
+        } catch (IOException e) {
+            throw new ClientAbortException(e);
+        }
+    }
+    
+    @Override
+    public void flush() throws IOException {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            throw new ClientAbortException(e);
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new ClientAbortException(e);
+        }
+    }
+}
+
+class ClientAbortException extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    ClientAbortException(IOException cause) {
+        super("Client closed the connection", cause);
+    }
+}
@@ -0,0 +1,242 @@
+// Token Bucket Rate Limiter
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One token bucket per client address, plus one per client and route for routes with
+// their own limit. Buckets live in a fixed number of lock-striped, access-ordered
+// segments, each capped at maxClients / SEGMENTS entries, so a spray of spoofed
+// addresses evicts the least recently seen clients instead of growing the heap.
+// Buckets idle for a whole refill period are full again, so dropping them loses nothing.
+// Loopback clients and trusted proxies are never limited: a load balancer or a local
+// load generator speaks for many clients from one address.
+public class RateLimiter {
+    private static final int SEGMENTS = 16;
+    
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final Map<String, Limit> routeLimits = new ConcurrentHashMap<>();
+    private final Set<String> trustedProxies = ConcurrentHashMap.newKeySet();
+    private final Limit clientLimit;
+    private final AtomicLong allowed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong exempt = new AtomicLong();
+    
+    public RateLimiter(int maxClients, double burst, double refillPerSecond) {
+        this.clientLimit = new Limit(burst, refillPerSecond);
+        int perSegment = Math.max(1, maxClients / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+    
+    // Parses "GET:/api/logs=20/5,POST:/api/routes=5/0.5" (burst/refill per second)
+    public void setRouteLimits(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            int equals = entry.lastIndexOf('=');
+            int slash = entry.lastIndexOf('/');
+            int colon = entry.indexOf(':');
+            if (colon < 0 || equals < colon || slash < equals) {
+                throw new IllegalArgumentException("Invalid route limit: " + entry);
+            }
+            setRouteLimit(entry.substring(0, colon).trim(), entry.substring(colon + 1, equals).trim(),
+                Double.parseDouble(entry.substring(equals + 1, slash)),
+                Double.parseDouble(entry.substring(slash + 1)));
+        }
+    }
+    
+    // Parses "10.0.0.2,10.0.0.3"
+    public void setTrustedProxies(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        for (String address : spec.split(",")) {
+            trustedProxies.add(address.trim());
+        }
+    }
+    
+    boolean isExempt(InetAddress client) {
+        if (client.isLoopbackAddress() || trustedProxies.contains(client.getHostAddress())) {
+            exempt.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    public void setRouteLimit(String method, String path, double burst, double refillPerSecond) {
+        routeLimits.put(method.toUpperCase() + ":" + path, new Limit(burst, refillPerSecond));
+    }
+    
+    public void removeRouteLimit(String method, String path) {
+        routeLimits.remove(method.toUpperCase() + ":" + path);
+    }
+    
+    // Returns 0 when the request may proceed, otherwise the milliseconds until it would
+    public long tryAcquire(String client, String method, String path) {
+        long now = System.nanoTime();
+        long wait = take(client, clientLimit, now);
+        if (wait == 0) {
+            String routeKey = method.toUpperCase() + ":" + path;
+            Limit routeLimit = routeLimits.get(routeKey);
+            if (routeLimit != null) {
+                wait = take(client + " " + routeKey, routeLimit, now);
+            }
+        }
+        (wait == 0 ? allowed : rejected).incrementAndGet();
+        return wait;
+    }
+    
+    private long take(String key, Limit limit, long now) {
+        Segment segment = segments[(key.hashCode() & 0x7fffffff) % SEGMENTS];
+        synchronized (segment) {
+            segment.evictIdle(now);
+            TokenBucket bucket = segment.get(key);
+            if (bucket == null) {
+                bucket = new TokenBucket(limit, now);
+                segment.put(key, bucket);
+            }
+            return bucket.take(now);
+        }
+    }
+    
+    public int getTrackedClients() {
+        int total = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                total += segment.size();
+            }
+        }
+        return total;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("burst", clientLimit.burst);
+        stats.put("refillPerSecond", clientLimit.refillPerSecond);
+        stats.put("routeLimits", routeLimits.size());
+        stats.put("trackedBuckets", getTrackedClients());
+        stats.put("allowed", allowed.get());
+        stats.put("rejected", rejected.get());
+        stats.put("evicted", evicted.get());
+        stats.put("exempt", exempt.get());
+        return stats;
+    }
+    
+    // Access-ordered, so the eldest entry is always the longest idle one
+    private class Segment extends LinkedHashMap<String, TokenBucket> {
+        private static final long serialVersionUID = 1L;
+        
+        private final int capacity;
+        
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+        
+        void evictIdle(long now) {
+            Iterator<TokenBucket> it = values().iterator();
+            while (it.hasNext()) {
+                if (!it.next().isFull(now)) {
+                    break;
+                }
+                it.remove();
+                evicted.incrementAndGet();
+            }
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+            if (size() > capacity) {
+                evicted.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
+
+// Burst size and refill rate shared by every bucket it applies to
+class Limit {
+    final double burst;
+    final double refillPerSecond;
+    final long refillNanos;
+    
+    Limit(double burst, double refillPerSecond) {
+        if (burst < 1 || refillPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate limit needs burst >= 1 and refill > 0");
+        }
+        this.burst = burst;
+        this.refillPerSecond = refillPerSecond;
+        this.refillNanos = (long) (burst / refillPerSecond * 1e9);
+    }
+}
+
+// Refilled lazily on each take, guarded by its segment's lock
+class TokenBucket {
+    private final Limit limit;
+    private double tokens;
+    private long lastRefill;
+    
+    TokenBucket(Limit limit, long now) {
+        this.limit = limit;
+        this.tokens = limit.burst;
+        this.lastRefill = now;
+    }
+    
+    // Untouched for a full refill period, so a fresh bucket would be identical
+    boolean isFull(long now) {
+        return now - lastRefill >= limit.refillNanos;
+    }
+    
+    long take(long now) {
+        tokens = Math.min(limit.burst, tokens + (now - lastRefill) / 1e9 * limit.refillPerSecond);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / limit.refillPerSecond * 1000);
+    }
+}
+
+// Rejects over-limit clients with 429 before the wrapped handler runs
+class RateLimitingHandler implements HttpHandler {
+    private final HttpHandler delegate;
+    private final RateLimiter rateLimiter;
+    
+    public RateLimitingHandler(HttpHandler delegate, RateLimiter rateLimiter) {
+        this.delegate = delegate;
+        this.rateLimiter = rateLimiter;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        InetAddress client = exchange.getRemoteAddress().getAddress();
+        if (rateLimiter.isExempt(client)) {
+            delegate.handle(exchange);
+            return;
+        }
+        long waitMillis = rateLimiter.tryAcquire(client.getHostAddress(), exchange.getRequestMethod(),
+            exchange.getRequestURI().getPath());
+        if (waitMillis == 0) {
+            delegate.handle(exchange);
+            return;
+        }
+        
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf((waitMillis + 999) / 1000));
+        ResponseHelper.sendErrorResponse(exchange, 429, "Too Many Requests");
+    }
+}
@@ -0,0 +1,516 @@
+// Request Deadlines and Watchdog
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Gives every request a time budget: a per-route timeout or the server default. A
+// watchdog thread scans the in-flight requests each tick. Requests past their deadline
+// that have not sent headers yet are answered with 504 and their worker is interrupted,
+// so a stuck handler cannot hold the pool. Requests slower than the slow threshold are
+// reported once, with the stack of the worker running them. Each deadline carries the
+// request's RequestTrace, which goes to the slow request log once the response is out.
+public class RequestDeadlines {
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<>();
+    // How long closing a timed-out exchange may wait on a request body the client holds back
+    private static final long DRAIN_MILLIS = 1000;
+    
+    private volatile long defaultTimeoutMillis;
+    private volatile long slowThresholdMillis;
+    private final ServerStatsManager statsManager;
+    private final Map<String, Long> routeTimeouts = new ConcurrentHashMap<>();
+    private final Set<RequestDeadline> inFlight = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService watchdog;
+    private ExecutorService closer;
+    private volatile boolean serverTiming;
+    private volatile boolean captureStacks;
+    private volatile SlowRequestLog slowRequestLog;
+    
+    public RequestDeadlines(long defaultTimeoutMillis, long slowThresholdMillis, ServerStatsManager statsManager) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.slowThresholdMillis = slowThresholdMillis;
+        this.statsManager = statsManager;
+    }
+    
+    // The deadline of the request running on this thread, or null outside a request
+    public static RequestDeadline current() {
+        return CURRENT.get();
+    }
+    
+    // Remaining budget for handlers that call out to something slow
+    public static long remainingMillis() {
+        RequestDeadline deadline = CURRENT.get();
+        return deadline != null ? deadline.remainingMillis() : Long.MAX_VALUE;
+    }
+    
+    // Parses "GET:/api/logs=2000,POST:/api/routes=500" (milliseconds)
+    public void setRouteTimeouts(String spec) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return;
+        }
+        for (String entry : spec.split(",")) {
+            int equals = entry.lastIndexOf('=');
+            int colon = entry.indexOf(':');
+            if (colon < 0 || equals < colon) {
+                throw new IllegalArgumentException("Invalid route timeout: " + entry);
+            }
+            setRouteTimeout(entry.substring(0, colon).trim(), entry.substring(colon + 1, equals).trim(),
+                Long.parseLong(entry.substring(equals + 1).trim()));
+        }
+    }
+    
+    // Applies to requests that start after the change
+    public void setDefaultTimeout(long timeoutMillis) {
+        this.defaultTimeoutMillis = timeoutMillis;
+    }
+    
+    public void setSlowThreshold(long thresholdMillis) {
+        this.slowThresholdMillis = thresholdMillis;
+    }
+    
+    // Server-Timing headers on every response
+    public void setServerTiming(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+    }
+    
+    public void setCaptureStacks(boolean captureStacks) {
+        this.captureStacks = captureStacks;
+    }
+    
+    public void setRouteTimeout(String method, String path, long timeoutMillis) {
+        routeTimeouts.put(method.toUpperCase() + ":" + path, timeoutMillis);
+    }
+    
+    public long timeoutFor(String method, String path) {
+        return routeTimeouts.getOrDefault(method.toUpperCase() + ":" + path, defaultTimeoutMillis);
+    }
+    
+    // Where finished requests past the log's threshold are kept
+    public void setSlowRequestLog(SlowRequestLog slowRequestLog) {
+        this.slowRequestLog = slowRequestLog;
+    }
+    
+    public synchronized void start(long tickMillis) {
+        if (watchdog != null) {
+            return;
+        }
+        watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "request-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        closer = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "request-watchdog-close");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    public synchronized void stop() {
+        if (watchdog != null) {
+            watchdog.shutdownNow();
+            closer.shutdownNow();
+            watchdog = null;
+            closer = null;
+        }
+    }
+    
+    public int getInFlight() {
+        return inFlight.size();
+    }
+    
+    RequestDeadline begin(HttpExchange exchange) {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        RequestDeadline deadline = new RequestDeadline(exchange, method, path, timeoutFor(method, path),
+            new RequestTrace(serverTiming));
+        inFlight.add(deadline);
+        CURRENT.set(deadline);
+        return deadline;
+    }
+    
+    // Moves the request onto this thread, for a handler that passed it to another
+    // executor: current() finds it here and a timeout interrupts this thread
+    static void adopt(RequestDeadline deadline) {
+        if (deadline != null) {
+            CURRENT.set(deadline);
+            deadline.bindWorker();
+        }
+    }
+    
+    static void release(RequestDeadline deadline) {
+        if (deadline != null) {
+            CURRENT.remove();
+            if (deadline.unbindWorker()) {
+                Thread.interrupted();
+            }
+        }
+    }
+    
+    // The worker is done with the request, though an async response may still be pending
+    void unbind(RequestDeadline deadline) {
+        if (CURRENT.get() == deadline) {
+            CURRENT.remove();
+        }
+        if (deadline.unbindWorker()) {
+            // Clear a pending interrupt so it cannot leak into the worker's next request
+            Thread.interrupted();
+        }
+    }
+    
+    void end(RequestDeadline deadline) {
+        deadline.finish();
+        inFlight.remove(deadline);
+        RequestTrace trace = deadline.getTrace();
+        trace.markDone();
+        SlowRequestLog slowLog = slowRequestLog;
+        if (slowLog != null) {
+            slowLog.offer(deadline, trace);
+        }
+        if (deadline.isTimedOut()) {
+            // Let the 504 finish before the engine closes the exchange behind this handler
+            deadline.awaitResponse();
+        }
+    }
+    
+    private void tick() {
+        ScheduledExecutorService watchdog;
+        ExecutorService closer;
+        synchronized (this) {
+            watchdog = this.watchdog;
+            closer = this.closer;
+        }
+        if (watchdog == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        for (RequestDeadline deadline : inFlight) {
+            long elapsedMillis = deadline.elapsedMillis(now);
+            if (elapsedMillis >= slowThresholdMillis && deadline.markReported()) {
+                statsManager.incrementSlowRequests();
+                StackTraceElement[] stack = deadline.workerStack();
+                if (captureStacks && stack.length > 0) {
+                    deadline.getTrace().setSlowStack(stack);
+                }
+                System.err.println("Slow request: " + deadline.describe(elapsedMillis, stack));
+            }
+            if (now - deadline.getDeadlineNanos() < 0) {
+                continue;
+            }
+            if (deadline.expire()) {
+                statsManager.incrementTimeouts();
+                sendTimeout(deadline, watchdog, closer);
+                deadline.runExpireHook();
+            }
+        }
+    }
+    
+    // The 504 is flushed before the worker is interrupted: a worker blocked on an
+    // interruptible channel closes the connection as it wakes, which would otherwise
+    // reach the client first as a reset. The headers are only those set outside the
+    // deadline; the handler's own go to its DeadlineExchange and are never sent.
+    private void sendTimeout(RequestDeadline deadline, ScheduledExecutorService watchdog, ExecutorService closer) {
+        HttpExchange exchange = deadline.getExchange();
+        try {
+            Map<String, Object> error = new HashMap<>();
+            error.put("error", "Gateway Timeout");
+            error.put("status", 504);
+            error.put("timestamp", System.currentTimeMillis());
+            byte[] body = JsonWriter.toBytes(error);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(504, body.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(body);
+            os.flush();
+        } catch (IOException e) {
+            // Client already gone
+        } finally {
+            deadline.interruptWorker();
+            deadline.responseSent();
+            // The engine drains the unread request body on close, which blocks for as long
+            // as the client holds it back; that must not stall the watchdog. Interrupting
+            // the closing thread cuts the drain short by closing the connection.
+            Future<?> closing = closer.submit(exchange::close);
+            watchdog.schedule(() -> closing.cancel(true), DRAIN_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
+
+// One request's budget. Headers are sent by either the handler or the watchdog, never
+// both: whichever moves the state out of RUNNING first wins.
+class RequestDeadline {
+    private static final int RUNNING = 0;
+    private static final int COMMITTED = 1;
+    private static final int TIMED_OUT = 2;
+    private static final int DONE = 3;
+    
+    private final HttpExchange exchange;
+    private final RequestTrace trace;
+    private final String method;
+    private final String path;
+    private final long startNanos = System.nanoTime();
+    private volatile long deadlineNanos;
+    private final String workerName = Thread.currentThread().getName();
+    private final CountDownLatch timeoutResponse = new CountDownLatch(1);
+    private Thread worker = Thread.currentThread();
+    private Runnable expireHook;
+    private int state = RUNNING;
+    private boolean timedOut;
+    private boolean reported;
+    
+    RequestDeadline(HttpExchange exchange, String method, String path, long timeoutMillis, RequestTrace trace) {
+        this.exchange = exchange;
+        this.trace = trace;
+        this.method = method;
+        this.path = path;
+        this.deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+    
+    public long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+    
+    public boolean isExpired() {
+        return System.nanoTime() - deadlineNanos >= 0;
+    }
+    
+    HttpExchange getExchange() { return exchange; }
+    RequestTrace getTrace() { return trace; }
+    String getMethod() { return method; }
+    String getPath() { return path; }
+    String getWorkerName() { return workerName; }
+    long getDeadlineNanos() { return deadlineNanos; }
+    
+    long elapsedMillis(long now) {
+        return TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+    }
+    
+    synchronized boolean isTimedOut() {
+        return timedOut;
+    }
+    
+    // Called by the handler's thread before sending headers
+    synchronized boolean commit() {
+        if (state == RUNNING) {
+            state = COMMITTED;
+        }
+        return state == COMMITTED;
+    }
+    
+    // Pushes the deadline out for work that keeps making progress, such as a streaming
+    // upload, so the timeout bounds idle time rather than the whole request
+    synchronized void extend(long timeoutMillis) {
+        if (state == RUNNING) {
+            deadlineNanos = Math.max(deadlineNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        }
+    }
+    
+    // Called by the watchdog, which then owns the exchange and sends the 504
+    synchronized boolean expire() {
+        if (state != RUNNING || System.nanoTime() - deadlineNanos < 0) {
+            return false;
+        }
+        state = TIMED_OUT;
+        timedOut = true;
+        return true;
+    }
+    
+    // Only interrupts while the worker is still on this request
+    synchronized void interruptWorker() {
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+    
+    synchronized void bindWorker() {
+        if (state == RUNNING || state == COMMITTED) {
+            worker = Thread.currentThread();
+        }
+    }
+    
+    // Returns whether the worker may carry this request's interrupt. A thread the request
+    // has already moved on from leaves the new one bound.
+    synchronized boolean unbindWorker() {
+        if (worker == Thread.currentThread()) {
+            worker = null;
+        }
+        return timedOut;
+    }
+    
+    // Cancellation for work that outlives the worker, such as an async handler's future
+    synchronized void onExpire(Runnable hook) {
+        expireHook = hook;
+    }
+    
+    void runExpireHook() {
+        Runnable hook;
+        synchronized (this) {
+            hook = expireHook;
+        }
+        if (hook != null) {
+            hook.run();
+        }
+    }
+    
+    synchronized void finish() {
+        state = DONE;
+    }
+    
+    void responseSent() {
+        timeoutResponse.countDown();
+    }
+    
+    void awaitResponse() {
+        try {
+            timeoutResponse.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    synchronized boolean markReported() {
+        if (reported || state == DONE) {
+            return false;
+        }
+        reported = true;
+        return true;
+    }
+    
+    // Empty once the worker has moved on, as it has for a pending async response
+    StackTraceElement[] workerStack() {
+        Thread current;
+        synchronized (this) {
+            current = worker;
+        }
+        return current != null ? current.getStackTrace() : new StackTraceElement[0];
+    }
+    
+    String describe(long elapsedMillis, StackTraceElement[] stack) {
+        Thread current;
+        synchronized (this) {
+            current = worker;
+        }
+        StringBuilder description = new StringBuilder()
+            .append(method).append(' ').append(path)
+            .append(" running for ").append(elapsedMillis).append(" ms ")
+            .append(current != null ? "on " : "async, started on ").append(workerName);
+        for (int i = 0; i < Math.min(5, stack.length); i++) {
+            description.append("\n\tat ").append(stack[i]);
+        }
+        return description.toString();
+    }
+}
+
+// Runs the wrapped handler under a deadline from RequestDeadlines
+class DeadlineHandler implements HttpHandler {
+    private final HttpHandler delegate;
+    private final RequestDeadlines deadlines;
+    
+    public DeadlineHandler(HttpHandler delegate, RequestDeadlines deadlines) {
+        this.delegate = delegate;
+        this.deadlines = deadlines;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        // Turned away by a full worker queue: no budget at all
+        if (RequestTrace.isShed()) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            ResponseHelper.sendErrorResponse(exchange, 503, "Server Busy");
+            return;
+        }
+        RequestDeadline deadline = deadlines.begin(exchange);
+        CompletableFuture<Void> completion = null;
+        try {
+            delegate.handle(new DeadlineExchange(exchange, deadline));
+            completion = AsyncHandlerAdapter.completionOf(exchange);
+        } catch (IOException | RuntimeException e) {
+            // The watchdog already answered; whatever the interrupt broke is moot
+            if (!deadline.isTimedOut()) {
+                throw e;
+            }
+        } finally {
+            deadlines.unbind(deadline);
+            if (completion == null) {
+                deadlines.end(deadline);
+            } else {
+                // Detached async response: the deadline keeps running until it is written
+                completion.whenComplete((result, error) -> deadlines.end(deadline));
+            }
+        }
+    }
+}
+
+// Routes sendResponseHeaders through the deadline so a late handler cannot answer
+// on top of the watchdog's 504. The handler's headers are kept apart and copied over
+// only when it wins, so none of them end up on the 504 and the watchdog never writes
+// a map the handler is still changing.
+class DeadlineExchange extends HttpExchange {
+    private final HttpExchange original;
+    private final RequestDeadline deadline;
+    private final Headers responseHeaders = new Headers();
+    
+    DeadlineExchange(HttpExchange original, RequestDeadline deadline) {
+        this.original = original;
+        this.deadline = deadline;
+    }
+    
+    @Override public Headers getRequestHeaders() { return original.getRequestHeaders(); }
+    @Override public Headers getResponseHeaders() { return responseHeaders; }
+    @Override public URI getRequestURI() { return original.getRequestURI(); }
+    @Override public String getRequestMethod() { return original.getRequestMethod(); }
+    @Override public HttpContext getHttpContext() { return original.getHttpContext(); }
+    @Override public InputStream getRequestBody() { return original.getRequestBody(); }
+    @Override public OutputStream getResponseBody() { return original.getResponseBody(); }
+    @Override public InetSocketAddress getRemoteAddress() { return original.getRemoteAddress(); }
+    @Override public int getResponseCode() { return original.getResponseCode(); }
+    @Override public InetSocketAddress getLocalAddress() { return original.getLocalAddress(); }
+    @Override public String getProtocol() { return original.getProtocol(); }
+    @Override public Object getAttribute(String name) { return original.getAttribute(name); }
+    @Override public void setAttribute(String name, Object value) { original.setAttribute(name, value); }
+    @Override public void setStreams(InputStream i, OutputStream o) { original.setStreams(i, o); }
+    @Override public HttpPrincipal getPrincipal() { return original.getPrincipal(); }
+    
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (!deadline.commit()) {
+            throw new IOException("Request deadline exceeded");
+        }
+        // Replaces per name, so a handler's header overrides one set outside it
+        original.getResponseHeaders().putAll(responseHeaders);
+        RequestTrace trace = deadline.getTrace();
+        trace.markHeaders();
+        if (trace.isServerTiming()) {
+            original.getResponseHeaders().set("Server-Timing", trace.serverTimingHeader());
+        }
+        original.sendResponseHeaders(rCode, responseLength);
+    }
+    
+    @Override
+    public void close() {
+        // After a timeout the watchdog owns the exchange and closes it itself
+        if (!deadline.isTimedOut()) {
+            original.close();
+        }
+    }
+}
@@ -5,20 +5,37 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RequestLogger {
     private final Queue<RequestLog> logs = new ConcurrentLinkedQueue<>();
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
-    private static final int MAX_LOGS = 1000;
+    private volatile int maxLogs = 1000;
+    // Numbers every log, so event stream clients can resume after the last one they saw
+    private long lastSequence;
     
     public void logRequest(RequestLog log) {
         lock.writeLock().lock();
         try {
+            log.setSequence(++lastSequence);
             logs.offer(log);
             // Keep only the most recent logs
-            while (logs.size() > MAX_LOGS) {
+            while (logs.size() > maxLogs) {
+                logs.poll();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Shrinking drops the oldest logs at once
+    public void setMaxLogs(int maxLogs) {
+        lock.writeLock().lock();
+        try {
+            this.maxLogs = maxLogs;
+            while (logs.size() > maxLogs) {
                 logs.poll();
             }
         } finally {
@@ -29,12 +46,54 @@ public class RequestLogger {
     public List<RequestLog> getLogs(int limit) {
         lock.readLock().lock();
         try {
-            return logs.stream()
-                    .limit(limit)
-                    .collect(ArrayList::new, (list, log) -> list.add(0, log), (list1, list2) -> {
-                        list2.addAll(list1);
-                        return list2;
-                    });
+            List<RequestLog> result = new ArrayList<>(Math.min(limit, logs.size()));
+            for (RequestLog log : logs) {
+                if (result.size() >= limit) {
+                    break;
+                }
+                result.add(log);
+            }
+            Collections.reverse(result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Retained logs numbered above sequence, oldest first
+    public List<RequestLog> getLogsAfter(long sequence, int limit) {
+        lock.readLock().lock();
+        try {
+            List<RequestLog> after = new ArrayList<>();
+            for (RequestLog log : logs) {
+                if (log.getSequence() > sequence) {
+                    after.add(log);
+                    if (after.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return after;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    public long getLastSequence() {
+        lock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // The oldest retained sequence number, or the next one to be assigned when none is
+    public long getFirstRetainedSequence() {
+        lock.readLock().lock();
+        try {
+            RequestLog oldest = logs.peek();
+            return oldest != null ? oldest.getSequence() : lastSequence + 1;
         } finally {
             lock.readLock().unlock();
         }
@@ -56,7 +115,10 @@ public class RequestLogger {
 
 class RequestLog {
     private final String id;
+    private long sequence;
     private final String timestamp;
+    // Epoch milliseconds, for ordering logs merged from several nodes
+    private final long time;
     private final String method;
     private final String path;
     private final int status;
@@ -66,7 +128,8 @@ class RequestLog {
     
     public RequestLog(String method, String path, int status, long responseTime, 
                      String clientIp, String userAgent) {
-        this.id = UUID.randomUUID().toString();
+        this.id = newId();
+        this.time = System.currentTimeMillis();
         this.timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm:ss"));
         this.method = method;
         this.path = path;
@@ -76,9 +139,24 @@ class RequestLog {
         this.userAgent = userAgent;
     }
     
+    // A version 4 UUID from ThreadLocalRandom. UUID.randomUUID() seeds a SecureRandom on
+    // the first request, and log ids only need to be unique, not unguessable.
+    private static String newId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long most = random.nextLong() & ~0xF000L | 0x4000L;
+        long least = random.nextLong() & 0x3FFFFFFFFFFFFFFFL | 0x8000000000000000L;
+        return new UUID(most, least).toString();
+    }
+    
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+    
     // Getters
     public String getId() { return id; }
+    public long getSequence() { return sequence; }
     public String getTimestamp() { return timestamp; }
+    public long getTime() { return time; }
     public String getMethod() { return method; }
     public String getPath() { return path; }
     public int getStatus() { return status; }
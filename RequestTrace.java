@@ -0,0 +1,236 @@
+// Request Phase Tracing
+package com.httpserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Where a request's time went, from System.nanoTime() marks taken as it moves through the
+// server: queued for a worker, through the filters (traffic, CORS, rate limit), routing,
+// the handler, JSON serialization, then writing the body. Each mark is one field store,
+// so every request is traced. Marks that a request never reaches fold into the phase
+// before them: a context without a route table has no routing phase, a file response no
+// serialization phase.
+//
+// Marks are written by whichever thread is handling the request at that point; an async
+// response's later marks are published to the reader by its completion.
+public class RequestTrace {
+    private static final ThreadLocal<long[]> DISPATCH = ThreadLocal.withInitial(() -> new long[3]);
+    
+    private final boolean serverTiming;
+    private final long queuedNanos;
+    private final long startedNanos;
+    private final long dispatchedNanos = System.nanoTime();
+    private long routedNanos;
+    private long serializingNanos;
+    private long headersNanos;
+    private long doneNanos;
+    private StackTraceElement[] slowStack;
+    
+    // Called on the worker thread when the request reaches its deadline handler
+    RequestTrace(boolean serverTiming) {
+        this.serverTiming = serverTiming;
+        long[] dispatch = DISPATCH.get();
+        this.queuedNanos = dispatch[0] != 0 ? dispatch[0] : dispatchedNanos;
+        this.startedNanos = dispatch[1] != 0 ? dispatch[1] : dispatchedNanos;
+    }
+    
+    // The trace of the request running on this thread, or null outside a request
+    static RequestTrace current() {
+        RequestDeadline deadline = RequestDeadlines.current();
+        return deadline != null ? deadline.getTrace() : null;
+    }
+    
+    static void markRouted() {
+        RequestTrace trace = current();
+        if (trace != null) {
+            trace.routedNanos = System.nanoTime();
+        }
+    }
+    
+    static void markSerializing() {
+        RequestTrace trace = current();
+        if (trace != null && trace.headersNanos == 0) {
+            trace.serializingNanos = System.nanoTime();
+        }
+    }
+    
+    void markHeaders() {
+        if (headersNanos == 0) {
+            headersNanos = System.nanoTime();
+        }
+    }
+    
+    void markDone() {
+        doneNanos = System.nanoTime();
+    }
+    
+    boolean isServerTiming() {
+        return serverTiming;
+    }
+    
+    long totalNanos() {
+        return (doneNanos != 0 ? doneNanos : System.nanoTime()) - queuedNanos;
+    }
+    
+    // Set by the watchdog at the moment the request crossed the slow threshold
+    synchronized void setSlowStack(StackTraceElement[] stack) {
+        slowStack = stack;
+    }
+    
+    synchronized StackTraceElement[] getSlowStack() {
+        return slowStack;
+    }
+    
+    // Phase durations in milliseconds, in the order the request went through them
+    Map<String, Object> phases() {
+        long end = doneNanos != 0 ? doneNanos : System.nanoTime();
+        long routed = routedNanos != 0 ? routedNanos : dispatchedNanos;
+        long headers = headersNanos != 0 ? headersNanos : end;
+        long serializing = serializingNanos != 0 ? serializingNanos : headers;
+        Map<String, Object> phases = new LinkedHashMap<>();
+        phases.put("queue", millis(startedNanos - queuedNanos));
+        phases.put("filters", millis(dispatchedNanos - startedNanos));
+        phases.put("route", millis(routed - dispatchedNanos));
+        phases.put("handler", millis(serializing - routed));
+        phases.put("serialize", millis(headers - serializing));
+        phases.put("write", millis(end - headers));
+        phases.put("total", millis(end - queuedNanos));
+        return phases;
+    }
+    
+    // Server-Timing value for the phases finished when the headers go out
+    String serverTimingHeader() {
+        long headers = headersNanos != 0 ? headersNanos : System.nanoTime();
+        long routed = routedNanos != 0 ? routedNanos : dispatchedNanos;
+        long serializing = serializingNanos != 0 ? serializingNanos : headers;
+        StringBuilder header = new StringBuilder(96);
+        appendMetric(header, "queue", startedNanos - queuedNanos);
+        appendMetric(header, "filters", dispatchedNanos - startedNanos);
+        if (routedNanos != 0) {
+            appendMetric(header, "route", routed - dispatchedNanos);
+        }
+        appendMetric(header, "handler", serializing - routed);
+        if (serializingNanos != 0) {
+            appendMetric(header, "serialize", headers - serializing);
+        }
+        appendMetric(header, "total", headers - queuedNanos);
+        return header.toString();
+    }
+    
+    private static void appendMetric(StringBuilder header, String name, long nanos) {
+        if (header.length() > 0) {
+            header.append(", ");
+        }
+        // Microsecond precision without going through a double's toString
+        long micros = Math.max(0, nanos / 1000);
+        header.append(name).append(";dur=").append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            header.append('0');
+        }
+        if (fraction < 10) {
+            header.append('0');
+        }
+        header.append(fraction);
+    }
+    
+    private static double millis(long nanos) {
+        return Math.max(0, nanos / 1000) / 1000.0;
+    }
+    
+    // Set by WorkerPool around each task it runs
+    static void taskStarted(long queuedNanos, boolean shed) {
+        long[] dispatch = DISPATCH.get();
+        dispatch[0] = queuedNanos;
+        dispatch[1] = System.nanoTime();
+        dispatch[2] = shed ? 1 : 0;
+    }
+    
+    static void taskFinished() {
+        long[] dispatch = DISPATCH.get();
+        dispatch[0] = 0;
+        dispatch[1] = 0;
+        dispatch[2] = 0;
+    }
+    
+    // True on the dispatching thread running a request the full worker queue turned away
+    static boolean isShed() {
+        return DISPATCH.get()[2] != 0;
+    }
+}
+
+// The most recent requests slower than the threshold, with their phase breakdown and,
+// when the watchdog caught them still running, the worker's stack at the slow moment
+class SlowRequestLog {
+    private static final int STACK_DEPTH = 32;
+    
+    private final int capacity;
+    private volatile long thresholdNanos;
+    private final Deque<Map<String, Object>> entries = new ArrayDeque<>();
+    private long recorded;
+    
+    SlowRequestLog(int capacity, long thresholdMillis) {
+        this.capacity = capacity;
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+    }
+    
+    void setThresholdMillis(long thresholdMillis) {
+        this.thresholdNanos = thresholdMillis * 1_000_000;
+    }
+    
+    long getThresholdMillis() {
+        return thresholdNanos / 1_000_000;
+    }
+    
+    // Called once the response is written
+    void offer(RequestDeadline deadline, RequestTrace trace) {
+        if (trace.totalNanos() < thresholdNanos) {
+            return;
+        }
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("time", System.currentTimeMillis() - trace.totalNanos() / 1_000_000);
+        entry.put("method", deadline.getMethod());
+        entry.put("path", deadline.getPath());
+        entry.put("status", deadline.getExchange().getResponseCode());
+        entry.put("thread", deadline.getWorkerName());
+        entry.put("phasesMs", trace.phases());
+        StackTraceElement[] stack = trace.getSlowStack();
+        if (stack != null) {
+            List<String> frames = new ArrayList<>();
+            for (int i = 0; i < Math.min(STACK_DEPTH, stack.length); i++) {
+                frames.add(stack[i].toString());
+            }
+            entry.put("stack", frames);
+        }
+        synchronized (this) {
+            recorded++;
+            entries.addLast(entry);
+            if (entries.size() > capacity) {
+                entries.removeFirst();
+            }
+        }
+    }
+    
+    // Newest first
+    synchronized List<Map<String, Object>> getEntries(int limit) {
+        List<Map<String, Object>> newest = new ArrayList<>();
+        Iterator<Map<String, Object>> it = entries.descendingIterator();
+        while (it.hasNext() && newest.size() < limit) {
+            newest.add(it.next());
+        }
+        return newest;
+    }
+    
+    synchronized long getRecorded() {
+        return recorded;
+    }
+    
+    int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,294 @@
+// Per-route Response Micro-cache
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Holds fully encoded responses keyed by method, path and query. Concurrent
+// misses for one key share a single computation.
+public class ResponseCache {
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    private volatile int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    
+    public interface Loader {
+        CachedResponse load() throws IOException;
+    }
+    
+    public ResponseCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+    
+    public CachedResponse get(String key, long ttlMillis, Loader loader) throws IOException {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = entries.get(key);
+        if (entry != null && entry.isFresh(now)) {
+            if (entry.future.isDone()) {
+                hits.incrementAndGet();
+            } else {
+                coalesced.incrementAndGet();
+            }
+            return await(key, entry);
+        }
+        
+        CacheEntry created = new CacheEntry(now + ttlMillis);
+        CacheEntry winner = entry == null
+            ? entries.putIfAbsent(key, created)
+            : (entries.replace(key, entry, created) ? null : entries.get(key));
+        if (winner != null) {
+            coalesced.incrementAndGet();
+            return await(key, winner);
+        }
+        
+        misses.incrementAndGet();
+        evictIfFull(key);
+        try {
+            CachedResponse response = loader.load();
+            created.future.complete(response);
+            if (!response.isCacheable()) {
+                entries.remove(key, created);
+            }
+            return response;
+        } catch (IOException | RuntimeException e) {
+            entries.remove(key, created);
+            created.future.completeExceptionally(e);
+            throw e;
+        }
+    }
+    
+    private CachedResponse await(String key, CacheEntry entry) throws IOException {
+        try {
+            return entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for cached response of " + key);
+        } catch (ExecutionException e) {
+            throw new IOException("Coalesced request failed for " + key, e.getCause());
+        }
+    }
+    
+    // Drops expired entries first, then the one closest to expiry
+    private void evictIfFull(String keep) {
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        entries.entrySet().removeIf(e -> !e.getValue().isFresh(now) && e.getValue().future.isDone());
+        
+        while (entries.size() > maxEntries) {
+            String victim = null;
+            long earliest = Long.MAX_VALUE;
+            for (Map.Entry<String, CacheEntry> e : entries.entrySet()) {
+                if (!e.getKey().equals(keep) && e.getValue().future.isDone() && e.getValue().expiresAt < earliest) {
+                    victim = e.getKey();
+                    earliest = e.getValue().expiresAt;
+                }
+            }
+            if (victim == null) {
+                return; // Only in-flight computations left
+            }
+            entries.remove(victim);
+        }
+    }
+    
+    // Shrinking evicts down to the new size at once
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        evictIfFull(null);
+    }
+    
+    // Removes every cached variant (any method or query) of a path
+    public void invalidatePath(String path) {
+        Iterator<String> keys = entries.keySet().iterator();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            int start = key.indexOf(':') + 1;
+            if (key.startsWith(path, start)
+                    && (key.length() == start + path.length() || key.charAt(start + path.length()) == '?')) {
+                keys.remove();
+            }
+        }
+    }
+    
+    public void invalidateAll() {
+        entries.clear();
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getCoalesced() { return coalesced.get(); }
+    
+    static String keyFor(HttpExchange exchange) {
+        URI uri = exchange.getRequestURI();
+        String query = uri.getRawQuery();
+        return exchange.getRequestMethod() + ":" + uri.getRawPath() + (query != null ? "?" + query : "");
+    }
+    
+    private static class CacheEntry {
+        final CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+        final long expiresAt;
+        
+        CacheEntry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+        
+        boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+    }
+}
+
+// Immutable status, headers and body bytes of a recorded response
+class CachedResponse {
+    private final int status;
+    private final List<String[]> headers;
+    private final byte[] body;
+    
+    CachedResponse(int status, Headers responseHeaders, byte[] body) {
+        this.status = status;
+        this.headers = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+            for (String value : entry.getValue()) {
+                headers.add(new String[] {entry.getKey(), value});
+            }
+        }
+        this.body = body;
+    }
+    
+    boolean isCacheable() {
+        for (String[] header : headers) {
+            if (header[0].equalsIgnoreCase("Set-Cookie")
+                    || (header[0].equalsIgnoreCase("Cache-Control") && header[1].contains("no-store"))) {
+                return false;
+            }
+        }
+        return status == 200;
+    }
+    
+    void writeTo(HttpExchange exchange, String cacheStatus) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        ResponseHelper.copyHeaders(headers, responseHeaders);
+        responseHeaders.set("X-Cache", cacheStatus);
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+    
+    int getStatus() { return status; }
+    byte[] getBody() { return body; }
+}
+
+// Opt-in caching wrapper for a route or context. GET responses are served from the
+// cache; any other method passes through and invalidates the path afterwards.
+class CachingHandler implements HttpHandler {
+    private final HttpHandler delegate;
+    private final ResponseCache cache;
+    private final long ttlMillis;
+    
+    public CachingHandler(HttpHandler delegate, ResponseCache cache, long ttlMillis) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.ttlMillis = ttlMillis;
+    }
+    
+    public HttpHandler getDelegate() {
+        return delegate;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            try {
+                delegate.handle(exchange);
+            } finally {
+                if (!"OPTIONS".equals(exchange.getRequestMethod())) {
+                    cache.invalidatePath(exchange.getRequestURI().getRawPath());
+                }
+            }
+            return;
+        }
+        
+        boolean[] computed = new boolean[1];
+        CachedResponse response = cache.get(ResponseCache.keyFor(exchange), ttlMillis, () -> {
+            computed[0] = true;
+            ResponseRecorder recorder = new ResponseRecorder(exchange);
+            delegate.handle(recorder);
+            // An async handler fills the recorder later; a miss waits for it
+            CompletableFuture<Void> completion = AsyncHandlerAdapter.completionOf(recorder);
+            if (completion != null) {
+                completion.join();
+            }
+            return recorder.toCachedResponse();
+        });
+        response.writeTo(exchange, computed[0] ? "MISS" : "HIT");
+    }
+}
+
+// Captures a handler's response in memory instead of writing it to the client
+class ResponseRecorder extends HttpExchange {
+    private final HttpExchange original;
+    private final Headers responseHeaders = new Headers();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+    private int responseCode = -1;
+    
+    ResponseRecorder(HttpExchange original) {
+        this.original = original;
+    }
+    
+    CachedResponse toCachedResponse() throws IOException {
+        if (responseCode < 0) {
+            throw new IOException("Handler did not send a response");
+        }
+        responseHeaders.remove("Content-Length");
+        return new CachedResponse(responseCode, responseHeaders, body.toByteArray());
+    }
+    
+    @Override public Headers getRequestHeaders() { return original.getRequestHeaders(); }
+    @Override public Headers getResponseHeaders() { return responseHeaders; }
+    @Override public URI getRequestURI() { return original.getRequestURI(); }
+    @Override public String getRequestMethod() { return original.getRequestMethod(); }
+    @Override public HttpContext getHttpContext() { return original.getHttpContext(); }
+    @Override public void close() { }
+    @Override public InputStream getRequestBody() { return original.getRequestBody(); }
+    @Override public OutputStream getResponseBody() { return body; }
+    @Override public InetSocketAddress getRemoteAddress() { return original.getRemoteAddress(); }
+    @Override public int getResponseCode() { return responseCode; }
+    @Override public InetSocketAddress getLocalAddress() { return original.getLocalAddress(); }
+    @Override public String getProtocol() { return original.getProtocol(); }
+    @Override public Object getAttribute(String name) { return original.getAttribute(name); }
+    @Override public void setAttribute(String name, Object value) { original.setAttribute(name, value); }
+    @Override public void setStreams(InputStream i, OutputStream o) { }
+    @Override public HttpPrincipal getPrincipal() { return original.getPrincipal(); }
+    
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode >= 0) {
+            throw new IOException("headers already sent");
+        }
+        responseCode = rCode;
+    }
+}
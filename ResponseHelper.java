@@ -1,38 +1,20 @@
 // Response Helper Utilities
 package com.httpserver;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
-import com.google.gson.Gson;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.Scanner;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Scanner;
 
 public class ResponseHelper {
-    private static final Gson gson = new Gson();
-    
-    public static void addCORSHeaders(HttpExchange exchange) {
-        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization");
-    }
-    
-    public static void sendOptionsResponse(HttpExchange exchange) throws IOException {
-        exchange.sendResponseHeaders(200, 0);
-        exchange.close();
-    }
-    
     public static void sendJsonResponse(HttpExchange exchange, Object data) throws IOException {
-        String jsonResponse = gson.toJson(data);
-        byte[] responseBytes = jsonResponse.getBytes("UTF-8");
-        
-        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-        exchange.sendResponseHeaders(200, responseBytes.length);
-        
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
-        }
+        sendJson(exchange, 200, data);
     }
     
     public static void sendErrorResponse(HttpExchange exchange, int statusCode, String message) throws IOException {
@@ -41,14 +23,19 @@ public class ResponseHelper {
         error.put("status", statusCode);
         error.put("timestamp", System.currentTimeMillis());
         
-        String jsonResponse = gson.toJson(error);
-        byte[] responseBytes = jsonResponse.getBytes("UTF-8");
+        sendJson(exchange, statusCode, error);
+    }
+    
+    // Serializes into the worker thread's reusable buffer, no intermediate String
+    private static void sendJson(HttpExchange exchange, int statusCode, Object data) throws IOException {
+        RequestTrace.markSerializing();
+        JsonWriter json = JsonWriter.acquire().value(data);
         
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-        exchange.sendResponseHeaders(statusCode, responseBytes.length);
+        exchange.sendResponseHeaders(statusCode, json.size());
         
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
+            json.writeTo(os);
         }
     }
     
@@ -63,6 +50,39 @@ public class ResponseHelper {
         }
     }
     
+    // The first value of each name replaces what is there, so a recorded or proxied header
+    // overrides the engine's shared CORS header lists instead of appending to them
+    static void copyHeaders(List<String[]> headers, Headers target) {
+        for (int i = 0; i < headers.size(); i++) {
+            String[] header = headers.get(i);
+            boolean repeated = false;
+            for (int j = 0; j < i && !repeated; j++) {
+                repeated = headers.get(j)[0].equalsIgnoreCase(header[0]);
+            }
+            if (repeated) {
+                target.add(header[0], header[1]);
+            } else {
+                target.set(header[0], header[1]);
+            }
+        }
+    }
+    
+    // Decoded value of the first name=value pair in the query string, or null
+    static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            if (key.equals(name)) {
+                return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+    
     public static String readRequestBody(HttpExchange exchange) throws IOException {
         try (Scanner scanner = new Scanner(exchange.getRequestBody(), "UTF-8")) {
             scanner.useDelimiter("\\A");
@@ -0,0 +1,75 @@
+// Zero-downtime Restart Handoff
+package com.httpserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+// Restart protocol, driven by a pid file shared by old and new process:
+//   1. the new process binds every port with SO_REUSEPORT next to the old one
+//   2. once it is serving, it records its own pid and sends SIGTERM to the old pid
+//   3. the old process's shutdown hook stops accepting and drains before its deadline
+// Both processes must run with server.reusePort=true. Limitation: Linux hashes each new
+// connection to one SO_REUSEPORT socket, and closing the old socket resets connections
+// still waiting in its accept queue rather than moving them to the new one. The JDK
+// server cannot stop accepting without closing its channel, so a busy swap can reset a
+// handful of clients; closing only after the new process serves keeps the window short.
+public class RestartHandoff {
+    private final Path pidFile;
+    private final long ownPid = ProcessHandle.current().pid();
+    
+    public RestartHandoff(Path pidFile) {
+        this.pidFile = pidFile;
+    }
+    
+    // Call after all listeners are started; returns the pid asked to drain, or -1
+    public long takeOver() throws IOException {
+        Optional<ProcessHandle> previous = readPid()
+            .filter(pid -> pid != ownPid)
+            .flatMap(ProcessHandle::of)
+            .filter(ProcessHandle::isAlive);
+        
+        writePid();
+        if (!previous.isPresent()) {
+            return -1;
+        }
+        // destroy() is SIGTERM on Unix, which runs the old server's graceful stop
+        previous.get().destroy();
+        return previous.get().pid();
+    }
+    
+    // Only remove the file if a newer process has not already claimed it
+    public void release() {
+        try {
+            if (readPid().filter(pid -> pid == ownPid).isPresent()) {
+                Files.deleteIfExists(pidFile);
+            }
+        } catch (IOException e) {
+            // Ignore, a stale pid file is harmless
+        }
+    }
+    
+    private Optional<Long> readPid() throws IOException {
+        if (!Files.exists(pidFile)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Long.parseLong(new String(Files.readAllBytes(pidFile), StandardCharsets.US_ASCII).trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+    
+    private void writePid() throws IOException {
+        Path parent = pidFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = Files.createTempFile(parent, "server", ".pid");
+        Files.write(temp, String.valueOf(ownPid).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp, pidFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
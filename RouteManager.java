@@ -2,26 +2,87 @@
 package com.httpserver;
 
 import com.sun.net.httpserver.HttpHandler;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class RouteManager {
     private final Map<String, HttpHandler> routes = new ConcurrentHashMap<>();
+    // Unwrapped handlers, so ones holding resources (proxies) can be closed on removal
+    private final Map<String, HttpHandler> originals = new ConcurrentHashMap<>();
     private final List<Route> routeList = new CopyOnWriteArrayList<>();
+    // Routes with {name} segments, tried in order after the exact lookup misses
+    private final List<PathPattern> patterns = new CopyOnWriteArrayList<>();
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private final ResponseCache responseCache;
+    
+    public RouteManager() {
+        this(new ResponseCache(256));
+    }
+    
+    public RouteManager(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
     
     public void addRoute(String path, String method, HttpHandler handler) {
+        addRoute(path, method, handler, 0);
+    }
+    
+    // A positive cacheTtlMillis opts the route into the response cache
+    public void addRoute(String path, String method, HttpHandler handler, long cacheTtlMillis) {
         String key = method.toUpperCase() + ":" + path;
-        routes.put(key, handler);
+        HttpHandler routeHandler = cacheTtlMillis > 0
+            ? new CachingHandler(handler, responseCache, cacheTtlMillis)
+            : handler;
+        routes.put(key, routeHandler);
+        closeQuietly(originals.put(key, handler));
+        if (PathPattern.isPattern(path)) {
+            patterns.removeIf(pattern -> pattern.key.equals(key));
+            patterns.add(new PathPattern(key, method.toUpperCase(), path));
+        }
         
-        Route route = new Route(path, handler.getClass().getSimpleName(), method, true);
+        Route route = new Route(path, handler.getClass().getSimpleName(), method, true, cacheTtlMillis);
         routeList.add(route);
+        
+        responseCache.invalidatePath(path);
+        fireChanged();
+    }
+    
+    public void addAsyncRoute(String path, String method, AsyncHandler handler) {
+        addRoute(path, method, new AsyncHandlerAdapter(handler));
     }
     
+    // A route added with method "*" answers every method without its own route. A path
+    // with {name} segments, such as /users/{id}, matches any value in those segments.
     public HttpHandler getHandler(String path, String method) {
         String key = method.toUpperCase() + ":" + path;
-        return routes.get(key);
+        HttpHandler handler = routes.get(key);
+        if (handler == null) {
+            handler = routes.get("*:" + path);
+        }
+        if (handler == null && !patterns.isEmpty()) {
+            handler = matchPattern(path, method);
+        }
+        return handler;
+    }
+    
+    private HttpHandler matchPattern(String path, String method) {
+        HttpHandler wildcard = null;
+        for (PathPattern pattern : patterns) {
+            if (pattern.matches(path)) {
+                if (pattern.method.equalsIgnoreCase(method)) {
+                    return routes.get(pattern.key);
+                }
+                if (wildcard == null && "*".equals(pattern.method)) {
+                    wildcard = routes.get(pattern.key);
+                }
+            }
+        }
+        return wildcard;
     }
     
     public List<Route> getAllRoutes() {
@@ -33,8 +94,12 @@ public class RouteManager {
         HttpHandler removed = routes.remove(key);
         
         if (removed != null) {
+            closeQuietly(originals.remove(key));
+            patterns.removeIf(pattern -> pattern.key.equals(key));
             routeList.removeIf(route -> 
                 route.getPath().equals(path) && route.getMethod().equals(method));
+            responseCache.invalidatePath(path);
+            fireChanged();
             return true;
         }
         return false;
@@ -45,6 +110,76 @@ public class RouteManager {
                 .filter(route -> route.getPath().equals(path) && route.getMethod().equals(method))
                 .findFirst()
                 .ifPresent(route -> route.setEnabled(enabled));
+        fireChanged();
+    }
+    
+    // Invalidation hook for anything derived from the route table
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+    
+    private static void closeQuietly(HttpHandler handler) {
+        if (handler instanceof Closeable) {
+            try {
+                ((Closeable) handler).close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    private void fireChanged() {
+        for (Runnable listener : changeListeners) {
+            listener.run();
+        }
+    }
+}
+
+// A route path with {name} segments, matched segment by segment against the request
+// path without splitting it
+class PathPattern {
+    final String key;
+    final String method;
+    private final String[] segments;
+    
+    PathPattern(String key, String method, String path) {
+        this.key = key;
+        this.method = method;
+        this.segments = path.substring(1).split("/", -1);
+    }
+    
+    static boolean isPattern(String path) {
+        return path.startsWith("/") && path.contains("/{") && path.contains("}");
+    }
+    
+    static boolean isParameter(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+    
+    boolean matches(String path) {
+        int start = 1;
+        for (int i = 0; i < segments.length; i++) {
+            if (start > path.length()) {
+                return false;
+            }
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            if (end == path.length() && i < segments.length - 1) {
+                return false;
+            }
+            String segment = segments[i];
+            if (isParameter(segment)) {
+                if (end == start) {
+                    return false;
+                }
+            } else if (segment.length() != end - start || !path.regionMatches(start, segment, 0, segment.length())) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return start == path.length() + 1;
     }
 }
 
@@ -52,19 +187,26 @@ class Route {
     private final String path;
     private final String handler;
     private final String method;
+    private final long cacheTtlMs;
     private boolean enabled;
     
     public Route(String path, String handler, String method, boolean enabled) {
+        this(path, handler, method, enabled, 0);
+    }
+    
+    public Route(String path, String handler, String method, boolean enabled, long cacheTtlMs) {
         this.path = path;
         this.handler = handler;
         this.method = method;
         this.enabled = enabled;
+        this.cacheTtlMs = cacheTtlMs;
     }
     
     // Getters and setters
     public String getPath() { return path; }
     public String getHandler() { return handler; }
     public String getMethod() { return method; }
+    public long getCacheTtlMs() { return cacheTtlMs; }
     public boolean isEnabled() { return enabled; }
     public void setEnabled(boolean enabled) { this.enabled = enabled; }
 }
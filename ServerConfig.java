@@ -0,0 +1,612 @@
+// Server Configuration
+package com.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// The server's settings, typed and range-checked. Each value resolves from the first source that sets it: the command line (--key=value), a system
+// property (-Dkey=value), the environment (HTTPSERVER_ and the key in upper snake case,
+// e.g. HTTPSERVER_SERVER_WORKER_THREADS), the properties file named by --config,
+// server.config or HTTPSERVER_CONFIG, and finally the default.
+//
+// The component owning a setting binds to it and is handed the value at once and after
+// every change. update() validates a whole change set before applying any of it, and
+// records each change in the audit trail; config.auditFile also appends it there as a
+// JSON line. Settings that shape what is built at startup (listeners, ports, TLS, the
+// bulkheads and their paths) are reported and validated like the rest but only read at
+// startup; update() refuses them. Secrets are reported as set or not, never shown.
+// bufferpool.* and server.cdsTraining stay JVM system properties: the buffer pools are
+// sized when their class loads, and the training flag belongs to the cds build profile.
+public class ServerConfig {
+    private static final String ENV_PREFIX = "HTTPSERVER_";
+    private static final int AUDIT_ENTRIES = 200;
+    
+    private final Map<String, ConfigSetting> settings = new LinkedHashMap<>();
+    private final Map<String, Consumer<Object>> bindings = new HashMap<>();
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    private final Deque<Map<String, Object>> audit = new ArrayDeque<>();
+    private final Path auditFile;
+    
+    private ServerConfig(Path auditFile) {
+        this.auditFile = auditFile;
+        define("server.workerThreads", ConfigSetting.Kind.INT, 10, 1, 1024,
+            "Worker threads for HTTP/1.1, h2c and HTTPS requests");
+        define("server.maxQueuedRequests", ConfigSetting.Kind.INT, 0, 0, 1_000_000,
+            "Requests waiting for a worker before new ones get 503; 0 is unbounded");
+        define("server.requestTimeoutMs", ConfigSetting.Kind.LONG, 30_000L, 1L, 3_600_000L,
+            "Default request deadline");
+        define("server.slowRequestMs", ConfigSetting.Kind.LONG, 2_000L, 1L, 3_600_000L,
+            "Requests slower than this are reported and kept in the slow request log");
+        define("cache.maxEntries", ConfigSetting.Kind.INT, 1024, 0, 1_000_000,
+            "Response cache entries");
+        define("log.maxEntries", ConfigSetting.Kind.INT, 1000, 1, 1_000_000,
+            "Request logs kept in memory");
+        define("sse.flushIntervalMs", ConfigSetting.Kind.LONG, 100L, 1L, 60_000L,
+            "Event stream batching interval");
+        define("sse.maxClients", ConfigSetting.Kind.INT, 10_000, 0, 1_000_000,
+            "Event stream subscribers");
+        define("sse.maxPendingBytes", ConfigSetting.Kind.INT, 1 << 20, 1024, 1 << 30,
+            "Unsent bytes before an event stream subscriber is dropped");
+        define("ws.batchWindowMs", ConfigSetting.Kind.LONG, 0L, 0L, 10_000L,
+            "WebSocket broadcast batching window; 0 sends each log at once");
+        define("trace.serverTiming", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Server-Timing header on every response");
+        define("trace.captureStacks", ConfigSetting.Kind.BOOLEAN, true, null, null,
+            "Keep the worker's stack of slow requests");
+        defineAtStartup("bulkheads", ConfigSetting.Kind.STRING, "", null, null,
+            "Comma-separated bulkhead names, each configured by bulkhead.<name>.*");
+        defineStartupSettings();
+    }
+    
+    private void defineStartupSettings() {
+        defineAtStartup("server.listeners", ConfigSetting.Kind.INT, 1, 1, 64,
+            "HTTP/1.1 listeners sharing the main port through SO_REUSEPORT");
+        defineAtStartup("server.backlog", ConfigSetting.Kind.INT, 1024, 1, 65_535,
+            "Accept queue length of each listener");
+        defineAtStartup("server.reusePort", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Bind with SO_REUSEPORT; implied by several listeners or a pid file");
+        defineAtStartup("server.pidFile", ConfigSetting.Kind.STRING, "", null, null,
+            "Pid file for restart handoff: a new process asks the one named there to drain");
+        defineAtStartup("server.drainTimeoutMs", ConfigSetting.Kind.LONG, 30_000L, 0L, 3_600_000L,
+            "How long a graceful stop waits for requests in flight");
+        defineAtStartup("server.lazyInit", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Load HTTPS keys and WebSocket event loops on first use");
+        defineAtStartup("server.routeTimeouts", ConfigSetting.Kind.STRING, "", null, null,
+            "Per-route deadlines in ms, e.g. GET:/api/logs=2000,POST:/api/routes=500");
+        defineAtStartup("server.watchdogTickMs", ConfigSetting.Kind.LONG, 50L, 1L, 10_000L,
+            "How often the deadline watchdog checks requests");
+        defineAtStartup("trace.slowLogSize", ConfigSetting.Kind.INT, 100, 1, 100_000,
+            "Slow requests kept for /api/server/slow");
+        defineSecret("config.token", "", "Bearer token PUT /api/server/config requires; empty accepts anyone");
+        
+        defineAtStartup("ratelimit.enabled", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Per-client rate limiting; loopback clients and trusted proxies are exempt");
+        defineAtStartup("ratelimit.maxClients", ConfigSetting.Kind.INT, 65_536, 1, 10_000_000,
+            "Client buckets kept before the least recently seen are dropped");
+        defineAtStartup("ratelimit.burst", ConfigSetting.Kind.DOUBLE, 200.0, 1.0, 1e9,
+            "Requests a client may send at once");
+        defineAtStartup("ratelimit.refillPerSecond", ConfigSetting.Kind.DOUBLE, 100.0, 0.001, 1e9,
+            "Sustained requests per second per client");
+        defineAtStartup("ratelimit.routes", ConfigSetting.Kind.STRING, "", null, null,
+            "Per-route limits as burst/refill per second, e.g. GET:/api/logs=20/5");
+        defineAtStartup("ratelimit.trustedProxies", ConfigSetting.Kind.STRING, "", null, null,
+            "Comma-separated addresses of balancers and proxies, never limited");
+        
+        defineAtStartup("ws.port", ConfigSetting.Kind.INT, -1, -1, 65_535,
+            "WebSocket port; -1 is the main port + 1");
+        defineAtStartup("ws.eventLoops", ConfigSetting.Kind.INT, 2, 1, 256,
+            "WebSocket event loop threads");
+        defineAtStartup("ws.deflate.enabled", ConfigSetting.Kind.BOOLEAN, true, null, null,
+            "permessage-deflate for clients that offer it");
+        defineAtStartup("ws.deflate.level", ConfigSetting.Kind.INT, -1, -1, 9,
+            "Deflate level; -1 is the zlib default");
+        defineAtStartup("ws.deflate.clientMaxWindowBits", ConfigSetting.Kind.INT, 15, 8, 15,
+            "client_max_window_bits asked of clients that offer it");
+        defineAtStartup("ws.deflate.serverNoContextTakeover", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Reset the compressor after each message, trading ratio for memory");
+        defineAtStartup("h2c.port", ConfigSetting.Kind.INT, -1, -1, 65_535,
+            "Cleartext HTTP/2 port; -1 is the main port + 2, 0 turns it off");
+        defineAtStartup("h2c.maxConcurrentStreams", ConfigSetting.Kind.INT, 250, 1, 100_000,
+            "Streams per h2c connection before new ones are refused");
+        defineAtStartup("sse.heartbeatMs", ConfigSetting.Kind.LONG, 15_000L, 100L, 3_600_000L,
+            "Comment sent on quiet event streams so proxies keep them open");
+        defineAtStartup("sse.writerThreads", ConfigSetting.Kind.INT, 4, 1, 256,
+            "Threads writing event stream batches");
+        
+        defineAtStartup("https.keyStore", ConfigSetting.Kind.STRING, "", null, null,
+            "Key store file; HTTPS is on when set");
+        defineSecret("https.keyStorePassword", "changeit", "Key store password");
+        defineAtStartup("https.port", ConfigSetting.Kind.INT, -1, -1, 65_535,
+            "HTTPS port; -1 is the main port + 3");
+        defineAtStartup("https.sessionTickets", ConfigSetting.Kind.BOOLEAN, true, null, null,
+            "TLS session tickets, unless jdk.tls.server.enableSessionTicketExtension is set");
+        defineAtStartup("https.sessionCacheSize", ConfigSetting.Kind.INT, 20_480, 0, 10_000_000,
+            "TLS sessions cached for resumption; 0 is unbounded");
+        defineAtStartup("https.sessionTimeoutSeconds", ConfigSetting.Kind.INT, 86_400, 0, 31_536_000,
+            "Lifetime of a cached TLS session; 0 is unbounded");
+        defineAtStartup("https.cipherSuites", ConfigSetting.Kind.STRING, "", null, null,
+            "Cipher suites in order of preference; empty keeps the JDK's");
+        
+        defineAtStartup("cors.allowedOrigins", ConfigSetting.Kind.STRING, "*", null, null,
+            "* or a comma-separated list of exact origins");
+        defineAtStartup("cors.allowedMethods", ConfigSetting.Kind.STRING, "GET, POST, PUT, DELETE, OPTIONS", null, null,
+            "Access-Control-Allow-Methods of preflight responses");
+        defineAtStartup("cors.allowedHeaders", ConfigSetting.Kind.STRING, "Content-Type, Authorization", null, null,
+            "Access-Control-Allow-Headers of preflight responses");
+        defineAtStartup("cors.exposedHeaders", ConfigSetting.Kind.STRING, "Retry-After, X-Cache", null, null,
+            "Access-Control-Expose-Headers of responses");
+        defineAtStartup("cors.maxAgeSeconds", ConfigSetting.Kind.INT, 600, 0, 86_400,
+            "How long browsers may cache a preflight");
+        
+        defineAtStartup("static.index", ConfigSetting.Kind.BOOLEAN, true, null, null,
+            "In-memory index of the static files, kept current by a watcher");
+        defineAtStartup("static.index.maxEntries", ConfigSetting.Kind.INT, 100_000, 1, 10_000_000,
+            "Files the static index holds before falling back to the disk");
+        defineAtStartup("upload.enabled", ConfigSetting.Kind.BOOLEAN, false, null, null,
+            "Uploads under /static; they write to disk, so they are opt-in");
+        defineAtStartup("upload.maxFileBytes", ConfigSetting.Kind.LONG, 16L << 30, 1L, Long.MAX_VALUE,
+            "Largest single upload");
+        defineAtStartup("upload.quotaBytes", ConfigSetting.Kind.LONG, 0L, 0L, Long.MAX_VALUE,
+            "Bytes all uploads together may store; 0 is unlimited");
+        defineSecret("upload.token", "", "Bearer token uploads require; empty accepts anyone");
+        defineAtStartup("upload.idleTimeoutMs", ConfigSetting.Kind.LONG, 60_000L, 1L, 3_600_000L,
+            "Uploads that send nothing for this long are aborted");
+        
+        defineAtStartup("traffic.enabled", ConfigSetting.Kind.BOOLEAN, true, null, null,
+            "Top routes, clients and user agents per time window");
+        defineAtStartup("traffic.windowSeconds", ConfigSetting.Kind.INT, 60, 1, 86_400,
+            "Length of one traffic window");
+        defineAtStartup("traffic.windows", ConfigSetting.Kind.INT, 60, 1, 10_000,
+            "Traffic windows kept");
+        defineAtStartup("traffic.capacity", ConfigSetting.Kind.INT, 256, 1, 1_000_000,
+            "Counters per top-k sketch");
+        defineAtStartup("traffic.maxRoutes", ConfigSetting.Kind.INT, 64, 1, 100_000,
+            "Routes tracked per window before the rest count as (other)");
+        defineAtStartup("traffic.precision", ConfigSetting.Kind.INT, 12, 6, 16,
+            "HyperLogLog precision of the distinct client counts");
+        defineAtStartup("cluster.peers", ConfigSetting.Kind.STRING, "", null, null,
+            "Comma-separated host:port of the other nodes");
+        defineAtStartup("cluster.nodeId", ConfigSetting.Kind.STRING, "", null, null,
+            "This node's name in cluster views; empty is $HOSTNAME:port");
+        defineAtStartup("cluster.timeoutMs", ConfigSetting.Kind.LONG, 1000L, 1L, 60_000L,
+            "How long a cluster view waits for each peer");
+        defineAtStartup("cluster.cacheMs", ConfigSetting.Kind.LONG, 1000L, 0L, 3_600_000L,
+            "How long concurrent cluster views share one fan-out");
+    }
+    
+    private void define(String key, ConfigSetting.Kind kind, Object defaultValue, Object min, Object max,
+                        String description) {
+        settings.put(key, new ConfigSetting(key, kind, defaultValue, min, max, description, true, false));
+    }
+    
+    private void defineAtStartup(String key, ConfigSetting.Kind kind, Object defaultValue, Object min, Object max,
+                                 String description) {
+        settings.put(key, new ConfigSetting(key, kind, defaultValue, min, max, description, false, false));
+    }
+    
+    private void defineSecret(String key, String defaultValue, String description) {
+        settings.put(key, new ConfigSetting(key, ConfigSetting.Kind.STRING, defaultValue, null, null, description,
+            false, true));
+    }
+    
+    // The settings of each bulkhead named in "bulkheads"
+    private List<ConfigSetting> defineBulkheads(List<String> errors) {
+        List<ConfigSetting> defined = new ArrayList<>();
+        for (String name : bulkheadNames()) {
+            if (!name.matches("[A-Za-z0-9_]+")) {
+                errors.add("bulkheads: name \"" + name + "\" may only use letters, digits and _");
+                continue;
+            }
+            String prefix = "bulkhead." + name + ".";
+            defineAtStartup(prefix + "paths", ConfigSetting.Kind.STRING, "", null, null,
+                "Comma-separated path prefixes run on bulkhead " + name + ", matched by whole segment");
+            define(prefix + "threads", ConfigSetting.Kind.INT, 4, 1, 1024,
+                "Threads of bulkhead " + name);
+            defineAtStartup(prefix + "queue", ConfigSetting.Kind.INT, 0, 0, 1_000_000,
+                "Requests waiting for bulkhead " + name + " before new ones get 503; 0 is none");
+            defined.add(settings.get(prefix + "paths"));
+            defined.add(settings.get(prefix + "threads"));
+            defined.add(settings.get(prefix + "queue"));
+        }
+        return defined;
+    }
+    
+    List<String> bulkheadNames() {
+        List<String> names = new ArrayList<>();
+        for (String name : getString("bulkheads").split(",")) {
+            if (!name.trim().isEmpty()) {
+                names.add(name.trim());
+            }
+        }
+        return names;
+    }
+    
+    private void checkBulkheadPaths(List<String> errors) {
+        Map<String, String> owners = new HashMap<>();
+        for (String name : bulkheadNames()) {
+            String key = "bulkhead." + name + ".paths";
+            if (!settings.containsKey(key)) {
+                continue;
+            }
+            List<String> paths = bulkheadPaths(name);
+            if (paths.isEmpty()) {
+                errors.add(key + ": every bulkhead needs at least one path");
+            }
+            for (String path : paths) {
+                String owner = owners.putIfAbsent(path, name);
+                if (!path.startsWith("/")) {
+                    errors.add(key + ": path \"" + path + "\" must start with /");
+                } else if (owner != null) {
+                    errors.add(key + ": path " + path + " is already in bulkhead " + owner);
+                }
+            }
+        }
+    }
+    
+    List<String> bulkheadPaths(String name) {
+        List<String> paths = new ArrayList<>();
+        for (String path : getString("bulkhead." + name + ".paths").split(",")) {
+            if (!path.trim().isEmpty()) {
+                paths.add(path.trim());
+            }
+        }
+        return paths;
+    }
+    
+    // Throws IllegalArgumentException naming every setting that is invalid
+    public static ServerConfig load(String[] args) {
+        Map<String, String> commandLine = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (arg.startsWith("--") && equals > 2) {
+                commandLine.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        String auditFile = firstSet(commandLine.get("config.auditFile"), System.getProperty("config.auditFile"),
+            System.getenv(envName("config.auditFile")));
+        ServerConfig config = new ServerConfig(auditFile != null ? Paths.get(auditFile) : null);
+        
+        String file = firstSet(commandLine.get("config"), System.getProperty("server.config"),
+            System.getenv(ENV_PREFIX + "CONFIG"));
+        Properties fromFile = new Properties();
+        if (file != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+                fromFile.load(reader);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read configuration file " + file + ": " + e.getMessage());
+            }
+        }
+        
+        List<String> errors = new ArrayList<>();
+        for (ConfigSetting setting : config.settings.values()) {
+            resolve(setting, commandLine, fromFile, file, errors);
+        }
+        // Known only once the bulkhead names are
+        for (ConfigSetting setting : config.defineBulkheads(errors)) {
+            resolve(setting, commandLine, fromFile, file, errors);
+        }
+        config.checkBulkheadPaths(errors);
+        for (Object key : fromFile.keySet()) {
+            if (!config.settings.containsKey(key)) {
+                errors.add(key + " in " + file + ": unknown setting");
+            }
+        }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid configuration: " + String.join("; ", errors));
+        }
+        return config;
+    }
+    
+    private static void resolve(ConfigSetting setting, Map<String, String> commandLine, Properties fromFile,
+                                String file, List<String> errors) {
+        String[][] sources = {
+            {"command line", commandLine.get(setting.key)},
+            {"system property", System.getProperty(setting.key)},
+            {"environment", System.getenv(envName(setting.key))},
+            {"file " + file, fromFile.getProperty(setting.key)},
+        };
+        for (String[] source : sources) {
+            if (source[1] == null) {
+                continue;
+            }
+            try {
+                setting.set(setting.parse(source[1]), source[0]);
+            } catch (IllegalArgumentException e) {
+                errors.add(setting.key + " from " + source[0] + ": " + e.getMessage());
+            }
+            break;
+        }
+    }
+    
+    private static String firstSet(String... values) {
+        for (String value : values) {
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+    
+    // "server.workerThreads" -> "HTTPSERVER_SERVER_WORKER_THREADS"
+    static String envName(String key) {
+        return ENV_PREFIX + key.replaceAll("([a-z])([A-Z])", "$1_$2").replace('.', '_').toUpperCase(Locale.ROOT);
+    }
+    
+    public int getInt(String key) {
+        return (Integer) setting(key).value;
+    }
+    
+    public long getLong(String key) {
+        return (Long) setting(key).value;
+    }
+    
+    public double getDouble(String key) {
+        return (Double) setting(key).value;
+    }
+    
+    public boolean getBoolean(String key) {
+        return (Boolean) setting(key).value;
+    }
+    
+    public String getString(String key) {
+        return (String) setting(key).value;
+    }
+    
+    private ConfigSetting setting(String key) {
+        ConfigSetting setting = settings.get(key);
+        if (setting == null) {
+            throw new IllegalArgumentException("Unknown setting " + key);
+        }
+        return setting;
+    }
+    
+    // Hands the owner the current value now and every new one after a change
+    public synchronized void bind(String key, Consumer<Object> owner) {
+        bindings.put(setting(key).key, owner);
+        owner.accept(settings.get(key).value);
+    }
+    
+    // Told the key of each applied change, for caches of the configuration
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+    
+    // Validates every entry first, so a change set is applied whole or not at all.
+    // Returns the changes made; values equal to the current ones are skipped.
+    public List<Map<String, Object>> update(Map<?, ?> changes, String actor) {
+        List<Map<String, Object>> applied = new ArrayList<>();
+        synchronized (this) {
+            Map<ConfigSetting, Object> parsed = new LinkedHashMap<>();
+            List<String> errors = new ArrayList<>();
+            for (Map.Entry<?, ?> change : changes.entrySet()) {
+                ConfigSetting setting = settings.get(String.valueOf(change.getKey()));
+                if (setting == null) {
+                    errors.add(change.getKey() + ": unknown setting");
+                    continue;
+                }
+                if (!setting.live) {
+                    errors.add(setting.key + ": only read at startup");
+                    continue;
+                }
+                try {
+                    parsed.put(setting, setting.coerce(change.getValue()));
+                } catch (IllegalArgumentException e) {
+                    errors.add(setting.key + ": " + e.getMessage());
+                }
+            }
+            if (!errors.isEmpty()) {
+                throw new IllegalArgumentException(String.join("; ", errors));
+            }
+            
+            long now = System.currentTimeMillis();
+            for (Map.Entry<ConfigSetting, Object> entry : parsed.entrySet()) {
+                ConfigSetting setting = entry.getKey();
+                Object previous = setting.value;
+                if (previous.equals(entry.getValue())) {
+                    continue;
+                }
+                setting.set(entry.getValue(), "runtime");
+                Consumer<Object> owner = bindings.get(setting.key);
+                if (owner != null) {
+                    owner.accept(entry.getValue());
+                }
+                Map<String, Object> record = new LinkedHashMap<>();
+                record.put("time", now);
+                record.put("key", setting.key);
+                record.put("from", previous);
+                record.put("to", entry.getValue());
+                record.put("by", actor);
+                audit.addLast(record);
+                if (audit.size() > AUDIT_ENTRIES) {
+                    audit.removeFirst();
+                }
+                applied.add(record);
+                System.out.println("Configuration " + setting.key + " changed from " + previous + " to "
+                    + entry.getValue() + " by " + actor);
+            }
+        }
+        appendToAuditFile(applied);
+        for (Map<String, Object> record : applied) {
+            for (Consumer<String> listener : changeListeners) {
+                listener.accept((String) record.get("key"));
+            }
+        }
+        return applied;
+    }
+    
+    private void appendToAuditFile(List<Map<String, Object>> records) {
+        if (auditFile == null || records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (Map<String, Object> record : records) {
+            lines.writeBytes(JsonWriter.toBytes(record));
+            lines.write('\n');
+        }
+        try {
+            Files.write(auditFile, lines.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Cannot append to configuration audit file " + auditFile + ": " + e.getMessage());
+        }
+    }
+    
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (ConfigSetting setting : settings.values()) {
+            map.put(setting.key, setting.toMap());
+        }
+        return map;
+    }
+    
+    // Newest first
+    public synchronized List<Map<String, Object>> getAudit(int limit) {
+        List<Map<String, Object>> newest = new ArrayList<>();
+        Iterator<Map<String, Object>> it = audit.descendingIterator();
+        while (it.hasNext() && newest.size() < limit) {
+            newest.add(it.next());
+        }
+        return Collections.unmodifiableList(newest);
+    }
+}
+
+// One typed setting with its bounds and where its value came from
+class ConfigSetting {
+    enum Kind { INT, LONG, DOUBLE, BOOLEAN, STRING }
+    
+    final String key;
+    final Kind kind;
+    final Object defaultValue;
+    final Object min;
+    final Object max;
+    final String description;
+    // False for settings only read at startup, which update() refuses
+    final boolean live;
+    // Reported as set or not, never shown
+    final boolean secret;
+    volatile Object value;
+    volatile String source = "default";
+    
+    ConfigSetting(String key, Kind kind, Object defaultValue, Object min, Object max, String description,
+                  boolean live, boolean secret) {
+        this.key = key;
+        this.kind = kind;
+        this.defaultValue = defaultValue;
+        this.min = min;
+        this.max = max;
+        this.description = description;
+        this.live = live;
+        this.secret = secret;
+        this.value = defaultValue;
+    }
+    
+    void set(Object value, String source) {
+        this.value = value;
+        this.source = source;
+    }
+    
+    Object parse(String text) {
+        text = text.trim();
+        if (kind == Kind.STRING) {
+            return text;
+        }
+        if (kind == Kind.BOOLEAN) {
+            if (!text.equalsIgnoreCase("true") && !text.equalsIgnoreCase("false")) {
+                throw new IllegalArgumentException("expected true or false, got \"" + text + "\"");
+            }
+            return Boolean.parseBoolean(text);
+        }
+        if (kind == Kind.DOUBLE) {
+            try {
+                return checkRange(Double.parseDouble(text));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("expected a number, got \"" + text + "\"");
+            }
+        }
+        try {
+            return checkRange(Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected a whole number, got \"" + text + "\"");
+        }
+    }
+    
+    // A value from a JSON body, where every number arrives as a double
+    Object coerce(Object raw) {
+        if (raw instanceof String) {
+            return parse((String) raw);
+        }
+        if (kind == Kind.STRING) {
+            throw new IllegalArgumentException("expected a string");
+        }
+        if (kind == Kind.BOOLEAN) {
+            if (!(raw instanceof Boolean)) {
+                throw new IllegalArgumentException("expected true or false");
+            }
+            return raw;
+        }
+        if (!(raw instanceof Number)) {
+            throw new IllegalArgumentException(kind == Kind.DOUBLE ? "expected a number" : "expected a whole number");
+        }
+        double number = ((Number) raw).doubleValue();
+        if (kind == Kind.DOUBLE) {
+            return checkRange(number);
+        }
+        if (number != Math.rint(number) || Math.abs(number) > (double) Long.MAX_VALUE) {
+            throw new IllegalArgumentException("expected a whole number, got " + raw);
+        }
+        return checkRange((long) number);
+    }
+    
+    private Object checkRange(long number) {
+        long low = ((Number) min).longValue();
+        long high = ((Number) max).longValue();
+        if (number < low || number > high) {
+            throw new IllegalArgumentException("must be between " + low + " and " + high + ", got " + number);
+        }
+        return kind == Kind.INT ? (Object) (int) number : (Object) number;
+    }
+    
+    private Object checkRange(double number) {
+        double low = ((Number) min).doubleValue();
+        double high = ((Number) max).doubleValue();
+        if (Double.isNaN(number) || number < low || number > high) {
+            throw new IllegalArgumentException("must be between " + low + " and " + high + ", got " + number);
+        }
+        return number;
+    }
+    
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("value", secret ? !"".equals(value) : value);
+        map.put("type", secret ? "secret" : kind.name().toLowerCase(Locale.ROOT));
+        if (!secret) {
+            map.put("default", defaultValue);
+        }
+        if (min != null) {
+            map.put("min", min);
+            map.put("max", max);
+        }
+        map.put("source", source);
+        map.put("live", live);
+        map.put("description", description);
+        return map;
+    }
+}
@@ -3,15 +3,25 @@ package com.httpserver;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class ServerStatsManager {
     private final AtomicLong serverStartTime = new AtomicLong(0);
     private final AtomicInteger totalRequests = new AtomicInteger(0);
     private final AtomicInteger activeConnections = new AtomicInteger(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong slowRequests = new AtomicLong(0);
+    private final ResponseTimeHistogram latency = new ResponseTimeHistogram();
     private volatile boolean serverRunning = true;
-    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    // Looked up on the first stats request: the management classes cost startup time
+    private volatile MemoryMXBean memoryBean;
     
     public void setServerStartTime(long startTime) {
         serverStartTime.set(startTime);
@@ -29,6 +39,22 @@ public class ServerStatsManager {
         activeConnections.decrementAndGet();
     }
     
+    public void recordResponseTime(long millis) {
+        latency.record(millis);
+    }
+    
+    public LatencySnapshot getLatency() {
+        return latency.snapshot();
+    }
+    
+    public void incrementTimeouts() {
+        timeouts.incrementAndGet();
+    }
+    
+    public void incrementSlowRequests() {
+        slowRequests.incrementAndGet();
+    }
+    
     public void setServerRunning(boolean running) {
         this.serverRunning = running;
     }
@@ -45,6 +71,14 @@ public class ServerStatsManager {
         return activeConnections.get();
     }
     
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+    
+    public long getSlowRequests() {
+        return slowRequests.get();
+    }
+    
     public long getUptimeMillis() {
         return serverStartTime.get() > 0 ? System.currentTimeMillis() - serverStartTime.get() : 0;
     }
@@ -68,7 +102,11 @@ public class ServerStatsManager {
     }
     
     public String getFormattedMemoryUsage() {
-        long usedMemory = memoryBean.getHeapMemoryUsage().getUsed();
+        MemoryMXBean bean = memoryBean;
+        if (bean == null) {
+            memoryBean = bean = ManagementFactory.getMemoryMXBean();
+        }
+        long usedMemory = bean.getHeapMemoryUsage().getUsed();
         return String.format("%.1f MB", usedMemory / (1024.0 * 1024.0));
     }
     
@@ -81,6 +119,161 @@ public class ServerStatsManager {
     public void reset() {
         totalRequests.set(0);
         activeConnections.set(0);
+        timeouts.set(0);
+        slowRequests.set(0);
+        latency.reset();
         serverStartTime.set(System.currentTimeMillis());
     }
 }
+
+// Response times in log-linear buckets: exact below 8 ms, then eight buckets per power
+// of two, so any percentile is within 12.5% of the true value. Bucket boundaries are the
+// same on every node, which is what lets snapshots from several nodes be added up.
+class ResponseTimeHistogram {
+    static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40 ms, far beyond any request
+    static final int BUCKETS = SUB_BUCKETS + (40 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    void record(long millis) {
+        millis = Math.max(0, millis);
+        counts.incrementAndGet(bucketOf(millis));
+        sum.addAndGet(millis);
+        long previous;
+        while (millis > (previous = max.get()) && !max.compareAndSet(previous, millis)) {
+            // Retry against the newer maximum
+        }
+    }
+    
+    // Not atomic across buckets; a request recorded meanwhile may be half counted
+    LatencySnapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new LatencySnapshot(copy, sum.get(), max.get());
+    }
+    
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+    
+    static int bucketOf(long millis) {
+        if (millis < SUB_BUCKETS) {
+            return (int) millis;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(millis);
+        int index = SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS
+            + (int) (millis >>> (exponent - SUB_BUCKET_BITS) & (SUB_BUCKETS - 1));
+        return Math.min(index, BUCKETS - 1);
+    }
+    
+    // Largest value that lands in the bucket
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
+
+// A point-in-time copy of a ResponseTimeHistogram that can be merged with other nodes' copies
+class LatencySnapshot {
+    private final long[] counts;
+    private long count;
+    private long sum;
+    private long max;
+    
+    LatencySnapshot(long[] counts, long sum, long max) {
+        this.counts = counts;
+        this.sum = sum;
+        this.max = max;
+        for (long bucket : counts) {
+            count += bucket;
+        }
+    }
+    
+    static LatencySnapshot empty() {
+        return new LatencySnapshot(new long[ResponseTimeHistogram.BUCKETS], 0, 0);
+    }
+    
+    // From toWireMap() on another node
+    static LatencySnapshot fromWireMap(Map<?, ?> wire) {
+        long[] counts = new long[ResponseTimeHistogram.BUCKETS];
+        Object buckets = wire.get("buckets");
+        if (buckets instanceof List) {
+            List<?> list = (List<?>) buckets;
+            for (int i = 0; i < Math.min(list.size(), counts.length); i++) {
+                counts[i] = ((Number) list.get(i)).longValue();
+            }
+        }
+        return new LatencySnapshot(counts, ((Number) wire.get("sum")).longValue(), ((Number) wire.get("max")).longValue());
+    }
+    
+    void merge(LatencySnapshot other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+    
+    long getCount() {
+        return count;
+    }
+    
+    // Upper bound of the bucket holding the percentile, capped at the recorded maximum
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(ResponseTimeHistogram.upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+    
+    // Raw buckets, trimmed after the last non-empty one, for merging on another node
+    Map<String, Object> toWireMap() {
+        int length = counts.length;
+        while (length > 0 && counts[length - 1] == 0) {
+            length--;
+        }
+        List<Long> buckets = new ArrayList<>(length);
+        for (long bucket : Arrays.copyOf(counts, length)) {
+            buckets.add(bucket);
+        }
+        Map<String, Object> wire = new LinkedHashMap<>();
+        wire.put("sum", sum);
+        wire.put("max", max);
+        wire.put("buckets", buckets);
+        return wire;
+    }
+    
+    Map<String, Object> toSummaryMap() {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("meanMs", count > 0 ? Math.round(sum * 10.0 / count) / 10.0 : 0.0);
+        summary.put("p50Ms", percentile(50));
+        summary.put("p90Ms", percentile(90));
+        summary.put("p99Ms", percentile(99));
+        summary.put("maxMs", max);
+        return summary;
+    }
+}
@@ -0,0 +1,293 @@
+// Static Asset Index
+package com.httpserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Every file under the document root with what a response needs precomputed: size,
+// MIME type, ETag, Last-Modified and the .br/.gz siblings to serve instead. Lookups take
+// the request path as it is, so a request for a file that does not exist is answered
+// without a syscall. The tree is walked once at start-up, then a WatchService keeps the
+// index current: created and modified files are re-read, deleted ones dropped, and an
+// overflowed event queue triggers a full rebuild. The upload staging directory is
+// never indexed.
+//
+// Until the first walk finishes, and for good if the walk finds more than maxEntries
+// files or the platform cannot watch the tree, isReady() is false and the handler falls
+// back to the filesystem.
+public class StaticAssetIndex {
+    private final Path root;
+    private final Path staging;
+    private final int maxEntries;
+    private volatile Map<String, StaticAsset> assets = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+    private WatchService watchService;
+    private Thread watcher;
+    
+    public StaticAssetIndex(String documentRoot, int maxEntries) {
+        this.root = Paths.get(documentRoot).toAbsolutePath().normalize();
+        this.staging = root.resolve(FileUploadHandler.STAGING_DIRECTORY);
+        this.maxEntries = maxEntries;
+    }
+    
+    // Null with static.index=false
+    public static StaticAssetIndex fromConfig(String documentRoot, ServerConfig config) {
+        if (!config.getBoolean("static.index")) {
+            return null;
+        }
+        return new StaticAssetIndex(documentRoot, config.getInt("static.index.maxEntries"));
+    }
+    
+    // Walks the tree and starts watching it. With background set the walk runs on the
+    // watcher thread, so start-up does not wait for it.
+    public synchronized void start(boolean background) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = new Thread(() -> {
+            if (background && !initialize()) {
+                return;
+            }
+            watch();
+        }, "static-index");
+        watcher.setDaemon(true);
+        if (background || initialize()) {
+            watcher.start();
+        }
+    }
+    
+    public synchronized void stop() {
+        ready = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+    
+    public boolean isReady() {
+        return ready;
+    }
+    
+    // The file for a request path such as "/css/site.css", or null
+    public StaticAsset get(String requestPath) {
+        return assets.get(requestPath);
+    }
+    
+    public int size() {
+        return assets.size();
+    }
+    
+    private boolean initialize() {
+        if (!Files.isDirectory(root)) {
+            System.err.println("Static asset index disabled: no document root at " + root);
+            return false;
+        }
+        try {
+            synchronized (this) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+            rebuild();
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Static asset index disabled: " + e.getMessage());
+            stop();
+            return false;
+        }
+        ready = true;
+        return true;
+    }
+    
+    // Re-reads one request path after a change the watcher may not have seen yet, such
+    // as an upload, and the file it is a precompressed variant of
+    public void refresh(String requestPath) {
+        Path file = root.resolve(requestPath.substring(1)).normalize();
+        if (!file.startsWith(root) || file.startsWith(staging)) {
+            return;
+        }
+        update(assets, file);
+        String base = StaticAsset.variantBase(requestPath);
+        if (base != null) {
+            update(assets, root.resolve(base.substring(1)));
+        }
+    }
+    
+    private void rebuild() throws IOException {
+        for (WatchKey key : watchedDirectories.keySet()) {
+            key.cancel();
+        }
+        watchedDirectories.clear();
+        Map<String, StaticAsset> fresh = new ConcurrentHashMap<>();
+        register(root, fresh);
+        // Variants are attached once every file is known
+        for (Map.Entry<String, StaticAsset> entry : fresh.entrySet()) {
+            StaticAsset brotli = fresh.get(entry.getKey() + ".br");
+            StaticAsset gzip = fresh.get(entry.getKey() + ".gz");
+            if (brotli != null || gzip != null) {
+                entry.setValue(entry.getValue().withVariants(brotli, gzip));
+            }
+        }
+        assets = fresh;
+    }
+    
+    // Indexes and watches a directory and everything below it
+    private void register(Path directory, Map<String, StaticAsset> into) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                if (dir.startsWith(staging)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                watchedDirectories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) {
+                    if (into.size() >= maxEntries) {
+                        throw new IllegalStateException("more than " + maxEntries + " files under " + root);
+                    }
+                    into.put(requestPath(file), StaticAsset.of(file, attributes, null, null));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // Vanished or unreadable: not served either way
+            }
+        });
+    }
+    
+    // Re-reads one file into the index, or removes it and anything indexed below it
+    private void update(Map<String, StaticAsset> into, Path file) {
+        String path = requestPath(file);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attributes = null; // Deleted
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            into.remove(path);
+            if (attributes == null) {
+                String prefix = path + "/";
+                into.keySet().removeIf(key -> key.startsWith(prefix));
+            }
+            return;
+        }
+        into.put(path, StaticAsset.of(file, attributes, into.get(path + ".br"), into.get(path + ".gz")));
+    }
+    
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = watchedDirectories.get(key);
+                boolean overflow = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                    } else if (directory != null) {
+                        changed(directory.resolve((Path) event.context()), event.kind());
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+                if (overflow) {
+                    rebuild();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | IllegalStateException e) {
+            System.err.println("Static asset index disabled: " + e.getMessage());
+            stop();
+        }
+    }
+    
+    private void changed(Path file, WatchEvent.Kind<?> kind) throws IOException {
+        if (file.startsWith(staging)) {
+            return;
+        }
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+            // Files can land in a new directory before it is watched, so walk it
+            Map<String, StaticAsset> added = new HashMap<>();
+            register(file, added);
+            for (String path : added.keySet()) {
+                refresh(path);
+            }
+            return;
+        }
+        refresh(requestPath(file));
+    }
+    
+    private String requestPath(Path file) {
+        return "/" + root.relativize(file).toString().replace('\\', '/');
+    }
+}
+
+// One indexed file with its response headers worked out in advance
+class StaticAsset {
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+    
+    final Path file;
+    final long size;
+    final long lastModifiedMillis;
+    final long lastModifiedSeconds;
+    final String lastModified;
+    final String etag;
+    final String contentType;
+    final StaticAsset brotli;
+    final StaticAsset gzip;
+    
+    private StaticAsset(Path file, long size, long lastModifiedMillis, StaticAsset brotli, StaticAsset gzip) {
+        this.file = file;
+        this.size = size;
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.lastModifiedSeconds = lastModifiedMillis / 1000;
+        this.lastModified = HTTP_DATE.format(Instant.ofEpochSecond(lastModifiedSeconds));
+        this.etag = "\"" + Long.toHexString(lastModifiedMillis) + "-" + Long.toHexString(size) + "\"";
+        this.contentType = StaticFileHandler.getContentType(file.getFileName().toString());
+        this.brotli = brotli;
+        this.gzip = gzip;
+    }
+    
+    static StaticAsset of(Path file, BasicFileAttributes attributes, StaticAsset brotli, StaticAsset gzip) {
+        return new StaticAsset(file, attributes.size(), attributes.lastModifiedTime().toMillis(), brotli, gzip);
+    }
+    
+    StaticAsset withVariants(StaticAsset brotli, StaticAsset gzip) {
+        return new StaticAsset(file, size, lastModifiedMillis, brotli, gzip);
+    }
+    
+    // "/app.js" for "/app.js.gz" or "/app.js.br", otherwise null
+    static String variantBase(String path) {
+        return path.endsWith(".gz") || path.endsWith(".br") ? path.substring(0, path.length() - 3) : null;
+    }
+}
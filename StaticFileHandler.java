@@ -1,30 +1,54 @@
 // Static File Handler
 package com.httpserver;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 
 public class StaticFileHandler implements HttpHandler {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    
     private final String documentRoot;
-    private final Map<String, String> mimeTypes;
+    private volatile HttpHandler uploadHandler;
+    private volatile StaticAssetIndex assetIndex;
     
     public StaticFileHandler(String documentRoot) {
         this.documentRoot = documentRoot;
-        this.mimeTypes = initializeMimeTypes();
+    }
+    
+    // Takes PUT and POST requests; without one they get 405
+    public void setUploadHandler(HttpHandler uploadHandler) {
+        this.uploadHandler = uploadHandler;
+    }
+    
+    // Answers from the index once it is ready instead of checking the filesystem
+    public void setAssetIndex(StaticAssetIndex assetIndex) {
+        this.assetIndex = assetIndex;
     }
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        ResponseHelper.addCORSHeaders(exchange);
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            ResponseHelper.sendOptionsResponse(exchange);
+        String method = exchange.getRequestMethod();
+        if ("PUT".equals(method) || "POST".equals(method)) {
+            HttpHandler upload = uploadHandler;
+            if (upload != null) {
+                upload.handle(exchange);
+            } else {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                ResponseHelper.sendErrorResponse(exchange, 405, "Method Not Allowed");
+            }
             return;
         }
         
@@ -40,14 +64,28 @@ public class StaticFileHandler implements HttpHandler {
             requestPath = "/index.html";
         }
         
+        // Paths with dot segments take the checked route below, which normalizes them
+        StaticAssetIndex index = assetIndex;
+        if (index != null && index.isReady() && !requestPath.contains("/.")) {
+            serveIndexed(exchange, index, requestPath);
+            return;
+        }
+        
         Path filePath = Paths.get(documentRoot, requestPath).normalize();
         
         // Security check - ensure file is within document root
-        if (!filePath.startsWith(Paths.get(documentRoot).normalize())) {
+        Path root = Paths.get(documentRoot).normalize();
+        if (!filePath.startsWith(root)) {
             ResponseHelper.sendErrorResponse(exchange, 403, "Forbidden");
             return;
         }
         
+        // Half-written uploads are never served
+        if (filePath.startsWith(root.resolve(FileUploadHandler.STAGING_DIRECTORY))) {
+            ResponseHelper.sendErrorResponse(exchange, 404, "File Not Found");
+            return;
+        }
+        
         File file = filePath.toFile();
         
         if (!file.exists() || file.isDirectory()) {
@@ -55,34 +93,148 @@ public class StaticFileHandler implements HttpHandler {
             return;
         }
         
-        try {
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
             String contentType = getContentType(file.getName());
-            byte[] fileContent = Files.readAllBytes(filePath);
-            
+            long size = channel.size();
             exchange.getResponseHeaders().set("Content-Type", contentType);
-            exchange.getResponseHeaders().set("Content-Length", String.valueOf(fileContent.length));
-            exchange.sendResponseHeaders(200, fileContent.length);
-            
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileContent);
+            sendFile(exchange, channel, size);
+        } catch (IOException e) {
+            ResponseHelper.sendErrorResponse(exchange, 500, "Internal Server Error");
+        }
+    }
+    
+    private void serveIndexed(HttpExchange exchange, StaticAssetIndex index, String requestPath) throws IOException {
+        StaticAsset asset = index.get(requestPath);
+        if (asset == null) {
+            ResponseHelper.sendErrorResponse(exchange, 404, "File Not Found");
+            return;
+        }
+        
+        // A precompressed sibling goes out as-is when the client takes its encoding
+        Headers headers = exchange.getResponseHeaders();
+        StaticAsset representation = asset;
+        if (asset.brotli != null || asset.gzip != null) {
+            headers.set("Vary", "Accept-Encoding");
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (asset.brotli != null && accepts(acceptEncoding, "br")) {
+                representation = asset.brotli;
+                headers.set("Content-Encoding", "br");
+            } else if (asset.gzip != null && accepts(acceptEncoding, "gzip")) {
+                representation = asset.gzip;
+                headers.set("Content-Encoding", "gzip");
+            }
+        }
+        headers.set("Content-Type", asset.contentType);
+        headers.set("ETag", representation.etag);
+        headers.set("Last-Modified", representation.lastModified);
+        if (notModified(exchange, representation)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        
+        try (FileChannel channel = FileChannel.open(representation.file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size != representation.size) {
+                index.refresh(requestPath); // Changed under the watcher
             }
-            
+            sendFile(exchange, channel, size);
+        } catch (NoSuchFileException e) {
+            index.refresh(requestPath);
+            headers.remove("ETag");
+            headers.remove("Last-Modified");
+            headers.remove("Content-Encoding");
+            ResponseHelper.sendErrorResponse(exchange, 404, "File Not Found");
         } catch (IOException e) {
             ResponseHelper.sendErrorResponse(exchange, 500, "Internal Server Error");
         }
     }
     
-    private String getContentType(String fileName) {
+    private void sendFile(HttpExchange exchange, FileChannel channel, long size) throws IOException {
+        exchange.getResponseHeaders().set("Content-Length", String.valueOf(size));
+        exchange.sendResponseHeaders(200, size == 0 ? -1 : size);
+        
+        // Streamed through a pooled chunk instead of reading the whole file onto the heap
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer chunk = pool.acquire((int) Math.min(size, CHUNK_SIZE));
+        try (OutputStream os = exchange.getResponseBody()) {
+            int read;
+            while ((read = channel.read(chunk.clear())) > 0) {
+                os.write(chunk.array(), chunk.arrayOffset(), read);
+            }
+        } finally {
+            pool.release(chunk);
+        }
+    }
+    
+    // If-None-Match wins over If-Modified-Since, as RFC 9110 orders them
+    private static boolean notModified(HttpExchange exchange, StaticAsset asset) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(asset.etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                return ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond()
+                    >= asset.lastModifiedSeconds;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+    
+    // True when Accept-Encoding lists the coding without q=0
+    private static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.split(";");
+            if (!parts[0].trim().equalsIgnoreCase(coding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+    
+    static String getContentType(String fileName) {
         String extension = "";
         int lastDot = fileName.lastIndexOf('.');
         if (lastDot > 0) {
             extension = fileName.substring(lastDot + 1).toLowerCase();
         }
         
-        return mimeTypes.getOrDefault(extension, "application/octet-stream");
+        return MimeTypes.BY_EXTENSION.getOrDefault(extension, "application/octet-stream");
+    }
+    
+    // Shared by every handler and built when the first file is served
+    private static final class MimeTypes {
+        static final Map<String, String> BY_EXTENSION = initializeMimeTypes();
     }
     
-    private Map<String, String> initializeMimeTypes() {
+    private static Map<String, String> initializeMimeTypes() {
         Map<String, String> types = new HashMap<>();
         types.put("html", "text/html; charset=UTF-8");
         types.put("htm", "text/html; charset=UTF-8");
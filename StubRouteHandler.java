@@ -0,0 +1,491 @@
+// Stub Route Handler
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// A canned response for load tests: status, headers and body are encoded once when the
+// route is added. A body with {{path.<name>}} or {{query.<name>}} placeholders is kept as
+// literal byte runs between them and filled per request into a pooled buffer, so a hit
+// allocates nothing of its own beyond what the engine does. Injected latency is served
+// from a timer, not a sleeping worker, and a share of requests can be failed on purpose.
+public class StubRouteHandler implements HttpHandler {
+    // Timer threads for delayed responses; each only writes a small pre-encoded body
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "stub-latency");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final int status;
+    private final List<String[]> headers;
+    private final String contentType;
+    private final BodyTemplate body;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final int errorStatus;
+    private final byte[] errorBody;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder injectedErrors = new LongAdder();
+    
+    StubRouteHandler(int status, List<String[]> headers, String contentType, BodyTemplate body,
+                     LatencyDistribution latency, double errorRate, int errorStatus, byte[] errorBody) {
+        this.status = status;
+        this.headers = headers;
+        this.contentType = contentType;
+        this.body = body;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.errorStatus = errorStatus;
+        this.errorBody = errorBody;
+    }
+    
+    // Built from a POST /api/routes body:
+    //   {"handler": "stub", "method": "GET", "path": "/users/{id}",
+    //    "status": 200, "headers": {"X-Stub": "1"}, "contentType": "application/json",
+    //    "body": {"id": "{{path.id}}", "q": "{{query.q}}"}   (object, array or string)
+    //    "latency": {"distribution": "lognormal", "p50Ms": 20, "p99Ms": 250},
+    //    "errorRate": 0.01, "errorStatus": 503}
+    // Latency distributions: fixed (ms), uniform (minMs, maxMs), normal (meanMs, stddevMs),
+    // exponential (meanMs) and lognormal (p50Ms, p99Ms); every sample is capped at maxMs.
+    public static StubRouteHandler fromConfig(Map<?, ?> config) {
+        String path = String.valueOf(config.get("path"));
+        Object bodyValue = config.get("body");
+        String contentType = config.get("contentType") != null
+            ? String.valueOf(config.get("contentType"))
+            : bodyValue == null || bodyValue instanceof String ? "text/plain; charset=UTF-8" : "application/json; charset=UTF-8";
+        byte[] bodyBytes = bodyValue == null ? new byte[0]
+            : bodyValue instanceof String ? ((String) bodyValue).getBytes(StandardCharsets.UTF_8)
+            : JsonWriter.toBytes(bodyValue);
+        BodyTemplate template = BodyTemplate.compile(bodyBytes, path, contentType.contains("json"));
+        
+        List<String[]> headers = new ArrayList<>();
+        Object headerValues = config.get("headers");
+        if (headerValues != null && !(headerValues instanceof Map)) {
+            throw new IllegalArgumentException("Stub headers must be an object of name: value");
+        }
+        if (headerValues != null) {
+            for (Map.Entry<?, ?> header : ((Map<?, ?>) headerValues).entrySet()) {
+                headers.add(new String[] {String.valueOf(header.getKey()), String.valueOf(header.getValue())});
+            }
+        }
+        
+        int status = intOption(config, "status", 200);
+        int errorStatus = intOption(config, "errorStatus", 500);
+        if (status < 100 || status > 599 || errorStatus < 100 || errorStatus > 599) {
+            throw new IllegalArgumentException("Stub status must be between 100 and 599");
+        }
+        double errorRate = config.get("errorRate") instanceof Number ? ((Number) config.get("errorRate")).doubleValue() : 0;
+        if (errorRate < 0 || errorRate > 1) {
+            throw new IllegalArgumentException("errorRate must be between 0 and 1");
+        }
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("error", "Injected failure");
+        error.put("status", errorStatus);
+        
+        Object latency = config.get("latency");
+        if (latency != null && !(latency instanceof Map)) {
+            throw new IllegalArgumentException("Stub latency must be an object with a distribution");
+        }
+        return new StubRouteHandler(status, headers, contentType, template,
+            latency != null ? LatencyDistribution.fromConfig((Map<?, ?>) latency) : null,
+            errorRate, errorStatus, JsonWriter.toBytes(error));
+    }
+    
+    private static int intOption(Map<?, ?> config, String name, int defaultValue) {
+        Object value = config.get(name);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        hits.increment();
+        long delayMicros = latency != null ? latency.sampleMicros() : 0;
+        boolean fail = errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+        if (fail) {
+            injectedErrors.increment();
+        }
+        if (delayMicros <= 0) {
+            respond(exchange, fail);
+            return;
+        }
+        
+        delayed.increment();
+        CompletableFuture<Void> completion = new CompletableFuture<>();
+        ScheduledFuture<?> pending = timer.schedule(() -> {
+            try {
+                respond(exchange, fail);
+            } catch (IOException | RuntimeException e) {
+                // Client gone or the deadline already answered
+                exchange.close();
+            } finally {
+                completion.complete(null);
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+        // A delay past the request's deadline ends in the watchdog's 504, not a late write
+        RequestDeadline deadline = RequestDeadlines.current();
+        if (deadline != null) {
+            deadline.onExpire(() -> {
+                if (pending.cancel(false)) {
+                    completion.complete(null);
+                }
+            });
+        }
+        AsyncHandlerAdapter.detach(exchange, completion);
+    }
+    
+    private void respond(HttpExchange exchange, boolean fail) throws IOException {
+        Headers responseHeaders = exchange.getResponseHeaders();
+        if (fail) {
+            responseHeaders.set("Content-Type", "application/json; charset=UTF-8");
+            write(exchange, errorStatus, errorBody, errorBody.length);
+            return;
+        }
+        responseHeaders.set("Content-Type", contentType);
+        ResponseHelper.copyHeaders(headers, responseHeaders);
+        if (body.isStatic()) {
+            write(exchange, status, body.staticBytes(), body.staticBytes().length);
+            return;
+        }
+        
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        BufferPool pool = BufferPool.heap();
+        ByteBuffer buffer = pool.acquire(body.maxLength(path, query));
+        try {
+            int length = body.render(buffer.array(), path, query);
+            write(exchange, status, buffer.array(), length);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+    
+    private static void write(HttpExchange exchange, int status, byte[] bytes, int length) throws IOException {
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes, 0, length);
+        }
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("status", status);
+        stats.put("templated", !body.isStatic());
+        stats.put("latency", latency != null ? latency.describe() : null);
+        stats.put("errorRate", errorRate);
+        stats.put("hits", hits.sum());
+        stats.put("delayed", delayed.sum());
+        stats.put("injectedErrors", injectedErrors.sum());
+        return stats;
+    }
+}
+
+// A body split into literal byte runs and placeholders. Path parameters are found by
+// segment index and query values by scanning the raw query, straight into the output.
+class BodyTemplate {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    
+    private final byte[][] literals;
+    // Per placeholder: the path segment index, or -1 for a query value
+    private final int[] segments;
+    private final String[] queryNames;
+    private final boolean jsonEscape;
+    private final int literalLength;
+    
+    private BodyTemplate(byte[][] literals, int[] segments, String[] queryNames, boolean jsonEscape) {
+        this.literals = literals;
+        this.segments = segments;
+        this.queryNames = queryNames;
+        this.jsonEscape = jsonEscape;
+        int length = 0;
+        for (byte[] literal : literals) {
+            length += literal.length;
+        }
+        this.literalLength = length;
+    }
+    
+    // Values are JSON-escaped when the body is JSON, so "{{query.q}}" stays a valid string
+    static BodyTemplate compile(byte[] body, String routePath, boolean jsonEscape) {
+        String[] routeSegments = routePath.substring(routePath.startsWith("/") ? 1 : 0).split("/", -1);
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> segments = new ArrayList<>();
+        List<String> queryNames = new ArrayList<>();
+        int literalStart = 0;
+        int open = indexOf(body, (byte) '{', 0);
+        while (open >= 0 && open + 1 < body.length) {
+            int close = body[open + 1] == '{' ? indexOf(body, (byte) '}', open + 2) : -1;
+            if (close < 0 || close + 1 >= body.length || body[close + 1] != '}') {
+                open = indexOf(body, (byte) '{', open + 1);
+                continue;
+            }
+            String name = new String(body, open + 2, close - open - 2, StandardCharsets.UTF_8).trim();
+            if (name.startsWith("path.")) {
+                segments.add(segmentIndex(routeSegments, name.substring(5), routePath));
+                queryNames.add(null);
+            } else if (name.startsWith("query.")) {
+                segments.add(-1);
+                queryNames.add(name.substring(6));
+            } else {
+                throw new IllegalArgumentException("Unknown placeholder {{" + name + "}}, expected path.<name> or query.<name>");
+            }
+            literals.add(slice(body, literalStart, open));
+            literalStart = close + 2;
+            open = indexOf(body, (byte) '{', literalStart);
+        }
+        literals.add(slice(body, literalStart, body.length));
+        
+        int[] segmentArray = new int[segments.size()];
+        for (int i = 0; i < segmentArray.length; i++) {
+            segmentArray[i] = segments.get(i);
+        }
+        return new BodyTemplate(literals.toArray(new byte[0][]), segmentArray,
+            queryNames.toArray(new String[0]), jsonEscape);
+    }
+    
+    private static int segmentIndex(String[] routeSegments, String name, String routePath) {
+        for (int i = 0; i < routeSegments.length; i++) {
+            if (routeSegments[i].equals("{" + name + "}")) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Route " + routePath + " has no {" + name + "} segment");
+    }
+    
+    private static int indexOf(byte[] bytes, byte value, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+    
+    boolean isStatic() {
+        return segments.length == 0;
+    }
+    
+    byte[] staticBytes() {
+        return literals[0];
+    }
+    
+    // Room for the worst case: every source character escaped to \\u00XX or 3 UTF-8 bytes
+    int maxLength(String path, String query) {
+        int longest = Math.max(path.length(), query != null ? query.length() : 0);
+        return literalLength + segments.length * 6 * longest;
+    }
+    
+    // Writes the body into out, sized by maxLength(), and returns its length
+    int render(byte[] out, String path, String query) {
+        int position = 0;
+        for (int i = 0; i < segments.length; i++) {
+            byte[] literal = literals[i];
+            System.arraycopy(literal, 0, out, position, literal.length);
+            position += literal.length;
+            position = segments[i] >= 0
+                ? writeSegment(out, position, path, segments[i])
+                : writeQueryValue(out, position, query, queryNames[i]);
+        }
+        byte[] last = literals[segments.length];
+        System.arraycopy(last, 0, out, position, last.length);
+        return position + last.length;
+    }
+    
+    // The index-th segment of the decoded path, UTF-8 encoded
+    private int writeSegment(byte[] out, int position, String path, int index) {
+        int start = path.startsWith("/") ? 1 : 0;
+        for (int i = 0; i < index; i++) {
+            start = path.indexOf('/', start) + 1;
+            if (start == 0) {
+                return position;
+            }
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+            end = path.length();
+        }
+        for (int i = start; i < end; i++) {
+            char c = path.charAt(i);
+            if (c < 0x80) {
+                position = writeByte(out, position, c);
+            } else if (c < 0x800) {
+                out[position++] = (byte) (0xC0 | c >> 6);
+                out[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(path.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, path.charAt(++i));
+                out[position++] = (byte) (0xF0 | codePoint >> 18);
+                out[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                out[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                out[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                out[position++] = (byte) (0xE0 | c >> 12);
+                out[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                out[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return position;
+    }
+    
+    // The first value of name in the raw query, percent-decoded; empty when absent
+    private int writeQueryValue(byte[] out, int position, String query, String name) {
+        if (query == null) {
+            return position;
+        }
+        int start = 0;
+        while (start <= query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            int nameEnd = start + name.length();
+            if (nameEnd <= end && query.startsWith(name, start) && (nameEnd == end || query.charAt(nameEnd) == '=')) {
+                for (int i = nameEnd + 1; i < end; i++) {
+                    char c = query.charAt(i);
+                    if (c == '+') {
+                        c = ' ';
+                    } else if (c == '%' && i + 2 < end && hexValue(query, i + 1) >= 0 && hexValue(query, i + 2) >= 0) {
+                        c = (char) (hexValue(query, i + 1) << 4 | hexValue(query, i + 2));
+                        i += 2;
+                    }
+                    // Decoded bytes are already UTF-8; only ASCII can need escaping
+                    position = writeByte(out, position, c & 0xFF);
+                }
+                return position;
+            }
+            start = end + 1;
+        }
+        return position;
+    }
+    
+    private static int hexValue(String text, int index) {
+        return index < text.length() ? Character.digit(text.charAt(index), 16) : -1;
+    }
+    
+    private int writeByte(byte[] out, int position, int b) {
+        if (jsonEscape && (b == '"' || b == '\\')) {
+            out[position++] = '\\';
+        } else if (jsonEscape && b < 0x20) {
+            out[position++] = '\\';
+            out[position++] = 'u';
+            out[position++] = '0';
+            out[position++] = '0';
+            out[position++] = HEX[b >> 4];
+            b = HEX[b & 0xF];
+        }
+        out[position++] = (byte) b;
+        return position;
+    }
+}
+
+// Samples an injected delay. Each call is a few arithmetic operations on the calling
+// thread's random generator.
+class LatencyDistribution {
+    // z-score of the 99th percentile, to fit a lognormal to its p50 and p99
+    private static final double Z_99 = 2.3263478740408408;
+    
+    private final String name;
+    private final double a;
+    private final double b;
+    private final double maxMillis;
+    
+    private LatencyDistribution(String name, double a, double b, double maxMillis) {
+        this.name = name;
+        this.a = a;
+        this.b = b;
+        this.maxMillis = maxMillis;
+    }
+    
+    static LatencyDistribution fromConfig(Map<?, ?> config) {
+        String name = String.valueOf(config.get("distribution") != null ? config.get("distribution") : "fixed");
+        double max = number(config, "maxMs", 60_000);
+        switch (name) {
+            case "fixed":
+                return new LatencyDistribution(name, number(config, "ms", 0), 0, max);
+            case "uniform":
+                double min = number(config, "minMs", 0);
+                double upper = number(config, "maxMs", min);
+                if (upper < min) {
+                    throw new IllegalArgumentException("Uniform latency needs minMs <= maxMs");
+                }
+                return new LatencyDistribution(name, min, upper, upper);
+            case "normal":
+                return new LatencyDistribution(name, number(config, "meanMs", 0), number(config, "stddevMs", 0), max);
+            case "exponential":
+                return new LatencyDistribution(name, number(config, "meanMs", 0), 0, max);
+            case "lognormal":
+                double p50 = number(config, "p50Ms", 0);
+                double p99 = number(config, "p99Ms", p50);
+                if (p50 <= 0 || p99 < p50) {
+                    throw new IllegalArgumentException("Lognormal latency needs 0 < p50Ms <= p99Ms");
+                }
+                return new LatencyDistribution(name, Math.log(p50), Math.log(p99 / p50) / Z_99, max);
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution " + name
+                    + ", expected fixed, uniform, normal, exponential or lognormal");
+        }
+    }
+    
+    private static double number(Map<?, ?> config, String key, double defaultValue) {
+        Object value = config.get(key);
+        if (value != null && !(value instanceof Number)) {
+            throw new IllegalArgumentException("Latency " + key + " must be a number");
+        }
+        double number = value != null ? ((Number) value).doubleValue() : defaultValue;
+        if (number < 0) {
+            throw new IllegalArgumentException("Latency " + key + " must not be negative");
+        }
+        return number;
+    }
+    
+    long sampleMicros() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double millis;
+        switch (name) {
+            case "uniform":
+                millis = a + (b - a) * random.nextDouble();
+                break;
+            case "normal":
+                millis = a + b * random.nextGaussian();
+                break;
+            case "exponential":
+                millis = -a * Math.log(1 - random.nextDouble());
+                break;
+            case "lognormal":
+                millis = Math.exp(a + b * random.nextGaussian());
+                break;
+            default:
+                millis = a;
+        }
+        return (long) (Math.max(0, Math.min(millis, maxMillis)) * 1000);
+    }
+    
+    Map<String, Object> describe() {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("distribution", name);
+        description.put("maxMs", maxMillis);
+        return description;
+    }
+}
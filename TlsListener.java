@@ -0,0 +1,444 @@
+// HTTPS Listener
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyManagementException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+// An HttpsServer on its own port serving the same contexts and worker pool as the
+// cleartext listeners, so TLS no longer needs a terminating hop in front of us.
+// Repeat clients resume through the server session cache (TLS 1.2 session IDs,
+// TLS 1.3 PSKs) or stateless session tickets and skip the certificate exchange and
+// key agreement; the handshake counters show how often that happens.
+public class TlsListener {
+    // AEAD suites first: the JIT compiles AES-GCM (AES-NI, CLMUL) and ChaCha20-Poly1305
+    // to vector intrinsics. The rest of the JDK defaults follow for older clients.
+    private static final String[] PREFERRED_CIPHER_SUITES = {
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+        "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_SHA256"
+    };
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    // The JDK engine speaks HTTP/1.1 only; h2 stays on the cleartext h2c port
+    private static final String HTTP_1_1 = "http/1.1";
+    
+    private final int port;
+    private final int backlog;
+    private final boolean reusePort;
+    private final Path keyStore;
+    private final char[] password;
+    private final int sessionCacheSize;
+    private final int sessionTimeoutSeconds;
+    private final String cipherSuites;
+    private final SSLContext sslContext;
+    private final TlsStats stats = new TlsStats();
+    private volatile Tls tls;
+    private Exception initFailure;
+    private HttpsServer server;
+    
+    // Eager by default, so a bad key store fails startup. With lazyInit the key store is
+    // loaded on a background thread once the listener is up, and a handshake that
+    // arrives first waits for it; that takes provider and key loading (most of a
+    // second on a cold JVM) off the time to the first cleartext request.
+    public TlsListener(int port, int backlog, boolean reusePort, Path keyStore, char[] password,
+                       int sessionCacheSize, int sessionTimeoutSeconds, String cipherSuites, boolean lazyInit)
+        throws IOException, GeneralSecurityException {
+        this.port = port;
+        this.backlog = backlog;
+        this.reusePort = reusePort;
+        this.keyStore = keyStore;
+        this.password = password;
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeoutSeconds = sessionTimeoutSeconds;
+        this.cipherSuites = cipherSuites;
+        this.sslContext = new InstrumentedContext(this);
+        if (!lazyInit) {
+            this.tls = load();
+        }
+    }
+    
+    // Null unless https.keyStore is set. Tickets are a JDK-wide switch read when the TLS
+    // provider loads, so they are only turned on here if nobody configured them before.
+    public static TlsListener fromConfig(int defaultPort, int backlog, boolean reusePort, boolean lazyInit,
+                                         ServerConfig config) throws IOException {
+        String keyStore = config.getString("https.keyStore");
+        if (keyStore.isEmpty()) {
+            return null;
+        }
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                String.valueOf(config.getBoolean("https.sessionTickets")));
+        }
+        int port = config.getInt("https.port");
+        try {
+            return new TlsListener(port >= 0 ? port : defaultPort, backlog, reusePort,
+                Paths.get(keyStore), config.getString("https.keyStorePassword").toCharArray(),
+                config.getInt("https.sessionCacheSize"),
+                config.getInt("https.sessionTimeoutSeconds"),
+                config.getString("https.cipherSuites"), lazyInit);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot load HTTPS key store " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+    
+    private Tls load() throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance(keyStore.toFile(), password);
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, password);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeoutSeconds);
+        
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters parameters = new SSLParameters(
+            orderCipherSuites(cipherSuites, supported, context.getDefaultSSLParameters()),
+            retainSupported(Arrays.asList(PROTOCOLS), supported.getProtocols()));
+        parameters.setUseCipherSuitesOrder(true);
+        return new Tls(context, parameters);
+    }
+    
+    // A lazy load that failed is not retried: every handshake fails with the same cause
+    private Tls tls() {
+        Tls current = tls;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (tls == null && initFailure == null) {
+                try {
+                    tls = load();
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    initFailure = e;
+                    System.err.println("Cannot load HTTPS key store " + keyStore + ": " + e.getMessage());
+                }
+            }
+            if (tls == null) {
+                throw new IllegalStateException("HTTPS is unavailable: " + initFailure.getMessage(), initFailure);
+            }
+            return tls;
+        }
+    }
+    
+    // True for exchanges that arrived over this listener
+    public static boolean isSecure(HttpExchange exchange) {
+        HttpContext context = exchange.getHttpContext();
+        return context != null && context.getServer() instanceof HttpsServer;
+    }
+    
+    public void start(ContextRegistry contexts, Executor executor) throws IOException {
+        server = HttpsServer.create();
+        if (reusePort) {
+            ListenerGroup.enableReusePort(server);
+        }
+        server.bind(new InetSocketAddress(port), backlog);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setSSLParameters(tls().parameters);
+            }
+        });
+        server.setExecutor(executor);
+        contexts.applyTo(server);
+        server.start();
+        
+        if (tls == null) {
+            Thread loader = new Thread(() -> {
+                try {
+                    tls();
+                } catch (IllegalStateException e) {
+                    // Already reported by tls()
+                }
+            }, "https-init");
+            loader.setDaemon(true);
+            loader.start();
+        }
+    }
+    
+    public void stop(int drainSeconds) {
+        if (server != null) {
+            server.stop(drainSeconds);
+            server = null;
+        }
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> result = stats.toMap();
+        Tls current = tls;
+        result.put("initialized", current != null);
+        if (current != null) {
+            result.put("enabledProtocols", Arrays.asList(current.parameters.getProtocols()));
+        }
+        return result;
+    }
+    
+    private static String[] orderCipherSuites(String configured, SSLParameters supported, SSLParameters defaults) {
+        Set<String> ordered = new LinkedHashSet<>();
+        if (configured != null && !configured.trim().isEmpty()) {
+            for (String suite : configured.split(",")) {
+                ordered.add(suite.trim());
+            }
+        } else {
+            ordered.addAll(Arrays.asList(PREFERRED_CIPHER_SUITES));
+            ordered.addAll(Arrays.asList(defaults.getCipherSuites()));
+        }
+        String[] suites = retainSupported(new ArrayList<>(ordered), supported.getCipherSuites());
+        if (suites.length == 0) {
+            throw new IllegalArgumentException("None of the configured cipher suites is supported: " + configured);
+        }
+        return suites;
+    }
+    
+    private static String[] retainSupported(List<String> wanted, String[] supported) {
+        List<String> available = Arrays.asList(supported);
+        return wanted.stream().filter(available::contains).toArray(String[]::new);
+    }
+    
+    private static class Tls {
+        final SSLContext context;
+        final SSLParameters parameters;
+        
+        Tls(SSLContext context, SSLParameters parameters) {
+            this.context = context;
+            this.parameters = parameters;
+        }
+    }
+    
+    // HttpsServer creates its engines from the context it is given, so wrapping the
+    // context is the only hook for ALPN selection and handshake accounting. It resolves
+    // the real context per call, which lets the listener start before the load finishes.
+    // The JDK server never asks it for its provider, which is unknown until then.
+    private static class InstrumentedContext extends SSLContext {
+        InstrumentedContext(TlsListener listener) {
+            super(new InstrumentedContextSpi(listener), null, "TLS");
+        }
+    }
+    
+    private static class InstrumentedContextSpi extends SSLContextSpi {
+        private final TlsListener listener;
+        
+        InstrumentedContextSpi(TlsListener listener) {
+            this.listener = listener;
+        }
+        
+        private SSLContext delegate() {
+            return listener.tls().context;
+        }
+        
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+            delegate().init(km, tm, sr);
+        }
+        
+        @Override protected SSLSocketFactory engineGetSocketFactory() { return delegate().getSocketFactory(); }
+        @Override protected SSLServerSocketFactory engineGetServerSocketFactory() { return delegate().getServerSocketFactory(); }
+        @Override protected SSLSessionContext engineGetServerSessionContext() { return delegate().getServerSessionContext(); }
+        @Override protected SSLSessionContext engineGetClientSessionContext() { return delegate().getClientSessionContext(); }
+        @Override protected SSLParameters engineGetDefaultSSLParameters() { return delegate().getDefaultSSLParameters(); }
+        @Override protected SSLParameters engineGetSupportedSSLParameters() { return delegate().getSupportedSSLParameters(); }
+        
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new InstrumentedEngine(delegate().createSSLEngine(), listener.stats);
+        }
+        
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new InstrumentedEngine(delegate().createSSLEngine(host, port), listener.stats);
+        }
+    }
+    
+    // Answers ALPN with http/1.1 when the client offers it, and otherwise negotiates no
+    // protocol rather than failing the handshake
+    private static String selectApplicationProtocol(SSLEngine engine, List<String> offered) {
+        return offered.contains(HTTP_1_1) ? HTTP_1_1 : "";
+    }
+    
+    // Reports the first handshake of each connection to TlsStats when the engine says it
+    // finished. A session created before this engine existed came out of the session
+    // cache or a ticket, so the handshake was a resumption.
+    private static class InstrumentedEngine extends SSLEngine {
+        private final SSLEngine delegate;
+        private final TlsStats stats;
+        private final long createdMillis = System.currentTimeMillis();
+        private boolean recorded;
+        
+        InstrumentedEngine(SSLEngine delegate, TlsStats stats) {
+            super(delegate.getPeerHost(), delegate.getPeerPort());
+            this.delegate = delegate;
+            this.stats = stats;
+            delegate.setHandshakeApplicationProtocolSelector(TlsListener::selectApplicationProtocol);
+        }
+        
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException {
+            try {
+                return observe(delegate.wrap(srcs, offset, length, dst));
+            } catch (SSLException e) {
+                recordFailure();
+                throw e;
+            }
+        }
+        
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException {
+            try {
+                return observe(delegate.unwrap(src, dsts, offset, length));
+            } catch (SSLException e) {
+                recordFailure();
+                throw e;
+            }
+        }
+        
+        private SSLEngineResult observe(SSLEngineResult result) {
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+                recordHandshake();
+            }
+            return result;
+        }
+        
+        // wrap and unwrap run under different locks in the JDK server
+        private synchronized void recordHandshake() {
+            if (recorded) {
+                return;
+            }
+            recorded = true;
+            SSLSession session = delegate.getSession();
+            stats.recordHandshake(session.getCreationTime() < createdMillis, session.getProtocol(),
+                session.getCipherSuite(), delegate.getApplicationProtocol());
+        }
+        
+        private synchronized void recordFailure() {
+            if (!recorded) {
+                recorded = true;
+                stats.recordFailure();
+            }
+        }
+        
+        @Override public Runnable getDelegatedTask() { return delegate.getDelegatedTask(); }
+        @Override public void closeInbound() throws SSLException { delegate.closeInbound(); }
+        @Override public boolean isInboundDone() { return delegate.isInboundDone(); }
+        @Override public void closeOutbound() { delegate.closeOutbound(); }
+        @Override public boolean isOutboundDone() { return delegate.isOutboundDone(); }
+        @Override public String[] getSupportedCipherSuites() { return delegate.getSupportedCipherSuites(); }
+        @Override public String[] getEnabledCipherSuites() { return delegate.getEnabledCipherSuites(); }
+        @Override public void setEnabledCipherSuites(String[] suites) { delegate.setEnabledCipherSuites(suites); }
+        @Override public String[] getSupportedProtocols() { return delegate.getSupportedProtocols(); }
+        @Override public String[] getEnabledProtocols() { return delegate.getEnabledProtocols(); }
+        @Override public void setEnabledProtocols(String[] protocols) { delegate.setEnabledProtocols(protocols); }
+        @Override public SSLSession getSession() { return delegate.getSession(); }
+        @Override public SSLSession getHandshakeSession() { return delegate.getHandshakeSession(); }
+        @Override public void beginHandshake() throws SSLException { delegate.beginHandshake(); }
+        @Override public SSLEngineResult.HandshakeStatus getHandshakeStatus() { return delegate.getHandshakeStatus(); }
+        @Override public void setUseClientMode(boolean mode) { delegate.setUseClientMode(mode); }
+        @Override public boolean getUseClientMode() { return delegate.getUseClientMode(); }
+        @Override public void setNeedClientAuth(boolean need) { delegate.setNeedClientAuth(need); }
+        @Override public boolean getNeedClientAuth() { return delegate.getNeedClientAuth(); }
+        @Override public void setWantClientAuth(boolean want) { delegate.setWantClientAuth(want); }
+        @Override public boolean getWantClientAuth() { return delegate.getWantClientAuth(); }
+        @Override public void setEnableSessionCreation(boolean flag) { delegate.setEnableSessionCreation(flag); }
+        @Override public boolean getEnableSessionCreation() { return delegate.getEnableSessionCreation(); }
+        @Override public SSLParameters getSSLParameters() { return delegate.getSSLParameters(); }
+        @Override public void setSSLParameters(SSLParameters params) { delegate.setSSLParameters(params); }
+        @Override public String getApplicationProtocol() { return delegate.getApplicationProtocol(); }
+        @Override public String getHandshakeApplicationProtocol() { return delegate.getHandshakeApplicationProtocol(); }
+        
+        @Override
+        public void setHandshakeApplicationProtocolSelector(BiFunction<SSLEngine, List<String>, String> selector) {
+            delegate.setHandshakeApplicationProtocolSelector(selector);
+        }
+        
+        @Override
+        public BiFunction<SSLEngine, List<String>, String> getHandshakeApplicationProtocolSelector() {
+            return delegate.getHandshakeApplicationProtocolSelector();
+        }
+    }
+}
+
+// Handshake counters for /api/server/stats
+class TlsStats {
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final AtomicLong failedHandshakes = new AtomicLong();
+    private final Map<String, AtomicLong> protocols = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> cipherSuites = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> applicationProtocols = new ConcurrentHashMap<>();
+    
+    void recordHandshake(boolean resumed, String protocol, String cipherSuite, String applicationProtocol) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+        protocols.computeIfAbsent(protocol, key -> new AtomicLong()).incrementAndGet();
+        cipherSuites.computeIfAbsent(cipherSuite, key -> new AtomicLong()).incrementAndGet();
+        String alpn = applicationProtocol == null || applicationProtocol.isEmpty() ? "none" : applicationProtocol;
+        applicationProtocols.computeIfAbsent(alpn, key -> new AtomicLong()).incrementAndGet();
+    }
+    
+    void recordFailure() {
+        failedHandshakes.incrementAndGet();
+    }
+    
+    Map<String, Object> toMap() {
+        long full = fullHandshakes.get();
+        long resumed = resumedHandshakes.get();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("fullHandshakes", full);
+        stats.put("resumedHandshakes", resumed);
+        stats.put("failedHandshakes", failedHandshakes.get());
+        stats.put("resumptionRate", full + resumed == 0 ? 0.0 : (double) resumed / (full + resumed));
+        stats.put("negotiatedProtocols", counts(protocols));
+        stats.put("negotiatedCipherSuites", counts(cipherSuites));
+        stats.put("alpn", counts(applicationProtocols));
+        return stats;
+    }
+    
+    private static Map<String, Long> counts(Map<String, AtomicLong> counters) {
+        Map<String, Long> result = new HashMap<>();
+        counters.forEach((name, count) -> result.put(name, count.get()));
+        return result;
+    }
+}
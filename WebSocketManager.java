@@ -3,36 +3,63 @@ package com.httpserver;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
-import com.google.gson.Gson;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.Base64;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class WebSocketManager implements HttpHandler {
-    private final Set<WebSocketConnection> connections = new CopyOnWriteArraySet<>();
-    private final ExecutorService executor = Executors.newCachedThreadPool();
-    private final Gson gson = new Gson();
+    private final PerMessageDeflate perMessageDeflate;
+    private final int eventLoopCount;
+    private volatile WebSocketServer webSocketServer;
+    private volatile long batchWindowMillis;
     private static final String WEBSOCKET_MAGIC_STRING = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Room reserved in front of a frame's payload for the longest header
+    static final int MAX_FRAME_HEADER = 10;
+    public static final String WEBSOCKET_PATH = "/ws/logs";
+    
+    public WebSocketManager() {
+        this(PerMessageDeflate.disabled(), 2);
+    }
+    
+    public WebSocketManager(PerMessageDeflate perMessageDeflate, int eventLoopCount) {
+        this.perMessageDeflate = perMessageDeflate;
+        this.eventLoopCount = eventLoopCount;
+    }
+    
+    // The JDK HttpServer cannot hand an upgraded socket over, so WebSocket
+    // traffic is served by a selector-driven listener on its own port
+    public void start(int port) throws IOException {
+        start(port, false);
+    }
+    
+    public void start(int port, boolean reusePort) throws IOException {
+        start(port, reusePort, false);
+    }
+    
+    public void start(int port, boolean reusePort, boolean lazyEventLoops) throws IOException {
+        WebSocketServer server = new WebSocketServer(port, WEBSOCKET_PATH, eventLoopCount, perMessageDeflate);
+        server.setReusePort(reusePort);
+        server.setLazyEventLoops(lazyEventLoops);
+        server.setBatchWindow(batchWindowMillis);
+        server.start();
+        webSocketServer = server;
+    }
+    
+    // Applies to the running listener, or to the next one started
+    public void setBatchWindow(long windowMillis) {
+        batchWindowMillis = windowMillis;
+        WebSocketServer server = webSocketServer;
+        if (server != null) {
+            server.setBatchWindow(windowMillis);
+        }
+    }
     
     @Override
     public void handle(HttpExchange exchange) throws IOException {
-        // Add CORS headers
-        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization");
-        
-        if ("OPTIONS".equals(exchange.getRequestMethod())) {
-            exchange.sendResponseHeaders(200, 0);
-            exchange.close();
-            return;
-        }
-        
-        if (isWebSocketUpgrade(exchange)) {
-            handleWebSocketUpgrade(exchange);
+        if (isWebSocketUpgrade(exchange) && webSocketServer != null) {
+            ResponseHelper.sendErrorResponse(exchange, 400,
+                "WebSocket connections are served on port " + webSocketServer.getPort());
         } else {
             exchange.sendResponseHeaders(400, 0);
             exchange.close();
@@ -42,40 +69,11 @@ public class WebSocketManager implements HttpHandler {
     private boolean isWebSocketUpgrade(HttpExchange exchange) {
         String connection = exchange.getRequestHeaders().getFirst("Connection");
         String upgrade = exchange.getRequestHeaders().getFirst("Upgrade");
-        return connection != null && connection.toLowerCase().contains("upgrade") && 
+        return connection != null && connection.toLowerCase().contains("upgrade") &&
                "websocket".equalsIgnoreCase(upgrade);
     }
     
-    private void handleWebSocketUpgrade(HttpExchange exchange) throws IOException {
-        String key = exchange.getRequestHeaders().getFirst("Sec-WebSocket-Key");
-        if (key == null) {
-            exchange.sendResponseHeaders(400, 0);
-            exchange.close();
-            return;
-        }
-        
-        String acceptKey = generateAcceptKey(key);
-        
-        exchange.getResponseHeaders().set("Upgrade", "websocket");
-        exchange.getResponseHeaders().set("Connection", "Upgrade");
-        exchange.getResponseHeaders().set("Sec-WebSocket-Accept", acceptKey);
-        exchange.sendResponseHeaders(101, 0);
-        
-        WebSocketConnection connection = new WebSocketConnection(exchange);
-        connections.add(connection);
-        
-        executor.submit(() -> {
-            try {
-                connection.handleConnection();
-            } catch (Exception e) {
-                System.err.println("WebSocket error: " + e.getMessage());
-            } finally {
-                connections.remove(connection);
-            }
-        });
-    }
-    
-    private String generateAcceptKey(String key) {
+    static String generateAcceptKey(String key) {
         try {
             String combined = key + WEBSOCKET_MAGIC_STRING;
             MessageDigest md = MessageDigest.getInstance("SHA-1");
@@ -87,79 +85,71 @@ public class WebSocketManager implements HttpHandler {
     }
     
     public void broadcastLog(RequestLog log) {
-        String jsonLog = gson.toJson(log);
-        connections.forEach(connection -> {
-            try {
-                connection.sendMessage(jsonLog);
-            } catch (IOException e) {
-                connections.remove(connection);
-            }
-        });
-    }
-    
-    public void closeAllConnections() {
-        connections.forEach(WebSocketConnection::close);
-        connections.clear();
-        executor.shutdown();
+        WebSocketServer server = webSocketServer;
+        if (server == null || server.getConnectionCount() == 0) {
+            return;
+        }
+        server.broadcast(JsonWriter.toBytes(log));
     }
     
-    public int getConnectionCount() {
-        return connections.size();
+    // Builds a single FIN text frame in a buffer borrowed from the pool; rsv1 marks a
+    // permessage-deflate payload. The caller releases the buffer.
+    static ByteBuffer encodeFrame(BufferPool pool, byte[] payload, int length, boolean rsv1) {
+        ByteBuffer buffer = pool.acquire(MAX_FRAME_HEADER + length);
+        buffer.position(MAX_FRAME_HEADER);
+        buffer.put(payload, 0, length);
+        return frameAround(buffer, length, rsv1);
     }
     
-    private class WebSocketConnection {
-        private final InputStream input;
-        private final OutputStream output;
-        private volatile boolean connected = true;
+    // The payload sits at MAX_FRAME_HEADER, so the header can be written in front of it
+    // once its length is known; the buffer is left positioned on the whole frame
+    static ByteBuffer frameAround(ByteBuffer buffer, int length, boolean rsv1) {
+        int headerLength = frameHeaderLength(length);
+        int start = MAX_FRAME_HEADER - headerLength;
         
-        public WebSocketConnection(HttpExchange exchange) {
-            this.input = exchange.getRequestBody();
-            this.output = exchange.getResponseBody();
-        }
+        buffer.put(start, (byte) (rsv1 ? 0xC1 : 0x81)); // FIN (+ RSV1) + text frame
         
-        public void handleConnection() throws IOException {
-            byte[] buffer = new byte[1024];
-            while (connected && input.read(buffer) != -1) {
-                // Handle incoming WebSocket frames if needed
-                // For this implementation, we mainly send data to clients
-            }
+        if (length < 126) {
+            buffer.put(start + 1, (byte) length);
+        } else if (length < 65536) {
+            buffer.put(start + 1, (byte) 126);
+            buffer.putShort(start + 2, (short) length);
+        } else {
+            buffer.put(start + 1, (byte) 127);
+            buffer.putLong(start + 2, length);
         }
         
-        public void sendMessage(String message) throws IOException {
-            if (!connected) return;
-            
-            byte[] messageBytes = message.getBytes("UTF-8");
-            ByteBuffer frame = ByteBuffer.allocate(messageBytes.length + 10);
-            
-            // WebSocket frame format
-            frame.put((byte) 0x81); // FIN + text frame
-            
-            if (messageBytes.length < 126) {
-                frame.put((byte) messageBytes.length);
-            } else if (messageBytes.length < 65536) {
-                frame.put((byte) 126);
-                frame.putShort((short) messageBytes.length);
-            } else {
-                frame.put((byte) 127);
-                frame.putLong(messageBytes.length);
-            }
-            
-            frame.put(messageBytes);
-            
-            synchronized (output) {
-                output.write(frame.array(), 0, frame.position());
-                output.flush();
-            }
+        buffer.limit(MAX_FRAME_HEADER + length);
+        buffer.position(start);
+        return buffer;
+    }
+    
+    static int frameHeaderLength(int length) {
+        return length < 126 ? 2 : (length < 65536 ? 4 : 10);
+    }
+    
+    // Sends subscribers a Going Away close and waits for them until the deadline
+    public void drain(long deadlineMillis) {
+        WebSocketServer server = webSocketServer;
+        if (server != null) {
+            server.drain(deadlineMillis);
         }
-        
-        public void close() {
-            connected = false;
-            try {
-                input.close();
-                output.close();
-            } catch (IOException e) {
-                // Ignore close errors
-            }
+    }
+    
+    public void closeAllConnections() {
+        WebSocketServer server = webSocketServer;
+        if (server != null) {
+            server.stop();
         }
     }
+    
+    public int getConnectionCount() {
+        WebSocketServer server = webSocketServer;
+        return server != null ? server.getConnectionCount() : 0;
+    }
+    
+    public int getPort() {
+        WebSocketServer server = webSocketServer;
+        return server != null ? server.getPort() : -1;
+    }
 }
@@ -0,0 +1,864 @@
+// Non-blocking WebSocket Server (selector event loops)
+package com.httpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Deflater;
+
+public class WebSocketServer {
+    private final int port;
+    private final String path;
+    private final PerMessageDeflate perMessageDeflate;
+    private final AtomicReferenceArray<WebSocketEventLoop> eventLoops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private Thread acceptorThread;
+    private volatile boolean running;
+    private volatile boolean eventLoopsStopped;
+    private boolean reusePort;
+    private boolean lazyEventLoops;
+    private volatile long batchWindowNanos;
+    
+    public WebSocketServer(int port, String path, int eventLoopCount, PerMessageDeflate perMessageDeflate) {
+        if (eventLoopCount < 1) {
+            throw new IllegalArgumentException("eventLoopCount must be at least 1");
+        }
+        this.port = port;
+        this.path = path;
+        this.perMessageDeflate = perMessageDeflate;
+        this.eventLoops = new AtomicReferenceArray<>(eventLoopCount);
+    }
+    
+    // Lets a replacement process bind the same port during a restart handoff
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+    
+    // Defers each event loop's selector and thread to the first connection it is given,
+    // so a server nobody subscribes to never starts them
+    public void setLazyEventLoops(boolean lazyEventLoops) {
+        this.lazyEventLoops = lazyEventLoops;
+    }
+    
+    // Holds broadcasts for up to the window so a burst of logs goes out in one write per
+    // connection; 0 sends each as it comes
+    public void setBatchWindow(long windowMillis) {
+        batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        for (int i = 0; i < eventLoops.length(); i++) {
+            WebSocketEventLoop loop = eventLoops.get(i);
+            if (loop != null) {
+                loop.setBatchWindow(batchWindowNanos);
+            }
+        }
+    }
+    
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        if (reusePort && serverChannel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        
+        if (!lazyEventLoops) {
+            for (int i = 0; i < eventLoops.length(); i++) {
+                startEventLoop(i);
+            }
+        }
+        
+        running = true;
+        acceptorThread = new Thread(this::acceptLoop, "ws-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+    }
+    
+    private void acceptLoop() {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                int index = Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length());
+                WebSocketEventLoop loop = eventLoops.get(index);
+                (loop != null ? loop : startEventLoop(index)).register(channel);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("WebSocket accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Only the acceptor starts loops after start(), and stop() shuts down whatever is
+    // published here, so a loop created while stopping is shut down on the spot
+    private WebSocketEventLoop startEventLoop(int index) throws IOException {
+        WebSocketEventLoop loop = new WebSocketEventLoop("ws-event-loop-" + index, path, perMessageDeflate);
+        loop.setBatchWindow(batchWindowNanos);
+        loop.start();
+        eventLoops.set(index, loop);
+        if (eventLoopsStopped) {
+            loop.shutdown();
+        }
+        return loop;
+    }
+    
+    // Encodes the plain frame once and lets every loop fan it out to its own connections
+    public void broadcast(byte[] payload) {
+        Broadcast broadcast = new Broadcast(payload);
+        for (int i = 0; i < eventLoops.length(); i++) {
+            WebSocketEventLoop loop = eventLoops.get(i);
+            if (loop != null) {
+                loop.broadcast(broadcast);
+            }
+        }
+    }
+    
+    // Stops accepting and sends every subscriber a 1001 Going Away close frame, then
+    // waits for the closing handshakes until the deadline before shutting down
+    public void drain(long deadlineMillis) {
+        closeAcceptor();
+        for (int i = 0; i < eventLoops.length(); i++) {
+            WebSocketEventLoop loop = eventLoops.get(i);
+            if (loop != null) {
+                loop.goAway();
+            }
+        }
+        while (getConnectionCount() > 0 && System.currentTimeMillis() < deadlineMillis) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        stop();
+    }
+    
+    public void stop() {
+        closeAcceptor();
+        eventLoopsStopped = true;
+        for (int i = 0; i < eventLoops.length(); i++) {
+            WebSocketEventLoop loop = eventLoops.get(i);
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+    
+    private void closeAcceptor() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+    
+    public int getPort() {
+        return serverChannel != null ? ((InetSocketAddress) serverChannel.socket().getLocalSocketAddress()).getPort() : port;
+    }
+    
+    public int getEventLoopCount() {
+        return eventLoops.length();
+    }
+    
+    public int getConnectionCount() {
+        int count = 0;
+        for (int i = 0; i < eventLoops.length(); i++) {
+            WebSocketEventLoop loop = eventLoops.get(i);
+            if (loop != null) {
+                count += loop.getConnectionCount();
+            }
+        }
+        return count;
+    }
+    
+    static class Broadcast {
+        final byte[] payload;
+        
+        Broadcast(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+}
+
+// One selector thread owning a slice of the connections; all connection
+// state is confined to this thread, so no per-connection locking is needed
+class WebSocketEventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    
+    private final String name;
+    private final String path;
+    private final PerMessageDeflate perMessageDeflate;
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<WebSocketServer.Broadcast> pendingBroadcasts = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Set by the first broadcast of a batch, which is the only one that wakes the loop
+    private final AtomicBoolean batchScheduled = new AtomicBoolean();
+    private volatile long batchWindowNanos;
+    private long batchDeadlineNanos;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final BufferPool bufferPool = BufferPool.direct();
+    // Open connections; removal swaps the last entry in so churn stays O(1)
+    private final List<NioWebSocketConnection> connections = new ArrayList<>();
+    private volatile int connectionCount;
+    private volatile boolean running = true;
+    private volatile boolean goingAway;
+    private boolean goAwaySent;
+    private Thread thread;
+    
+    WebSocketEventLoop(String name, String path, PerMessageDeflate perMessageDeflate) throws IOException {
+        this.name = name;
+        this.path = path;
+        this.perMessageDeflate = perMessageDeflate;
+        this.selector = Selector.open();
+    }
+    
+    void start() {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        wakeup();
+    }
+    
+    void broadcast(WebSocketServer.Broadcast broadcast) {
+        if (connectionCount == 0) {
+            return;
+        }
+        pendingBroadcasts.add(broadcast);
+        if (batchWindowNanos == 0 || batchScheduled.compareAndSet(false, true)) {
+            wakeup();
+        }
+    }
+    
+    void setBatchWindow(long windowNanos) {
+        batchWindowNanos = windowNanos;
+        selector.wakeup();
+    }
+    
+    void goAway() {
+        goingAway = true;
+        selector.wakeup();
+    }
+    
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+    
+    int getConnectionCount() {
+        return connectionCount;
+    }
+    
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+    
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long timeout = selectTimeout();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                wakeupPending.set(false);
+                
+                processRegistrations();
+                if (broadcastsDue()) {
+                    processBroadcasts();
+                }
+                if (goingAway && !goAwaySent) {
+                    sendGoingAway();
+                }
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioWebSocketConnection connection = (NioWebSocketConnection) key.attachment();
+                    
+                    if (!key.isValid()) {
+                        close(connection);
+                        continue;
+                    }
+                    // A bug tripped by one connection must not take the loop's others with it
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (RuntimeException e) {
+                        System.err.println("WebSocket connection error: " + e);
+                        close(connection);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            System.err.println("WebSocket event loop error: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+    
+    // Milliseconds until the open batch is due, 0 to wait for a wakeup, -1 when overdue
+    private long selectTimeout() {
+        if (batchDeadlineNanos == 0) {
+            return 0;
+        }
+        long remaining = batchDeadlineNanos - System.nanoTime();
+        return remaining <= 0 ? -1 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999));
+    }
+    
+    private boolean broadcastsDue() {
+        long window = batchWindowNanos;
+        if (window > 0 && batchDeadlineNanos == 0) {
+            // The batch opens when the loop first sees it
+            if (batchScheduled.get()) {
+                batchDeadlineNanos = System.nanoTime() + window;
+            }
+            return false;
+        }
+        if (window > 0 && System.nanoTime() - batchDeadlineNanos < 0) {
+            return false;
+        }
+        // Reset before draining, so a broadcast that misses this batch opens the next
+        batchDeadlineNanos = 0;
+        batchScheduled.set(false);
+        return true;
+    }
+    
+    private void processRegistrations() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                NioWebSocketConnection connection = new NioWebSocketConnection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+    
+    private void processBroadcasts() {
+        WebSocketServer.Broadcast broadcast;
+        while ((broadcast = pendingBroadcasts.poll()) != null) {
+            boolean compressible = perMessageDeflate.shouldCompress(broadcast.payload.length);
+            // Shared frames are encoded once per loop into pooled direct buffers, which
+            // the socket writes without an intermediate copy
+            ByteBuffer plainFrame = null;
+            ByteBuffer sharedDeflatedFrame = null;
+            
+            // Iterate backwards, a failed write swaps a later connection into this slot
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                NioWebSocketConnection connection = connections.get(i);
+                if (connection.closeSent) {
+                    continue; // No data frames after our close frame
+                }
+                if (compressible && connection.deflater != null) {
+                    ByteBuffer frame = perMessageDeflate.encodeFrame(bufferPool, connection.deflater, broadcast.payload);
+                    send(connection, frame);
+                    bufferPool.release(frame);
+                    continue;
+                }
+                ByteBuffer frame;
+                if (compressible && connection.compressed) {
+                    if (sharedDeflatedFrame == null) {
+                        sharedDeflatedFrame = perMessageDeflate.encodeStatelessFrame(bufferPool, broadcast.payload);
+                    }
+                    frame = sharedDeflatedFrame;
+                } else {
+                    if (plainFrame == null) {
+                        plainFrame = WebSocketManager.encodeFrame(bufferPool, broadcast.payload,
+                            broadcast.payload.length, false);
+                    }
+                    frame = plainFrame;
+                }
+                int start = frame.position();
+                send(connection, frame);
+                frame.position(start);
+            }
+            bufferPool.release(plainFrame);
+            bufferPool.release(sharedDeflatedFrame);
+        }
+    }
+    
+    // Open connections get a close frame and stay readable for the client's reply;
+    // connections still in the handshake are simply dropped
+    private void sendGoingAway() {
+        goAwaySent = true;
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            NioWebSocketConnection connection = (NioWebSocketConnection) key.attachment();
+            if (!connection.open) {
+                close(connection);
+            }
+        }
+        byte[] closeFrame = NioWebSocketConnection.goingAwayFrame();
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            NioWebSocketConnection connection = connections.get(i);
+            connection.closeSent = true;
+            send(connection, ByteBuffer.wrap(closeFrame));
+        }
+    }
+    
+    private void read(NioWebSocketConnection connection) {
+        try {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                close(connection);
+                return;
+            }
+            readBuffer.flip();
+            
+            if (!connection.open) {
+                handshake(connection);
+            } else {
+                connection.parseFrames(readBuffer, this);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+    
+    private void handshake(NioWebSocketConnection connection) throws IOException {
+        WebSocketHandshake handshake = connection.appendHandshake(readBuffer);
+        if (handshake == null) {
+            return; // Request headers not complete yet
+        }
+        
+        String error = handshake.validate(path);
+        if (error != null) {
+            connection.closeAfterFlush = true;
+            send(connection, ByteBuffer.wrap(handshake.errorResponse(error).getBytes(StandardCharsets.US_ASCII)));
+            return;
+        }
+        
+        PerMessageDeflate.Negotiated deflate = perMessageDeflate.negotiate(handshake.getHeader("sec-websocket-extensions"));
+        StringBuilder response = new StringBuilder(192)
+            .append("HTTP/1.1 101 Switching Protocols\r\n")
+            .append("Upgrade: websocket\r\n")
+            .append("Connection: Upgrade\r\n")
+            .append("Sec-WebSocket-Accept: ")
+            .append(WebSocketManager.generateAcceptKey(handshake.getHeader("sec-websocket-key")))
+            .append("\r\n");
+        if (deflate != null) {
+            response.append("Sec-WebSocket-Extensions: ").append(deflate.getResponseHeader()).append("\r\n");
+            connection.compressed = true;
+            if (!deflate.isNoContextTakeover()) {
+                connection.deflater = perMessageDeflate.acquireDeflater();
+            }
+        }
+        response.append("\r\n");
+        
+        connection.open = true;
+        connection.index = connections.size();
+        connections.add(connection);
+        connectionCount = connections.size();
+        send(connection, ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.US_ASCII)));
+        // Frames the client sent right behind its request arrived in the same read
+        if (readBuffer.hasRemaining()) {
+            connection.parseFrames(readBuffer, this);
+        }
+    }
+    
+    // The buffer stays the caller's: whatever the socket does not take is copied into the
+    // connection's queue
+    void send(NioWebSocketConnection connection, ByteBuffer buffer) {
+        if (connection.closed) {
+            return;
+        }
+        try {
+            // Fast path: nothing queued, write straight to the socket
+            if (connection.outbound == null || connection.outbound.isEmpty()) {
+                connection.channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    if (connection.closeAfterFlush) {
+                        close(connection);
+                    }
+                    return;
+                }
+            }
+            if (!connection.queue(buffer, bufferPool)) {
+                // Slow consumer, drop it instead of buffering without bound
+                close(connection);
+                return;
+            }
+            connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+    
+    private void flush(NioWebSocketConnection connection) {
+        try {
+            ArrayDeque<ByteBuffer> outbound = connection.outbound;
+            while (outbound != null && !outbound.isEmpty()) {
+                ByteBuffer head = outbound.peek();
+                int written = connection.channel.write(head);
+                connection.queuedBytes -= written;
+                if (head.hasRemaining()) {
+                    return; // Socket buffer full, wait for the next OP_WRITE
+                }
+                bufferPool.release(outbound.poll());
+            }
+            connection.outbound = null; // Idle connections keep no queue around
+            connection.key.interestOps(SelectionKey.OP_READ);
+            if (connection.closeAfterFlush) {
+                close(connection);
+            }
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+    
+    void close(NioWebSocketConnection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        
+        if (connection.index >= 0) {
+            NioWebSocketConnection last = connections.remove(connections.size() - 1);
+            if (last != connection) {
+                connections.set(connection.index, last);
+                last.index = connection.index;
+            }
+            connection.index = -1;
+            connectionCount = connections.size();
+        }
+        if (connection.deflater != null) {
+            perMessageDeflate.releaseDeflater(connection.deflater);
+            connection.deflater = null;
+        }
+        if (connection.outbound != null) {
+            connection.outbound.forEach(bufferPool::release);
+            connection.outbound = null;
+            connection.queuedBytes = 0;
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+    }
+    
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            close((NioWebSocketConnection) key.attachment());
+        }
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            closeQuietly(channel);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+    
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore close errors
+        }
+    }
+}
+
+// Per-connection state, kept small so idle subscribers cost a few hundred bytes
+class NioWebSocketConnection {
+    private static final int MAX_HANDSHAKE_SIZE = 8192;
+    private static final int MAX_QUEUED_BYTES = 512 * 1024;
+    
+    final SocketChannel channel;
+    SelectionKey key;
+    int index = -1;
+    boolean open;
+    boolean closed;
+    boolean closeAfterFlush;
+    boolean closeSent;
+    boolean compressed;
+    Deflater deflater; // only set with context takeover
+    
+    // Allocated only while a write is pending
+    ArrayDeque<ByteBuffer> outbound;
+    int queuedBytes;
+    
+    // Only used until the upgrade completes
+    private byte[] handshakeBuffer;
+    private int handshakeLength;
+    
+    // Incoming frame parser state
+    private final byte[] frameHeader = new byte[14];
+    private int frameHeaderLength;
+    private long payloadRemaining;
+    private int opcode;
+    private int maskKey;
+    private int payloadOffset;
+    private byte[] controlPayload;
+    
+    NioWebSocketConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+    
+    // Queued bytes live in pooled buffers owned by the queue until they are flushed
+    boolean queue(ByteBuffer data, BufferPool pool) {
+        int length = data.remaining();
+        if (queuedBytes + length > MAX_QUEUED_BYTES) {
+            return false;
+        }
+        if (outbound == null) {
+            outbound = new ArrayDeque<>(4);
+        }
+        ByteBuffer copy = pool.acquire(length);
+        copy.put(data).flip();
+        outbound.add(copy);
+        queuedBytes += length;
+        return true;
+    }
+    
+    // Buffers request bytes until the blank line; returns the parsed request once complete,
+    // leaving any bytes after the blank line unread in data
+    WebSocketHandshake appendHandshake(ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (handshakeLength + length > MAX_HANDSHAKE_SIZE) {
+            throw new IOException("WebSocket handshake too large");
+        }
+        if (handshakeBuffer == null) {
+            handshakeBuffer = new byte[Math.max(512, length)];
+        } else if (handshakeLength + length > handshakeBuffer.length) {
+            byte[] grown = new byte[Math.max(handshakeBuffer.length * 2, handshakeLength + length)];
+            System.arraycopy(handshakeBuffer, 0, grown, 0, handshakeLength);
+            handshakeBuffer = grown;
+        }
+        data.get(handshakeBuffer, handshakeLength, length);
+        handshakeLength += length;
+        
+        for (int i = 3; i < handshakeLength; i++) {
+            if (handshakeBuffer[i] == '\n' && handshakeBuffer[i - 1] == '\r'
+                    && handshakeBuffer[i - 2] == '\n' && handshakeBuffer[i - 3] == '\r') {
+                String request = new String(handshakeBuffer, 0, i - 3, StandardCharsets.ISO_8859_1);
+                // Earlier reads held no blank line, so the rest all came from this one
+                data.position(data.position() - (handshakeLength - i - 1));
+                handshakeBuffer = null;
+                handshakeLength = 0;
+                return WebSocketHandshake.parse(request);
+            }
+        }
+        return null;
+    }
+    
+    // Client frames are masked and parsed incrementally; data frames are
+    // skipped since /ws/logs is send-only, control frames are answered
+    void parseFrames(ByteBuffer data, WebSocketEventLoop loop) {
+        while (data.hasRemaining() && !closed) {
+            if (payloadRemaining == 0) {
+                frameHeader[frameHeaderLength++] = data.get();
+                if (frameHeaderLength < 2 || frameHeaderLength < headerSize()) {
+                    continue;
+                }
+                if (!startFrame(loop)) {
+                    return;
+                }
+                if (payloadRemaining == 0) {
+                    completeFrame(loop);
+                }
+                continue;
+            }
+            
+            int chunk = (int) Math.min(data.remaining(), payloadRemaining);
+            if (controlPayload != null) {
+                for (int i = 0; i < chunk; i++, payloadOffset++) {
+                    int shift = 24 - 8 * (payloadOffset & 3);
+                    controlPayload[payloadOffset] = (byte) (data.get() ^ (maskKey >>> shift));
+                }
+            } else {
+                data.position(data.position() + chunk);
+            }
+            payloadRemaining -= chunk;
+            if (payloadRemaining == 0) {
+                completeFrame(loop);
+            }
+        }
+    }
+    
+    private int headerSize() {
+        int lengthCode = frameHeader[1] & 0x7F;
+        int size = 2 + 4; // clients must always mask
+        if (lengthCode == 126) {
+            size += 2;
+        } else if (lengthCode == 127) {
+            size += 8;
+        }
+        return size;
+    }
+    
+    private boolean startFrame(WebSocketEventLoop loop) {
+        boolean masked = (frameHeader[1] & 0x80) != 0;
+        opcode = frameHeader[0] & 0x0F;
+        int lengthCode = frameHeader[1] & 0x7F;
+        int offset = 2;
+        
+        long length = lengthCode;
+        if (lengthCode == 126) {
+            length = ((frameHeader[2] & 0xFF) << 8) | (frameHeader[3] & 0xFF);
+            offset = 4;
+        } else if (lengthCode == 127) {
+            length = 0;
+            for (int i = 2; i < 10; i++) {
+                length = (length << 8) | (frameHeader[i] & 0xFF);
+            }
+            offset = 10;
+        }
+        
+        boolean control = (opcode & 0x08) != 0;
+        if (!masked || length < 0 || (control && length > 125)) {
+            loop.close(this); // Protocol error
+            return false;
+        }
+        
+        maskKey = ((frameHeader[offset] & 0xFF) << 24) | ((frameHeader[offset + 1] & 0xFF) << 16)
+            | ((frameHeader[offset + 2] & 0xFF) << 8) | (frameHeader[offset + 3] & 0xFF);
+        payloadRemaining = length;
+        payloadOffset = 0;
+        controlPayload = control ? new byte[(int) length] : null;
+        frameHeaderLength = 0;
+        return true;
+    }
+    
+    private void completeFrame(WebSocketEventLoop loop) {
+        byte[] payload = controlPayload;
+        controlPayload = null;
+        frameHeaderLength = 0;
+        
+        if (opcode == 0x8 && closeSent) {
+            loop.close(this); // Reply to our own close frame, the closing handshake is done
+        } else if (opcode == 0x8) {
+            // Echo the close frame (status code only) and hang up once it is written
+            closeAfterFlush = true;
+            loop.send(this, ByteBuffer.wrap(controlFrame(0x8, payload, Math.min(payload.length, 2))));
+        } else if (opcode == 0x9) {
+            loop.send(this, ByteBuffer.wrap(controlFrame(0xA, payload, payload.length)));
+        }
+    }
+    
+    static byte[] goingAwayFrame() {
+        byte[] reason = "Server restarting".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = new byte[2 + reason.length];
+        payload[0] = (byte) (1001 >> 8);
+        payload[1] = (byte) 1001;
+        System.arraycopy(reason, 0, payload, 2, reason.length);
+        return controlFrame(0x8, payload, payload.length);
+    }
+    
+    private static byte[] controlFrame(int opcode, byte[] payload, int length) {
+        byte[] frame = new byte[2 + length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) length;
+        System.arraycopy(payload, 0, frame, 2, length);
+        return frame;
+    }
+}
+
+// Parsed HTTP upgrade request
+class WebSocketHandshake {
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers;
+    
+    private WebSocketHandshake(String method, String path, Map<String, String> headers) {
+        this.method = method;
+        this.path = path;
+        this.headers = headers;
+    }
+    
+    static WebSocketHandshake parse(String request) {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        Map<String, String> headers = new HashMap<>();
+        
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            String value = lines[i].substring(colon + 1).trim();
+            // Repeated headers (e.g. Sec-WebSocket-Extensions) are folded into one list
+            headers.merge(name, value, (a, b) -> a + ", " + b);
+        }
+        
+        String path = requestLine.length > 1 ? requestLine[1] : "";
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        return new WebSocketHandshake(requestLine[0], path, headers);
+    }
+    
+    String getHeader(String name) {
+        return headers.get(name);
+    }
+    
+    // Returns an HTTP status line for a bad request, or null when the upgrade is valid
+    String validate(String expectedPath) {
+        if (!expectedPath.equals(path)) {
+            return "404 Not Found";
+        }
+        String connection = getHeader("connection");
+        boolean upgrade = "GET".equals(method)
+            && connection != null && connection.toLowerCase().contains("upgrade")
+            && "websocket".equalsIgnoreCase(getHeader("upgrade"))
+            && getHeader("sec-websocket-key") != null;
+        if (!upgrade) {
+            return "400 Bad Request";
+        }
+        if (!"13".equals(getHeader("sec-websocket-version"))) {
+            return "426 Upgrade Required";
+        }
+        return null;
+    }
+    
+    String errorResponse(String status) {
+        return "HTTP/1.1 " + status + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n"
+            + "Content-Length: 0\r\n"
+            + "Connection: close\r\n\r\n";
+    }
+}
@@ -0,0 +1,115 @@
+// Worker Pool
+package com.httpserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The threads every listener hands its requests to. Tasks carry the time they were
+// queued, so a request's trace shows its wait. Both the thread count and the queue bound
+// can change at runtime. A request arriving at a full queue is shed: it runs at once on
+// the dispatching thread, which only reads its headers before DeadlineHandler answers
+// 503, instead of waiting behind work that is already late.
+public class WorkerPool implements Executor {
+    private final ThreadPoolExecutor executor;
+    private final WorkQueue queue;
+    private final AtomicLong shed = new AtomicLong();
+    
+    // maxQueued 0 leaves the queue unbounded
+    public WorkerPool(int threads, int maxQueued) {
+        this.queue = new WorkQueue(maxQueued);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+            (task, pool) -> {
+                shed.incrementAndGet();
+                ((TimedTask) task).run(true);
+            });
+    }
+    
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(new TimedTask(task, System.nanoTime()));
+    }
+    
+    public synchronized void setThreads(int threads) {
+        // The core size may never pass the maximum, so the order depends on the direction
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+    
+    public void setMaxQueued(int maxQueued) {
+        queue.limit = maxQueued;
+    }
+    
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("threads", executor.getMaximumPoolSize());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", queue.size());
+        stats.put("maxQueued", queue.limit);
+        stats.put("shed", shed.get());
+        return stats;
+    }
+    
+    public void shutdown() {
+        executor.shutdown();
+    }
+    
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+    
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+    
+    private static class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long queuedNanos;
+        
+        TimedTask(Runnable task, long queuedNanos) {
+            this.task = task;
+            this.queuedNanos = queuedNanos;
+        }
+        
+        @Override
+        public void run() {
+            run(false);
+        }
+        
+        void run(boolean shed) {
+            RequestTrace.taskStarted(queuedNanos, shed);
+            try {
+                task.run();
+            } finally {
+                RequestTrace.taskFinished();
+            }
+        }
+    }
+    
+    // Refuses new work past a limit that can change while tasks are queued; the pool
+    // then calls its rejection handler, which sheds the request
+    private static class WorkQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        
+        volatile int limit;
+        
+        WorkQueue(int limit) {
+            this.limit = limit;
+        }
+        
+        @Override
+        public boolean offer(Runnable task) {
+            int bound = limit;
+            return (bound <= 0 || size() < bound) && super.offer(task);
+        }
+    }
+}
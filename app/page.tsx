@@ -54,6 +54,7 @@ interface Route {
 
 interface ServerConfig {
   port: number
+  wsPort?: number
   documentRoot: string
   defaultIndex: string
 }
@@ -165,7 +166,10 @@ export default function HttpServerDashboard() {
     }
 
     try {
-      const wsUrl = serverUrl.replace("http://", "ws://").replace("https://", "wss://") + "/ws/logs"
+      // WebSocket traffic is served on its own port (defaults to HTTP port + 1)
+      const url = new URL(serverUrl)
+      url.port = String(serverConfig.wsPort ?? Number(url.port || 80) + 1)
+      const wsUrl = url.origin.replace("http://", "ws://").replace("https://", "wss://") + "/ws/logs"
       const ws = new WebSocket(wsUrl)
 
       ws.onopen = () => {
@@ -203,7 +207,7 @@ export default function HttpServerDashboard() {
       console.error("Failed to setup WebSocket:", err)
       setConnectionStatus("disconnected")
     }
-  }, [serverUrl, wsConnection])
+  }, [serverUrl, serverConfig.wsPort, wsConnection])
 
   // Initial data fetch
   useEffect(() => {
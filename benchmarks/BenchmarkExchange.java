@@ -0,0 +1,76 @@
+// In-memory HttpExchange for benchmarks
+package com.httpserver;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+// Reusable exchange that counts response bytes instead of writing them anywhere,
+// so handler benchmarks measure the handler and not a socket
+class BenchmarkExchange extends HttpExchange {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 8080);
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.1", 50000);
+    private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+    
+    private final Headers requestHeaders = new Headers();
+    private final Headers responseHeaders = new Headers();
+    private final CountingOutputStream responseBody = new CountingOutputStream();
+    private String method = "GET";
+    private URI uri;
+    private int responseCode = -1;
+    
+    BenchmarkExchange(String method, String path) {
+        reset(method, path);
+    }
+    
+    BenchmarkExchange reset(String method, String path) {
+        this.method = method;
+        this.uri = URI.create(path);
+        this.responseCode = -1;
+        responseHeaders.clear();
+        responseBody.count = 0;
+        return this;
+    }
+    
+    long getBytesWritten() {
+        return responseBody.count;
+    }
+    
+    @Override public Headers getRequestHeaders() { return requestHeaders; }
+    @Override public Headers getResponseHeaders() { return responseHeaders; }
+    @Override public URI getRequestURI() { return uri; }
+    @Override public String getRequestMethod() { return method; }
+    @Override public HttpContext getHttpContext() { return null; }
+    @Override public void close() { }
+    @Override public InputStream getRequestBody() { return EMPTY; }
+    @Override public OutputStream getResponseBody() { return responseBody; }
+    @Override public void sendResponseHeaders(int rCode, long responseLength) { responseCode = rCode; }
+    @Override public InetSocketAddress getRemoteAddress() { return REMOTE; }
+    @Override public int getResponseCode() { return responseCode; }
+    @Override public InetSocketAddress getLocalAddress() { return LOCAL; }
+    @Override public String getProtocol() { return "HTTP/1.1"; }
+    @Override public Object getAttribute(String name) { return null; }
+    @Override public void setAttribute(String name, Object value) { }
+    @Override public void setStreams(InputStream i, OutputStream o) { }
+    @Override public HttpPrincipal getPrincipal() { return null; }
+    
+    private static class CountingOutputStream extends OutputStream {
+        long count;
+        
+        @Override
+        public void write(int b) {
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+// JMH Result Comparison
+package com.httpserver;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Diffs two JMH JSON result files (-rf json), e.g. from two commits. Prints the score
+// change and the gc.alloc.rate.norm change per benchmark and parameter set, and exits
+// with status 1 when any score regresses by more than the threshold.
+//
+// Usage: JmhResultCompare <baseline.json> <current.json> [thresholdPercent=10]
+public class JmhResultCompare {
+    private static final String ALLOC_NORM = "gc.alloc.rate.norm";
+    
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: JmhResultCompare <baseline.json> <current.json> [thresholdPercent=10]");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, JsonObject> baseline = load(args[0]);
+        Map<String, JsonObject> current = load(args[1]);
+        
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s %12s %12s%n",
+            "benchmark", "baseline", "current", "change", "B/op before", "B/op after");
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            JsonObject after = entry.getValue();
+            JsonObject afterMetric = after.getAsJsonObject("primaryMetric");
+            String unit = afterMetric.get("scoreUnit").getAsString();
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.3f %9s %12s %12s  (new)%n", entry.getKey(), "-",
+                    afterMetric.get("score").getAsDouble(), "", "-", formatAlloc(after));
+                continue;
+            }
+            
+            double oldScore = before.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+            double newScore = afterMetric.get("score").getAsDouble();
+            double change = oldScore == 0 ? 0 : (newScore - oldScore) / oldScore * 100;
+            // Throughput modes are better when higher, time modes when lower
+            boolean higherIsBetter = "thrpt".equals(after.get("mode").getAsString());
+            boolean regressed = higherIsBetter ? change < -threshold : change > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %12s %12s  %s%s%n", entry.getKey(), oldScore, newScore,
+                change, formatAlloc(before), formatAlloc(after), unit, regressed ? "  REGRESSION" : "");
+        }
+        for (String key : baseline.keySet()) {
+            if (!current.containsKey(key)) {
+                System.out.printf("%-70s  (removed)%n", key);
+            }
+        }
+        
+        System.out.println(regressions == 0
+            ? "No regressions beyond " + threshold + "%"
+            : regressions + " regression(s) beyond " + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+    
+    // Keyed by benchmark name plus its @Param values and thread count
+    private static Map<String, JsonObject> load(String file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(Paths.get(file))) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString()
+                    .replace("com.httpserver.", ""));
+                if (run.has("params")) {
+                    for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+                        key.append(' ').append(param.getKey()).append('=').append(param.getValue().getAsString());
+                    }
+                }
+                key.append(" t=").append(run.get("threads").getAsInt());
+                results.put(key.toString(), run);
+            }
+        }
+        return results;
+    }
+    
+    private static String formatAlloc(JsonObject run) {
+        JsonObject secondary = run.getAsJsonObject("secondaryMetrics");
+        if (secondary == null || !secondary.has(ALLOC_NORM)) {
+            return "-";
+        }
+        return String.format("%.0f", secondary.getAsJsonObject(ALLOC_NORM).get("score").getAsDouble());
+    }
+}
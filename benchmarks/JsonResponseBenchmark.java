@@ -0,0 +1,81 @@
+// JMH: ResponseHelper.sendJsonResponse
+package com.httpserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JsonResponseBenchmark {
+    private final BenchmarkExchange exchange = new BenchmarkExchange("GET", "/api/logs");
+    private Map<String, Object> logsPayload;
+    private Map<String, Object> routesPayload;
+    private Map<String, Object> statsPayload;
+    
+    @Setup
+    public void setup() {
+        List<RequestLog> logs = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            logs.add(new RequestLog("GET", "/api/items/" + i, 200, i % 40, "192.168.1." + i,
+                "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36"));
+        }
+        logsPayload = new HashMap<>();
+        logsPayload.put("logs", logs);
+        logsPayload.put("total", logs.size());
+        
+        RouteManager routeManager = new RouteManager();
+        routeManager.addRoute("/health", "GET", new HealthCheckHandler(), 1000);
+        routeManager.addRoute("/api/test", "GET", new TestHandler());
+        routesPayload = new HashMap<>();
+        routesPayload.put("routes", routeManager.getAllRoutes());
+        
+        statsPayload = new HashMap<>();
+        statsPayload.put("uptime", "2h 14m 5s");
+        statsPayload.put("totalRequests", 1048576L);
+        statsPayload.put("activeConnections", 12);
+        statsPayload.put("memoryUsage", "48.2 MB");
+        statsPayload.put("cpuUsage", 12.5);
+    }
+    
+    @Benchmark
+    public long logs() throws IOException {
+        ResponseHelper.sendJsonResponse(exchange.reset("GET", "/api/logs"), logsPayload);
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long routes() throws IOException {
+        ResponseHelper.sendJsonResponse(exchange.reset("GET", "/api/routes"), routesPayload);
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long stats() throws IOException {
+        ResponseHelper.sendJsonResponse(exchange.reset("GET", "/api/server/stats"), statsPayload);
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long error() throws IOException {
+        ResponseHelper.sendErrorResponse(exchange.reset("GET", "/missing"), 404, "Not Found");
+        return exchange.getBytesWritten();
+    }
+}
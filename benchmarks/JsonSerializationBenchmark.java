@@ -0,0 +1,120 @@
+// JSON Serialization Benchmark
+package com.httpserver;
+
+import com.google.gson.Gson;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compares the old ResponseHelper path (gson.toJson + getBytes) with JsonWriter on the
+// server's real payloads, and checks that both produce identical bytes.
+//
+// Usage: JsonSerializationBenchmark [iterations=200000] [logs=50]
+public class JsonSerializationBenchmark {
+    private static final Gson gson = new Gson();
+    private static final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static volatile int sink;
+    
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int logCount = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        
+        Map<String, Object> payloads = new HashMap<>();
+        payloads.put("websocket log", sampleLog(0));
+        payloads.put("/api/logs", logsPayload(logCount));
+        payloads.put("/api/routes", routesPayload());
+        payloads.put("/api/server/stats", statsPayload());
+        payloads.put("error", errorPayload());
+        
+        System.out.printf("%-20s %12s %12s %14s %14s %8s%n",
+            "payload", "gson ns/op", "writer ns/op", "gson B/op", "writer B/op", "speedup");
+        for (Map.Entry<String, Object> entry : payloads.entrySet()) {
+            Object data = entry.getValue();
+            byte[] expected = gson.toJson(data).getBytes(StandardCharsets.UTF_8);
+            if (!Arrays.equals(expected, JsonWriter.acquire().value(data).toByteArray())) {
+                throw new IllegalStateException("Output differs from Gson for " + entry.getKey());
+            }
+            
+            int rounds = Math.max(1, iterations / Math.max(1, expected.length / 256));
+            measure(true, data, rounds);
+            measure(false, data, rounds);
+            long[] gsonResult = measure(true, data, rounds);
+            long[] writerResult = measure(false, data, rounds);
+            System.out.printf("%-20s %12d %12d %14d %14d %7.1fx%n", entry.getKey(),
+                gsonResult[0], writerResult[0], gsonResult[1], writerResult[1],
+                gsonResult[0] / (double) Math.max(1, writerResult[0]));
+        }
+    }
+    
+    // Returns {ns/op, allocated bytes/op}
+    private static long[] measure(boolean useGson, Object data, int rounds) {
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            if (useGson) {
+                sink += gson.toJson(data).getBytes(StandardCharsets.UTF_8).length;
+            } else {
+                sink += JsonWriter.acquire().value(data).size();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        return new long[] {elapsed / rounds, allocated / rounds};
+    }
+    
+    private static RequestLog sampleLog(int i) {
+        return new RequestLog("GET", "/api/items/" + i + "?q=<search>&page=2", 200, i % 40,
+            "192.168.1." + (i % 255), "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)");
+    }
+    
+    private static Map<String, Object> logsPayload(int count) {
+        List<RequestLog> logs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            logs.add(sampleLog(i));
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("logs", logs);
+        response.put("total", count);
+        return response;
+    }
+    
+    private static Map<String, Object> routesPayload() {
+        List<Route> routes = new ArrayList<>();
+        routes.add(new Route("/health", "HealthCheckHandler", "GET", true, 1000));
+        routes.add(new Route("/api/test", "TestHandler", "GET", true));
+        routes.add(new Route("/api/orders", "CustomRouteHandler", "POST", false));
+        Map<String, Object> response = new HashMap<>();
+        response.put("routes", routes);
+        return response;
+    }
+    
+    private static Map<String, Object> statsPayload() {
+        Map<String, Object> cache = new HashMap<>();
+        cache.put("entries", 4);
+        cache.put("hits", 120345L);
+        cache.put("misses", 812L);
+        cache.put("coalesced", 17L);
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("uptime", "2h 14m 5s");
+        stats.put("totalRequests", 1048576L);
+        stats.put("activeConnections", 12);
+        stats.put("memoryUsage", "48.2 MB");
+        stats.put("cpuUsage", 12.5);
+        stats.put("responseCache", cache);
+        return stats;
+    }
+    
+    private static Map<String, Object> errorPayload() {
+        Map<String, Object> error = new HashMap<>();
+        error.put("error", "Not Found");
+        error.put("status", 404);
+        error.put("timestamp", System.currentTimeMillis());
+        return error;
+    }
+}
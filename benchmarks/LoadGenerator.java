@@ -0,0 +1,474 @@
+// End-to-end Load Generator
+package com.httpserver;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a weighted mix of endpoints plus idle WebSocket subscribers against an
+// in-process HttpServer (or --target) and reports throughput and latency percentiles.
+//
+// open loop   (--mode=open):   requests start on a fixed schedule at --rate req/s and
+//                              latency is measured from the scheduled start, so a stalled
+//                              server is charged for every request it delayed
+// closed loop (--mode=closed): --connections workers send back to back; with --rate the
+//                              missing samples behind a slow response are back-filled
+//                              (coordinated omission correction), without it they are not
+//
+// Usage: LoadGenerator [--mode=open|closed] [--rate=1000] [--connections=16] [--duration=30]
+//                      [--warmup=5] [--mix=health:60,logs:20,static:10,routes:10] [--ws=0]
+//                      [--static=/static/index.html] [--port=18080] [--target=http://host:port]
+//                      [--max-in-flight=512] [--save=report.json] [--baseline=report.json]
+public class LoadGenerator {
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    
+    private final Map<String, String> options;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final HttpClient client;
+    private final String target;
+    private int totalWeight;
+    private volatile long measureStartNanos;
+    
+    public LoadGenerator(Map<String, String> options, String target) {
+        this.options = options;
+        this.target = target;
+        this.client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(Executors.newFixedThreadPool(4))
+            .build();
+        
+        Map<String, String> paths = new LinkedHashMap<>();
+        paths.put("health", "/health");
+        paths.put("logs", "/api/logs?limit=50");
+        paths.put("static", option("static", "/static/index.html"));
+        paths.put("routes", "/api/routes");
+        paths.put("config", "/api/server/config");
+        paths.put("stats", "/api/server/stats");
+        for (String part : option("mix", "health:60,logs:20,static:10,routes:10").split(",")) {
+            String[] nameWeight = part.trim().split(":");
+            String path = paths.getOrDefault(nameWeight[0], nameWeight[0].startsWith("/") ? nameWeight[0] : null);
+            if (path == null) {
+                throw new IllegalArgumentException("Unknown endpoint in --mix: " + nameWeight[0]);
+            }
+            int weight = nameWeight.length > 1 ? Integer.parseInt(nameWeight[1]) : 1;
+            endpoints.add(new Endpoint(nameWeight[0], HttpRequest.newBuilder(URI.create(target + path))
+                .timeout(Duration.ofSeconds(30)).GET().build(), weight));
+            totalWeight += weight;
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Arguments look like --name=value, got: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        
+        HttpServer server = null;
+        String target = options.get("target");
+        if (target == null) {
+            int port = Integer.parseInt(options.getOrDefault("port", "18080"));
+            server = new HttpServer(port);
+            server.start();
+            target = "http://127.0.0.1:" + port;
+        }
+        
+        try {
+            LoadGenerator generator = new LoadGenerator(options, target);
+            JsonObject report = generator.run();
+            if (options.containsKey("save")) {
+                try (Writer writer = Files.newBufferedWriter(Paths.get(options.get("save")))) {
+                    gson.toJson(report, writer);
+                }
+                System.out.println("Report saved to " + options.get("save"));
+            }
+            if (options.containsKey("baseline")) {
+                try (Reader reader = Files.newBufferedReader(Paths.get(options.get("baseline")))) {
+                    compare(JsonParser.parseReader(reader).getAsJsonObject(), report);
+                }
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+    
+    public JsonObject run() throws Exception {
+        String mode = option("mode", "open");
+        double rate = Double.parseDouble(option("rate", "closed".equals(mode) ? "0" : "1000"));
+        int connections = Integer.parseInt(option("connections", "16"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "5")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "30")));
+        
+        List<WebSocket> subscribers = openSubscribers(Integer.parseInt(option("ws", "0")));
+        
+        long start = System.nanoTime();
+        measureStartNanos = start + warmupNanos;
+        long end = measureStartNanos + durationNanos;
+        System.out.printf("%s loop against %s for %ds (+%ds warmup)%n", mode, target,
+            TimeUnit.NANOSECONDS.toSeconds(durationNanos), TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+        
+        if ("closed".equals(mode)) {
+            runClosedLoop(connections, rate, end);
+        } else if ("open".equals(mode)) {
+            runOpenLoop(rate, Integer.parseInt(option("max-in-flight", "512")), start, end);
+        } else {
+            throw new IllegalArgumentException("--mode must be open or closed");
+        }
+        double seconds = durationNanos / 1e9;
+        
+        for (WebSocket ws : subscribers) {
+            ws.abort();
+        }
+        return report(mode, rate, seconds, subscribers.size(), Subscriber.received.get());
+    }
+    
+    // Fixed schedule; a request that cannot start on time still counts from its slot
+    private void runOpenLoop(double rate, int maxInFlight, long start, long end) throws InterruptedException {
+        long intervalNanos = (long) (1e9 / rate);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        for (long i = 0; ; i++) {
+            long intended = start + i * intervalNanos;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            inFlight.acquire();
+            Endpoint endpoint = pick();
+            client.sendAsync(endpoint.request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    inFlight.release();
+                    endpoint.complete(intended, System.nanoTime(), response, error, 0);
+                });
+        }
+        inFlight.acquire(maxInFlight);
+    }
+    
+    private void runClosedLoop(int connections, double rate, long end) throws InterruptedException {
+        // Each worker is expected to start a request every connections/rate seconds
+        long expectedIntervalNanos = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+        ExecutorService workers = Executors.newFixedThreadPool(connections);
+        for (int c = 0; c < connections; c++) {
+            workers.execute(() -> {
+                while (System.nanoTime() < end) {
+                    Endpoint endpoint = pick();
+                    long begin = System.nanoTime();
+                    HttpResponse<Void> response = null;
+                    Throwable error = null;
+                    try {
+                        response = client.send(endpoint.request, HttpResponse.BodyHandlers.discarding());
+                    } catch (IOException e) {
+                        error = e;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long finished = System.nanoTime();
+                    endpoint.complete(begin, finished, response, error, expectedIntervalNanos);
+                    if (expectedIntervalNanos > 0) {
+                        long wait = begin + expectedIntervalNanos - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(end - System.nanoTime() + TimeUnit.SECONDS.toNanos(60), TimeUnit.NANOSECONDS);
+    }
+    
+    private List<WebSocket> openSubscribers(int count) {
+        List<WebSocket> sockets = new ArrayList<>();
+        if (count == 0) {
+            return sockets;
+        }
+        String wsTarget = options.containsKey("ws-target") ? options.get("ws-target")
+            : target.replaceFirst("^http", "ws").replaceFirst(":(\\d+)$", "") + ":" + (port(target) + 1);
+        List<CompletableFuture<WebSocket>> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pending.add(client.newWebSocketBuilder()
+                .buildAsync(URI.create(wsTarget + WebSocketManager.WEBSOCKET_PATH), new Subscriber()));
+        }
+        for (CompletableFuture<WebSocket> future : pending) {
+            sockets.add(future.join());
+        }
+        System.out.println(count + " WebSocket subscribers connected to " + wsTarget);
+        return sockets;
+    }
+    
+    private Endpoint pick() {
+        int roll = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Endpoint endpoint : endpoints) {
+            roll -= endpoint.weight;
+            if (roll < 0) {
+                return endpoint;
+            }
+        }
+        return endpoints.get(endpoints.size() - 1);
+    }
+    
+    private JsonObject report(String mode, double rate, double seconds, int subscribers, long wsMessages) {
+        JsonObject report = new JsonObject();
+        JsonObject config = new JsonObject();
+        config.addProperty("mode", mode);
+        config.addProperty("rate", rate);
+        config.addProperty("durationSeconds", seconds);
+        config.addProperty("mix", option("mix", "health:60,logs:20,static:10,routes:10"));
+        config.addProperty("wsSubscribers", subscribers);
+        report.add("config", config);
+        
+        LatencyHistogram total = new LatencyHistogram();
+        JsonObject results = new JsonObject();
+        System.out.printf("%n%-10s %10s %9s %8s %8s %9s %9s %9s %9s %9s %9s%n", "endpoint", "requests",
+            "req/s", "non-2xx", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "p99.99", "max ms");
+        for (Endpoint endpoint : endpoints) {
+            total.add(endpoint.histogram);
+            results.add(endpoint.name, summarize(endpoint.name, endpoint.histogram, seconds,
+                endpoint.non2xx.get(), endpoint.errors.get()));
+        }
+        long non2xx = endpoints.stream().mapToLong(e -> e.non2xx.get()).sum();
+        long errors = endpoints.stream().mapToLong(e -> e.errors.get()).sum();
+        results.add("total", summarize("total", total, seconds, non2xx, errors));
+        report.add("endpoints", results);
+        
+        if (subscribers > 0) {
+            report.addProperty("wsMessages", wsMessages);
+            System.out.printf("%nWebSocket: %d messages to %d subscribers (%.0f msg/s)%n",
+                wsMessages, subscribers, wsMessages / seconds);
+        }
+        if ("closed".equals(mode) && rate <= 0) {
+            System.out.println("\nClosed loop without --rate: latencies are NOT corrected for coordinated omission");
+        }
+        return report;
+    }
+    
+    private static JsonObject summarize(String name, LatencyHistogram histogram, double seconds,
+                                        long non2xx, long errors) {
+        JsonObject summary = new JsonObject();
+        summary.addProperty("requests", histogram.getCount());
+        summary.addProperty("throughput", histogram.getCount() / seconds);
+        summary.addProperty("non2xx", non2xx);
+        summary.addProperty("errors", errors);
+        summary.addProperty("meanMs", histogram.getMean() / 1000.0);
+        for (double percentile : PERCENTILES) {
+            summary.addProperty("p" + trim(percentile) + "Ms", histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        summary.addProperty("maxMs", histogram.getMax() / 1000.0);
+        
+        System.out.printf("%-10s %10d %9.0f %8d %8d", name, histogram.getCount(),
+            histogram.getCount() / seconds, non2xx, errors);
+        for (double percentile : PERCENTILES) {
+            System.out.printf(" %9.2f", histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        System.out.printf(" %9.2f%n", histogram.getMax() / 1000.0);
+        return summary;
+    }
+    
+    // Latency metrics are worse when higher, throughput when lower
+    private static void compare(JsonObject baseline, JsonObject current) {
+        System.out.printf("%nComparison with baseline (%s loop)%n", baseline.getAsJsonObject("config").get("mode").getAsString());
+        if (!baseline.get("config").equals(current.get("config"))) {
+            System.out.println("Note: run configuration differs from the baseline: " + baseline.get("config"));
+        }
+        System.out.printf("%-10s %-12s %12s %12s %9s%n", "endpoint", "metric", "baseline", "current", "change");
+        JsonObject before = baseline.getAsJsonObject("endpoints");
+        JsonObject after = current.getAsJsonObject("endpoints");
+        for (String endpoint : after.keySet()) {
+            if (!before.has(endpoint)) {
+                continue;
+            }
+            for (String metric : after.getAsJsonObject(endpoint).keySet()) {
+                if (!metric.equals("throughput") && !metric.startsWith("p") && !metric.equals("maxMs")) {
+                    continue;
+                }
+                double oldValue = before.getAsJsonObject(endpoint).get(metric).getAsDouble();
+                double newValue = after.getAsJsonObject(endpoint).get(metric).getAsDouble();
+                double change = oldValue == 0 ? 0 : (newValue - oldValue) / oldValue * 100;
+                boolean worse = metric.equals("throughput") ? change < -10 : change > 10;
+                System.out.printf("%-10s %-12s %12.2f %12.2f %+8.1f%%%s%n", endpoint, metric, oldValue, newValue,
+                    change, worse ? "  worse" : "");
+            }
+        }
+    }
+    
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+    
+    private static int port(String url) {
+        int port = URI.create(url).getPort();
+        return port > 0 ? port : 80;
+    }
+    
+    private static String trim(double value) {
+        return value == (long) value ? String.valueOf((long) value) : String.valueOf(value).replace('.', '_');
+    }
+    
+    private class Endpoint {
+        final String name;
+        final HttpRequest request;
+        final int weight;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong non2xx = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        
+        Endpoint(String name, HttpRequest request, int weight) {
+            this.name = name;
+            this.request = request;
+            this.weight = weight;
+        }
+        
+        // Samples that started during warmup are dropped
+        void complete(long startNanos, long endNanos, HttpResponse<?> response, Throwable error,
+                      long expectedIntervalNanos) {
+            if (startNanos < measureStartNanos) {
+                return;
+            }
+            if (error != null) {
+                errors.incrementAndGet();
+                return;
+            }
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                non2xx.incrementAndGet();
+            }
+            histogram.record(TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos),
+                TimeUnit.NANOSECONDS.toMicros(expectedIntervalNanos));
+        }
+    }
+    
+    private static class Subscriber implements WebSocket.Listener {
+        static final AtomicLong received = new AtomicLong();
+        
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            if (last) {
+                received.incrementAndGet();
+            }
+            webSocket.request(1);
+            return null;
+        }
+    }
+}
+
+// Log-linear latency histogram in microseconds: exact below 128us, then 64 buckets per
+// power of two (under 1.6% error). Thread-safe; recording never allocates.
+class LatencyHistogram {
+    private static final int LINEAR = 128;
+    private static final int PER_OCTAVE = 64;
+    
+    private final long[] counts = new long[LINEAR + 57 * PER_OCTAVE];
+    private long count;
+    private long sum;
+    private long max;
+    
+    // With expectedInterval > 0, a sample that took longer than one interval also records
+    // the requests that would have been issued meanwhile (HdrHistogram-style correction)
+    synchronized void record(long micros, long expectedIntervalMicros) {
+        recordOne(micros);
+        if (expectedIntervalMicros > 0) {
+            for (long missing = micros - expectedIntervalMicros; missing >= expectedIntervalMicros;
+                    missing -= expectedIntervalMicros) {
+                recordOne(missing);
+            }
+        }
+    }
+    
+    private void recordOne(long micros) {
+        long value = Math.max(0, micros);
+        counts[indexOf(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+    
+    synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+    }
+    
+    synchronized long getCount() {
+        return count;
+    }
+    
+    synchronized long getMax() {
+        return max;
+    }
+    
+    synchronized double getMean() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+    
+    synchronized long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueIn(i));
+            }
+        }
+        return max;
+    }
+    
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        return LINEAR + (shift - 1) * PER_OCTAVE + (int) (value >> shift) - PER_OCTAVE;
+    }
+    
+    private static long highestValueIn(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / PER_OCTAVE + 1;
+        long top = (index - LINEAR) % PER_OCTAVE + PER_OCTAVE;
+        return ((top + 1) << shift) - 1;
+    }
+}
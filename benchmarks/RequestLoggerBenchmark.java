@@ -0,0 +1,66 @@
+// JMH: RequestLogger under contention
+package com.httpserver;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Every benchmark is its own group so the state is shared per group. The
+// "contended" group runs three writers and one dashboard-style reader against
+// the same logger, the way worker threads and /api/logs polling meet in production
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RequestLoggerBenchmark {
+    private RequestLogger requestLogger;
+    private RequestLog log;
+    
+    @Setup
+    public void setup() {
+        requestLogger = new RequestLogger();
+        log = new RequestLog("GET", "/api/test", 200, 3, "127.0.0.1", "bench");
+        for (int i = 0; i < 1000; i++) {
+            requestLogger.logRequest(log);
+        }
+    }
+    
+    @Benchmark
+    @Group("logRequest")
+    public void logRequest() {
+        requestLogger.logRequest(log);
+    }
+    
+    @Benchmark
+    @Group("getLogs")
+    public List<RequestLog> getLogs() {
+        return requestLogger.getLogs(50);
+    }
+    
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedLogRequest() {
+        requestLogger.logRequest(log);
+    }
+    
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public List<RequestLog> contendedGetLogs() {
+        return requestLogger.getLogs(50);
+    }
+}
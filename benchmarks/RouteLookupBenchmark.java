@@ -0,0 +1,61 @@
+// JMH: RouteManager lookups
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpHandler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteLookupBenchmark {
+    @Param({"10", "500"})
+    int routeCount;
+    
+    private RouteManager routeManager;
+    private String hitPath;
+    
+    @Setup
+    public void setup() {
+        routeManager = new RouteManager();
+        for (int i = 0; i < routeCount; i++) {
+            routeManager.addRoute("/api/resource" + i, "GET", new CustomRouteHandler("Resource" + i));
+        }
+        hitPath = "/api/resource" + (routeCount / 2);
+    }
+    
+    @Benchmark
+    public HttpHandler hit() {
+        return routeManager.getHandler(hitPath, "GET");
+    }
+    
+    @Benchmark
+    public HttpHandler miss() {
+        return routeManager.getHandler("/api/unknown", "GET");
+    }
+    
+    @Benchmark
+    public HttpHandler lowercaseMethod() {
+        return routeManager.getHandler(hitPath, "get");
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public HttpHandler hitContended() {
+        return routeManager.getHandler(hitPath, "GET");
+    }
+}
@@ -0,0 +1,183 @@
+// Startup Time Benchmark
+package com.httpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Launches the server in a fresh JVM again and again and measures the time from spawning
+// the process to the first 200 on --path, for each startup mode:
+//
+//   eager       the defaults
+//   lazy        -Dserver.lazyInit=true
+//   eager+cds   the defaults on the AppCDS archive built by mvn -Pcds package
+//   lazy+cds    both
+//
+// The cds modes run when --archive exists. Runs are interleaved across modes so drift on
+// the machine hits every mode alike, and one untimed run first warms the page cache.
+//
+// Usage: StartupBenchmark [--runs=10] [--jar=target/java-http-server-1.0.0.jar]
+//                         [--archive=target/java-http-server-1.0.0.jsa] [--port=18700]
+//                         [--path=/health] [--jvmArgs="-Dhttps.keyStore=ks.p12"] [--timeout=30]
+//
+// Without the jar the server is started from this JVM's class path (cds modes need the jar).
+public class StartupBenchmark {
+    private static final int PORT_STRIDE = 10;
+    private static final int PORT_SLOTS = 20;
+    
+    private final String path;
+    private final long timeoutNanos;
+    private final List<String> launch = new ArrayList<>();
+    private final List<String> jvmArgs = new ArrayList<>();
+    private final int basePort;
+    private int nextSlot;
+    
+    StartupBenchmark(Map<String, String> options, Path jar) {
+        this.path = options.getOrDefault("path", "/health");
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("timeout", "30")));
+        this.basePort = Integer.parseInt(options.getOrDefault("port", "18700"));
+        String extra = options.getOrDefault("jvmArgs", "").trim();
+        if (!extra.isEmpty()) {
+            jvmArgs.addAll(Arrays.asList(extra.split("\\s+")));
+        }
+        // The graceful drain is never reached (the child is killed), but keep it short anyway
+        jvmArgs.add("-Dserver.drainTimeoutMs=0");
+        if (jar != null) {
+            launch.addAll(Arrays.asList("-jar", jar.toString()));
+        } else {
+            launch.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), HttpServer.class.getName()));
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Arguments look like --name=value, got: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+        Path jar = Paths.get(options.getOrDefault("jar", "target/java-http-server-1.0.0.jar"));
+        Path archive = Paths.get(options.getOrDefault("archive", "target/java-http-server-1.0.0.jsa"));
+        if (!Files.isRegularFile(jar)) {
+            System.out.println("No jar at " + jar + ", starting the server from the class path");
+            jar = null;
+        }
+        
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("eager", Collections.emptyList());
+        modes.put("lazy", Collections.singletonList("-Dserver.lazyInit=true"));
+        if (jar != null && Files.isRegularFile(archive)) {
+            modes.put("eager+cds", Collections.singletonList("-XX:SharedArchiveFile=" + archive));
+            modes.put("lazy+cds", Arrays.asList("-XX:SharedArchiveFile=" + archive, "-Dserver.lazyInit=true"));
+        } else {
+            System.out.println("No CDS archive at " + archive + " (build one with mvn -Pcds package), skipping cds modes");
+        }
+        
+        StartupBenchmark benchmark = new StartupBenchmark(options, jar);
+        benchmark.measure(Collections.emptyList());
+        Map<String, List<Double>> results = new LinkedHashMap<>();
+        for (int run = 0; run < runs; run++) {
+            for (Map.Entry<String, List<String>> mode : modes.entrySet()) {
+                results.computeIfAbsent(mode.getKey(), key -> new ArrayList<>()).add(benchmark.measure(mode.getValue()));
+            }
+        }
+        report(results);
+    }
+    
+    // Milliseconds from spawning the JVM to the first 200 response
+    private double measure(List<String> modeArgs) throws IOException, InterruptedException {
+        int port = basePort + (nextSlot++ % PORT_SLOTS) * PORT_STRIDE;
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.addAll(modeArgs);
+        command.addAll(launch);
+        command.add(String.valueOf(port));
+        
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        try {
+            while (!isOk(port)) {
+                if (!process.isAlive()) {
+                    throw new IOException("Server exited with status " + process.exitValue() + ": " + command);
+                }
+                if (System.nanoTime() - start > timeoutNanos) {
+                    throw new IOException("No 200 from " + path + " within the timeout: " + command);
+                }
+                Thread.sleep(1);
+            }
+            return (System.nanoTime() - start) / 1e6;
+        } finally {
+            process.destroyForcibly();
+            process.waitFor();
+        }
+    }
+    
+    private boolean isOk(int port) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            byte[] statusLine = new byte[12];
+            int read = 0;
+            while (read < statusLine.length) {
+                int n = in.read(statusLine, read, statusLine.length - read);
+                if (n < 0) {
+                    return false;
+                }
+                read += n;
+            }
+            return new String(statusLine, StandardCharsets.US_ASCII).endsWith(" 200");
+        } catch (ConnectException e) {
+            return false; // Not listening yet
+        }
+    }
+    
+    private static void report(Map<String, List<Double>> results) {
+        System.out.printf("%n%-12s %6s %10s %10s %10s %10s %18s%n",
+            "mode", "runs", "min ms", "median ms", "p90 ms", "max ms", "saved vs eager");
+        double baseline = Double.NaN;
+        for (Map.Entry<String, List<Double>> entry : results.entrySet()) {
+            List<Double> times = entry.getValue();
+            Collections.sort(times);
+            double median = percentile(times, 50);
+            if (Double.isNaN(baseline)) {
+                baseline = median;
+            }
+            System.out.printf("%-12s %6d %10.1f %10.1f %10.1f %10.1f %9.1f (%4.1f%%)%n",
+                entry.getKey(), times.size(), times.get(0), median, percentile(times, 90),
+                times.get(times.size() - 1), baseline - median, (baseline - median) / baseline * 100);
+        }
+    }
+    
+    // Nearest rank on sorted samples
+    private static double percentile(List<Double> sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return sorted.get(Math.max(0, rank - 1));
+    }
+}
@@ -0,0 +1,99 @@
+// JMH: StaticFileHandler content lookup
+package com.httpserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Serves files from a temporary document root through the full handler path:
+// path normalization, existence checks, MIME lookup and body write, or with the asset
+// index a map lookup instead of the first three
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StaticFileBenchmark {
+    @Param({"false", "true"})
+    private boolean indexed;
+    
+    private final BenchmarkExchange exchange = new BenchmarkExchange("GET", "/static/index.html");
+    private Path documentRoot;
+    private StaticFileHandler handler;
+    private StaticAssetIndex index;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        documentRoot = Files.createTempDirectory("static-bench");
+        Files.write(documentRoot.resolve("index.html"), repeat("<p>hello</p>\n", 200));
+        Files.createDirectories(documentRoot.resolve("css"));
+        Files.write(documentRoot.resolve("css/app.css"), repeat("body { margin: 0; }\n", 2000));
+        Files.write(documentRoot.resolve("bundle.js"), repeat("console.log('x');\n", 60000));
+        handler = new StaticFileHandler(documentRoot.toString());
+        if (indexed) {
+            index = new StaticAssetIndex(documentRoot.toString(), 1000);
+            index.start(false);
+            handler.setAssetIndex(index);
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (index != null) {
+            index.stop();
+        }
+        try (Stream<Path> paths = Files.walk(documentRoot)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    @Benchmark
+    public long smallFile() throws IOException {
+        handler.handle(exchange.reset("GET", "/static/index.html"));
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long nestedFile() throws IOException {
+        handler.handle(exchange.reset("GET", "/static/css/app.css"));
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long largeFile() throws IOException {
+        handler.handle(exchange.reset("GET", "/static/bundle.js"));
+        return exchange.getBytesWritten();
+    }
+    
+    @Benchmark
+    public long missingFile() throws IOException {
+        handler.handle(exchange.reset("GET", "/static/missing.png"));
+        return exchange.getBytesWritten();
+    }
+    
+    private static byte[] repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,151 @@
+// Loopback Stub Upstreams
+package com.httpserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Starts --count stub HTTP/1.1 servers on 127.0.0.1 for exercising proxy routes end to
+// end. Every path answers with a JSON line naming the stub, the request line and how many
+// body bytes it read. /health answers 200, or 503 while the stub is marked down.
+//
+//   /down, /up            mark this stub unhealthy or healthy
+//   ?latency=ms           delay the response
+//   ?size=bytes           pad the response body; add &chunked to send it chunked
+//   ?status=code          answer with this status
+//
+// --failRate=0.1 answers 500 for that fraction of requests, to trigger outlier ejection.
+//
+// Usage: StubUpstreams [--count=3] [--port=19001] [--latency=0] [--failRate=0]
+//
+// Then, against a running server:
+//   curl -X POST localhost:8080/api/routes -d '{"path": "/svc", "method": "*", "handler": "proxy",
+//        "upstreams": ["127.0.0.1:19001", "127.0.0.1:19002", "127.0.0.1:19003"],
+//        "balancer": "p2c", "healthPath": "/health", "healthIntervalMs": 1000}'
+//   LoadGenerator --target=http://127.0.0.1:8080 --mix=/svc:1
+public class StubUpstreams {
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                System.err.println("Arguments look like --name=value, got: " + arg);
+                System.exit(2);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        int count = Integer.parseInt(options.getOrDefault("count", "3"));
+        int basePort = Integer.parseInt(options.getOrDefault("port", "19001"));
+        long latency = Long.parseLong(options.getOrDefault("latency", "0"));
+        double failRate = Double.parseDouble(options.getOrDefault("failRate", "0"));
+        
+        List<com.sun.net.httpserver.HttpServer> stubs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int port = basePort + i;
+            com.sun.net.httpserver.HttpServer stub = com.sun.net.httpserver.HttpServer.create(
+                new InetSocketAddress("127.0.0.1", port), 1024);
+            stub.createContext("/", new Stub(port, latency, failRate)::handle);
+            stub.setExecutor(Executors.newFixedThreadPool(16));
+            stub.start();
+            stubs.add(stub);
+            System.out.println("Stub upstream on 127.0.0.1:" + port);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> stubs.forEach(stub -> stub.stop(0))));
+    }
+    
+    private static class Stub {
+        private final int port;
+        private final long latency;
+        private final double failRate;
+        private final AtomicBoolean up = new AtomicBoolean(true);
+        private final AtomicLong requests = new AtomicLong();
+        
+        Stub(int port, long latency, double failRate) {
+            this.port = port;
+            this.latency = latency;
+            this.failRate = failRate;
+        }
+        
+        void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getQuery());
+            long bodyBytes = drain(exchange.getRequestBody());
+            
+            if ("/health".equals(path)) {
+                respond(exchange, up.get() ? 200 : 503, "{\"up\":" + up.get() + "}", false);
+                return;
+            }
+            if ("/down".equals(path) || "/up".equals(path)) {
+                up.set("/up".equals(path));
+                respond(exchange, 200, "{\"up\":" + up.get() + "}", false);
+                return;
+            }
+            
+            long delay = Long.parseLong(query.getOrDefault("latency", String.valueOf(latency)));
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            int status = Integer.parseInt(query.getOrDefault("status",
+                ThreadLocalRandom.current().nextDouble() < failRate ? "500" : "200"));
+            
+            StringBuilder body = new StringBuilder()
+                .append("{\"upstream\":").append(port)
+                .append(",\"request\":").append(requests.incrementAndGet())
+                .append(",\"method\":\"").append(exchange.getRequestMethod())
+                .append("\",\"path\":\"").append(path)
+                .append("\",\"forwardedFor\":\"").append(exchange.getRequestHeaders().getFirst("X-Forwarded-For"))
+                .append("\",\"bodyBytes\":").append(bodyBytes).append('}');
+            int size = Integer.parseInt(query.getOrDefault("size", "0"));
+            while (body.length() < size) {
+                body.append(' ');
+            }
+            respond(exchange, status, body.append('\n').toString(), size > 0 && query.containsKey("chunked"));
+        }
+        
+        private static void respond(HttpExchange exchange, int status, String body, boolean chunked)
+            throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, chunked ? 0 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+        
+        private static long drain(InputStream in) throws IOException {
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+        
+        private static Map<String, String> parseQuery(String query) {
+            Map<String, String> values = new LinkedHashMap<>();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int eq = pair.indexOf('=');
+                    values.put(eq < 0 ? pair : pair.substring(0, eq), eq < 0 ? "" : pair.substring(eq + 1));
+                }
+            }
+            return values;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+// JMH: traffic sketch recording
+package com.httpserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per-request cost of TrafficRecordingHandler's record(), with a skewed path mix and
+// either a few clients (counter hits) or a spray of addresses (counter takeovers)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrafficSketchBenchmark {
+    private static final int KEYS = 4096;
+    
+    @Param({"16", "100000"})
+    int clientCount;
+    
+    private TrafficSketches sketches;
+    private String[] paths;
+    private String[] clients;
+    
+    @Setup
+    public void setup() {
+        sketches = new TrafficSketches(60, 60, 256, 64, 12);
+        paths = new String[KEYS];
+        clients = new String[KEYS];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < KEYS; i++) {
+            // Zipf-like: a few paths take most of the traffic
+            paths[i] = "/api/resource" + (int) (Math.pow(random.nextDouble(), 3) * 200);
+            int client = random.nextInt(clientCount);
+            clients[i] = "10." + (client >> 16 & 255) + "." + (client >> 8 & 255) + "." + (client & 255);
+        }
+    }
+    
+    @Benchmark
+    public void record() {
+        int i = ThreadLocalRandom.current().nextInt(KEYS);
+        sketches.record(paths[i], paths[i], clients[i], "Mozilla/5.0");
+    }
+    
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        int i = ThreadLocalRandom.current().nextInt(KEYS);
+        sketches.record(paths[i], paths[i], clients[i], "Mozilla/5.0");
+    }
+}
@@ -0,0 +1,81 @@
+// JMH: WebSocket frame encoding
+package com.httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Payload sizes cover the three length encodings (7-bit, 16-bit and 64-bit). Frames are
+// encoded into pooled direct buffers and released, as the event loops do.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebSocketFrameBenchmark {
+    @Param({"100", "1000", "70000"})
+    int payloadSize;
+    
+    private final PerMessageDeflate perMessageDeflate =
+        new PerMessageDeflate(true, Deflater.DEFAULT_COMPRESSION, 15, false);
+    private final BufferPool pool = BufferPool.direct();
+    private byte[] payload;
+    private Deflater contextTakeover;
+    
+    @Setup
+    public void setup() {
+        byte[] log = JsonWriter.toBytes(new RequestLog("GET", "/api/test", 200, 3, "127.0.0.1",
+            "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36"));
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i += log.length) {
+            System.arraycopy(log, 0, payload, i, Math.min(log.length, payloadSize - i));
+        }
+        contextTakeover = perMessageDeflate.acquireDeflater();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        perMessageDeflate.releaseDeflater(contextTakeover);
+    }
+    
+    @Benchmark
+    public int plainFrame() {
+        return release(WebSocketManager.encodeFrame(pool, payload, payload.length, false));
+    }
+    
+    @Benchmark
+    public int deflateStateless() {
+        return release(perMessageDeflate.encodeStatelessFrame(pool, payload));
+    }
+    
+    @Benchmark
+    public int deflateContextTakeover() {
+        return release(perMessageDeflate.encodeFrame(pool, contextTakeover, payload));
+    }
+    
+    @Benchmark
+    public int serializeAndFrame() {
+        byte[] json = JsonWriter.toBytes(new RequestLog("GET", "/api/test", 200, 3, "127.0.0.1", "bench"));
+        return release(WebSocketManager.encodeFrame(pool, json, json.length, false));
+    }
+    
+    private int release(ByteBuffer frame) {
+        int length = frame.remaining();
+        pool.release(frame);
+        return length;
+    }
+}
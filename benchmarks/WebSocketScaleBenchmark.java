@@ -0,0 +1,149 @@
+// WebSocket Subscriber Scale Benchmark
+package com.httpserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+// Opens N idle /ws/logs subscribers against an in-process WebSocketServer and
+// reports server threads, heap per connection and broadcast fan-out time.
+// Clients share the JVM, so the heap figure is an upper bound for the server side.
+//
+// Usage: WebSocketScaleBenchmark [connections=10000] [eventLoops=2] [broadcasts=20]
+// Needs roughly 2 x connections file descriptors (ulimit -n).
+public class WebSocketScaleBenchmark {
+    private static final int PORT = 0;
+    
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int eventLoops = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int broadcasts = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        WebSocketServer server = new WebSocketServer(PORT, WebSocketManager.WEBSOCKET_PATH, eventLoops,
+            PerMessageDeflate.disabled());
+        server.start();
+        
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = Thread.activeCount();
+        
+        Selector clientSelector = Selector.open();
+        List<SocketChannel> clients = new ArrayList<>(connections);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()));
+            client.write(ByteBuffer.wrap(handshakeRequest().getBytes(StandardCharsets.US_ASCII)));
+            client.configureBlocking(false);
+            client.register(clientSelector, SelectionKey.OP_READ, new long[1]);
+            clients.add(client);
+        }
+        
+        // Drain the 101 responses and wait until every subscriber is registered
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        while (server.getConnectionCount() < connections) {
+            drain(clientSelector, readBuffer, 100);
+        }
+        drain(clientSelector, readBuffer, 200);
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+        
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+        int serverThreads = countThreads("ws-");
+        
+        for (SelectionKey key : clientSelector.keys()) {
+            ((long[]) key.attachment())[0] = 0;
+        }
+        
+        byte[] payload = samplePayload();
+        int frameLength = WebSocketManager.frameHeaderLength(payload.length) + payload.length;
+        long expectedBytes = (long) frameLength * broadcasts;
+        
+        long fanOutStart = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            server.broadcast(payload);
+        }
+        int complete = 0;
+        while (complete < connections) {
+            drain(clientSelector, readBuffer, 100);
+            complete = 0;
+            for (SelectionKey key : clientSelector.keys()) {
+                if (((long[]) key.attachment())[0] >= expectedBytes) {
+                    complete++;
+                }
+            }
+        }
+        long fanOutNanos = System.nanoTime() - fanOutStart;
+        
+        System.out.println("connections            : " + connections);
+        System.out.println("event loops            : " + eventLoops);
+        System.out.println("connect time           : " + connectMillis + " ms");
+        System.out.println("server threads (ws-*)  : " + serverThreads);
+        System.out.println("JVM threads delta      : " + (Thread.activeCount() - threadsBefore));
+        System.out.printf("heap per connection    : %.0f bytes (client + server)%n",
+            (heapAfter - heapBefore) / (double) connections);
+        System.out.printf("fan-out                : %d broadcasts x %d subscribers in %.1f ms (%.2f us per delivery)%n",
+            broadcasts, connections, fanOutNanos / 1e6, fanOutNanos / 1e3 / ((double) broadcasts * connections));
+        
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        clientSelector.close();
+        server.stop();
+    }
+    
+    private static void drain(Selector selector, ByteBuffer buffer, long timeoutMillis) throws Exception {
+        if (selector.select(timeoutMillis) == 0) {
+            return;
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            buffer.clear();
+            int read = ((SocketChannel) key.channel()).read(buffer);
+            if (read > 0) {
+                ((long[]) key.attachment())[0] += read;
+            } else if (read < 0) {
+                key.cancel();
+            }
+        }
+    }
+    
+    private static String handshakeRequest() {
+        byte[] nonce = new byte[16];
+        new Random().nextBytes(nonce);
+        return "GET " + WebSocketManager.WEBSOCKET_PATH + " HTTP/1.1\r\n"
+            + "Host: localhost\r\n"
+            + "Upgrade: websocket\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Sec-WebSocket-Key: " + Base64.getEncoder().encodeToString(nonce) + "\r\n"
+            + "Sec-WebSocket-Version: 13\r\n\r\n";
+    }
+    
+    private static byte[] samplePayload() {
+        return ("{\"id\":\"2f1c7a3e-8d0b-4e55-9b1a-6f2d3c4b5a69\",\"timestamp\":\"12:00:00\",\"method\":\"GET\","
+            + "\"path\":\"/health\",\"status\":200,\"responseTime\":1,\"clientIp\":\"127.0.0.1\","
+            + "\"userAgent\":\"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36\"}").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+# Builds the JMH jar and runs the benchmarks with allocation profiling.
+# Results go to benchmarks/results/<commit>.json so runs can be diffed across commits:
+#
+#   benchmarks/run-jmh.sh                      # all benchmarks
+#   benchmarks/run-jmh.sh RouteLookup          # any extra args go to JMH
+#   java -cp target/benchmarks.jar com.httpserver.JmhResultCompare \
+#       benchmarks/results/<old>.json benchmarks/results/<new>.json
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+mvn -B -q -Pjmh -DskipTests package
+
+commit=$(git rev-parse --short HEAD)
+if ! git diff --quiet HEAD -- . ':!benchmarks/results'; then
+    commit="$commit-dirty"
+fi
+mkdir -p benchmarks/results
+
+java -jar target/benchmarks.jar -prof gc -rf json -rff "benchmarks/results/$commit.json" "$@"
+echo "Results written to benchmarks/results/$commit.json"
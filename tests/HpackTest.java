@@ -0,0 +1,250 @@
+// HPACK tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+// Decoding vectors are the examples of RFC 7541 Appendix C
+class HpackTest {
+    @Test
+    void encodesIntegers() {
+        // C.1.1 - C.1.3
+        assertArrayEquals(hex("0a"), integer(0x00, 5, 10));
+        assertArrayEquals(hex("1f9a0a"), integer(0x00, 5, 1337));
+        assertArrayEquals(hex("2a"), integer(0x00, 8, 42));
+    }
+
+    @Test
+    void decodesLiteralFields() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+        // C.2.1, literal with indexing
+        assertFields(decode(decoder, "400a637573746f6d2d6b65790d637573746f6d2d686561646572"),
+            "custom-key", "custom-header");
+        assertFields(decode(decoder, "be"), "custom-key", "custom-header");
+
+        HpackDecoder fresh = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+        // C.2.2, without indexing; C.2.3, never indexed; C.2.4, indexed
+        assertFields(decode(fresh, "040c2f73616d706c652f70617468"), ":path", "/sample/path");
+        assertFields(decode(fresh, "100870617373776f726406736563726574"), "password", "secret");
+        assertFields(decode(fresh, "82"), ":method", "GET");
+        // None of them went into the dynamic table
+        assertThrows(Http2Exception.class, () -> decode(fresh, "be"));
+    }
+
+    @Test
+    void decodesRequestsWithoutHuffman() throws Http2Exception {
+        decodeRequests("828684410f7777772e6578616d706c652e636f6d",
+            "828684be58086e6f2d6361636865",
+            "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+    }
+
+    @Test
+    void decodesRequestsWithHuffman() throws Http2Exception {
+        decodeRequests("828684418cf1e3c2e5f23a6ba0ab90f4ff",
+            "828684be5886a8eb10649cbf",
+            "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+    }
+
+    // C.3 and C.4: three requests on one connection, sharing the dynamic table
+    private static void decodeRequests(String first, String second, String third) throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+        assertFields(decode(decoder, first),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertFields(decode(decoder, second),
+            ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+            "cache-control", "no-cache");
+        assertFields(decode(decoder, third),
+            ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+            "custom-key", "custom-value");
+        assertFields(decode(decoder, "bebfc0"),
+            "custom-key", "custom-value", "cache-control", "no-cache", ":authority", "www.example.com");
+        assertThrows(Http2Exception.class, () -> decode(decoder, "c1"));
+    }
+
+    @Test
+    void evictsResponsesWithoutHuffman() throws Http2Exception {
+        decodeResponses("4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31333a323120474d54"
+                + "6e1768747470733a2f2f7777772e6578616d706c652e636f6d",
+            "4803333037c1c0bf",
+            "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a69707738666f6f3d"
+                + "4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d6167653d333630303b207665"
+                + "7273696f6e3d31");
+    }
+
+    @Test
+    void evictsResponsesWithHuffman() throws Http2Exception {
+        decodeResponses("488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d29ad171863c78f0b"
+                + "97c8e9ae82ae43d3",
+            "4883640effc1c0bf",
+            "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b335dfdf"
+                + "cd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007");
+    }
+
+    // C.5 and C.6: three responses through a 256-byte table, each evicting older entries
+    private static void decodeResponses(String first, String second, String third) throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(256, 64 * 1024);
+        String date = "Mon, 21 Oct 2013 20:13:21 GMT";
+        String location = "https://www.example.com";
+        assertFields(decode(decoder, first),
+            ":status", "302", "cache-control", "private", "date", date, "location", location);
+        assertFields(decode(decoder, "bebfc0c1"),
+            "location", location, "date", date, "cache-control", "private", ":status", "302");
+
+        // Adding :status 307 evicts :status 302
+        assertFields(decode(decoder, second),
+            ":status", "307", "cache-control", "private", "date", date, "location", location);
+        assertFields(decode(decoder, "bebfc0c1"),
+            ":status", "307", "location", location, "date", date, "cache-control", "private");
+        assertThrows(Http2Exception.class, () -> decode(decoder, "c2"));
+
+        // The new date, content-encoding and set-cookie push out all four
+        String laterDate = "Mon, 21 Oct 2013 20:13:22 GMT";
+        String cookie = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+        assertFields(decode(decoder, third),
+            ":status", "200", "cache-control", "private", "date", laterDate, "location", location,
+            "content-encoding", "gzip", "set-cookie", cookie);
+        assertFields(decode(decoder, "bebfc0"),
+            "set-cookie", cookie, "content-encoding", "gzip", "date", laterDate);
+        assertThrows(Http2Exception.class, () -> decode(decoder, "c1"));
+    }
+
+    @Test
+    void huffmanEncodesRfcExamples() throws Http2Exception {
+        assertHuffman("www.example.com", "f1e3c2e5f23a6ba0ab90f4ff");
+        assertHuffman("no-cache", "a8eb10649cbf");
+        assertHuffman("custom-key", "25a849e95ba97d7f");
+        assertHuffman("private", "aec3771a4b");
+        assertHuffman("Mon, 21 Oct 2013 20:13:21 GMT", "d07abe941054d444a8200595040b8166e082a62d1bff");
+    }
+
+    private static void assertHuffman(String text, String encoded) throws Http2Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HpackHuffman.encode(out, text);
+        assertArrayEquals(hex(encoded), out.toByteArray());
+        assertEquals(encoded.length() / 2, HpackHuffman.encodedLength(text));
+        byte[] bytes = hex(encoded);
+        assertEquals(text, HpackHuffman.decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void huffmanRoundTripsEveryOctet() throws Http2Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 256; i++) {
+            text.append((char) i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HpackHuffman.encode(out, text.toString());
+        byte[] bytes = out.toByteArray();
+        assertEquals(text.toString(), HpackHuffman.decode(bytes, 0, bytes.length));
+    }
+
+    @Test
+    void rejectsInvalidHuffmanPadding() {
+        // "www.example.com" with its last padding bit cleared
+        byte[] badPadding = hex("f1e3c2e5f23a6ba0ab90f4fe");
+        assertThrows(Http2Exception.class, () -> HpackHuffman.decode(badPadding, 0, badPadding.length));
+        // A whole byte of padding
+        byte[] longPadding = hex("f1e3c2e5f23a6ba0ab90f4ffff");
+        assertThrows(Http2Exception.class, () -> HpackHuffman.decode(longPadding, 0, longPadding.length));
+    }
+
+    @Test
+    void dynamicTableEvictsOldestEntriesFirst() {
+        // Each entry is 1 + 1 + 32 = 34 bytes, so three fit in 110
+        HpackDynamicTable table = new HpackDynamicTable(110);
+        table.add("a", "1");
+        table.add("b", "2");
+        table.add("c", "3");
+        assertEquals(3, table.length());
+        table.add("d", "4");
+        assertEquals(3, table.length());
+        assertArrayEquals(new String[] {"d", "4"}, table.get(1));
+        assertArrayEquals(new String[] {"b", "2"}, table.get(3));
+        assertEquals(0, table.find("a", "1"));
+
+        table.setMaxSize(40);
+        assertEquals(1, table.length());
+        assertArrayEquals(new String[] {"d", "4"}, table.get(1));
+
+        // An entry larger than the whole table empties it
+        table.add("name", "a value well over forty bytes long");
+        assertEquals(0, table.length());
+    }
+
+    @Test
+    void rejectsTableSizeUpdateAboveLimit() {
+        HpackDecoder decoder = new HpackDecoder(256, 64 * 1024);
+        // Dynamic table size update to 4096
+        assertThrows(Http2Exception.class, () -> decode(decoder, "3fe11f"));
+    }
+
+    @Test
+    void encoderOutputRoundTripsAndReusesTheTable() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+        String[] fields = {":status", "200", "content-type", "application/json", "x-request-id", "abc",
+            "set-cookie", "session=1", "content-length", "42"};
+
+        byte[] first = block(encoder, fields);
+        assertFields(decoder.decode(first, 0, first.length), fields);
+        byte[] second = block(encoder, fields);
+        assertFields(decoder.decode(second, 0, second.length), fields);
+        // Indexed fields shrink to one byte; never-indexed and unindexed ones stay literal
+        assertTrue(second.length < first.length / 2, second.length + " vs " + first.length);
+    }
+
+    @Test
+    void encoderSignalsSmallerPeerTable() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        encoder.setMaxTableSize(0);
+        HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+        byte[] block = block(encoder, "x-custom", "value");
+        assertEquals(0x20, block[0] & 0xFF);
+        assertFields(decoder.decode(block, 0, block.length), "x-custom", "value");
+        assertThrows(Http2Exception.class, () -> decode(decoder, "be"));
+    }
+
+    private static byte[] block(HpackEncoder encoder, String... fields) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.beginBlock(out);
+        for (int i = 0; i < fields.length; i += 2) {
+            encoder.encode(out, fields[i], fields[i + 1]);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] integer(int flags, int prefixBits, int value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Hpack.writeInt(out, flags, prefixBits, value);
+        return out.toByteArray();
+    }
+
+    private static List<String[]> decode(HpackDecoder decoder, String hex) throws Http2Exception {
+        byte[] block = hex(hex);
+        return decoder.decode(block, 0, block.length);
+    }
+
+    private static void assertFields(List<String[]> actual, String... expected) {
+        List<String> flat = new ArrayList<>();
+        for (String[] field : actual) {
+            flat.add(field[0]);
+            flat.add(field[1]);
+        }
+        assertEquals(List.of(expected), flat);
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
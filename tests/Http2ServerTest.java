@@ -0,0 +1,304 @@
+// HTTP/2 frame handling tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Speaks raw frames to a prior-knowledge h2c listener on loopback
+class Http2ServerTest {
+    private static final int MAX_CONCURRENT_STREAMS = 2;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+    private Http2Server server;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(Hpack.DEFAULT_TABLE_SIZE, 64 * 1024);
+
+    @BeforeEach
+    void start() throws IOException {
+        ContextRegistry contexts = new ContextRegistry();
+        contexts.register("/hello", exchange -> {
+            byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        contexts.register("/large", exchange -> {
+            int length = Integer.parseInt(exchange.getRequestURI().getQuery());
+            exchange.sendResponseHeaders(200, length);
+            exchange.getResponseBody().write(new byte[length]);
+            exchange.close();
+        });
+        contexts.register("/wait", exchange -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        executor = Executors.newCachedThreadPool();
+        server = new Http2Server(0, contexts, executor, MAX_CONCURRENT_STREAMS);
+        server.start();
+
+        socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = socket.getOutputStream();
+        out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        release.countDown();
+        socket.close();
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void answersHeadersSplitAcrossContinuation() throws IOException {
+        handshake(new byte[0]);
+        byte[] block = requestBlock("/hello");
+        int split = block.length / 2;
+        writeFrame(Http2Connection.HEADERS, Http2Connection.FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, split));
+        writeFrame(Http2Connection.CONTINUATION, Http2Connection.FLAG_END_HEADERS, 1,
+            Arrays.copyOfRange(block, split, block.length));
+
+        Frame headers = nextFrame(Http2Connection.HEADERS);
+        assertEquals("200", status(headers));
+        assertEquals("hello", new String(readBody(1, 5), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rejectsFramesInterleavedWithContinuation() throws IOException {
+        handshake(new byte[0]);
+        byte[] block = requestBlock("/hello");
+        writeFrame(Http2Connection.HEADERS, Http2Connection.FLAG_END_STREAM, 1, Arrays.copyOfRange(block, 0, 2));
+        writeFrame(Http2Connection.PING, 0, 0, new byte[8]);
+
+        Frame goAway = nextFrame(Http2Connection.GOAWAY);
+        assertEquals(Http2Exception.PROTOCOL_ERROR, readInt(goAway.payload, 4));
+    }
+
+    @Test
+    void stallsOnStreamWindowUntilWindowUpdate() throws IOException {
+        // The client's initial stream window is 10 bytes
+        handshake(setting(0x4, 10));
+        request(1, "/large?100");
+        nextFrame(Http2Connection.HEADERS);
+        assertEquals(10, readBody(1, 10).length);
+        assertNull(pollFrame(Http2Connection.DATA, 300));
+
+        writeFrame(Http2Connection.WINDOW_UPDATE, 0, 1, intBytes(90));
+        assertEquals(90, readBody(1, 90).length);
+    }
+
+    @Test
+    void stallsOnConnectionWindowUntilWindowUpdate() throws IOException {
+        // A large stream window leaves the 65535-byte connection window as the limit
+        handshake(setting(0x4, 1 << 20));
+        request(1, "/large?100000");
+        nextFrame(Http2Connection.HEADERS);
+        assertEquals(65535, readBody(1, 65535).length);
+        assertNull(pollFrame(Http2Connection.DATA, 300));
+
+        writeFrame(Http2Connection.WINDOW_UPDATE, 0, 0, intBytes(100000 - 65535));
+        assertEquals(100000 - 65535, readBody(1, 100000 - 65535).length);
+    }
+
+    @Test
+    void rejectsZeroWindowIncrement() throws IOException {
+        handshake(new byte[0]);
+        writeFrame(Http2Connection.WINDOW_UPDATE, 0, 0, intBytes(0));
+
+        Frame goAway = nextFrame(Http2Connection.GOAWAY);
+        assertEquals(Http2Exception.PROTOCOL_ERROR, readInt(goAway.payload, 4));
+    }
+
+    @Test
+    void refusesStreamsPastTheConcurrencyLimit() throws IOException {
+        handshake(new byte[0]);
+        request(1, "/wait");
+        request(3, "/wait");
+        request(5, "/hello");
+
+        Frame reset = nextFrame(Http2Connection.RST_STREAM);
+        assertEquals(5, reset.streamId);
+        assertEquals(Http2Exception.REFUSED_STREAM, readInt(reset.payload, 0));
+
+        // Once the first two finish, a retry is served. The server frees a slot just after
+        // writing END_STREAM, so a retry racing that is refused again and retried again.
+        release.countDown();
+        assertEquals("204", status(nextFrame(Http2Connection.HEADERS)));
+        assertEquals("204", status(nextFrame(Http2Connection.HEADERS)));
+        for (int streamId = 7; ; streamId += 2) {
+            assertTrue(streamId < 27, "retries kept being refused");
+            request(streamId, "/hello");
+            Frame answer = nextFrame(streamId, Http2Connection.HEADERS, Http2Connection.RST_STREAM);
+            if (answer.type == Http2Connection.HEADERS) {
+                assertEquals("200", status(answer));
+                break;
+            }
+            assertEquals(Http2Exception.REFUSED_STREAM, readInt(answer.payload, 0));
+        }
+    }
+
+    // Our SETTINGS, then the server's SETTINGS and its ACK of ours
+    private void handshake(byte[] settings) throws IOException {
+        writeFrame(Http2Connection.SETTINGS, 0, 0, settings);
+        Frame serverSettings = nextFrame(Http2Connection.SETTINGS);
+        assertEquals(0, serverSettings.flags & Http2Connection.FLAG_ACK);
+        writeFrame(Http2Connection.SETTINGS, Http2Connection.FLAG_ACK, 0, new byte[0]);
+        Frame ack = nextFrame(Http2Connection.SETTINGS);
+        assertEquals(Http2Connection.FLAG_ACK, ack.flags & Http2Connection.FLAG_ACK);
+    }
+
+    private void request(int streamId, String path) throws IOException {
+        writeFrame(Http2Connection.HEADERS, Http2Connection.FLAG_END_STREAM | Http2Connection.FLAG_END_HEADERS,
+            streamId, requestBlock(path));
+    }
+
+    private byte[] requestBlock(String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.beginBlock(block);
+        encoder.encode(block, ":method", "GET");
+        encoder.encode(block, ":scheme", "http");
+        encoder.encode(block, ":path", path);
+        encoder.encode(block, ":authority", "localhost");
+        encoder.encode(block, "user-agent", "http2-server-test");
+        return block.toByteArray();
+    }
+
+    private String status(Frame headers) throws Http2Exception {
+        List<String[]> fields = decoder.decode(headers.payload, 0, headers.payload.length);
+        assertEquals(":status", fields.get(0)[0]);
+        return fields.get(0)[1];
+    }
+
+    // DATA payloads of one stream until the expected length has arrived
+    private byte[] readBody(int streamId, int length) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (body.size() < length) {
+            Frame data = nextFrame(Http2Connection.DATA);
+            assertEquals(streamId, data.streamId);
+            body.write(data.payload, 0, data.payload.length);
+        }
+        assertEquals(length, body.size());
+        return body.toByteArray();
+    }
+
+    private Frame nextFrame(int type) throws IOException {
+        Frame frame = pollFrame(type, 5000);
+        assertTrue(frame != null, "no frame of type " + type);
+        return frame;
+    }
+
+    // The first frame of either type on one stream
+    private Frame nextFrame(int streamId, int type, int otherType) throws IOException {
+        socket.setSoTimeout(5000);
+        while (true) {
+            Frame frame = readFrame();
+            if (frame.streamId == streamId && (frame.type == type || frame.type == otherType)) {
+                return frame;
+            }
+        }
+    }
+
+    // Skips frames of other types; null when none arrives in time
+    private Frame pollFrame(int type, int timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return null;
+            }
+            socket.setSoTimeout((int) remaining);
+            Frame frame;
+            try {
+                frame = readFrame();
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+            if (frame.type == type) {
+                return frame;
+            }
+        }
+    }
+
+    private Frame readFrame() throws IOException {
+        byte[] header = new byte[9];
+        in.readFully(header);
+        int length = ((header[0] & 0xFF) << 16) | ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new Frame(header[3] & 0xFF, header[4] & 0xFF, readInt(header, 5) & 0x7FFFFFFF, payload);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        byte[] frame = new byte[9 + payload.length];
+        frame[0] = (byte) (payload.length >>> 16);
+        frame[1] = (byte) (payload.length >>> 8);
+        frame[2] = (byte) payload.length;
+        frame[3] = (byte) type;
+        frame[4] = (byte) flags;
+        System.arraycopy(intBytes(streamId), 0, frame, 5, 4);
+        System.arraycopy(payload, 0, frame, 9, payload.length);
+        out.write(frame);
+        out.flush();
+    }
+
+    private static byte[] setting(int id, int value) {
+        byte[] payload = new byte[6];
+        payload[0] = (byte) (id >>> 8);
+        payload[1] = (byte) id;
+        System.arraycopy(intBytes(value), 0, payload, 2, 4);
+        return payload;
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    private static class Frame {
+        final int type;
+        final int flags;
+        final int streamId;
+        final byte[] payload;
+
+        Frame(int type, int flags, int streamId, byte[] payload) {
+            this.type = type;
+            this.flags = flags;
+            this.streamId = streamId;
+            this.payload = payload;
+        }
+    }
+}
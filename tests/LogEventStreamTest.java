@@ -0,0 +1,98 @@
+// Event stream tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LogEventStreamTest {
+    // Long enough that a client connects well before the first flush
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private RequestLogger requestLogger;
+    private LogEventStream stream;
+    private HttpServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        requestLogger = new RequestLogger();
+        stream = new LogEventStream(requestLogger, FLUSH_INTERVAL_MILLIS, 15_000, 10, 1 << 20, 1);
+        stream.start();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/stream", stream);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        stream.stop();
+        server.stop(0);
+    }
+
+    @Test
+    void clientConnectingMidIntervalGetsEachEventOnce() throws IOException {
+        log("GET", "/a");
+        log("POST", "/b");
+        log("GET", "/c");
+        try (BufferedReader events = open("/stream?lastEventId=0")) {
+            assertEquals(Arrays.asList(1L, 2L, 3L), readIds(events, 3));
+            // The first flush then carries 1-4
+            log("GET", "/d");
+            assertEquals(Arrays.asList(4L), readIds(events, 4));
+        }
+    }
+
+    @Test
+    void filteredClientConnectingMidIntervalGetsEachEventOnce() throws IOException {
+        log("GET", "/a");
+        log("POST", "/b");
+        log("GET", "/c");
+        try (BufferedReader events = open("/stream?lastEventId=0&method=GET")) {
+            assertEquals(Arrays.asList(1L, 3L), readIds(events, 3));
+            log("POST", "/d");
+            log("GET", "/e");
+            assertEquals(Arrays.asList(5L), readIds(events, 5));
+        }
+    }
+
+    private void log(String method, String path) {
+        requestLogger.logRequest(new RequestLog(method, path, 200, 1, "127.0.0.1", "test"));
+    }
+
+    private BufferedReader open(String path) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout((int) FLUSH_INTERVAL_MILLIS * 5);
+        assertEquals(200, connection.getResponseCode());
+        return new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    // Event ids up to and including the last one expected
+    private static List<Long> readIds(BufferedReader events, long lastId) throws IOException {
+        List<Long> ids = new ArrayList<>();
+        String line;
+        while ((line = events.readLine()) != null) {
+            if (line.startsWith("id: ")) {
+                long id = Long.parseLong(line.substring(4));
+                ids.add(id);
+                if (id == lastId) {
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+}
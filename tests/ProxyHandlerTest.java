@@ -0,0 +1,387 @@
+// Reverse proxy tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ProxyHandlerTest {
+    private final List<Closeable> resources = new ArrayList<>();
+    private ExecutorService executor;
+
+    @AfterEach
+    void close() throws IOException {
+        Collections.reverse(resources);
+        for (Closeable resource : resources) {
+            resource.close();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void relaysContentLengthBody() throws IOException {
+        RawUpstream upstream = upstream("HTTP/1.1 200 OK\r\nContent-Length: 11\r\nX-Upstream: yes\r\n\r\nhello world", false);
+        int port = proxy(group(UpstreamGroup.POWER_OF_TWO, upstream));
+
+        HttpURLConnection connection = get(port, "/relay");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("yes", connection.getHeaderField("X-Upstream"));
+        assertEquals("hello world", body(connection));
+        assertEquals("GET /relay HTTP/1.1", upstream.requestLines.get(0));
+    }
+
+    @Test
+    void relaysChunkedBody() throws Exception {
+        RawUpstream upstream = upstream("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: dropped\r\n\r\n", false);
+        UpstreamGroup group = group(UpstreamGroup.POWER_OF_TWO, upstream);
+        int port = proxy(group);
+
+        assertEquals("hello world", body(get(port, "/")));
+        // The chunked body was consumed exactly, so the connection went back to the pool
+        await(() -> ((Number) group.getStats().get(0).get("idleConnections")).intValue() == 1);
+        assertEquals("hello world", body(get(port, "/")));
+        assertEquals(1, upstream.connections.get());
+    }
+
+    @Test
+    void relaysCloseDelimitedBody() throws IOException {
+        RawUpstream upstream = upstream("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nhello world", true);
+        UpstreamGroup group = group(UpstreamGroup.POWER_OF_TWO, upstream);
+        int port = proxy(group);
+
+        assertEquals("hello world", body(get(port, "/")));
+        assertEquals("hello world", body(get(port, "/")));
+        assertEquals(2, upstream.connections.get());
+        assertEquals(0, group.getStats().get(0).get("idleConnections"));
+    }
+
+    @Test
+    void retriesStalePooledConnectionOnce() throws Exception {
+        // Answers keep-alive, then closes the connection the proxy has just pooled
+        RawUpstream upstream = upstream("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok", true);
+        UpstreamGroup group = group(UpstreamGroup.POWER_OF_TWO, upstream);
+        int port = proxy(group);
+
+        assertEquals("ok", body(get(port, "/")));
+        // Pooled once the relay finishes, which can be just after the client has the body
+        await(() -> upstream.closed.get() == 1
+            && ((Number) group.getStats().get(0).get("idleConnections")).intValue() == 1);
+
+        HttpURLConnection connection = get(port, "/");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("ok", body(connection));
+        assertEquals(2L, group.getStats().get(0).get("connectionsOpened"));
+        assertEquals(0L, group.getStats().get(0).get("failures"));
+    }
+
+    @Test
+    void leastOutstandingPicksTheIdlestUpstream() {
+        Upstream busy = new Upstream("127.0.0.1", 1, 0);
+        Upstream idle = new Upstream("127.0.0.1", 2, 0);
+        Upstream loaded = new Upstream("127.0.0.1", 3, 0);
+        begin(busy, 3);
+        begin(loaded, 1);
+        UpstreamGroup group = new UpstreamGroup(Arrays.asList(busy, idle, loaded), UpstreamGroup.LEAST_OUTSTANDING, 100);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(idle, group.choose());
+        }
+    }
+
+    @Test
+    void powerOfTwoNeverPicksTheBusiestUpstream() {
+        Upstream busy = new Upstream("127.0.0.1", 1, 0);
+        Upstream idle = new Upstream("127.0.0.1", 2, 0);
+        Upstream loaded = new Upstream("127.0.0.1", 3, 0);
+        begin(busy, 3);
+        begin(loaded, 1);
+        UpstreamGroup group = new UpstreamGroup(Arrays.asList(busy, idle, loaded), UpstreamGroup.POWER_OF_TWO, 100);
+
+        int idleChosen = 0;
+        for (int i = 0; i < 300; i++) {
+            Upstream chosen = group.choose();
+            assertNotSame(busy, chosen);
+            if (chosen == idle) {
+                idleChosen++;
+            }
+        }
+        // The idle upstream wins both of the pairs it is drawn into, two thirds of the draws
+        assertTrue(idleChosen > 150, "idle chosen " + idleChosen + " of 300");
+    }
+
+    @Test
+    void healthChecksTakeUpstreamDownAndBackUp() throws Exception {
+        AtomicInteger healthStatus = new AtomicInteger(200);
+        HttpServer upstream = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        upstream.createContext("/health", exchange -> {
+            exchange.sendResponseHeaders(healthStatus.get(), -1);
+            exchange.close();
+        });
+        upstream.start();
+        resources.add(() -> upstream.stop(0));
+        UpstreamGroup group = new UpstreamGroup(Collections.singletonList(
+            new Upstream("127.0.0.1", upstream.getAddress().getPort(), 4)), UpstreamGroup.POWER_OF_TWO, 500);
+        resources.add(group);
+        group.startHealthChecks("/health", 20);
+
+        healthStatus.set(503);
+        await(() -> Boolean.FALSE.equals(group.getStats().get(0).get("healthy")));
+        assertNull(group.choose());
+
+        healthStatus.set(200);
+        await(() -> Boolean.TRUE.equals(group.getStats().get(0).get("healthy")));
+        assertTrue(group.choose() != null);
+    }
+
+    @Test
+    void ejectsAfterConsecutiveFailuresButNeverTheLastUpstream() {
+        Upstream first = new Upstream("127.0.0.1", 1, 0);
+        Upstream second = new Upstream("127.0.0.1", 2, 0);
+        UpstreamGroup group = new UpstreamGroup(Arrays.asList(first, second), UpstreamGroup.POWER_OF_TWO, 100);
+
+        fail(first, group, 4);
+        assertTrue(first.isAvailable(System.nanoTime()));
+        fail(first, group, 1);
+        assertFalse(first.isAvailable(System.nanoTime()));
+        for (int i = 0; i < 20; i++) {
+            assertSame(second, group.choose());
+        }
+
+        fail(second, group, 10);
+        assertTrue(second.isAvailable(System.nanoTime()));
+        assertSame(second, group.choose());
+    }
+
+    @Test
+    void successResetsTheFailureCount() {
+        Upstream first = new Upstream("127.0.0.1", 1, 0);
+        Upstream second = new Upstream("127.0.0.1", 2, 0);
+        UpstreamGroup group = new UpstreamGroup(Arrays.asList(first, second), UpstreamGroup.POWER_OF_TWO, 100);
+
+        fail(first, group, 4);
+        first.begin();
+        first.end(false, group);
+        fail(first, group, 4);
+        assertTrue(first.isAvailable(System.nanoTime()));
+    }
+
+    @Test
+    void clientHangingUpDoesNotCountAgainstTheUpstream() throws Exception {
+        // Far more than the socket buffers hold, so the proxy is still writing when the client leaves
+        int length = 64 << 20;
+        RawUpstream upstream = new RawUpstream(
+            ("HTTP/1.1 200 OK\r\nContent-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1),
+            length, false);
+        resources.add(upstream);
+        UpstreamGroup group = group(UpstreamGroup.POWER_OF_TWO, upstream);
+        int port = proxy(group);
+
+        try (Socket client = new Socket("127.0.0.1", port)) {
+            client.getOutputStream().write("GET / HTTP/1.1\r\nHost: test\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = client.getInputStream();
+            for (int i = 0; i < 1024; i++) {
+                in.read();
+            }
+            // Reset rather than a graceful close, so the proxy's next write fails
+            client.setSoLinger(true, 0);
+        }
+        await(() -> ((Number) group.getStats().get(0).get("outstanding")).intValue() == 0
+            && ((Number) group.getStats().get(0).get("requests")).longValue() == 1);
+        assertEquals(0L, group.getStats().get(0).get("failures"));
+    }
+
+    @Test
+    void upstreamFailingMidBodyCounts() throws Exception {
+        // Promises more than it sends, then closes
+        RawUpstream upstream = upstream("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\nshort", true);
+        UpstreamGroup group = group(UpstreamGroup.POWER_OF_TWO, upstream);
+        int port = proxy(group);
+
+        HttpURLConnection connection = get(port, "/");
+        assertEquals(200, connection.getResponseCode());
+        try {
+            body(connection);
+        } catch (IOException e) {
+            // Truncated, as expected
+        }
+        await(() -> ((Number) group.getStats().get(0).get("outstanding")).intValue() == 0);
+        assertEquals(1L, group.getStats().get(0).get("failures"));
+    }
+
+    private RawUpstream upstream(String response, boolean closeAfterResponse) throws IOException {
+        RawUpstream upstream = new RawUpstream(response.getBytes(StandardCharsets.ISO_8859_1), 0, closeAfterResponse);
+        resources.add(upstream);
+        return upstream;
+    }
+
+    private UpstreamGroup group(int balancer, RawUpstream upstream) {
+        UpstreamGroup group = new UpstreamGroup(Collections.singletonList(
+            new Upstream("127.0.0.1", upstream.getPort(), 4)), balancer, 1000);
+        resources.add(group);
+        return group;
+    }
+
+    private int proxy(UpstreamGroup group) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new ProxyHandler(group, 5000));
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        resources.add(() -> server.stop(0));
+        return server.getAddress().getPort();
+    }
+
+    private static HttpURLConnection get(int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+
+    private static String body(HttpURLConnection connection) throws IOException {
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+
+    private static void begin(Upstream upstream, int requests) {
+        for (int i = 0; i < requests; i++) {
+            upstream.begin();
+        }
+    }
+
+    private static void fail(Upstream upstream, UpstreamGroup group, int times) {
+        for (int i = 0; i < times; i++) {
+            upstream.begin();
+            upstream.end(true, group);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met within 5s");
+            Thread.sleep(10);
+        }
+    }
+
+    // Reads each request head and answers with the same canned response: its head and
+    // optionally a generated body of filler bytes
+    private static class RawUpstream implements Closeable {
+        final List<String> requestLines = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        private final ServerSocket server;
+        private final byte[] response;
+        private final long filler;
+        private final boolean closeAfterResponse;
+
+        RawUpstream(byte[] response, long filler, boolean closeAfterResponse) throws IOException {
+            this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.response = response;
+            this.filler = filler;
+            this.closeAfterResponse = closeAfterResponse;
+            Thread acceptor = new Thread(this::accept, "raw-upstream");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        private void accept() {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(() -> serve(socket), "raw-upstream-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (Socket s = socket) {
+                InputStream in = s.getInputStream();
+                OutputStream out = s.getOutputStream();
+                String requestLine;
+                while ((requestLine = readHead(in)) != null) {
+                    requestLines.add(requestLine);
+                    out.write(response);
+                    byte[] chunk = new byte[64 * 1024];
+                    for (long sent = 0; sent < filler; sent += chunk.length) {
+                        out.write(chunk, 0, (int) Math.min(chunk.length, filler - sent));
+                    }
+                    out.flush();
+                    if (closeAfterResponse) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Proxy went away
+            } finally {
+                closed.incrementAndGet();
+            }
+        }
+
+        // The request line, or null at end of stream
+        private static String readHead(InputStream in) throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int matched = 0;
+            int b;
+            while (matched < 4 && (b = in.read()) != -1) {
+                head.write(b);
+                matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+            }
+            if (matched < 4) {
+                return null;
+            }
+            String text = head.toString(StandardCharsets.ISO_8859_1.name());
+            return text.substring(0, text.indexOf("\r\n"));
+        }
+
+        @Override
+        public void close() throws IOException {
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// Server configuration tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ServerConfigTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void fileSetsStartupSettings() throws IOException {
+        ServerConfig config = load("ratelimit.enabled=true\n"
+            + "ratelimit.burst=12.5\n"
+            + "ws.port=9100\n"
+            + "cors.allowedOrigins=https://a.example, https://b.example\n"
+            + "server.drainTimeoutMs=5000\n");
+
+        assertTrue(config.getBoolean("ratelimit.enabled"));
+        assertEquals(12.5, config.getDouble("ratelimit.burst"));
+        assertEquals(9100, config.getInt("ws.port"));
+        assertEquals("https://a.example, https://b.example", config.getString("cors.allowedOrigins"));
+        assertEquals(5000L, config.getLong("server.drainTimeoutMs"));
+        assertEquals(-1, config.getInt("h2c.port"));
+    }
+
+    @Test
+    void commandLineWinsOverFile() throws IOException {
+        ServerConfig config = load("h2c.port=9200\n", "--h2c.port=0");
+        assertEquals(0, config.getInt("h2c.port"));
+    }
+
+    @Test
+    void fileStillRejectsUnknownAndInvalidSettings() {
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+            () -> load("ratelimit.burts=10\nratelimit.refillPerSecond=0\nhttps.port=70000\n"));
+        assertTrue(error.getMessage().contains("ratelimit.burts in "), error.getMessage());
+        assertTrue(error.getMessage().contains("ratelimit.refillPerSecond from file"), error.getMessage());
+        assertTrue(error.getMessage().contains("https.port from file"), error.getMessage());
+    }
+
+    @Test
+    void secretsAreNeverReported() throws IOException {
+        ServerConfig config = load("upload.token=s3cret\n");
+        assertEquals("s3cret", config.getString("upload.token"));
+
+        Map<?, ?> token = (Map<?, ?>) config.toMap().get("upload.token");
+        assertEquals(true, token.get("value"));
+        assertEquals("secret", token.get("type"));
+        assertTrue(!token.containsKey("default"));
+        Map<?, ?> configToken = (Map<?, ?>) config.toMap().get("config.token");
+        assertEquals(false, configToken.get("value"));
+    }
+
+    @Test
+    void startupSettingsCannotChangeAtRuntime() throws IOException {
+        ServerConfig config = load("");
+        IllegalArgumentException error = assertThrows(IllegalArgumentException.class,
+            () -> config.update(Collections.singletonMap("ratelimit.burst", 5.0), "test"));
+        assertTrue(error.getMessage().contains("only read at startup"), error.getMessage());
+    }
+
+    private ServerConfig load(String properties, String... args) throws IOException {
+        Path file = directory.resolve("server.properties");
+        Files.write(file, properties.getBytes(StandardCharsets.UTF_8));
+        String[] all = new String[args.length + 1];
+        all[0] = "--config=" + file;
+        System.arraycopy(args, 0, all, 1, args.length);
+        return ServerConfig.load(all);
+    }
+}
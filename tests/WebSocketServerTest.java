@@ -0,0 +1,97 @@
+// WebSocket server tests
+package com.httpserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WebSocketServerTest {
+    private static final String UPGRADE = "GET /ws/logs HTTP/1.1\r\n"
+        + "Host: localhost\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+        + "Sec-WebSocket-Version: 13\r\n\r\n";
+
+    private WebSocketServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new WebSocketServer(0, "/ws/logs", 1, PerMessageDeflate.disabled());
+        server.start();
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop();
+    }
+
+    @Test
+    void parsesFramesSentWithTheHandshake() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setSoTimeout(5000);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(UPGRADE.getBytes(StandardCharsets.US_ASCII));
+            request.write(maskedFrame(0x9, "ping".getBytes(StandardCharsets.US_ASCII)));
+            socket.getOutputStream().write(request.toByteArray());
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            String response = readHeaders(in);
+            assertTrue(response.startsWith("HTTP/1.1 101 "), response);
+            assertTrue(response.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), response);
+
+            // The ping behind the request is answered with a pong
+            assertEquals(0x80 | 0xA, in.readUnsignedByte());
+            byte[] payload = new byte[in.readUnsignedByte()];
+            in.readFully(payload);
+            assertArrayEquals("ping".getBytes(StandardCharsets.US_ASCII), payload);
+        }
+    }
+
+    @Test
+    void closeSentWithTheHandshakeEndsTheConnection() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            socket.setSoTimeout(5000);
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(UPGRADE.getBytes(StandardCharsets.US_ASCII));
+            request.write(maskedFrame(0x8, new byte[] {0x03, (byte) 0xE8}));
+            socket.getOutputStream().write(request.toByteArray());
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            assertTrue(readHeaders(in).startsWith("HTTP/1.1 101 "));
+            assertEquals(0x80 | 0x8, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedByte());
+            assertEquals(1000, in.readUnsignedShort());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static byte[] maskedFrame(int opcode, byte[] payload) {
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        byte[] frame = new byte[6 + payload.length];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(mask, 0, frame, 2, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[6 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        return frame;
+    }
+
+    private static String readHeaders(DataInputStream in) throws IOException {
+        StringBuilder headers = new StringBuilder();
+        while (!headers.toString().endsWith("\r\n\r\n")) {
+            headers.append((char) in.readUnsignedByte());
+        }
+        return headers.toString();
+    }
+}